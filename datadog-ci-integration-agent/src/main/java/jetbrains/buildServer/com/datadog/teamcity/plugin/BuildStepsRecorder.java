@@ -0,0 +1,156 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.agent.AgentLifeCycleAdapter;
+import jetbrains.buildServer.agent.AgentLifeCycleListener;
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.agent.ArtifactsWatcher;
+import jetbrains.buildServer.agent.BuildFinishedStatus;
+import jetbrains.buildServer.agent.BuildRunnerContext;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.BuildStepsArtifact.Step;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.BuildStepsArtifact.StepStatus;
+import jetbrains.buildServer.util.EventDispatcher;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+import static java.lang.String.format;
+
+/**
+ * Records the start, end and status of the steps of the builds, and publishes them as a hidden artifact
+ * (see {@link BuildStepsArtifact}) which the server reads when it reports the job.
+ * <p>
+ * Only the builds of the projects where the plugin is enabled are recorded. The timings are kept in memory
+ * while the build runs, and written once before it finishes, so the steps themselves are not slowed down.
+ * The timestamps are taken from the agent clock.
+ */
+public class BuildStepsRecorder extends AgentLifeCycleAdapter {
+
+    private static final Logger LOG = Logger.getInstance(BuildStepsRecorder.class.getName());
+
+    // The same parameter as on the server, inherited by the builds from their project
+    protected static final String DATADOG_ENABLED_PARAM = "datadog.ci.enabled";
+
+    private final ArtifactsWatcher artifactsWatcher;
+    private final LongSupplier clock;
+
+    // An agent runs one build at a time, and its events are sent from one thread at a time
+    private volatile RecordedSteps current;
+
+    public BuildStepsRecorder(EventDispatcher<AgentLifeCycleListener> agentDispatcher, ArtifactsWatcher artifactsWatcher) {
+        this(agentDispatcher, artifactsWatcher, System::currentTimeMillis);
+    }
+
+    protected BuildStepsRecorder(EventDispatcher<AgentLifeCycleListener> agentDispatcher, ArtifactsWatcher artifactsWatcher,
+                                 LongSupplier clock) {
+        this.artifactsWatcher = artifactsWatcher;
+        this.clock = clock;
+
+        agentDispatcher.addListener(this);
+    }
+
+    @Override
+    public void buildStarted(AgentRunningBuild build) {
+        boolean enabled = Boolean.parseBoolean(build.getSharedConfigParameters().get(DATADOG_ENABLED_PARAM));
+        current = enabled ? new RecordedSteps() : null;
+    }
+
+    @Override
+    public void beforeRunnerStart(BuildRunnerContext runner) {
+        RecordedSteps steps = current;
+        if (steps != null) {
+            steps.start(runner.getId(), runner.getName(), clock.getAsLong());
+        }
+    }
+
+    @Override
+    public void runnerFinished(BuildRunnerContext runner, BuildFinishedStatus status) {
+        RecordedSteps steps = current;
+        if (steps != null) {
+            steps.finish(runner.getId(), toStepStatus(status), clock.getAsLong());
+        }
+    }
+
+    @Override
+    public void beforeBuildFinish(AgentRunningBuild build, BuildFinishedStatus buildStatus) {
+        RecordedSteps steps = current;
+        current = null;
+        if (steps == null) {
+            return;
+        }
+
+        // A step still running at this point was interrupted with the build
+        steps.finish(null, StepStatus.CANCELED, clock.getAsLong());
+        if (steps.finished.isEmpty()) {
+            return;
+        }
+
+        File artifact = new File(new File(build.getBuildTempDirectory(), "datadog"), BuildStepsArtifact.FILE_NAME);
+        try {
+            write(steps.finished, artifact);
+        } catch (IOException e) {
+            LOG.warn(format("Could not write the step timings of build with id '%s'", build.getBuildId()), e);
+            return;
+        }
+        artifactsWatcher.addNewArtifactsPath(artifact.getAbsolutePath() + "=>" + BuildStepsArtifact.DIRECTORY);
+    }
+
+    private static void write(List<Step> steps, File artifact) throws IOException {
+        File directory = artifact.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory " + directory);
+        }
+
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(artifact), StandardCharsets.UTF_8)) {
+            BuildStepsArtifact.write(steps, writer);
+        }
+    }
+
+    private static StepStatus toStepStatus(BuildFinishedStatus status) {
+        if (status == BuildFinishedStatus.INTERRUPTED) {
+            return StepStatus.CANCELED;
+        }
+        return status.isFailed() ? StepStatus.ERROR : StepStatus.SUCCESS;
+    }
+
+    private static class RecordedSteps {
+        private final List<Step> finished = new ArrayList<>();
+        private String runningId;
+        private String runningName;
+        private long runningStartMillis;
+
+        private void start(String id, String name, long startMillis) {
+            runningId = id;
+            runningName = name;
+            runningStartMillis = startMillis;
+        }
+
+        /**
+         * @param id the ID of the finished step, or null for whichever step is running
+         */
+        private void finish(String id, StepStatus status, long endMillis) {
+            if (runningId == null || (id != null && !id.equals(runningId))) {
+                return;
+            }
+
+            String name = runningName == null || runningName.isEmpty() ? runningId : runningName;
+            finished.add(new Step(runningId, name, runningStartMillis, endMillis, status));
+            runningId = null;
+            runningName = null;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import jetbrains.buildServer.agent.AgentLifeCycleListener;
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.agent.ArtifactsWatcher;
+import jetbrains.buildServer.agent.BuildFinishedStatus;
+import jetbrains.buildServer.agent.BuildRunnerContext;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.BuildStepsArtifact.Step;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.BuildStepsArtifact.StepStatus;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.Collections.singletonMap;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.BuildStepsRecorder.DATADOG_ENABLED_PARAM;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BuildStepsRecorderTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Mock
+    private EventDispatcher<AgentLifeCycleListener> agentDispatcher;
+    @Mock
+    private ArtifactsWatcher artifactsWatcherMock;
+    @Mock
+    private AgentRunningBuild buildMock;
+
+    private final AtomicLong clock = new AtomicLong(1000);
+    private BuildStepsRecorder recorder;
+
+    @Before
+    public void setUp() throws IOException {
+        when(buildMock.getBuildTempDirectory()).thenReturn(temporaryFolder.newFolder());
+        when(buildMock.getSharedConfigParameters()).thenReturn(singletonMap(DATADOG_ENABLED_PARAM, "true"));
+
+        recorder = new BuildStepsRecorder(agentDispatcher, artifactsWatcherMock, clock::get);
+    }
+
+    @Test
+    public void shouldPublishTimingsOfSteps() throws IOException {
+        recorder.buildStarted(buildMock);
+        runStep("RUNNER_1", "Compile", 500, BuildFinishedStatus.FINISHED_SUCCESS);
+        runStep("RUNNER_2", "Tests", 2000, BuildFinishedStatus.FINISHED_FAILED);
+        recorder.beforeBuildFinish(buildMock, BuildFinishedStatus.FINISHED_FAILED);
+
+        assertThat(publishedSteps()).containsExactly(
+            new Step("RUNNER_1", "Compile", 1000, 1500, StepStatus.SUCCESS),
+            new Step("RUNNER_2", "Tests", 1500, 3500, StepStatus.ERROR));
+    }
+
+    @Test
+    public void shouldCancelStepRunningWhenBuildFinishes() throws IOException {
+        recorder.buildStarted(buildMock);
+        recorder.beforeRunnerStart(runner("RUNNER_1", ""));
+        clock.addAndGet(100);
+        recorder.beforeBuildFinish(buildMock, BuildFinishedStatus.INTERRUPTED);
+
+        assertThat(publishedSteps()).containsExactly(new Step("RUNNER_1", "RUNNER_1", 1000, 1100, StepStatus.CANCELED));
+    }
+
+    @Test
+    public void shouldNotRecordBuildsOfProjectsNotEnabled() {
+        when(buildMock.getSharedConfigParameters()).thenReturn(singletonMap(DATADOG_ENABLED_PARAM, "false"));
+
+        recorder.buildStarted(buildMock);
+        runStep("RUNNER_1", "Compile", 500, BuildFinishedStatus.FINISHED_SUCCESS);
+        recorder.beforeBuildFinish(buildMock, BuildFinishedStatus.FINISHED_SUCCESS);
+
+        verify(artifactsWatcherMock, never()).addNewArtifactsPath(anyString());
+    }
+
+    @Test
+    public void shouldNotPublishBuildsWithoutSteps() {
+        recorder.buildStarted(buildMock);
+        recorder.beforeBuildFinish(buildMock, BuildFinishedStatus.FINISHED_SUCCESS);
+
+        verify(artifactsWatcherMock, never()).addNewArtifactsPath(anyString());
+    }
+
+    private void runStep(String id, String name, long durationMillis, BuildFinishedStatus status) {
+        BuildRunnerContext runner = runner(id, name);
+        recorder.beforeRunnerStart(runner);
+        clock.addAndGet(durationMillis);
+        recorder.runnerFinished(runner, status);
+    }
+
+    private static BuildRunnerContext runner(String id, String name) {
+        BuildRunnerContext runner = mock(BuildRunnerContext.class);
+        when(runner.getId()).thenReturn(id);
+        when(runner.getName()).thenReturn(name);
+        return runner;
+    }
+
+    private List<Step> publishedSteps() throws IOException {
+        File artifact = new File(new File(buildMock.getBuildTempDirectory(), "datadog"), BuildStepsArtifact.FILE_NAME);
+        verify(artifactsWatcherMock).addNewArtifactsPath(artifact.getAbsolutePath() + "=>" + BuildStepsArtifact.DIRECTORY);
+
+        try (Reader reader = new InputStreamReader(new FileInputStream(artifact), StandardCharsets.UTF_8)) {
+            return BuildStepsArtifact.read(reader);
+        }
+    }
+}
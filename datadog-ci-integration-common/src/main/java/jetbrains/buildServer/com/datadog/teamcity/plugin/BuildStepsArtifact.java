@@ -0,0 +1,211 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The hidden artifact with the timings of the steps of a build, written by the agent and read by the server.
+ * <p>
+ * The format is a header line followed by one tab-separated line per step that ran, in their execution order:
+ * <pre>
+ * #datadog-steps v1
+ * RUNNER_1	Compile	1672531200000	1672531260000	success
+ * </pre>
+ * Tabs, line breaks and backslashes in the step names are escaped with a backslash. Malformed lines are
+ * skipped, so that a truncated artifact still gives the steps before the truncation.
+ */
+public final class BuildStepsArtifact {
+
+    public static final String DIRECTORY = ".teamcity/datadog";
+    public static final String FILE_NAME = "steps.tsv";
+    public static final String PATH = DIRECTORY + "/" + FILE_NAME;
+
+    private static final String HEADER = "#datadog-steps v1";
+    private static final char SEPARATOR = '\t';
+    private static final int FIELDS = 5;
+
+    private BuildStepsArtifact() {
+    }
+
+    public static void write(List<Step> steps, Writer writer) throws IOException {
+        StringBuilder out = new StringBuilder(HEADER.length() + 64 * steps.size()).append(HEADER).append('\n');
+        for (Step step : steps) {
+            escape(step.id, out);
+            out.append(SEPARATOR);
+            escape(step.name, out);
+            out.append(SEPARATOR).append(step.startMillis)
+                .append(SEPARATOR).append(step.endMillis)
+                .append(SEPARATOR).append(step.status.key)
+                .append('\n');
+        }
+        writer.write(out.toString());
+    }
+
+    /**
+     * @return the steps, or an empty list if the artifact is not in a supported format
+     */
+    public static List<Step> read(Reader reader) throws IOException {
+        BufferedReader lines = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+        if (!HEADER.equals(lines.readLine())) {
+            return new ArrayList<>();
+        }
+
+        List<Step> steps = new ArrayList<>();
+        String line;
+        while ((line = lines.readLine()) != null) {
+            Step step = parse(line);
+            if (step != null) {
+                steps.add(step);
+            }
+        }
+        return steps;
+    }
+
+    private static Step parse(String line) {
+        String[] fields = line.split(String.valueOf(SEPARATOR), -1);
+        if (fields.length != FIELDS) {
+            return null;
+        }
+
+        StepStatus status = StepStatus.fromKey(fields[4]);
+        if (status == null) {
+            return null;
+        }
+
+        try {
+            return new Step(unescape(fields[0]), unescape(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[3]), status);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static void escape(String value, StringBuilder out) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\': out.append("\\\\"); break;
+                case '\t': out.append("\\t"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                default: out.append(c);
+            }
+        }
+    }
+
+    private static String unescape(String value) {
+        if (value.indexOf('\\') < 0) {
+            return value;
+        }
+
+        StringBuilder out = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c != '\\' || i == value.length() - 1) {
+                out.append(c);
+                continue;
+            }
+
+            char escaped = value.charAt(++i);
+            switch (escaped) {
+                case 't': out.append('\t'); break;
+                case 'n': out.append('\n'); break;
+                case 'r': out.append('\r'); break;
+                default: out.append(escaped);
+            }
+        }
+        return out.toString();
+    }
+
+    public static class Step {
+        private final String id;
+        private final String name;
+        private final long startMillis;
+        private final long endMillis;
+        private final StepStatus status;
+
+        public Step(String id, String name, long startMillis, long endMillis, StepStatus status) {
+            this.id = id;
+            this.name = name;
+            this.startMillis = startMillis;
+            this.endMillis = endMillis;
+            this.status = status;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getStartMillis() {
+            return startMillis;
+        }
+
+        public long getEndMillis() {
+            return endMillis;
+        }
+
+        public StepStatus getStatus() {
+            return status;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Step step = (Step) o;
+            return startMillis == step.startMillis && endMillis == step.endMillis && id.equals(step.id) && name.equals(step.name) && status == step.status;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(id, name, startMillis, endMillis, status);
+        }
+
+        @Override
+        public String toString() {
+            return "Step{" +
+                "id='" + id + '\'' +
+                ", name='" + name + '\'' +
+                ", startMillis=" + startMillis +
+                ", endMillis=" + endMillis +
+                ", status=" + status +
+                '}';
+        }
+    }
+
+    public enum StepStatus {
+        SUCCESS("success"),
+        ERROR("error"),
+        CANCELED("canceled");
+
+        private final String key;
+
+        StepStatus(String key) {
+            this.key = key;
+        }
+
+        private static StepStatus fromKey(String key) {
+            for (StepStatus status : values()) {
+                if (status.key.equals(key)) {
+                    return status;
+                }
+            }
+            return null;
+        }
+    }
+}
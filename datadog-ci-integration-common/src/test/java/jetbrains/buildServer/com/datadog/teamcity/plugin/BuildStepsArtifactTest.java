@@ -0,0 +1,72 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import jetbrains.buildServer.com.datadog.teamcity.plugin.BuildStepsArtifact.Step;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.BuildStepsArtifact.StepStatus;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BuildStepsArtifactTest {
+
+    @Test
+    public void shouldReadWrittenSteps() throws IOException {
+        List<Step> steps = Arrays.asList(
+            new Step("RUNNER_1", "Compile", 1000, 2000, StepStatus.SUCCESS),
+            new Step("RUNNER_2", "Tests\twith\nspecial \\ characters\r", 2000, 5000, StepStatus.ERROR),
+            new Step("RUNNER_3", "", 5000, 5001, StepStatus.CANCELED));
+
+        assertThat(read(write(steps))).isEqualTo(steps);
+    }
+
+    @Test
+    public void shouldWriteOneLinePerStep() throws IOException {
+        String artifact = write(Arrays.asList(
+            new Step("RUNNER_1", "Compile", 1000, 2000, StepStatus.SUCCESS),
+            new Step("RUNNER_2", "Line\nbreak", 2000, 3000, StepStatus.ERROR)));
+
+        assertThat(artifact).isEqualTo("#datadog-steps v1\n" +
+            "RUNNER_1\tCompile\t1000\t2000\tsuccess\n" +
+            "RUNNER_2\tLine\\nbreak\t2000\t3000\terror\n");
+    }
+
+    @Test
+    public void shouldSkipMalformedLines() throws IOException {
+        List<Step> steps = read("#datadog-steps v1\n" +
+            "RUNNER_1\tCompile\t1000\t2000\tsuccess\n" +
+            "RUNNER_2\tMissing fields\t2000\n" +
+            "RUNNER_3\tUnknown status\t2000\t3000\tskipped\n" +
+            "RUNNER_4\tNot a number\tabc\t3000\tsuccess\n" +
+            "RUNNER_5\tTrunc");
+
+        assertThat(steps).containsExactly(new Step("RUNNER_1", "Compile", 1000, 2000, StepStatus.SUCCESS));
+    }
+
+    @Test
+    public void shouldIgnoreUnsupportedFormat() throws IOException {
+        assertThat(read("#datadog-steps v2\nRUNNER_1\tCompile\t1000\t2000\tsuccess\n")).isEmpty();
+        assertThat(read("")).isEmpty();
+    }
+
+    private static String write(List<Step> steps) throws IOException {
+        StringWriter writer = new StringWriter();
+        BuildStepsArtifact.write(steps, writer);
+        return writer.toString();
+    }
+
+    private static List<Step> read(String artifact) throws IOException {
+        return BuildStepsArtifact.read(new StringReader(artifact));
+    }
+}
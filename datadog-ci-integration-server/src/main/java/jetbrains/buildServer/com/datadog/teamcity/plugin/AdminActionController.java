@@ -0,0 +1,150 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import jetbrains.buildServer.controllers.BaseController;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.auth.Permission;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.web.openapi.WebControllerManager;
+import jetbrains.buildServer.web.util.SessionUser;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.ModelAndView;
+
+import javax.annotation.Nonnull;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.String.format;
+
+/**
+ * Endpoint for the administrative actions of the plugin, used by the diagnostics page and usable from scripts:
+ * <pre>
+ *   POST /admin/datadog-ci/action.html?action=replayDeadLetters
+ *   POST /admin/datadog-ci/action.html?action=startExport&amp;days=30[&amp;project=ProjectExternalId]
+ *   POST /admin/datadog-ci/action.html?action=startExport&amp;from=2022-01-01&amp;to=2022-04-01[&amp;project=ProjectExternalId]
+ *   POST /admin/datadog-ci/action.html?action=resumeExport
+ *   POST /admin/datadog-ci/action.html?action=cancelExport
+ * </pre>
+ */
+@Component
+public class AdminActionController extends BaseController {
+
+    protected static final String CONTROLLER_PATH = "/admin/datadog-ci/action.html";
+    protected static final String ACTION_PARAM = "action";
+    protected static final String REPLAY_DEAD_LETTERS_ACTION = "replayDeadLetters";
+    protected static final String START_EXPORT_ACTION = "startExport";
+    protected static final String RESUME_EXPORT_ACTION = "resumeExport";
+    protected static final String CANCEL_EXPORT_ACTION = "cancelExport";
+    protected static final String PROJECT_PARAM = "project";
+    protected static final String DAYS_PARAM = "days";
+    protected static final String FROM_PARAM = "from";
+    protected static final String TO_PARAM = "to";
+
+    private final DeadLetterReplayer deadLetterReplayer;
+    private final DeadLetterStore deadLetterStore;
+    private final HistoricalExporter historicalExporter;
+
+    public AdminActionController(SBuildServer buildServer,
+                                 WebControllerManager webControllerManager,
+                                 DeadLetterReplayer deadLetterReplayer,
+                                 DeadLetterStore deadLetterStore,
+                                 HistoricalExporter historicalExporter) {
+        super(buildServer);
+        this.deadLetterReplayer = deadLetterReplayer;
+        this.deadLetterStore = deadLetterStore;
+        this.historicalExporter = historicalExporter;
+
+        webControllerManager.registerController(CONTROLLER_PATH, this);
+    }
+
+    @Override
+    protected ModelAndView doHandle(@Nonnull HttpServletRequest request, @Nonnull HttpServletResponse response) throws IOException {
+        if (!"POST".equalsIgnoreCase(request.getMethod())) {
+            response.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED, "Only POST requests are supported");
+            return null;
+        }
+
+        SUser user = SessionUser.getUser(request);
+        if (user == null || !user.isPermissionGrantedGlobally(Permission.CHANGE_SERVER_SETTINGS)) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN, "Changing server settings permission is required");
+            return null;
+        }
+
+        String action = request.getParameter(ACTION_PARAM);
+        if (REPLAY_DEAD_LETTERS_ACTION.equals(action)) {
+            replayDeadLetters(response);
+        } else if (START_EXPORT_ACTION.equals(action)) {
+            startExport(request, response);
+        } else if (RESUME_EXPORT_ACTION.equals(action)) {
+            if (historicalExporter.resumeAsync()) {
+                writeText(response, HttpServletResponse.SC_ACCEPTED, "Resuming the last export");
+            } else {
+                writeText(response, HttpServletResponse.SC_CONFLICT, "An export is in progress or there is no export to resume");
+            }
+        } else if (CANCEL_EXPORT_ACTION.equals(action)) {
+            historicalExporter.cancel();
+            writeText(response, HttpServletResponse.SC_ACCEPTED, "Cancelling the export");
+        } else {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, format("Unknown action '%s'", action));
+        }
+
+        return null;
+    }
+
+    private void replayDeadLetters(HttpServletResponse response) throws IOException {
+        long pending = deadLetterStore.size();
+        if (deadLetterReplayer.replayAsync()) {
+            writeText(response, HttpServletResponse.SC_ACCEPTED, format("Replaying %d dead letters", pending));
+        } else {
+            writeText(response, HttpServletResponse.SC_CONFLICT, "A replay is already in progress");
+        }
+    }
+
+    private void startExport(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        long fromMs;
+        long toMs;
+        try {
+            String from = request.getParameter(FROM_PARAM);
+            String to = request.getParameter(TO_PARAM);
+            if (from != null) {
+                fromMs = parseDate(from);
+                toMs = to != null ? parseDate(to) : System.currentTimeMillis();
+            } else {
+                toMs = System.currentTimeMillis();
+                fromMs = toMs - TimeUnit.DAYS.toMillis(Integer.parseInt(request.getParameter(DAYS_PARAM)));
+            }
+        } catch (NumberFormatException | DateTimeParseException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                "Either a number of days or a 'from' date (yyyy-MM-dd) is required");
+            return;
+        }
+
+        String project = request.getParameter(PROJECT_PARAM);
+        if (historicalExporter.exportAsync(project == null || project.isEmpty() ? null : project, fromMs, toMs)) {
+            writeText(response, HttpServletResponse.SC_ACCEPTED, format("Exporting chains finished between %tF and %tF", fromMs, toMs));
+        } else {
+            writeText(response, HttpServletResponse.SC_CONFLICT, "An export is already in progress");
+        }
+    }
+
+    private static long parseDate(String date) {
+        return LocalDate.parse(date).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static void writeText(HttpServletResponse response, int status, String text) throws IOException {
+        response.setStatus(status);
+        response.setContentType("text/plain");
+        response.getWriter().println(text);
+    }
+}
@@ -0,0 +1,260 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.serverSide.BuildQueryOptions;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.BuildsManager;
+import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.serverSide.SFinishedBuild;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.lang.String.format;
+import static java.util.stream.Collectors.toList;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.BuildUtils.buildName;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.BuildUtils.isLastCompositeBuild;
+
+/**
+ * Reports at startup the chains that finished while the server or the plugin was down.
+ * <p>
+ * The finished builds after the {@link ProcessingWatermark} are scanned for chain tails, which are then
+ * processed from the oldest to the most recent, in parallel batches limited to a number of chains per second
+ * so live traffic is not starved. Chains are scanned from some builds before the mark, as tails finishing
+ * after the mark can have lower IDs; the ones already reported are skipped by the {@link DeliveryIndex}.
+ * At the default rate, the largest backfill (10,000 chains) takes about 8 minutes. When more chains were missed,
+ * the oldest ones are backfilled first, and the next backfill continues with the more recent ones.
+ * <p>
+ * The live watermark moves as soon as new chains finish, so the progress of the backfill is persisted in a
+ * separate mark: it only moves past a batch once all its chains are processed. If the server stops before the
+ * backfill finishes, the next startup resumes it from that mark.
+ */
+@Component
+public class BackfillEngine extends BuildServerAdapter {
+
+    private static final Logger LOG = Logger.getInstance(BackfillEngine.class.getName());
+
+    protected static final String ENABLED_PROPERTY = "datadog.ci.backfill.enabled";
+    protected static final String MAX_AGE_HOURS_PROPERTY = "datadog.ci.backfill.maxAgeHours";
+    protected static final String MAX_CHAINS_PROPERTY = "datadog.ci.backfill.maxChains";
+    protected static final String OVERLAP_BUILDS_PROPERTY = "datadog.ci.backfill.overlapBuilds";
+    protected static final String PARALLELISM_PROPERTY = "datadog.ci.backfill.parallelism";
+    protected static final String RATE_PROPERTY = "datadog.ci.backfill.chainsPerSecond";
+    private static final int DEFAULT_MAX_AGE_HOURS = 24;
+    private static final int DEFAULT_MAX_CHAINS = 10_000;
+    private static final int DEFAULT_OVERLAP_BUILDS = 1000;
+    private static final int DEFAULT_PARALLELISM = 4;
+    private static final int DEFAULT_RATE = 20;
+    protected static final String PROGRESS_FILE = "backfill-progress.bin";
+
+    private final BuildsManager buildsManager;
+    private final BuildChainProcessor buildChainProcessor;
+    private final ProjectHandler projectHandler;
+    private final ProcessingWatermark watermark;
+    private final ProcessingWatermark progress;
+    private final int maxChains;
+    private final ExecutorService backfillExecutor;
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    public BackfillEngine(EventDispatcher<BuildServerListener> eventListener,
+                          BuildsManager buildsManager,
+                          BuildChainProcessor buildChainProcessor,
+                          ProjectHandler projectHandler,
+                          ProcessingWatermark watermark,
+                          ServerPaths serverPaths) {
+        this(eventListener, buildsManager, buildChainProcessor, projectHandler, watermark,
+            new ProcessingWatermark(DatadogConfiguration.pluginDataDirectory(serverPaths), PROGRESS_FILE),
+            Math.max(1, TeamCityProperties.getInteger(MAX_CHAINS_PROPERTY, DEFAULT_MAX_CHAINS)));
+    }
+
+    protected BackfillEngine(EventDispatcher<BuildServerListener> eventListener,
+                             BuildsManager buildsManager,
+                             BuildChainProcessor buildChainProcessor,
+                             ProjectHandler projectHandler,
+                             ProcessingWatermark watermark,
+                             ProcessingWatermark progress,
+                             int maxChains) {
+        this.buildsManager = buildsManager;
+        this.buildChainProcessor = buildChainProcessor;
+        this.projectHandler = projectHandler;
+        this.watermark = watermark;
+        this.progress = progress;
+        this.maxChains = maxChains;
+        this.backfillExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("datadog-backfill")
+            .setDaemon(true)
+            .build());
+
+        eventListener.addListener(this);
+    }
+
+    @Override
+    public void serverStartup() {
+        if (!TeamCityProperties.getBooleanOrTrue(ENABLED_PROPERTY)) {
+            return;
+        }
+
+        if (!watermark.isSet() && !progress.isSet()) {
+            // First startup with the plugin: nothing was reported yet, so there is nothing to catch up with
+            LOG.info("No chain was processed yet, skipping backfill");
+            return;
+        }
+
+        backfillAsync();
+    }
+
+    /**
+     * @return false if a backfill is already in progress
+     */
+    public boolean backfillAsync() {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+
+        if (progress.isSet()) {
+            LOG.info(format("Resuming the backfill interrupted after build with id '%s'", progress.buildId()));
+        } else if (watermark.isSet()) {
+            // Recorded before returning, as the chains finishing from now on move the watermark past the missed ones
+            progress.set(watermark.buildId(), watermark.finishTimeMs());
+        }
+
+        backfillExecutor.submit(() -> {
+            try {
+                backfill();
+            } catch (RuntimeException e) {
+                LOG.error("Unexpected error while backfilling chains", e);
+            } finally {
+                running.set(false);
+            }
+        });
+        return true;
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    private void backfill() {
+        List<SBuild> chains = findMissedChains(progress.buildId(), progress.finishTimeMs(), maxChains + 1);
+        boolean complete = chains.size() <= maxChains;
+        if (!complete) {
+            chains = chains.subList(0, maxChains);
+        }
+        if (chains.isEmpty()) {
+            LOG.info("No chain to backfill");
+            progress.clear();
+            return;
+        }
+
+        int parallelism = Math.max(1, TeamCityProperties.getInteger(PARALLELISM_PROPERTY, DEFAULT_PARALLELISM));
+        int ratePerSecond = Math.max(1, TeamCityProperties.getInteger(RATE_PROPERTY, DEFAULT_RATE));
+        RateLimiter rateLimiter = RateLimiter.create(ratePerSecond);
+        LOG.info(format("Backfilling %d chains finished while the plugin was down, at %d chains/s", chains.size(), ratePerSecond));
+
+        ExecutorService workers = Executors.newFixedThreadPool(parallelism, new ThreadFactoryBuilder()
+            .setNameFormat("datadog-backfill-worker-%d")
+            .setDaemon(true)
+            .build());
+        try {
+            for (int start = 0; start < chains.size(); start += parallelism) {
+                List<SBuild> batch = chains.subList(start, Math.min(start + parallelism, chains.size()));
+                rateLimiter.acquire(batch.size());
+
+                List<CompletableFuture<Void>> results = batch.stream()
+                    .map(build -> CompletableFuture.runAsync(() -> processChain(build), workers))
+                    .collect(toList());
+                CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).join();
+
+                // The chains are sorted by finish time, so all the ones before the end of the batch are processed
+                SBuild lastChain = batch.get(batch.size() - 1);
+                progress.set(lastChain.getBuildId(), lastChain.getFinishDate().getTime());
+            }
+        } finally {
+            workers.shutdown();
+        }
+
+        watermark.advance(chains.get(chains.size() - 1));
+        if (complete) {
+            progress.clear();
+            LOG.info(format("Finished backfilling %d chains", chains.size()));
+        } else {
+            // The progress is kept at the last chain processed, so the next backfill continues with the more recent ones
+            LOG.warn(format("Backfilled the %d oldest missed chains, the more recent ones are backfilled on the next run", maxChains));
+        }
+    }
+
+    private void processChain(SBuild pipelineBuild) {
+        try {
+            buildChainProcessor.process(pipelineBuild);
+        } catch (RuntimeException e) {
+            LOG.error(format("Could not backfill chain with id '%s' and name '%s'",
+                pipelineBuild.getBuildId(), buildName(pipelineBuild)), e);
+        }
+    }
+
+    /**
+     * @return the oldest missed chains, at most the given number, sorted by finish time
+     */
+    private List<SBuild> findMissedChains(long markBuildId, long markFinishTime, int maxChains) {
+        long oldestFinishTime = System.currentTimeMillis() -
+            TimeUnit.HOURS.toMillis(TeamCityProperties.getInteger(MAX_AGE_HOURS_PROPERTY, DEFAULT_MAX_AGE_HOURS));
+        long fromFinishTime = Math.max(markFinishTime, oldestFinishTime);
+        int overlap = TeamCityProperties.getInteger(OVERLAP_BUILDS_PROPERTY, DEFAULT_OVERLAP_BUILDS);
+
+        BuildQueryOptions options = new BuildQueryOptions();
+        options.setSinceBuildId(Math.max(0, markBuildId - overlap));
+        options.setIncludePersonal(false);
+        options.setIncludeCanceled(true);
+        options.setIncludeRunning(false);
+        options.setMatchAllBranches(true);
+
+        // The builds are processed from the most recently finished, so the most recent chain found is evicted
+        // when there are too many: the oldest ones are kept, to be backfilled first
+        PriorityQueue<SBuild> oldestChains = new PriorityQueue<>(Comparator.comparing(SBuild::getFinishDate).reversed());
+        buildsManager.processFinishedBuilds(options, build -> {
+            if (build.getFinishDate() != null && build.getFinishDate().getTime() < fromFinishTime) {
+                // The rest of the builds finished earlier
+                return false;
+            }
+            if (build.getBuildId() != markBuildId && isMissedChain(build, fromFinishTime)) {
+                oldestChains.add(build);
+                if (oldestChains.size() > maxChains) {
+                    oldestChains.poll();
+                }
+            }
+            return true;
+        });
+
+        List<SBuild> chains = new ArrayList<>(oldestChains);
+        chains.sort(Comparator.comparing(SBuild::getFinishDate));
+        return chains;
+    }
+
+    private boolean isMissedChain(SFinishedBuild build, long fromFinishTime) {
+        return build.getFinishDate() != null &&
+            build.getFinishDate().getTime() >= fromFinishTime &&
+            isLastCompositeBuild(build) &&
+            projectHandler.isPluginEnabled(build);
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Reusable, growable byte buffers used to serialize and compress the webhooks, one per thread.
+ * Only the final payload is allocated for each webhook, instead of the intermediate buffers and deflater.
+ * <p>
+ * The pool is bounded by the number of sending threads, and a buffer which grew beyond the retained size
+ * (for instance for a large batch) is dropped once released, so each thread only keeps a small buffer.
+ */
+public class BufferPool {
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final byte[] GZIP_HEADER = {
+        (byte) GZIP_MAGIC, (byte) (GZIP_MAGIC >> 8), Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0
+    };
+
+    private final int initialSize;
+    private final int maxRetainedSize;
+    private final ThreadLocal<ReusableBuffer> buffers;
+    private final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+    public BufferPool(int initialSize, int maxRetainedSize) {
+        this.initialSize = initialSize;
+        this.maxRetainedSize = maxRetainedSize;
+        this.buffers = ThreadLocal.withInitial(() -> new ReusableBuffer(initialSize));
+    }
+
+    /**
+     * Returns the empty buffer of the current thread, or a new one if it is already in use.
+     * The buffer has to be released once its content was copied.
+     */
+    public ReusableBuffer acquire() {
+        ReusableBuffer buffer = buffers.get();
+        if (buffer.inUse) {
+            return new ReusableBuffer(initialSize);
+        }
+
+        buffer.inUse = true;
+        buffer.reset();
+        return buffer;
+    }
+
+    public void release(ReusableBuffer buffer) {
+        buffer.inUse = false;
+        if (buffer.capacity() > maxRetainedSize && buffers.get() == buffer) {
+            buffers.set(new ReusableBuffer(initialSize));
+        }
+    }
+
+    /**
+     * Compresses the data in the gzip format, reusing the deflater and buffer of the current thread.
+     */
+    public byte[] gzip(byte[] data) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+
+        ReusableBuffer buffer = acquire();
+        try {
+            buffer.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+            buffer.deflate(deflater);
+            buffer.writeIntLE((int) crc.getValue());
+            buffer.writeIntLE(data.length);
+            return buffer.toByteArray();
+        } finally {
+            release(buffer);
+        }
+    }
+
+    public static class ReusableBuffer extends OutputStream {
+        private byte[] bytes;
+        private int count;
+        private boolean inUse;
+
+        private ReusableBuffer(int initialSize) {
+            this.bytes = new byte[Math.max(16, initialSize)];
+        }
+
+        @Override
+        public void write(int b) {
+            ensureCapacity(count + 1);
+            bytes[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureCapacity(count + len);
+            System.arraycopy(b, off, bytes, count, len);
+            count += len;
+        }
+
+        public int size() {
+            return count;
+        }
+
+        /**
+         * @return a copy of the content, sized exactly
+         */
+        public byte[] toByteArray() {
+            return Arrays.copyOf(bytes, count);
+        }
+
+        @Override
+        public void close() {
+            // Nothing to close, the buffer is released to its pool instead
+        }
+
+        protected int capacity() {
+            return bytes.length;
+        }
+
+        private void reset() {
+            count = 0;
+        }
+
+        private void deflate(Deflater deflater) {
+            while (!deflater.finished()) {
+                ensureCapacity(count + 512);
+                count += deflater.deflate(bytes, count, bytes.length - count);
+            }
+        }
+
+        private void writeIntLE(int value) {
+            write(value & 0xff);
+            write((value >> 8) & 0xff);
+            write((value >> 16) & 0xff);
+            write((value >> 24) & 0xff);
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+            }
+        }
+    }
+}
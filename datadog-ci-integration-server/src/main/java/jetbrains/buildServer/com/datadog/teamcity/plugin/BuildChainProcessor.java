@@ -8,6 +8,9 @@
 package jetbrains.buildServer.com.datadog.teamcity.plugin;
 
 import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.BuildStepsArtifact.Step;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.ProcessingBudget.ChainBudget;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.ProcessingBudget.ChainBudget.PendingEnrichment;
 import jetbrains.buildServer.com.datadog.teamcity.plugin.ProjectHandler.ProjectParameters;
 import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.GitInfo;
 import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.JobWebhook;
@@ -16,26 +19,30 @@ import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.JobWebho
 import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.JobWebhook.JobStatus;
 import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.PipelineWebhook;
 import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.PipelineWebhook.PipelineStatus;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.StepWebhook;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.StepWebhook.StepStatus;
 import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.Webhook;
 import jetbrains.buildServer.messages.Status;
 import jetbrains.buildServer.serverSide.BuildPromotion;
 import jetbrains.buildServer.serverSide.SBuild;
-import jetbrains.buildServer.serverSide.SBuildServer;
-import jetbrains.buildServer.serverSide.ServerSettings;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import org.springframework.stereotype.Component;
 
-import java.net.MalformedURLException;
-import java.net.URI;
-import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Predicate;
 
 import static java.lang.String.format;
+import static java.util.Collections.emptyList;
 import static java.util.Collections.singletonList;
 import static java.util.stream.Collectors.toList;
 import static jetbrains.buildServer.BuildProblemTypes.TC_FAILED_TESTS_TYPE;
@@ -44,6 +51,11 @@ import static jetbrains.buildServer.com.datadog.teamcity.plugin.BuildUtils.isPar
 import static jetbrains.buildServer.com.datadog.teamcity.plugin.BuildUtils.pipelineStartWithOffset;
 import static jetbrains.buildServer.com.datadog.teamcity.plugin.BuildUtils.queueTimeMs;
 import static jetbrains.buildServer.com.datadog.teamcity.plugin.BuildUtils.toRFC3339;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.ProcessingBudget.Enrichment.DEPENDENCIES;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.ProcessingBudget.Enrichment.ERROR_INFO;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.ProcessingBudget.Enrichment.GIT_INFO;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.ProcessingBudget.Enrichment.HOST_WORKSPACE;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.ProcessingBudget.Enrichment.STEPS;
 import static jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.JobWebhook.ErrorInfo.ErrorDomain.PROVIDER;
 import static jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.JobWebhook.ErrorInfo.ErrorDomain.USER;
 import static jetbrains.buildServer.messages.ErrorData.SNAPSHOT_DEPENDENCY_ERROR_BUILD_PROCEEDS_TYPE;
@@ -60,60 +72,176 @@ public class BuildChainProcessor {
 
 
     protected static final String CHECKOUT_DIR_PROPERTY = "system.teamcity.build.checkoutDir";
-    protected static final String DEFAULT_SCHEME = "http";
+    protected static final String ADDITIONAL_REPOSITORY_TAG_PREFIX = "git.additional_repository:";
+    protected static final String PARALLEL_THRESHOLD_PROPERTY = "datadog.ci.chain.parallelThreshold";
+    protected static final String PARALLELISM_PROPERTY = "datadog.ci.chain.parallelism";
+    private static final int DEFAULT_PARALLEL_THRESHOLD = 256;
+    private static final int DEFAULT_PARALLELISM = Math.min(4, Runtime.getRuntime().availableProcessors());
+    private static final int JOBS_PER_TASK = 32;
 
     private static final Logger LOG = Logger.getInstance(BuildChainProcessor.class.getName());
 
-    private final SBuildServer buildServer;
-    private final DatadogClient datadogClient;
+    private final BuildUrlFactory buildUrlFactory;
+    private final WebhookSink webhookSink;
     private final ProjectHandler projectHandler;
     private final GitInformationExtractor gitInformationExtractor;
-    private final ServerSettings serverSettings;
-
-    public BuildChainProcessor(SBuildServer buildServer, DatadogClient datadogClient, ProjectHandler projectHandler, GitInformationExtractor gitInformationExtractor, ServerSettings serverSettings) {
-        this.buildServer = buildServer;
-        this.datadogClient = datadogClient;
+    private final PluginMetrics metrics;
+    private final SentJobsIndex sentJobsIndex;
+    private final ValueInterner interner;
+    private final ProcessingBudget processingBudget;
+    private final BuildStepsReader buildStepsReader;
+    private final ForkJoinPool jobsPool;
+
+    public BuildChainProcessor(BuildUrlFactory buildUrlFactory, WebhookSink webhookSink, ProjectHandler projectHandler, GitInformationExtractor gitInformationExtractor, PluginMetrics metrics, SentJobsIndex sentJobsIndex, ValueInterner interner, ProcessingBudget processingBudget, BuildStepsReader buildStepsReader) {
+        this.buildUrlFactory = buildUrlFactory;
+        this.webhookSink = webhookSink;
         this.projectHandler = projectHandler;
         this.gitInformationExtractor = gitInformationExtractor;
-        this.serverSettings = serverSettings;
+        this.metrics = metrics;
+        this.sentJobsIndex = sentJobsIndex;
+        this.interner = interner;
+        this.processingBudget = processingBudget;
+        this.buildStepsReader = buildStepsReader;
+        // Dedicated pool, so that large chains neither use nor wait for the common pool shared with the server
+        this.jobsPool = new ForkJoinPool(
+            Math.max(1, TeamCityProperties.getInteger(PARALLELISM_PROPERTY, DEFAULT_PARALLELISM)),
+            pool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("datadog-chain-worker-" + thread.getPoolIndex());
+                return thread;
+            },
+            null, false);
     }
 
     public void process(SBuild pipelineBuild) {
+        long startNanos = System.nanoTime();
         ProjectParameters params = projectHandler.getProjectParameters(pipelineBuild);
-        List<Webhook> webhooks = createWebhooks(pipelineBuild);
+        JobClaims claims = new JobClaims(pipelineBuild);
+        List<Webhook> webhooks;
+        try {
+            webhooks = createWebhooks(pipelineBuild, processingBudget.startChain(), claims::claim);
+            send(webhooks, params);
+        } catch (RuntimeException e) {
+            // The shared jobs of a chain which could not be handed to the sink can be reported with another head
+            claims.releaseAll();
+            throw e;
+        }
+        metrics.onChainProcessed(pipelineBuild.getBuildId(), buildName(pipelineBuild), webhooks.size(), System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Sends the state of a pipeline that is still running. Only the pipeline webhook is sent, without the git
+     * information or the jobs, which are sent with the final webhook once the chain finishes.
+     */
+    public void sendRunningUpdate(SBuild pipelineBuild) {
+        Date now = new Date();
+        PipelineWebhook update = PipelineWebhook.running(
+            buildName(pipelineBuild),
+            buildUrlFactory.buildURL(pipelineBuild),
+            toRFC3339(pipelineBuild.getStartDate()),
+            toRFC3339(now),
+            buildUrlFactory.buildID(pipelineBuild),
+            String.valueOf(pipelineBuild.getBuildId()),
+            now.getTime());
 
-        datadogClient.sendWebhooksAsync(webhooks, params.apiKey(), params.ddSite());
+        send(singletonList(update), projectHandler.getProjectParameters(pipelineBuild));
+    }
+
+    private void send(List<Webhook> webhooks, ProjectParameters params) {
+        if (params.additionalDestinations().isEmpty()) {
+            webhookSink.sendWebhooksAsync(webhooks, params.apiKey(), params.ddSite());
+        } else {
+            webhookSink.sendWebhooksAsync(webhooks, params.destinations());
+        }
+    }
+
+    /**
+     * Creates the webhooks of a chain for an export, with all their optional fields. The jobs are not claimed,
+     * so exporting a chain does not prevent a live pipeline from reporting its shared jobs; the jobs already
+     * reported with another pipeline are skipped when they are sent, by the {@link DeliveryIndex}.
+     */
+    public List<Webhook> createExportWebhooks(SBuild pipelineBuild) {
+        return createWebhooks(pipelineBuild, processingBudget.startExport(), jobBuild -> true);
     }
 
     /**
      * Creates all the webhooks for a build chain. There will be 1 pipeline webhook for the final
-     * composite build and <em>N</em> webhooks for the eligible job builds in the chain.
+     * composite build and <em>N</em> webhooks for the eligible job builds in the chain, each followed
+     * by the webhooks of its steps when the agent recorded them.
      */
-    private List<Webhook> createWebhooks(SBuild pipelineBuild) {
-        PipelineWebhook pipelineWebhook = createPipelineWebhook(pipelineBuild);
-        List<Webhook> webhooks = new ArrayList<>(singletonList(pipelineWebhook));
-        webhooks.addAll(createJobWebhooks(pipelineBuild));
+    private List<Webhook> createWebhooks(SBuild pipelineBuild, ChainBudget budget, Predicate<SBuild> jobFilter) {
+        // The chain-level values are computed once and shared by all the webhooks of the chain
+        String pipelineName = buildName(pipelineBuild);
+        String pipelineID = buildUrlFactory.buildID(pipelineBuild);
+        // Looked up while the job webhooks are created, so that large chains do not leave it no time
+        PendingEnrichment<List<GitInfo>> gitLookup = budget.startEnrichment(GIT_INFO,
+            () -> Optional.of(gitInformationExtractor.extractAllGitInfo(pipelineBuild)));
 
-        // Adding git information to all webhooks
-        Optional<GitInfo> gitInfoOptional = gitInformationExtractor.extractGitInfo(pipelineBuild);
-        gitInfoOptional.ifPresent(gitInfo -> webhooks.forEach(webhook -> webhook.setGitInfo(gitInfo)));
+        PipelineWebhook pipelineWebhook = createPipelineWebhook(pipelineBuild, pipelineName, pipelineID);
+        List<Webhook> webhooks = new ArrayList<>(singletonList(pipelineWebhook));
+        webhooks.addAll(createJobWebhooks(pipelineBuild, pipelineName, pipelineID, budget, jobFilter));
+
+        // Adding the git information of the primary repository to all webhooks, and the other ones to the pipeline
+        List<GitInfo> gitInfos = gitLookup.get().orElse(emptyList());
+        if (!gitInfos.isEmpty()) {
+            GitInfo primaryGitInfo = gitInfos.get(0);
+            webhooks.forEach(webhook -> webhook.setGitInfo(primaryGitInfo));
+            if (gitInfos.size() > 1) {
+                pipelineWebhook.addTags(additionalRepositoryTags(gitInfos.subList(1, gitInfos.size())));
+            }
+        }
 
         return webhooks;
     }
 
-    private PipelineWebhook createPipelineWebhook(SBuild pipelineBuild) {
+    /**
+     * The jobs claimed by a pipeline while creating its webhooks, so that the claims can be given up if the
+     * webhooks are not handed to the sink.
+     */
+    private class JobClaims {
+        private final long pipelineBuildId;
+        private final List<Long> claimedJobIds = new ArrayList<>();
+
+        private JobClaims(SBuild pipelineBuild) {
+            this.pipelineBuildId = pipelineBuild.getBuildId();
+        }
+
+        private boolean claim(SBuild jobBuild) {
+            if (!sentJobsIndex.claim(jobBuild.getBuildId(), pipelineBuildId)) {
+                return false;
+            }
+            claimedJobIds.add(jobBuild.getBuildId());
+            return true;
+        }
+
+        private void releaseAll() {
+            for (long jobBuildId : claimedJobIds) {
+                sentJobsIndex.release(jobBuildId, pipelineBuildId);
+            }
+        }
+    }
+
+    private static List<String> additionalRepositoryTags(List<GitInfo> additionalGitInfos) {
+        List<String> tags = new ArrayList<>(additionalGitInfos.size());
+        for (GitInfo gitInfo : additionalGitInfos) {
+            tags.add(ADDITIONAL_REPOSITORY_TAG_PREFIX + gitInfo.commitReference());
+        }
+        return tags;
+    }
+
+    private PipelineWebhook createPipelineWebhook(SBuild pipelineBuild, String pipelineName, String pipelineID) {
         PipelineWebhook pipelineWebhook = new PipelineWebhook(
-            buildName(pipelineBuild),
-            buildURL(pipelineBuild),
+            pipelineName,
+            buildUrlFactory.buildURL(pipelineBuild),
             toRFC3339(pipelineBuild.getStartDate()),
             toRFC3339(pipelineBuild.getFinishDate()),
-            buildID(pipelineBuild),
+            pipelineID,
             String.valueOf(pipelineBuild.getBuildId()),
             isPartialRetry(pipelineBuild),
             getPipelineStatus(pipelineBuild));
 
         if (!pipelineBuild.getTags().isEmpty()) {
-            pipelineWebhook.setTags(pipelineBuild.getTags());
+            pipelineWebhook.setTags(internTags(pipelineBuild.getTags()));
         }
 
         return pipelineWebhook;
@@ -132,17 +260,71 @@ public class BuildChainProcessor {
         throw new IllegalArgumentException("Pipeline status not recognized: " + buildStatus);
     }
 
-    private List<JobWebhook> createJobWebhooks(SBuild pipelineBuild) {
-        String pipelineName = buildName(pipelineBuild);
-        String pipelineID = buildID(pipelineBuild);
+    private List<Webhook> createJobWebhooks(SBuild pipelineBuild, String pipelineName, String pipelineID, ChainBudget budget,
+                                            Predicate<SBuild> jobFilter) {
         Date pipelineStartWithOffset = pipelineStartWithOffset(pipelineBuild);
 
-        return pipelineBuild.getBuildPromotion().getAllDependencies().stream()
+        List<SBuild> jobBuilds = pipelineBuild.getBuildPromotion().getAllDependencies().stream()
             .map(BuildPromotion::getAssociatedBuild)
             .filter(Objects::nonNull)
             .filter(build -> !shouldBeIgnored(build, pipelineStartWithOffset))
-            .map(job -> createJobWebhook(job, pipelineName, pipelineID))
+            // Jobs shared with other composite heads are only reported with the first pipeline claiming them
+            .filter(jobFilter)
             .collect(toList());
+
+        int parallelThreshold = TeamCityProperties.getInteger(PARALLEL_THRESHOLD_PROPERTY, DEFAULT_PARALLEL_THRESHOLD);
+        if (parallelThreshold <= 0 || jobBuilds.size() < parallelThreshold || jobsPool.getParallelism() == 1) {
+            List<Webhook> webhooks = new ArrayList<>(jobBuilds.size());
+            for (SBuild jobBuild : jobBuilds) {
+                webhooks.addAll(createJobAndStepWebhooks(jobBuild, pipelineName, pipelineID, budget));
+            }
+            return webhooks;
+        }
+
+        // Each job reads its agent, parameters, failures and steps, which dominates for very large chains
+        List<List<Webhook>> jobWebhooks = new ArrayList<>(Collections.nCopies(jobBuilds.size(), null));
+        jobsPool.invoke(new JobWebhooksTask(jobBuilds, jobWebhooks, 0, jobBuilds.size(), pipelineName, pipelineID, budget));
+        List<Webhook> webhooks = new ArrayList<>(jobBuilds.size());
+        jobWebhooks.forEach(webhooks::addAll);
+        return webhooks;
+    }
+
+    /**
+     * Creates the webhooks of a range of jobs, splitting it in halves until it is small enough.
+     * The webhooks of each job are stored at its index, so the order does not depend on the scheduling.
+     */
+    private class JobWebhooksTask extends RecursiveAction {
+        private final List<SBuild> jobBuilds;
+        private final List<List<Webhook>> jobWebhooks;
+        private final int from;
+        private final int to;
+        private final String pipelineName;
+        private final String pipelineID;
+        private final ChainBudget budget;
+
+        private JobWebhooksTask(List<SBuild> jobBuilds, List<List<Webhook>> jobWebhooks, int from, int to, String pipelineName, String pipelineID, ChainBudget budget) {
+            this.jobBuilds = jobBuilds;
+            this.jobWebhooks = jobWebhooks;
+            this.from = from;
+            this.to = to;
+            this.pipelineName = pipelineName;
+            this.pipelineID = pipelineID;
+            this.budget = budget;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= JOBS_PER_TASK) {
+                for (int i = from; i < to; i++) {
+                    jobWebhooks.set(i, createJobAndStepWebhooks(jobBuilds.get(i), pipelineName, pipelineID, budget));
+                }
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            invokeAll(new JobWebhooksTask(jobBuilds, jobWebhooks, from, middle, pipelineName, pipelineID, budget),
+                new JobWebhooksTask(jobBuilds, jobWebhooks, middle, to, pipelineName, pipelineID, budget));
+        }
     }
 
     private boolean shouldBeIgnored(SBuild jobBuild, Date pipelineStart) {
@@ -154,31 +336,79 @@ public class BuildChainProcessor {
             jobBuild.getStartDate().before(pipelineStart);
     }
 
-    private JobWebhook createJobWebhook(SBuild jobBuild, String pipelineName, String pipelineID) {
+    private List<Webhook> createJobAndStepWebhooks(SBuild jobBuild, String pipelineName, String pipelineID, ChainBudget budget) {
+        JobWebhook jobWebhook = createJobWebhook(jobBuild, pipelineName, pipelineID, budget);
+        List<Step> steps = budget.enrich(STEPS, () -> Optional.of(buildStepsReader.read(jobBuild))).orElse(emptyList());
+        if (steps.isEmpty()) {
+            return singletonList(jobWebhook);
+        }
+
+        List<Webhook> webhooks = new ArrayList<>(steps.size() + 1);
+        webhooks.add(jobWebhook);
+        String jobName = interner.intern(buildName(jobBuild));
+        String jobID = buildUrlFactory.buildID(jobBuild);
+        String jobURL = buildUrlFactory.buildURL(jobBuild);
+        for (Step step : steps) {
+            webhooks.add(new StepWebhook(
+                step.getName(),
+                jobURL,
+                toRFC3339(new Date(step.getStartMillis())),
+                toRFC3339(new Date(step.getEndMillis())),
+                pipelineID,
+                pipelineName,
+                jobID,
+                jobName,
+                jobID + "-" + step.getId(),
+                getStepStatus(step)));
+        }
+        return webhooks;
+    }
+
+    private static StepStatus getStepStatus(Step step) {
+        switch (step.getStatus()) {
+            case SUCCESS:
+                return StepStatus.SUCCESS;
+            case ERROR:
+                return StepStatus.ERROR;
+            case CANCELED:
+                return StepStatus.CANCELED;
+            default:
+                throw new IllegalArgumentException("Step status not recognized: " + step.getStatus());
+        }
+    }
+
+    private JobWebhook createJobWebhook(SBuild jobBuild, String pipelineName, String pipelineID, ChainBudget budget) {
         JobWebhook jobWebhook = new JobWebhook(
-                buildName(jobBuild),
-                buildURL(jobBuild),
+                interner.intern(buildName(jobBuild)),
+                buildUrlFactory.buildURL(jobBuild),
                 toRFC3339(jobBuild.getStartDate()),
                 toRFC3339(jobBuild.getFinishDate()),
                 pipelineID,
                 pipelineName,
-                buildID(jobBuild),
+                buildUrlFactory.buildID(jobBuild),
                 getJobStatus(jobBuild),
                 queueTimeMs(jobBuild));
 
         if (!jobBuild.getBuildPromotion().getDependencies().isEmpty()) {
-            jobWebhook.setDependenciesIds(getDependenciesIds(jobBuild));
+            budget.enrich(DEPENDENCIES, () -> Optional.of(getDependenciesIds(jobBuild))).ifPresent(jobWebhook::setDependenciesIds);
         }
 
         if (!jobBuild.getTags().isEmpty()) {
-            jobWebhook.setTags(jobBuild.getTags());
+            jobWebhook.setTags(internTags(jobBuild.getTags()));
         }
 
-        getHostInfo(jobBuild).ifPresent(jobWebhook::setHostInfo);
-        getErrorInfo(jobBuild).ifPresent(jobWebhook::setErrorInfo);
+        // Jobs run on the same agent and checkout directory share their host information
+        getHostInfo(jobBuild, budget).map(interner::intern).ifPresent(jobWebhook::setHostInfo);
+        if (jobBuild.getBuildStatus().isFailed()) {
+            budget.enrich(ERROR_INFO, () -> getErrorInfo(jobBuild)).ifPresent(jobWebhook::setErrorInfo);
+        }
         return jobWebhook;
     }
 
+    private List<String> internTags(List<String> tags) {
+        return interner.intern(Collections.unmodifiableList(tags));
+    }
+
     private JobStatus getJobStatus(SBuild jobBuild) {
         Status buildStatus = jobBuild.getBuildStatus();
         if (buildStatus.isSuccessful()) {
@@ -192,7 +422,7 @@ public class BuildChainProcessor {
         throw new IllegalArgumentException("Job status not recognized: " + buildStatus);
     }
 
-    private Optional<HostInfo> getHostInfo(SBuild build) {
+    private Optional<HostInfo> getHostInfo(SBuild build, ChainBudget budget) {
         if (build.getAgent().getHostName().isEmpty() && build.getAgent().getHostAddress().isEmpty()) {
             return Optional.empty();
         }
@@ -200,7 +430,8 @@ public class BuildChainProcessor {
         return Optional.of(new HostInfo()
                 .withHostname(build.getAgent().getHostAddress())
                 .withName(build.getAgent().getHostName())
-                .withWorkspace(build.getParametersProvider().get(CHECKOUT_DIR_PROPERTY)));
+                .withWorkspace(budget.enrich(HOST_WORKSPACE, () -> Optional.ofNullable(build.getParametersProvider().get(CHECKOUT_DIR_PROPERTY)))
+                    .orElse(null)));
     }
 
     private Optional<ErrorInfo> getErrorInfo(SBuild build) {
@@ -218,29 +449,7 @@ public class BuildChainProcessor {
     private List<String> getDependenciesIds(SBuild build) {
         return build.getBuildPromotion().getDependencies().stream()
             .filter(dep -> dep.getDependOn().getAssociatedBuild() != null)
-            .map(dep -> buildID(dep.getDependOn().getAssociatedBuild()))
+            .map(dep -> buildUrlFactory.buildID(dep.getDependOn().getAssociatedBuild()))
             .collect(toList());
     }
-
-    private String buildURL(SBuild build) {
-        long buildID = build.getBuildId();
-        try {
-            String rootURL = buildServer.getRootUrl();
-            URI uri = URI.create(rootURL);
-            if (uri.getScheme() == null) {
-                rootURL = format("%s://%s", DEFAULT_SCHEME, rootURL);
-            }
-
-            URL serverRootURL = new URL(rootURL);
-            return new URL(serverRootURL, format("/build/%s", buildID)).toString();
-        } catch (MalformedURLException e) {
-            LOG.warn(format("Failed to build a valid URL for build %s. Falling back to a default empty URL. Exception: %s", buildID, e.getMessage()), e);
-            return "";
-        }
-    }
-
-    private String buildID(SBuild build) {
-        // Server ID is included to avoid build ID conflicts on different TC instances within the same org
-        return format("%s-%s", serverSettings.getServerUUID(), build.getBuildId());
-    }
 }
@@ -0,0 +1,48 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.BuildStepsArtifact.Step;
+import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.serverSide.artifacts.BuildArtifactHolder;
+import jetbrains.buildServer.serverSide.artifacts.BuildArtifactsViewMode;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static java.lang.String.format;
+import static java.util.Collections.emptyList;
+
+/**
+ * Reads the step timings published by the agent part of the plugin (see {@link BuildStepsArtifact}).
+ * Builds run on agents without the plugin, or whose artifacts were cleaned up, have no steps.
+ */
+@Component
+public class BuildStepsReader {
+
+    private static final Logger LOG = Logger.getInstance(BuildStepsReader.class.getName());
+
+    public List<Step> read(SBuild jobBuild) {
+        BuildArtifactHolder artifact = jobBuild.getArtifacts(BuildArtifactsViewMode.VIEW_ALL).findArtifact(BuildStepsArtifact.PATH);
+        if (!artifact.isAvailable()) {
+            return emptyList();
+        }
+
+        try (Reader reader = new InputStreamReader(artifact.getArtifact().getInputStream(), StandardCharsets.UTF_8)) {
+            return BuildStepsArtifact.read(reader);
+        } catch (IOException e) {
+            LOG.warn(format("Could not read the step timings of build with id '%s'", jobBuild.getBuildId()), e);
+            return emptyList();
+        }
+    }
+}
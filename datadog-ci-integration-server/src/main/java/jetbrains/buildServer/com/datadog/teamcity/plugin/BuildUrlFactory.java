@@ -0,0 +1,109 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.ServerSettings;
+import org.springframework.stereotype.Component;
+
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
+
+import static java.lang.String.format;
+
+/**
+ * Creates the URLs and IDs of the builds sent in the webhooks.
+ * <p>
+ * The server root URL and UUID are parsed once into prefixes, and each value is then created by
+ * appending the build ID to them. The prefixes are recomputed when the server settings change, which is
+ * detected by comparing the current root URL and UUID with the ones they were computed from.
+ */
+@Component
+public class BuildUrlFactory {
+
+    private static final Logger LOG = Logger.getInstance(BuildUrlFactory.class.getName());
+
+    protected static final String DEFAULT_SCHEME = "http";
+    private static final String BUILD_PATH = "/build/";
+
+    private final SBuildServer buildServer;
+    private final ServerSettings serverSettings;
+
+    private volatile Prefix urlPrefix = new Prefix(null, null);
+    private volatile Prefix idPrefix = new Prefix(null, null);
+
+    public BuildUrlFactory(SBuildServer buildServer, ServerSettings serverSettings) {
+        this.buildServer = buildServer;
+        this.serverSettings = serverSettings;
+    }
+
+    /**
+     * @return the URL of the build page, or an empty string if the server root URL is not valid
+     */
+    public String buildURL(SBuild build) {
+        String rootURL = buildServer.getRootUrl();
+        Prefix prefix = urlPrefix;
+        if (!prefix.isFor(rootURL)) {
+            prefix = new Prefix(rootURL, parseURLPrefix(rootURL));
+            urlPrefix = prefix;
+        }
+
+        return prefix.value == null ? "" : prefix.value + build.getBuildId();
+    }
+
+    /**
+     * @return the ID of the build, unique across the TeamCity servers of the organization
+     */
+    public String buildID(SBuild build) {
+        // Server ID is included to avoid build ID conflicts on different TC instances within the same org
+        String serverUUID = serverSettings.getServerUUID();
+        Prefix prefix = idPrefix;
+        if (!prefix.isFor(serverUUID)) {
+            prefix = new Prefix(serverUUID, serverUUID + "-");
+            idPrefix = prefix;
+        }
+
+        return prefix.value + build.getBuildId();
+    }
+
+    private static String parseURLPrefix(String rootURL) {
+        try {
+            URI uri = URI.create(rootURL);
+            if (uri.getScheme() == null) {
+                rootURL = format("%s://%s", DEFAULT_SCHEME, rootURL);
+            }
+
+            URL serverRootURL = new URL(rootURL);
+            return new URL(serverRootURL, BUILD_PATH).toString();
+        } catch (MalformedURLException e) {
+            LOG.warn(format("Failed to build a valid URL from the server root URL '%s'. Falling back to default empty build URLs. Exception: %s", rootURL, e.getMessage()), e);
+            return null;
+        }
+    }
+
+    /**
+     * A prefix computed from a server setting, kept with the setting so that a change can be detected.
+     */
+    private static class Prefix {
+        private final String source;
+        private final String value;
+
+        private Prefix(String source, String value) {
+            this.source = source;
+            this.value = value;
+        }
+
+        private boolean isFor(String currentSource) {
+            // The settings return the same instance until they change, so the comparison is usually by identity
+            return source != null && source.equals(currentSource);
+        }
+    }
+}
@@ -9,12 +9,15 @@ package jetbrains.buildServer.com.datadog.teamcity.plugin;
 
 import jetbrains.buildServer.serverSide.SBuild;
 
-import java.text.SimpleDateFormat;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.Date;
 
 public final class BuildUtils {
 
-    private static final SimpleDateFormat RFC_3339 = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssXXX");
+    // Unlike SimpleDateFormat, the formatter is thread-safe, as chains can be processed concurrently
+    private static final DateTimeFormatter RFC_3339 = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ssXXX")
+        .withZone(ZoneId.systemDefault());
 
     // In TeamCity, the last composite build of the chain might start slightly after the first build of the chain.
     // This is a temporary hack to include an offset of some seconds to not incorrectly
@@ -45,6 +48,16 @@ public final class BuildUtils {
         return new Date(pipelineBuild.getStartDate().getTime() - PIPELINE_START_OFFSET_MS);
     }
 
+    /**
+     * @return true if the build is the final composite build of its chain, the one representing the pipeline
+     */
+    public static boolean isLastCompositeBuild(SBuild build) {
+        // Ordered by cost: the dependents are counted on the build promotion, the other checks read build fields
+        return build.isCompositeBuild() &&
+            !build.isPersonal() &&
+            build.getBuildPromotion().getNumberOfDependedOnMe() == 0;
+    }
+
     public static String buildName(SBuild build) {
         return build.getFullName();
     }
@@ -54,6 +67,6 @@ public final class BuildUtils {
     }
 
     public static String toRFC3339(Date date) {
-        return RFC_3339.format(date);
+        return RFC_3339.format(date.toInstant());
     }
 }
@@ -7,10 +7,13 @@
 
 package jetbrains.buildServer.com.datadog.teamcity.plugin;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.BufferPool.ReusableBuffer;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.DeadLetterStore.DeadLetter;
 import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.Webhook;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
@@ -18,15 +21,28 @@ import org.springframework.http.HttpMethod;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestClientResponseException;
 import org.springframework.web.client.RestTemplate;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 import static java.lang.String.format;
 
-public class DatadogClient {
+public class DatadogClient implements WebhookSink {
 
     private static final Logger LOG = Logger.getInstance(DatadogClient.class.getName());
     private static final String TEAMCITY_PROVIDER = "teamcity";
@@ -34,75 +50,789 @@ public class DatadogClient {
 
     protected static final String DD_API_KEY_HEADER = "DD-API-KEY";
     protected static final String DD_CI_PROVIDER_HEADER = "DD-CI-PROVIDER-NAME";
+    protected static final int NO_RESPONSE_STATUS = 0;
+    protected static final String GZIP_ENCODING = "gzip";
+    private static final int MAX_CACHED_HEADERS = 1024;
+    private static final int BUFFER_INITIAL_SIZE = 8 * 1024;
+    private static final int BUFFER_MAX_RETAINED_SIZE = 256 * 1024;
+    private static final int SHUTDOWN_POLL_MS = 50;
+    // How long the sending threads have to stop once interrupted, when the shutdown timeout is already spent
+    private static final int SHUTDOWN_STOP_MS = 1000;
+    // Queued webhooks kept in memory per destination under memory pressure, the others are spilled to disk
+    private static final int PRESSURE_QUEUE_CAPACITY = 100;
 
     private final RestTemplate restTemplate;
     private final ObjectMapper objectMapper;
     private final RetryInformation retryInfo;
     private final ExecutorService clientExecutor;
+    private final PluginMetrics metrics;
+    private final DeadLetterStore deadLetterStore;
+    private final DeadLetterStore unsentStore;
+    private final DeliveryIndex deliveryIndex;
+    private final DestinationLimits destinationLimits;
+    private final MemoryPressureMonitor memoryPressure;
+    private final SummaryLog failedWebhooksLog = new SummaryLog(LOG, "webhook(s) could not be sent to '%s'");
+    private final SummaryLog fullQueueLog = new SummaryLog(LOG, "webhook(s) were stored as dead letters as the queue of '%s' was full");
+    private final Map<String, DestinationLane> lanes = new ConcurrentHashMap<>();
+    private final Map<String, HttpHeaders> headers = new ConcurrentHashMap<>();
+    private final Map<String, HttpHeaders> compressedHeaders = new ConcurrentHashMap<>();
+    private final BufferPool buffers = new BufferPool(BUFFER_INITIAL_SIZE, BUFFER_MAX_RETAINED_SIZE);
+    private final Set<UnfinishedSend> unfinishedSends = ConcurrentHashMap.newKeySet();
+    private volatile boolean shuttingDown;
 
-    public DatadogClient(RestTemplate restTemplate, ObjectMapper objectMapper, RetryInformation retryInfo, ExecutorService clientExecutor) {
+    public DatadogClient(RestTemplate restTemplate, ObjectMapper objectMapper, RetryInformation retryInfo,
+                         ExecutorService clientExecutor, PluginMetrics metrics, DeadLetterStore deadLetterStore,
+                         DeadLetterStore unsentStore, DeliveryIndex deliveryIndex, DestinationLimits destinationLimits,
+                         MemoryPressureMonitor memoryPressure) {
         this.restTemplate = restTemplate;
         this.objectMapper = objectMapper;
         this.retryInfo = retryInfo;
         this.clientExecutor = clientExecutor;
+        this.metrics = metrics;
+        this.deadLetterStore = deadLetterStore;
+        this.unsentStore = unsentStore;
+        this.deliveryIndex = deliveryIndex;
+        this.destinationLimits = destinationLimits;
+        this.memoryPressure = memoryPressure;
     }
 
+    @Override
     public void sendWebhooksAsync(List<Webhook> webhooks, String apiKey, String ddSite) {
         for (Webhook webhook : webhooks) {
-            clientExecutor.submit(() -> sendWebhookWithRetries(webhook, apiKey, ddSite));
+            submit(new PendingWebhook(webhook.id(), new Payload(serialize(webhook)), false), apiKey, ddSite);
+        }
+    }
+
+    /**
+     * Sends the webhooks to several destinations. Each webhook is serialized and compressed only once,
+     * and every destination has its own queue, threads and rate limit so a slow one does not delay the others.
+     */
+    @Override
+    public void sendWebhooksAsync(List<Webhook> webhooks, List<Destination> destinations) {
+        for (Webhook webhook : webhooks) {
+            Payload payload = new Payload(serialize(webhook));
+            for (Destination destination : destinations) {
+                submit(new PendingWebhook(deliveryId(webhook.id(), destination), payload, true),
+                    destination.apiKey(), destination.ddSite());
+            }
+        }
+    }
+
+    /**
+     * Sends again a webhook that was previously given up on. If it fails again, it goes back to the dead letters.
+     */
+    public CompletableFuture<Boolean> resendAsync(DeadLetter deadLetter) {
+        return sendAsync(deadLetter.webhookId(), new Payload(deadLetter.payload().getBytes(StandardCharsets.UTF_8)),
+            deadLetter.apiKey(), deadLetter.ddSite(), deadLetter.attempts(), false);
+    }
+
+    /**
+     * Sends a webhook with a gzip-compressed body, for bulk traffic such as historical exports.
+     */
+    public CompletableFuture<Boolean> sendCompressedAsync(Webhook webhook, String apiKey, String ddSite) {
+        // Serialized right away, so the queue only retains the payload and not the webhook objects
+        return sendAsync(webhook.id(), new Payload(serialize(webhook)), apiKey, ddSite, 0, true);
+    }
+
+    /**
+     * Sends a webhook with a gzip-compressed body to several destinations, serializing and compressing it once.
+     */
+    public List<CompletableFuture<Boolean>> sendCompressedAsync(Webhook webhook, List<Destination> destinations) {
+        String webhookId = webhook.id();
+        Payload payload = new Payload(serialize(webhook));
+        List<CompletableFuture<Boolean>> results = new ArrayList<>(destinations.size());
+        for (Destination destination : destinations) {
+            results.add(sendAsync(deliveryId(webhookId, destination), payload, destination.apiKey(), destination.ddSite(), 0, true));
+        }
+        return results;
+    }
+
+    /**
+     * Stops accepting webhooks, and waits for the queued and in-flight ones to be sent until the timeout.
+     * The sending threads are then stopped, and the webhooks which are still not sent are stored, to be sent
+     * again on the next start. Webhooks given to the client after this call are stored right away.
+     */
+    public void shutdown(long timeoutMs) {
+        shuttingDown = true;
+        clientExecutor.shutdown();
+
+        long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        try {
+            while (!isIdle() && System.nanoTime() < deadlineNanos) {
+                Thread.sleep(SHUTDOWN_POLL_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // The threads are stopped before storing what remains, so that each webhook is either sent or stored.
+        // Interrupting them ends the waits for the queue and the retries, they only finish their current request.
+        List<Thread> senders = new ArrayList<>();
+        for (DestinationLane lane : lanes.values()) {
+            senders.addAll(lane.interruptSenders());
+        }
+        clientExecutor.shutdownNow();
+        long stopDeadlineNanos = Math.max(deadlineNanos, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SHUTDOWN_STOP_MS));
+        try {
+            for (Thread sender : senders) {
+                TimeUnit.NANOSECONDS.timedJoin(sender, Math.max(1, stopDeadlineNanos - System.nanoTime()));
+            }
+            clientExecutor.awaitTermination(Math.max(1, stopDeadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (senders.stream().anyMatch(Thread::isAlive) || !clientExecutor.isTerminated()) {
+            // Requests which did not complete in time: their webhooks are stored, and may have been delivered
+            LOG.warn("Some webhooks were still being sent at shutdown, they are stored and may be sent twice");
+        }
+
+        int unsent = 0;
+        for (DestinationLane lane : lanes.values()) {
+            unsent += lane.storeQueuedAndInFlight();
+        }
+        for (UnfinishedSend send : unfinishedSends) {
+            if (unfinishedSends.remove(send)) {
+                storeUnsent(send.deliveryId, send.payload, send.apiKey, send.ddSite, send.previousAttempts);
+                unsent++;
+            }
+        }
+        failedWebhooksLog.flush();
+        fullQueueLog.flush();
+        deadLetterStore.close();
+        unsentStore.close();
+
+        if (unsent > 0) {
+            LOG.warn(format("%d webhooks could not be sent before shutdown, they are stored in '%s' and will be sent on the next start",
+                unsent, unsentStore));
+        } else {
+            LOG.info("All the webhooks were sent before shutdown");
+        }
+    }
+
+    /**
+     * Serializes and compresses the sample webhooks a few times, so the serializers, buffers and compression are
+     * initialized and compiled before the first chain.
+     */
+    public void warmUpSerialization(List<Webhook> samples, int passes) {
+        for (int i = 0; i < passes; i++) {
+            for (Webhook sample : samples) {
+                new Payload(serialize(sample)).gzipped(buffers);
+            }
+        }
+    }
+
+    /**
+     * Opens a connection to the intake of a site, so the DNS resolution and TLS handshake are done and the
+     * connection is kept alive for the first webhook. The request has no API key, its response is ignored.
+     */
+    public void preconnect(String ddSite) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add(DD_CI_PROVIDER_HEADER, TEAMCITY_PROVIDER);
+        String url = intakeUrl(ddSite);
+        try {
+            restTemplate.exchange(url, HttpMethod.HEAD, new HttpEntity<Void>(null, headers), Void.class);
+        } catch (RestClientResponseException e) {
+            // Any response means the connection was established
+            LOG.debug(format("Pre-connected to '%s', status %d", url, e.getRawStatusCode()));
+        } catch (RestClientException e) {
+            LOG.warn(format("Could not pre-connect to '%s': %s", url, e.getMessage()));
+        }
+    }
+
+    /**
+     * The webhooks left unsent by a previous shutdown, or spilled to disk under memory pressure.
+     */
+    public DeadLetterStore unsentWebhooks() {
+        return unsentStore;
+    }
+
+    private boolean isIdle() {
+        return unfinishedSends.isEmpty() && lanes.values().stream().allMatch(DestinationLane::isIdle);
+    }
+
+    private void storeUnsent(String deliveryId, Payload payload, String apiKey, String ddSite, int previousAttempts) {
+        unsentStore.append(new DeadLetter(deliveryId, ddSite, apiKey, payload.json(),
+            NO_RESPONSE_STATUS, previousAttempts, System.currentTimeMillis()));
+    }
+
+    /**
+     * Sends a webhook on the client executor, keeping track of it until it is sent so it can be stored on shutdown.
+     */
+    private CompletableFuture<Boolean> sendAsync(String deliveryId, Payload payload, String apiKey, String ddSite,
+                                                 int previousAttempts, boolean compressed) {
+        if (shuttingDown || (memoryPressure.isUnderPressure() && unfinishedSends.size() >= PRESSURE_QUEUE_CAPACITY)) {
+            storeUnsent(deliveryId, payload, apiKey, ddSite, previousAttempts);
+            return CompletableFuture.completedFuture(false);
+        }
+
+        UnfinishedSend send = new UnfinishedSend(deliveryId, payload, apiKey, ddSite, previousAttempts);
+        unfinishedSends.add(send);
+        metrics.onWebhookQueued();
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                metrics.onWebhookDequeued();
+                boolean finished = false;
+                try {
+                    boolean sent = sendWithRetries(deliveryId, payload, apiKey, ddSite, previousAttempts, compressed);
+                    finished = true;
+                    return sent;
+                } finally {
+                    // A send interrupted by the shutdown is left unfinished, so that it is stored
+                    if (finished || !Thread.currentThread().isInterrupted()) {
+                        unfinishedSends.remove(send);
+                    }
+                }
+            }, clientExecutor);
+        } catch (RejectedExecutionException e) {
+            // The shutdown started in the meantime
+            metrics.onWebhookDequeued();
+            if (unfinishedSends.remove(send)) {
+                storeUnsent(deliveryId, payload, apiKey, ddSite, previousAttempts);
+            }
+            return CompletableFuture.completedFuture(false);
         }
     }
 
     @VisibleForTesting
     protected boolean sendWebhookWithRetries(Webhook webhook, String apiKey, String ddSite) {
-        String url = format(WEBHOOK_INTAKE_BASE_URL, ddSite);
-        String payload = serialize(webhook);
-        HttpEntity<String> request = new HttpEntity<>(payload, getHeaders(apiKey));
+        return sendWithRetries(webhook.id(), new Payload(serialize(webhook)), apiKey, ddSite, 0, false);
+    }
+
+    private boolean sendWithRetries(String webhookId, Payload payload, String apiKey, String ddSite,
+                                    int previousAttempts, boolean compressed) {
+        if (deliveryIndex.isDelivered(webhookId)) {
+            metrics.onWebhookAlreadyDelivered();
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(format("Webhook with id '%s' was already delivered, skipping it", webhookId));
+            }
+            return true;
+        }
+
+        HttpEntity<?> request = compressed ?
+            new HttpEntity<>(payload.gzipped(buffers), getCompressedHeaders(apiKey)) :
+            new HttpEntity<>(payload.json(), getHeaders(apiKey));
+
+        PostResult result = postWithRetries(format("webhook with id '%s'", webhookId), intakeUrl(ddSite), request);
+        if (result.successful) {
+            metrics.onWebhookSent(ddSite);
+            deliveryIndex.markDelivered(webhookId);
+            return true;
+        }
+
+        metrics.onWebhookFailed(ddSite);
+        failedWebhooksLog.warn(ddSite, 1, () -> format("webhook with id '%s', %s", webhookId, result.lastError));
+        deadLetterStore.append(new DeadLetter(webhookId, ddSite, apiKey, payload.json(),
+            result.lastStatus, previousAttempts + result.attempts, System.currentTimeMillis()));
+        return false;
+    }
+
+    /**
+     * Sends several webhooks to a destination in a single request, with a compressed JSON array as body.
+     * If the request fails, each webhook is stored as a separate dead letter.
+     */
+    private void sendBatchWithRetries(List<PendingWebhook> batch, String apiKey, String ddSite) {
+        List<PendingWebhook> pending = new ArrayList<>(batch.size());
+        for (PendingWebhook webhook : batch) {
+            if (deliveryIndex.isDelivered(webhook.deliveryId)) {
+                metrics.onWebhookAlreadyDelivered();
+            } else {
+                pending.add(webhook);
+            }
+        }
+        if (pending.size() <= 1) {
+            pending.forEach(webhook -> sendWithRetries(webhook.deliveryId, webhook.payload, apiKey, ddSite, 0, webhook.compressed));
+            return;
+        }
 
+        ReusableBuffer array = buffers.acquire();
+        byte[] body;
+        try {
+            array.write('[');
+            for (int i = 0; i < pending.size(); i++) {
+                if (i > 0) {
+                    array.write(',');
+                }
+                byte[] json = pending.get(i).payload.bytes();
+                array.write(json, 0, json.length);
+            }
+            array.write(']');
+            body = array.toByteArray();
+        } finally {
+            buffers.release(array);
+        }
+        HttpEntity<?> request = new HttpEntity<>(buffers.gzip(body), getCompressedHeaders(apiKey));
+        PostResult result = postWithRetries(format("batch of %d webhooks", pending.size()), intakeUrl(ddSite), request);
+
+        if (!result.successful) {
+            failedWebhooksLog.warn(ddSite, pending.size(), () -> format("batch of %d webhooks, %s", pending.size(), result.lastError));
+        }
+
+        long now = System.currentTimeMillis();
+        for (PendingWebhook webhook : pending) {
+            if (result.successful) {
+                metrics.onWebhookSent(ddSite);
+                deliveryIndex.markDelivered(webhook.deliveryId);
+            } else {
+                metrics.onWebhookFailed(ddSite);
+                deadLetterStore.append(new DeadLetter(webhook.deliveryId, ddSite, apiKey, webhook.payload.json(),
+                    result.lastStatus, result.attempts, now));
+            }
+        }
+    }
+
+    /**
+     * Posts a request, retrying the server errors. Each attempt is only logged at debug level, the callers
+     * report the final failures in the summary logs.
+     */
+    private PostResult postWithRetries(String description, String url, HttpEntity<?> request) {
         int currentAttempt = 0;
-        while (currentAttempt <= retryInfo.maxRetries) {
-            try {
-                ResponseEntity<String> response = restTemplate.exchange(url, HttpMethod.POST, request, String.class);
-                if (response.getStatusCode().is2xxSuccessful()) {
-                    LOG.info(format("Successfully sent webhook with id '%s' to '%s'", webhook.id(), url));
-                    return true;
-                } else if (response.getStatusCode().is5xxServerError()) {
-                    LOG.warn(format("Could not send webhook with id '%s' to '%s'. " +
-                                    "Status code: '%s', Retry number %d/%d",
-                            webhook.id(), url, response.getStatusCode(), currentAttempt, retryInfo.maxRetries));
+        int attempts = 0;
+        int lastStatus = NO_RESPONSE_STATUS;
+        String lastError = null;
+        boolean retrying = false;
+        try {
+            while (currentAttempt <= retryInfo.maxRetries) {
+                if (currentAttempt > 0 && !retrying) {
+                    retrying = true;
+                    metrics.onRetryStarted();
+                }
+
+                attempts++;
+                try {
+                    ResponseEntity<String> response = restTemplate.exchange(url, HttpMethod.POST, request, String.class);
+                    lastStatus = response.getStatusCodeValue();
+                    if (response.getStatusCode().is2xxSuccessful()) {
+                        if (LOG.isDebugEnabled()) {
+                            LOG.debug(format("Successfully sent %s to '%s'", description, url));
+                        }
+                        return new PostResult(true, lastStatus, attempts, null);
+                    } else if (response.getStatusCode().is5xxServerError()) {
+                        lastError = format("status code '%s'", response.getStatusCode());
+                        if (LOG.isDebugEnabled()) {
+                            LOG.debug(format("Could not send %s to '%s'. " +
+                                            "Status code: '%s', Retry number %d/%d",
+                                    description, url, response.getStatusCode(), currentAttempt, retryInfo.maxRetries));
+                        }
 
+                        sleepSeconds(retryInfo.backoffSeconds);
+                    } else {
+                        // Status code is different from 5xx, so we won't retry
+                        lastError = format("status code '%s'", response.getStatusCode());
+                        if (LOG.isDebugEnabled()) {
+                            LOG.debug(format("Could not send %s to url '%s'. " +
+                                            "Status code: '%s'.", description, url, response.getStatusCode()));
+                        }
+                        break;
+                    }
+                } catch (RestClientException ex) {
+                    lastError = ex.getMessage();
+                    if (LOG.isDebugEnabled()) {
+                        LOG.debug(format("Exception occurred while sending %s to url '%s'. " +
+                                        "Retry number %d/%d: ", description, url, currentAttempt, retryInfo.maxRetries), ex);
+                    }
+                    lastStatus = ex instanceof RestClientResponseException ?
+                        ((RestClientResponseException) ex).getRawStatusCode() : NO_RESPONSE_STATUS;
                     sleepSeconds(retryInfo.backoffSeconds);
-                } else {
-                    // Status code is different from 5xx, so we won't retry
-                    LOG.warn(format("Could not send webhook with id '%s' to url '%s'. " +
-                                    "Status code: '%s'.", webhook.id(), url, response.getStatusCode()));
-                    return false;
                 }
-            } catch (RestClientException ex) {
-                LOG.error(format("Exception occurred while sending webhooks with id '%s' to url '%s'. " +
-                                "Retry number %d/%d: ", webhook.id(), url, currentAttempt, retryInfo.maxRetries), ex);
-                sleepSeconds(retryInfo.backoffSeconds);
+
+                currentAttempt++;
+            }
+        } finally {
+            if (retrying) {
+                metrics.onRetryFinished();
             }
+        }
+
+        return new PostResult(false, lastStatus, attempts, format("%s after %d attempt(s)", lastError, attempts));
+    }
 
-            currentAttempt++;
+    private void submit(PendingWebhook webhook, String apiKey, String ddSite) {
+        String key = ddSite + '\n' + apiKey;
+        while (!lanes.computeIfAbsent(key, k -> new DestinationLane(k, apiKey, ddSite)).submit(webhook)) {
+            // The lane retired while the webhook was given to it, it is given to the new one
         }
+    }
 
-        return false;
+    /**
+     * The ID used to deduplicate the deliveries of a webhook. Webhooks sent to the main destination
+     * keep their own ID, the additional destinations are tracked separately.
+     */
+    private static String deliveryId(String webhookId, Destination destination) {
+        return destination.isMain() ? webhookId : format("%s@%s", webhookId, destination.name());
     }
 
+    /**
+     * Destinations which are not a Datadog site, such as an internal collector, are configured with their full URL,
+     * which must be allowed on the server (see {@link ProjectHandler}). Only https is supported, as the API key is
+     * sent with the webhooks.
+     */
+    private static String intakeUrl(String ddSite) {
+        if (ddSite.startsWith("https://")) {
+            return ddSite;
+        }
+        return format(WEBHOOK_INTAKE_BASE_URL, ddSite);
+    }
+
+    /**
+     * The headers only depend on the API key, so they are built once per key and shared by all the requests.
+     * They must not be modified.
+     */
     private HttpHeaders getHeaders(String apiKey) {
+        return cachedHeaders(headers, apiKey, false);
+    }
+
+    private HttpHeaders getCompressedHeaders(String apiKey) {
+        return cachedHeaders(compressedHeaders, apiKey, true);
+    }
+
+    private static HttpHeaders cachedHeaders(Map<String, HttpHeaders> cache, String apiKey, boolean compressed) {
+        HttpHeaders cached = cache.get(apiKey);
+        if (cached != null) {
+            return cached;
+        }
+
+        if (cache.size() >= MAX_CACHED_HEADERS) {
+            // API keys are per project, this only happens if they keep changing
+            cache.clear();
+        }
+
         HttpHeaders headers = new HttpHeaders();
         headers.setContentType(MediaType.APPLICATION_JSON);
         headers.add(DD_API_KEY_HEADER, apiKey);
         headers.add(DD_CI_PROVIDER_HEADER, TEAMCITY_PROVIDER);
+        if (compressed) {
+            headers.add(HttpHeaders.CONTENT_ENCODING, GZIP_ENCODING);
+        }
+        cache.put(apiKey, headers);
         return headers;
     }
 
-    private String serialize(Webhook entity) {
+    /**
+     * A serialized webhook, shared by all its destinations. It is kept as UTF-8 bytes, which is more compact
+     * than the webhook objects or a string while it waits in the queues. The compressed body is only
+     * computed once, when first needed.
+     */
+    private static class Payload {
+        private final byte[] json;
+        private volatile byte[] gzipped;
+
+        private Payload(byte[] json) {
+            this.json = json;
+        }
+
+        private byte[] bytes() {
+            return json;
+        }
+
+        private String json() {
+            return new String(json, StandardCharsets.UTF_8);
+        }
+
+        private int size() {
+            return json.length;
+        }
+
+        private byte[] gzipped(BufferPool buffers) {
+            byte[] result = gzipped;
+            if (result == null) {
+                synchronized (this) {
+                    result = gzipped;
+                    if (result == null) {
+                        gzipped = result = buffers.gzip(json);
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * A webhook waiting in the queue of a destination.
+     */
+    private static class PendingWebhook {
+        private final String deliveryId;
+        private final Payload payload;
+        private final boolean compressed;
+
+        private PendingWebhook(String deliveryId, Payload payload, boolean compressed) {
+            this.deliveryId = deliveryId;
+            this.payload = payload;
+            this.compressed = compressed;
+        }
+    }
+
+    /**
+     * A webhook queued or being sent on the client executor.
+     * Instances are compared by identity, as the same webhook can be sent several times.
+     */
+    private static class UnfinishedSend {
+        private final String deliveryId;
+        private final Payload payload;
+        private final String apiKey;
+        private final String ddSite;
+        private final int previousAttempts;
+
+        private UnfinishedSend(String deliveryId, Payload payload, String apiKey, String ddSite, int previousAttempts) {
+            this.deliveryId = deliveryId;
+            this.payload = payload;
+            this.apiKey = apiKey;
+            this.ddSite = ddSite;
+            this.previousAttempts = previousAttempts;
+        }
+    }
+
+    private static class PostResult {
+        private final boolean successful;
+        private final int lastStatus;
+        private final int attempts;
+        private final String lastError;
+
+        private PostResult(boolean successful, int lastStatus, int attempts, String lastError) {
+            this.successful = successful;
+            this.lastStatus = lastStatus;
+            this.attempts = attempts;
+            this.lastError = lastError;
+        }
+    }
+
+    /**
+     * Queue, threads and rate limit of a single destination, so that the retries and slowness of
+     * a destination only delay its own webhooks.
+     * <p>
+     * When batching is enabled, each sender thread takes all the webhooks already queued, up to the batch limits,
+     * and sends them in a single request. An idle destination sends each webhook right away, while under load
+     * the batches fill up, lingering a few milliseconds for more webhooks once a backlog builds up.
+     * <p>
+     * The sender threads are started with the first webhooks, and stop when they have had nothing to send for
+     * the idle timeout. A destination whose threads all stopped is dropped, and created again by its next webhook.
+     */
+    private class DestinationLane {
+        private final String apiKey;
+        private final String ddSite;
+        private final BlockingQueue<PendingWebhook> queue;
+        private final Set<PendingWebhook> inFlight = ConcurrentHashMap.newKeySet();
+        private final RateLimiter rateLimiter;
+
+        private final String key;
+        private final ThreadFactory threadFactory;
+        // Guarded by the lane: the sender threads are started on demand and stop once idle
+        private final Set<Thread> senders = new HashSet<>();
+        private boolean retired;
+
+        private DestinationLane(String key, String apiKey, String ddSite) {
+            this.key = key;
+            this.apiKey = apiKey;
+            this.ddSite = ddSite;
+            this.queue = new LinkedBlockingQueue<>(destinationLimits.queueCapacity);
+            this.rateLimiter = destinationLimits.webhooksPerSecond > 0 ?
+                RateLimiter.create(destinationLimits.webhooksPerSecond) : null;
+            this.threadFactory = new ThreadFactoryBuilder()
+                .setNameFormat("datadog-client-" + ddSite.replace("%", "") + "-%d")
+                .setDaemon(true)
+                .build();
+        }
+
+        /**
+         * @return false if the lane was retired, in which case the webhook has to be given to the current lane
+         */
+        private boolean submit(PendingWebhook webhook) {
+            if (shuttingDown || (memoryPressure.isUnderPressure() && queue.size() >= PRESSURE_QUEUE_CAPACITY)) {
+                storeUnsent(webhook.deliveryId, webhook.payload, apiKey, ddSite, 0);
+                return true;
+            }
+
+            synchronized (this) {
+                if (retired) {
+                    return false;
+                }
+                if (shuttingDown) {
+                    // Checked again, as the shutdown may have stopped the sender threads in the meantime
+                    storeUnsent(webhook.deliveryId, webhook.payload, apiKey, ddSite, 0);
+                    return true;
+                }
+                metrics.onWebhookQueued();
+                if (queue.offer(webhook)) {
+                    if (senders.size() < destinationLimits.threads) {
+                        Thread sender = threadFactory.newThread(this::sendLoop);
+                        senders.add(sender);
+                        sender.start();
+                    }
+                    return true;
+                }
+            }
+
+            fullQueueLog.warn(ddSite, 1, () -> format("webhook with id '%s'", webhook.deliveryId));
+            metrics.onWebhookDequeued();
+            metrics.onWebhookFailed(ddSite);
+            deadLetterStore.append(new DeadLetter(webhook.deliveryId, ddSite, apiKey, webhook.payload.json(),
+                NO_RESPONSE_STATUS, 0, System.currentTimeMillis()));
+            return true;
+        }
+
+        /**
+         * Called by a sender thread which found nothing to send for the idle timeout. The last thread to stop
+         * retires the lane, so that the destinations which are no longer used do not keep their threads and queue.
+         *
+         * @return whether the thread should stop
+         */
+        private synchronized boolean stopIfIdle() {
+            if (!queue.isEmpty()) {
+                return false;
+            }
+            senders.remove(Thread.currentThread());
+            if (senders.isEmpty()) {
+                retired = true;
+                lanes.remove(key, this);
+            }
+            return true;
+        }
+
+        private void sendLoop() {
+            List<PendingWebhook> batch = new ArrayList<>();
+            PendingWebhook next = null;
+            while (true) {
+                try {
+                    if (next == null) {
+                        next = queue.poll(destinationLimits.idleTimeoutNanos, TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            if (stopIfIdle()) {
+                                return;
+                            }
+                            continue;
+                        }
+                        metrics.onWebhookDequeued();
+                    }
+                    batch.add(next);
+                    next = fillBatch(batch);
+                    inFlight.addAll(batch);
+                    if (next != null) {
+                        inFlight.add(next);
+                    }
+
+                    if (rateLimiter != null) {
+                        rateLimiter.acquire(batch.size());
+                    }
+                    sendBatchWithRetries(batch, apiKey, ddSite);
+                } catch (InterruptedException e) {
+                    stopped(batch, next);
+                    return;
+                } catch (RuntimeException e) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        // Interrupted while waiting to retry
+                        stopped(batch, next);
+                        return;
+                    }
+                    LOG.error(format("Could not send %d webhooks to '%s', storing them as dead letters", batch.size(), ddSite), e);
+                    storeFailed(batch);
+                }
+                batch.forEach(inFlight::remove);
+                batch.clear();
+            }
+        }
+
+        /**
+         * Stores the webhooks of a batch that failed with an unexpected error, except the ones it already delivered.
+         */
+        private void storeFailed(List<PendingWebhook> batch) {
+            long now = System.currentTimeMillis();
+            for (PendingWebhook webhook : batch) {
+                try {
+                    if (!deliveryIndex.isDelivered(webhook.deliveryId)) {
+                        metrics.onWebhookFailed(ddSite);
+                        deadLetterStore.append(new DeadLetter(webhook.deliveryId, ddSite, apiKey, webhook.payload.json(),
+                            NO_RESPONSE_STATUS, 0, now));
+                    }
+                } catch (RuntimeException e) {
+                    // The sender thread must keep running for the other webhooks
+                    LOG.error(format("Could not store webhook with id '%s' as a dead letter, it is lost", webhook.deliveryId), e);
+                }
+            }
+        }
+
+        /**
+         * Called by a sender thread interrupted by the shutdown. The webhooks it has not sent are left in flight,
+         * so that the shutdown stores them.
+         */
+        private void stopped(List<PendingWebhook> batch, PendingWebhook next) {
+            inFlight.addAll(batch);
+            if (next != null) {
+                inFlight.add(next);
+            }
+        }
+
+        /**
+         * Interrupts the sender threads, which stop once their current request is done.
+         *
+         * @return the threads interrupted, to wait for
+         */
+        private synchronized List<Thread> interruptSenders() {
+            senders.forEach(Thread::interrupt);
+            return new ArrayList<>(senders);
+        }
+
+        private boolean isIdle() {
+            return queue.isEmpty() && inFlight.isEmpty();
+        }
+
+        /**
+         * Stores the queued webhooks and the ones being sent.
+         *
+         * @return the number of webhooks stored
+         */
+        private int storeQueuedAndInFlight() {
+            List<PendingWebhook> unsent = new ArrayList<>(inFlight);
+            int queued = queue.drainTo(unsent);
+            for (int i = 0; i < queued; i++) {
+                metrics.onWebhookDequeued();
+            }
+
+            unsent.forEach(webhook -> storeUnsent(webhook.deliveryId, webhook.payload, apiKey, ddSite, 0));
+            return unsent.size();
+        }
+
+        /**
+         * Adds the queued webhooks to the batch until it is full.
+         *
+         * @return a webhook taken from the queue which did not fit in the batch, to start the next one with
+         */
+        private PendingWebhook fillBatch(List<PendingWebhook> batch) throws InterruptedException {
+            long lingerDeadline = System.nanoTime() + destinationLimits.batchLingerNanos;
+            int bytes = batch.get(0).payload.size();
+            while (batch.size() < destinationLimits.maxBatchWebhooks) {
+                PendingWebhook webhook = queue.poll();
+                if (webhook == null) {
+                    // Only linger when there was a backlog, an idle destination sends its webhooks right away
+                    long remainingNanos = lingerDeadline - System.nanoTime();
+                    if (batch.size() == 1 || remainingNanos <= 0) {
+                        return null;
+                    }
+
+                    webhook = queue.poll(remainingNanos, TimeUnit.NANOSECONDS);
+                    if (webhook == null) {
+                        return null;
+                    }
+                }
+
+                metrics.onWebhookDequeued();
+                if (bytes + webhook.payload.size() > destinationLimits.maxBatchBytes) {
+                    return webhook;
+                }
+                batch.add(webhook);
+                bytes += webhook.payload.size();
+            }
+            return null;
+        }
+    }
+
+    private byte[] serialize(Webhook entity) {
+        ReusableBuffer buffer = buffers.acquire();
         try {
-            return objectMapper.writeValueAsString(entity);
-        } catch (JsonProcessingException e) {
+            objectMapper.writeValue(buffer, entity);
+            return buffer.toByteArray();
+        } catch (IOException e) {
             throw new RuntimeException(format("Could not serialize the content of the entity: %s", entity), e);
+        } finally {
+            buffers.release(buffer);
         }
     }
 
@@ -124,4 +854,48 @@ public class DatadogClient {
             this.backoffSeconds = backoffSeconds;
         }
     }
+
+    public static class DestinationLimits {
+        private static final long DEFAULT_IDLE_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(1);
+
+        private final int threads;
+        private final int queueCapacity;
+        private final double webhooksPerSecond;
+        private final int maxBatchWebhooks;
+        private final int maxBatchBytes;
+        private final long batchLingerNanos;
+        private final long idleTimeoutNanos;
+
+        /**
+         * @param webhooksPerSecond the maximum rate of webhooks sent to each destination, or 0 for no limit
+         */
+        public DestinationLimits(int threads, int queueCapacity, double webhooksPerSecond) {
+            this(threads, queueCapacity, webhooksPerSecond, 1, Integer.MAX_VALUE, 0);
+        }
+
+        /**
+         * @param maxBatchWebhooks the maximum number of webhooks sent in a single request, 1 to disable batching
+         * @param maxBatchBytes    the maximum size of the uncompressed body of a batch
+         * @param batchLingerMs    how long a batch waits for more webhooks when the destination has a backlog
+         */
+        public DestinationLimits(int threads, int queueCapacity, double webhooksPerSecond,
+                                 int maxBatchWebhooks, int maxBatchBytes, long batchLingerMs) {
+            this(threads, queueCapacity, webhooksPerSecond, maxBatchWebhooks, maxBatchBytes, batchLingerMs, DEFAULT_IDLE_TIMEOUT_MS);
+        }
+
+        /**
+         * @param idleTimeoutMs how long a sender thread waits for webhooks before stopping, the destination is
+         *                      dropped once all its threads stopped
+         */
+        public DestinationLimits(int threads, int queueCapacity, double webhooksPerSecond,
+                                 int maxBatchWebhooks, int maxBatchBytes, long batchLingerMs, long idleTimeoutMs) {
+            this.threads = threads;
+            this.queueCapacity = queueCapacity;
+            this.webhooksPerSecond = webhooksPerSecond;
+            this.maxBatchWebhooks = maxBatchWebhooks;
+            this.maxBatchBytes = maxBatchBytes;
+            this.batchLingerNanos = TimeUnit.MILLISECONDS.toNanos(batchLingerMs);
+            this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs);
+        }
+    }
 }
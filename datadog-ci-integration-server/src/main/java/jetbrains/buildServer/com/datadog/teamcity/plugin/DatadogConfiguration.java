@@ -9,27 +9,115 @@ package jetbrains.buildServer.com.datadog.teamcity.plugin;
 
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.DatadogClient.DestinationLimits;
 import jetbrains.buildServer.com.datadog.teamcity.plugin.DatadogClient.RetryInformation;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.FileWebhookSink.Compression;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.WebhookJsonModule;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
 import org.springframework.http.client.SimpleClientHttpRequestFactory;
 import org.springframework.web.client.RestTemplate;
 
+import java.io.File;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.String.format;
 
 @Configuration
 public class DatadogConfiguration {
 
+    private static final Logger LOG = Logger.getInstance(DatadogConfiguration.class.getName());
+
     private static final int MAX_RETRIES = 3;
     private static final int BACKOFF_SECONDS = 10;
     private static final int CONNECTION_TIMEOUT_MS = 10000; // 10 seconds
     private static final int CLIENT_EXECUTOR_THREADS = 10;
+    private static final String PLUGIN_DATA_DIRECTORY = "datadog-ci-integration";
+    private static final String UNSENT_WEBHOOKS_STORE = "unsent-webhooks";
+
+    protected static final String DESTINATION_THREADS_PROPERTY = "datadog.ci.client.threadsPerDestination";
+    protected static final String DESTINATION_QUEUE_CAPACITY_PROPERTY = "datadog.ci.client.queueCapacityPerDestination";
+    protected static final String DESTINATION_RATE_PROPERTY = "datadog.ci.client.webhooksPerSecondPerDestination";
+    protected static final String BATCH_MAX_WEBHOOKS_PROPERTY = "datadog.ci.client.batch.maxWebhooks";
+    protected static final String BATCH_MAX_BYTES_PROPERTY = "datadog.ci.client.batch.maxBytes";
+    protected static final String BATCH_LINGER_PROPERTY = "datadog.ci.client.batch.lingerMs";
+    private static final int DEFAULT_DESTINATION_THREADS = 4;
+    private static final int DEFAULT_DESTINATION_QUEUE_CAPACITY = 10_000;
+    private static final int DEFAULT_BATCH_MAX_BYTES = 512 * 1024;
+    private static final int DEFAULT_BATCH_LINGER_MS = 5;
+
+    protected static final String SINK_PROPERTY = "datadog.ci.sink";
+    protected static final String FILE_SINK = "file";
+    protected static final String FILE_SINK_DIRECTORY_PROPERTY = "datadog.ci.fileSink.directory";
+    protected static final String FILE_SINK_COMPRESSION_PROPERTY = "datadog.ci.fileSink.compression";
+    protected static final String FILE_SINK_MAX_SIZE_PROPERTY = "datadog.ci.fileSink.maxFileSizeMb";
+    protected static final String FILE_SINK_MAX_AGE_PROPERTY = "datadog.ci.fileSink.maxFileAgeMinutes";
+    private static final int DEFAULT_FILE_SINK_MAX_SIZE_MB = 64;
+    private static final int DEFAULT_FILE_SINK_MAX_AGE_MINUTES = 15;
 
     @Bean
-    public DatadogClient datadogClient(ObjectMapper objectMapper, RestTemplate restTemplate) {
+    public DatadogClient datadogClient(ObjectMapper objectMapper, RestTemplate restTemplate, PluginMetrics metrics,
+                                       DeadLetterStore deadLetterStore, DeliveryIndex deliveryIndex, ServerPaths serverPaths,
+                                       MemoryPressureMonitor memoryPressure) {
         ExecutorService executor = Executors.newFixedThreadPool(CLIENT_EXECUTOR_THREADS);
-        return new DatadogClient(restTemplate, objectMapper, new RetryInformation(MAX_RETRIES, BACKOFF_SECONDS), executor);
+        // Not a bean, as it would be ambiguous with the dead letters: it is only reached through the client
+        DeadLetterStore unsentStore = new DeadLetterStore(pluginDataDirectory(serverPaths), UNSENT_WEBHOOKS_STORE);
+        DestinationLimits destinationLimits = new DestinationLimits(
+            Math.max(1, TeamCityProperties.getInteger(DESTINATION_THREADS_PROPERTY, DEFAULT_DESTINATION_THREADS)),
+            Math.max(1, TeamCityProperties.getInteger(DESTINATION_QUEUE_CAPACITY_PROPERTY, DEFAULT_DESTINATION_QUEUE_CAPACITY)),
+            TeamCityProperties.getInteger(DESTINATION_RATE_PROPERTY, 0),
+            // Batching is disabled by default, as the receiving intake has to accept JSON arrays of webhooks
+            Math.max(1, TeamCityProperties.getInteger(BATCH_MAX_WEBHOOKS_PROPERTY, 1)),
+            Math.max(1, TeamCityProperties.getInteger(BATCH_MAX_BYTES_PROPERTY, DEFAULT_BATCH_MAX_BYTES)),
+            Math.max(0, TeamCityProperties.getInteger(BATCH_LINGER_PROPERTY, DEFAULT_BATCH_LINGER_MS)));
+        return new DatadogClient(restTemplate, objectMapper, new RetryInformation(MAX_RETRIES, BACKOFF_SECONDS), executor,
+            metrics, deadLetterStore, unsentStore, deliveryIndex, destinationLimits, memoryPressure);
+    }
+
+    /**
+     * The sink used for the processed chains: the Datadog client, unless webhooks are written to files.
+     */
+    @Bean
+    @Primary
+    public WebhookSink webhookSink(DatadogClient datadogClient, ObjectMapper objectMapper, PluginMetrics metrics, ServerPaths serverPaths) {
+        if (!FILE_SINK.equalsIgnoreCase(TeamCityProperties.getProperty(SINK_PROPERTY, "http"))) {
+            return datadogClient;
+        }
+
+        String directory = TeamCityProperties.getProperty(FILE_SINK_DIRECTORY_PROPERTY, "");
+        File sinkDirectory = directory.isEmpty() ? new File(pluginDataDirectory(serverPaths), "webhooks") : new File(directory);
+        String compressionName = TeamCityProperties.getProperty(FILE_SINK_COMPRESSION_PROPERTY, "gzip");
+        Compression compression = "none".equalsIgnoreCase(compressionName) ? Compression.NONE : Compression.GZIP;
+        if (!"none".equalsIgnoreCase(compressionName) && !"gzip".equalsIgnoreCase(compressionName)) {
+            LOG.warn(format("Compression '%s' is not supported for webhook files, using gzip", compressionName));
+        }
+
+        LOG.info(format("Writing webhooks to files in '%s' instead of sending them", sinkDirectory));
+        return new FileWebhookSink(sinkDirectory, compression,
+            TeamCityProperties.getInteger(FILE_SINK_MAX_SIZE_PROPERTY, DEFAULT_FILE_SINK_MAX_SIZE_MB) * 1024L * 1024L,
+            TimeUnit.MINUTES.toMillis(TeamCityProperties.getInteger(FILE_SINK_MAX_AGE_PROPERTY, DEFAULT_FILE_SINK_MAX_AGE_MINUTES)),
+            objectMapper, metrics);
+    }
+
+    @Bean
+    public DeadLetterStore deadLetterStore(ServerPaths serverPaths) {
+        return new DeadLetterStore(pluginDataDirectory(serverPaths));
+    }
+
+    @Bean
+    public DeliveryIndex deliveryIndex(ServerPaths serverPaths, PluginMetrics metrics) {
+        return new DeliveryIndex(pluginDataDirectory(serverPaths), metrics);
+    }
+
+    @Bean
+    public ProcessingWatermark processingWatermark(ServerPaths serverPaths) {
+        return new ProcessingWatermark(pluginDataDirectory(serverPaths));
     }
 
     @Bean
@@ -47,6 +135,11 @@ public class DatadogConfiguration {
     public ObjectMapper objectMapper(){
         ObjectMapper mapper = new ObjectMapper();
         mapper.setSerializationInclusion(Include.NON_NULL);
+        mapper.registerModule(new WebhookJsonModule());
         return mapper;
     }
+
+    protected static File pluginDataDirectory(ServerPaths serverPaths) {
+        return new File(serverPaths.getPluginDataDirectory(), PLUGIN_DATA_DIRECTORY);
+    }
 }
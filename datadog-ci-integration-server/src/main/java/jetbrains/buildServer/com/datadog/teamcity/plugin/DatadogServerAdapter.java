@@ -10,8 +10,6 @@ package jetbrains.buildServer.com.datadog.teamcity.plugin;
 import com.intellij.openapi.diagnostic.Logger;
 import jetbrains.buildServer.serverSide.BuildServerAdapter;
 import jetbrains.buildServer.serverSide.BuildServerListener;
-import jetbrains.buildServer.serverSide.BuildsManager;
-import jetbrains.buildServer.serverSide.SBuild;
 import jetbrains.buildServer.serverSide.SRunningBuild;
 import jetbrains.buildServer.util.EventDispatcher;
 import org.springframework.stereotype.Component;
@@ -20,27 +18,36 @@ import javax.annotation.Nonnull;
 
 import static java.lang.String.format;
 import static jetbrains.buildServer.com.datadog.teamcity.plugin.BuildUtils.buildName;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.BuildUtils.isLastCompositeBuild;
 
 @Component
 public class DatadogServerAdapter extends BuildServerAdapter {
 
     private static final Logger LOG = Logger.getInstance(DatadogServerAdapter.class.getName());
 
-    private final BuildsManager buildsManager;
     private final BuildChainProcessor buildChainProcessor;
     private final ProjectHandler projectHandler;
+    private final ProcessingWatermark watermark;
+    private final PipelineProgressReporter progressReporter;
 
     public DatadogServerAdapter(EventDispatcher<BuildServerListener> eventListener,
-                                BuildsManager buildsManager,
                                 BuildChainProcessor buildChainProcessor,
-                                ProjectHandler projectHandler) {
-        this.buildsManager = buildsManager;
+                                ProjectHandler projectHandler,
+                                ProcessingWatermark watermark,
+                                PipelineProgressReporter progressReporter) {
         this.buildChainProcessor = buildChainProcessor;
         this.projectHandler = projectHandler;
+        this.watermark = watermark;
+        this.progressReporter = progressReporter;
 
         eventListener.addListener(this);
     }
 
+    @Override
+    public void buildStarted(@Nonnull SRunningBuild build) {
+        progressReporter.onChainActivity(build);
+    }
+
     @Override
     public void buildFinished(@Nonnull SRunningBuild build) {
         onBuildFinished(build);
@@ -52,29 +59,25 @@ public class DatadogServerAdapter extends BuildServerAdapter {
     }
 
     private void onBuildFinished(SRunningBuild build) {
-        if (!projectHandler.isPluginEnabled(build)) {
-            return;
-        }
-
+        // The checks run cheapest first: most finished builds are jobs or personal builds, which are ignored
+        // from the fields of the build alone, so only the last composite builds look up their project
         if (!isLastCompositeBuild(build)) {
-            LOG.info(format("Ignoring build with id '%s' and name '%s'", build.getBuildId(), buildName(build)));
+            // The jobs of a running chain only schedule a debounced update of their pipelines
+            progressReporter.onChainActivity(build);
+            // Most finished builds are not the last of their chain, so this is only logged when debugging
+            if (LOG.isDebugEnabled()) {
+                LOG.debug(format("Ignoring build with id '%s' and name '%s'", build.getBuildId(), buildName(build)));
+            }
             return;
         }
 
-        // At this point, we know it's the final composite build of the chain
-        SBuild pipelineBuild = buildsManager.findBuildInstanceById(build.getBuildId());
-        if (pipelineBuild == null) {
-            // This should not happen, but better to check for it anyway
-            LOG.error("The TeamCity server could not find build with ID: " + build.getBuildId());
+        if (!projectHandler.isPluginEnabled(build)) {
             return;
         }
 
-        buildChainProcessor.process(pipelineBuild);
-    }
-
-    private boolean isLastCompositeBuild(SBuild build) {
-        return build.isCompositeBuild() &&
-            build.getBuildPromotion().getNumberOfDependedOnMe() == 0 &&
-            !build.isPersonal();
+        // At this point, we know it's the final composite build of the chain
+        progressReporter.onPipelineFinished(build);
+        buildChainProcessor.process(build);
+        watermark.advance(build);
     }
 }
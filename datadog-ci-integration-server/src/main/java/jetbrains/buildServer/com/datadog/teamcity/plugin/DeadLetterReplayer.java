@@ -0,0 +1,168 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.DeadLetterStore.DeadLetter;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.String.format;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Sends the stored dead letters again through the normal transport. Letters are sent in batches,
+ * waiting for a batch to complete before starting the next one, and the overall rate is limited
+ * so a large backfill after an intake incident does not overwhelm the endpoint or the live traffic.
+ * <p>
+ * The stores are replayed one at a time: a store requested while another one is replaying is queued behind it,
+ * and a store requested again while it is replaying is replayed once more afterwards, for the webhooks added meanwhile.
+ */
+@Component
+public class DeadLetterReplayer {
+
+    private static final Logger LOG = Logger.getInstance(DeadLetterReplayer.class.getName());
+
+    protected static final String REPLAY_RATE_PROPERTY = "datadog.ci.deadLetters.replayRatePerSecond";
+    protected static final String REPLAY_BATCH_SIZE_PROPERTY = "datadog.ci.deadLetters.replayBatchSize";
+    private static final int DEFAULT_REPLAY_RATE = 20;
+    private static final int DEFAULT_REPLAY_BATCH_SIZE = 50;
+
+    private final DatadogClient datadogClient;
+    private final DeadLetterStore deadLetterStore;
+    private final ExecutorService replayExecutor;
+    // The stores queued or replaying, and whether they were requested again since their replay was queued
+    private final Map<DeadLetterStore, Boolean> replays = new HashMap<>();
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong failedAgain = new AtomicLong();
+
+    public DeadLetterReplayer(DatadogClient datadogClient, DeadLetterStore deadLetterStore) {
+        this.datadogClient = datadogClient;
+        this.deadLetterStore = deadLetterStore;
+        this.replayExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("datadog-dead-letters-replay")
+            .setDaemon(true)
+            .build());
+    }
+
+    /**
+     * Starts replaying the dead letters in the background.
+     *
+     * @return false if a replay is already in progress
+     */
+    public boolean replayAsync() {
+        return replayAsync(deadLetterStore);
+    }
+
+    /**
+     * Starts replaying the webhooks of another store in the background, such as the webhooks left unsent at shutdown.
+     *
+     * @return false if a replay of this store is already in progress, in which case it is replayed again once done
+     */
+    public boolean replayAsync(DeadLetterStore store) {
+        synchronized (replays) {
+            if (replays.containsKey(store)) {
+                replays.put(store, true);
+                return false;
+            }
+            if (!replays.isEmpty()) {
+                LOG.info(format("Another replay is in progress, the webhooks from '%s' are replayed after it", store));
+            }
+            replays.put(store, false);
+        }
+
+        replayExecutor.submit(() -> {
+            do {
+                replay(store);
+            } while (replayAgain(store));
+        });
+        return true;
+    }
+
+    public boolean isRunning() {
+        synchronized (replays) {
+            return !replays.isEmpty();
+        }
+    }
+
+    private boolean replayAgain(DeadLetterStore store) {
+        synchronized (replays) {
+            if (replays.get(store)) {
+                replays.put(store, false);
+                return true;
+            }
+            replays.remove(store);
+            return false;
+        }
+    }
+
+    public long replayed() {
+        return replayed.get();
+    }
+
+    public long failedAgain() {
+        return failedAgain.get();
+    }
+
+    private void replay(DeadLetterStore store) {
+        int batchSize = Math.max(1, TeamCityProperties.getInteger(REPLAY_BATCH_SIZE_PROPERTY, DEFAULT_REPLAY_BATCH_SIZE));
+        int ratePerSecond = Math.max(1, TeamCityProperties.getInteger(REPLAY_RATE_PROPERTY, DEFAULT_REPLAY_RATE));
+        RateLimiter rateLimiter = RateLimiter.create(ratePerSecond);
+
+        LOG.info(format("Replaying %d webhooks from '%s' at %d webhooks/s", store.size(), store, ratePerSecond));
+        replayed.set(0);
+        failedAgain.set(0);
+
+        List<DeadLetter> batch = new ArrayList<>(batchSize);
+        try {
+            store.drain(deadLetter -> {
+                batch.add(deadLetter);
+                if (batch.size() == batchSize) {
+                    sendBatch(batch, rateLimiter);
+                    batch.clear();
+                }
+            });
+            sendBatch(batch, rateLimiter);
+        } catch (IOException e) {
+            LOG.error(format("Could not read the webhooks to replay from '%s'", store), e);
+        }
+
+        LOG.info(format("Finished replaying webhooks from '%s': %d sent, %d failed again", store, replayed.get(), failedAgain.get()));
+    }
+
+    private void sendBatch(List<DeadLetter> batch, RateLimiter rateLimiter) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        rateLimiter.acquire(batch.size());
+        List<CompletableFuture<Boolean>> results = batch.stream()
+            .map(datadogClient::resendAsync)
+            .collect(toList());
+
+        for (CompletableFuture<Boolean> result : results) {
+            if (result.exceptionally(ex -> false).join()) {
+                replayed.incrementAndGet();
+            } else {
+                failedAgain.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import com.google.common.io.CountingInputStream;
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.serverSide.crypt.EncryptUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static java.lang.String.format;
+
+/**
+ * Append-only file holding the webhooks that could not be delivered, so they can be replayed later.
+ * <p>
+ * Each record is written as: timestamp, last status code, attempts, webhook id, site, scrambled API key
+ * and the length-prefixed UTF-8 payload. A record truncated by a crash is detected and skipped when reading,
+ * and so is a corrupted record along with the rest of the file, as the next records cannot be located.
+ * <p>
+ * The file is kept open between the appends, which are flushed one by one. It is closed before being drained.
+ */
+public class DeadLetterStore {
+
+    private static final Logger LOG = Logger.getInstance(DeadLetterStore.class.getName());
+
+    protected static final String DEAD_LETTERS_NAME = "dead-letters";
+    protected static final String DEAD_LETTERS_FILE = DEAD_LETTERS_NAME + ".bin";
+    protected static final String REPLAYING_FILE = DEAD_LETTERS_NAME + ".replaying";
+    // Far above the size of any webhook, only meant to detect corrupted lengths
+    private static final int MAX_PAYLOAD_BYTES = 32 * 1024 * 1024;
+
+    private final File deadLettersFile;
+    private final File replayingFile;
+    private final AtomicLong pending = new AtomicLong();
+
+    private DataOutputStream output;
+
+    public DeadLetterStore(File directory) {
+        this(directory, DEAD_LETTERS_NAME);
+    }
+
+    /**
+     * @param name the name of the store files, so several stores can share a directory
+     */
+    public DeadLetterStore(File directory, String name) {
+        this.deadLettersFile = new File(directory, name + ".bin");
+        this.replayingFile = new File(directory, name + ".replaying");
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            LOG.warn(format("Could not create the dead letters directory '%s'", directory));
+        }
+
+        pending.set(countRecords(deadLettersFile) + countRecords(replayingFile));
+    }
+
+    public synchronized void append(DeadLetter deadLetter) {
+        try {
+            if (output == null) {
+                output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(deadLettersFile, true)));
+            }
+            writeRecord(output, deadLetter);
+            output.flush();
+            pending.incrementAndGet();
+        } catch (IOException e) {
+            // Reopened by the next append, after the possibly partial record
+            close();
+            LOG.error(format("Could not store dead letter for webhook with id '%s'. The webhook is lost",
+                deadLetter.webhookId()), e);
+        }
+    }
+
+    /**
+     * Closes the file of the store. It is opened again by the next append.
+     */
+    public synchronized void close() {
+        if (output == null) {
+            return;
+        }
+
+        try {
+            output.close();
+        } catch (IOException e) {
+            LOG.warn(format("Could not close the dead letters file '%s'", deadLettersFile), e);
+        }
+        output = null;
+    }
+
+    /**
+     * Hands every stored dead letter to the consumer and removes them from the store. Letters appended
+     * while draining (for instance because they failed again) are kept for the next drain.
+     */
+    public void drain(Consumer<DeadLetter> consumer) throws IOException {
+        synchronized (this) {
+            // A previous drain could have been interrupted by a restart, in that case we finish it first
+            if (!replayingFile.exists() && deadLettersFile.exists()) {
+                close();
+                Files.move(deadLettersFile.toPath(), replayingFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+
+        if (!replayingFile.exists()) {
+            return;
+        }
+
+        readRecords(replayingFile, deadLetter -> {
+            pending.decrementAndGet();
+            consumer.accept(deadLetter);
+        });
+        Files.delete(replayingFile.toPath());
+    }
+
+    public long size() {
+        return pending.get();
+    }
+
+    @Override
+    public String toString() {
+        return deadLettersFile.toString();
+    }
+
+    private static void writeRecord(DataOutputStream out, DeadLetter deadLetter) throws IOException {
+        byte[] payload = deadLetter.payload().getBytes(StandardCharsets.UTF_8);
+        out.writeLong(deadLetter.timestampMs());
+        out.writeInt(deadLetter.lastStatus());
+        out.writeInt(deadLetter.attempts());
+        out.writeUTF(deadLetter.webhookId());
+        out.writeUTF(deadLetter.ddSite());
+        out.writeUTF(EncryptUtil.scramble(deadLetter.apiKey()));
+        out.writeInt(payload.length);
+        out.write(payload);
+    }
+
+    private static DeadLetter readRecord(DataInputStream in, long remainingBytes) throws IOException {
+        long timestampMs = in.readLong();
+        int lastStatus = in.readInt();
+        int attempts = in.readInt();
+        String webhookId = in.readUTF();
+        String ddSite = in.readUTF();
+        String apiKey = EncryptUtil.unscramble(in.readUTF());
+        int payloadLength = in.readInt();
+        if (payloadLength < 0 || payloadLength > MAX_PAYLOAD_BYTES || payloadLength > remainingBytes) {
+            throw new CorruptedRecordException("Invalid payload length " + payloadLength);
+        }
+        byte[] payload = new byte[payloadLength];
+        in.readFully(payload);
+        return new DeadLetter(webhookId, ddSite, apiKey, new String(payload, StandardCharsets.UTF_8),
+            lastStatus, attempts, timestampMs);
+    }
+
+    private static long countRecords(File file) {
+        AtomicLong count = new AtomicLong();
+        if (file.exists()) {
+            try {
+                readRecords(file, ignored -> count.incrementAndGet());
+            } catch (IOException e) {
+                LOG.warn(format("Could not read dead letters from '%s'", file), e);
+            }
+        }
+
+        return count.get();
+    }
+
+    private static void readRecords(File file, Consumer<DeadLetter> consumer) throws IOException {
+        long fileLength = file.length();
+        CountingInputStream counting = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try (DataInputStream in = new DataInputStream(counting)) {
+            while (true) {
+                long recordStart = counting.getCount();
+                DeadLetter deadLetter;
+                try {
+                    // The bytes left from the start of the record are an upper bound of its payload length
+                    deadLetter = readRecord(in, fileLength - recordStart);
+                } catch (EOFException e) {
+                    // End of the file, or a record partially written before a crash
+                    return;
+                } catch (CorruptedRecordException | UTFDataFormatException e) {
+                    LOG.warn(format("Corrupted dead letter at offset %d of '%s', skipping the %d remaining bytes: %s",
+                        recordStart, file, fileLength - recordStart, e.getMessage()));
+                    return;
+                }
+
+                consumer.accept(deadLetter);
+            }
+        }
+    }
+
+    private static class CorruptedRecordException extends IOException {
+        private CorruptedRecordException(String message) {
+            super(message);
+        }
+    }
+
+    public static class DeadLetter {
+        private final String webhookId;
+        private final String ddSite;
+        private final String apiKey;
+        private final String payload;
+        private final int lastStatus;
+        private final int attempts;
+        private final long timestampMs;
+
+        public DeadLetter(String webhookId, String ddSite, String apiKey, String payload,
+                          int lastStatus, int attempts, long timestampMs) {
+            this.webhookId = webhookId;
+            this.ddSite = ddSite;
+            this.apiKey = apiKey;
+            this.payload = payload;
+            this.lastStatus = lastStatus;
+            this.attempts = attempts;
+            this.timestampMs = timestampMs;
+        }
+
+        public String webhookId() {
+            return webhookId;
+        }
+
+        public String ddSite() {
+            return ddSite;
+        }
+
+        public String apiKey() {
+            return apiKey;
+        }
+
+        public String payload() {
+            return payload;
+        }
+
+        /**
+         * @return the last HTTP status code received, or 0 if no response was received
+         */
+        public int lastStatus() {
+            return lastStatus;
+        }
+
+        public int attempts() {
+            return attempts;
+        }
+
+        public long timestampMs() {
+            return timestampMs;
+        }
+
+        @Override
+        public String toString() {
+            return "DeadLetter{" +
+                "webhookId='" + webhookId + '\'' +
+                ", ddSite='" + ddSite + '\'' +
+                ", lastStatus=" + lastStatus +
+                ", attempts=" + attempts +
+                ", timestampMs=" + timestampMs +
+                '}';
+        }
+    }
+}
@@ -0,0 +1,348 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.PluginMetrics.CacheStatistics;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.lang.String.format;
+
+/**
+ * Persistent index of the webhook IDs already acknowledged by the intake, so a webhook is not sent
+ * again after a server restart or when the same chain is processed once more.
+ * <p>
+ * The index combines two structures stored in the plugin data directory:
+ * <ul>
+ *   <li>a memory-mapped bloom filter remembering every delivery, with a configurable false positive rate.
+ *   It is mapped directly from disk, so loading it at startup is immediate;</li>
+ *   <li>an append-only log of the most recent deliveries, loaded in memory and used to give an exact
+ *   answer for them. It is compacted regularly, so its size stays bounded.</li>
+ * </ul>
+ * Once the filter holds its expected number of deliveries it is cleared, as its false positive rate would
+ * otherwise keep growing. Only deliveries older than the recent window are forgotten when that happens.
+ * <p>
+ * Lookups are made by every sending thread and do not take the lock of the index: the recent deliveries are
+ * kept in a concurrent set, and the filter bits are read directly from the mapping. A delivery is added to the
+ * filter before the recent set, so a lookup that does not see it in the set only reads bits that are already
+ * written. Recording a delivery still takes the lock, as it updates the filter and the log together.
+ */
+public class DeliveryIndex implements Closeable {
+
+    private static final Logger LOG = Logger.getInstance(DeliveryIndex.class.getName());
+
+    protected static final String ENABLED_PROPERTY = "datadog.ci.deliveryIndex.enabled";
+    protected static final String EXPECTED_DELIVERIES_PROPERTY = "datadog.ci.deliveryIndex.expectedDeliveries";
+    protected static final String FALSE_POSITIVE_RATE_PROPERTY = "datadog.ci.deliveryIndex.falsePositiveRate";
+    protected static final String RECENT_WINDOW_PROPERTY = "datadog.ci.deliveryIndex.recentWindowSize";
+    private static final int DEFAULT_EXPECTED_DELIVERIES = 1_000_000;
+    private static final double DEFAULT_FALSE_POSITIVE_RATE = 0.0001;
+    private static final int DEFAULT_RECENT_WINDOW = 50_000;
+
+    protected static final String FILTER_FILE = "delivery-index.bloom";
+    protected static final String LOG_FILE = "delivery-index.log";
+    private static final int MAGIC = 0x44444958; // "DDIX"
+    private static final int VERSION = 1;
+    // magic, version, number of bits, number of hash functions, insertions
+    private static final int HEADER_BYTES = 32;
+    private static final int INSERTIONS_OFFSET = 20;
+
+    private final boolean enabled;
+    private final File directory;
+    private final long expectedDeliveries;
+    private final long numBits;
+    private final int numHashes;
+    private final int recentWindow;
+    private final CacheStatistics statistics;
+
+    private final Set<String> recentIds = ConcurrentHashMap.newKeySet();
+    private final ArrayDeque<String> recentOrder = new ArrayDeque<>();
+    private volatile MappedByteBuffer filter;
+    private long insertions;
+    private DataOutputStream logStream;
+    private int logEntries;
+
+    public DeliveryIndex(File directory, PluginMetrics metrics) {
+        this(directory,
+            TeamCityProperties.getBooleanOrTrue(ENABLED_PROPERTY),
+            TeamCityProperties.getInteger(EXPECTED_DELIVERIES_PROPERTY, DEFAULT_EXPECTED_DELIVERIES),
+            parseRate(TeamCityProperties.getPropertyOrNull(FALSE_POSITIVE_RATE_PROPERTY)),
+            TeamCityProperties.getInteger(RECENT_WINDOW_PROPERTY, DEFAULT_RECENT_WINDOW),
+            metrics);
+    }
+
+    protected DeliveryIndex(File directory, boolean enabled, long expectedDeliveries, double falsePositiveRate,
+                            int recentWindow, PluginMetrics metrics) {
+        this.enabled = enabled;
+        this.directory = directory;
+        this.expectedDeliveries = Math.max(1, expectedDeliveries);
+        this.numBits = optimalNumBits(this.expectedDeliveries, falsePositiveRate);
+        this.numHashes = optimalNumHashes(this.expectedDeliveries, numBits);
+        // The recent deliveries are added back to the filter when it is cleared, so they must fit in it
+        this.recentWindow = (int) Math.max(1, Math.min(recentWindow, this.expectedDeliveries / 2));
+        this.statistics = metrics.cache("Delivery index");
+
+        if (enabled) {
+            load();
+        }
+    }
+
+    /**
+     * @return true if the webhook was already acknowledged by the intake. Webhooks outside the recent
+     * window are checked against the bloom filter, so this may wrongly return true at the configured rate.
+     */
+    public boolean isDelivered(String webhookId) {
+        MappedByteBuffer currentFilter = filter;
+        if (!enabled || currentFilter == null) {
+            return false;
+        }
+
+        boolean delivered = recentIds.contains(webhookId) || mightContain(currentFilter, webhookId);
+        if (delivered) {
+            statistics.hit();
+        } else {
+            statistics.miss();
+        }
+
+        return delivered;
+    }
+
+    public synchronized void markDelivered(String webhookId) {
+        if (!enabled || filter == null || recentIds.contains(webhookId)) {
+            return;
+        }
+
+        if (insertions >= expectedDeliveries) {
+            LOG.info(format("Delivery index reached %d deliveries, clearing its filter", insertions));
+            clearFilter();
+        }
+
+        addToFilter(webhookId);
+        addToRecent(webhookId);
+
+        if (logStream != null) {
+            try {
+                logStream.writeUTF(webhookId);
+                logStream.flush();
+                if (++logEntries >= 2 * recentWindow) {
+                    logStream.close();
+                    logStream = null;
+                    compactLog();
+                    openLog();
+                }
+            } catch (IOException e) {
+                LOG.warn(format("Could not record delivery of webhook with id '%s'", webhookId), e);
+            }
+        }
+    }
+
+    public synchronized long size() {
+        return insertions;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (filter != null) {
+            filter.force();
+        }
+        if (logStream != null) {
+            logStream.close();
+            logStream = null;
+        }
+    }
+
+    private void load() {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            LOG.warn(format("Could not create the delivery index directory '%s'", directory));
+            return;
+        }
+
+        try {
+            filter = mapFilter(new File(directory, FILTER_FILE));
+            insertions = filter.getLong(INSERTIONS_OFFSET);
+            loadRecentLog();
+            compactLog();
+            openLog();
+            LOG.info(format("Loaded delivery index with %d deliveries (%d recent)", insertions, recentIds.size()));
+        } catch (IOException e) {
+            LOG.error("Could not load the delivery index, already delivered webhooks will not be detected", e);
+            filter = null;
+        }
+    }
+
+    private MappedByteBuffer mapFilter(File file) throws IOException {
+        long length = HEADER_BYTES + (numBits + 7) / 8;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            boolean compatible = raf.length() == length && raf.readInt() == MAGIC && raf.readInt() == VERSION
+                && raf.readLong() == numBits && raf.readInt() == numHashes;
+            if (!compatible) {
+                if (raf.length() > 0) {
+                    LOG.info("Delivery index settings changed, creating a new filter");
+                }
+                raf.setLength(0);
+                raf.setLength(length);
+                raf.seek(0);
+                raf.writeInt(MAGIC);
+                raf.writeInt(VERSION);
+                raf.writeLong(numBits);
+                raf.writeInt(numHashes);
+                raf.writeLong(0);
+            }
+
+            // The mapping stays valid after the file is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        }
+    }
+
+    private void loadRecentLog() throws IOException {
+        File logFile = new File(directory, LOG_FILE);
+        if (logFile.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)))) {
+                while (true) {
+                    addToRecent(in.readUTF());
+                }
+            } catch (EOFException e) {
+                // End of the log, or an entry partially written before a crash
+            }
+        }
+    }
+
+    /**
+     * Rewrites the log with only the recent window, which also drops an entry torn by a crash.
+     */
+    private void compactLog() throws IOException {
+        File logFile = new File(directory, LOG_FILE);
+        File compacted = new File(directory, LOG_FILE + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(compacted)))) {
+            for (String id : recentOrder) {
+                out.writeUTF(id);
+            }
+        }
+        Files.move(compacted.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logEntries = recentOrder.size();
+    }
+
+    private void openLog() throws IOException {
+        logStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(directory, LOG_FILE), true)));
+    }
+
+    private void addToRecent(String webhookId) {
+        if (recentIds.add(webhookId)) {
+            recentOrder.addLast(webhookId);
+            if (recentOrder.size() > recentWindow) {
+                recentIds.remove(recentOrder.removeFirst());
+            }
+        }
+    }
+
+    private boolean mightContain(MappedByteBuffer filter, String webhookId) {
+        // Only absolute reads, which do not depend on the position changed while the filter is cleared
+        long[] hashes = hash(webhookId);
+        for (int i = 0; i < numHashes; i++) {
+            long bit = bitIndex(hashes, i);
+            if ((filter.get(byteOffset(bit)) & bitMask(bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void addToFilter(String webhookId) {
+        long[] hashes = hash(webhookId);
+        for (int i = 0; i < numHashes; i++) {
+            long bit = bitIndex(hashes, i);
+            int offset = byteOffset(bit);
+            filter.put(offset, (byte) (filter.get(offset) | bitMask(bit)));
+        }
+        insertions++;
+        filter.putLong(INSERTIONS_OFFSET, insertions);
+    }
+
+    private void clearFilter() {
+        ByteBuffer zeros = ByteBuffer.allocate(8192);
+        filter.position(HEADER_BYTES);
+        while (filter.hasRemaining()) {
+            zeros.clear().limit(Math.min(zeros.capacity(), filter.remaining()));
+            filter.put(zeros);
+        }
+        insertions = 0;
+        filter.putLong(INSERTIONS_OFFSET, 0);
+
+        // Recent deliveries must still be detected after the reset
+        for (String id : recentOrder) {
+            addToFilter(id);
+        }
+    }
+
+    private long bitIndex(long[] hashes, int i) {
+        // Kirsch-Mitzenmacher: derive every hash function from two independent hashes
+        return Math.floorMod(hashes[0] + i * hashes[1], numBits);
+    }
+
+    private static int byteOffset(long bit) {
+        return HEADER_BYTES + (int) (bit >>> 3);
+    }
+
+    private static int bitMask(long bit) {
+        return 1 << (int) (bit & 7);
+    }
+
+    private static long[] hash(String webhookId) {
+        HashCode hashCode = Hashing.murmur3_128().hashString(webhookId, StandardCharsets.UTF_8);
+        ByteBuffer bytes = ByteBuffer.wrap(hashCode.asBytes());
+        return new long[]{bytes.getLong(), bytes.getLong()};
+    }
+
+    private static long optimalNumBits(long expectedInsertions, double falsePositiveRate) {
+        double rate = Math.min(Math.max(falsePositiveRate, Double.MIN_NORMAL), 0.5);
+        long bits = (long) Math.ceil(-expectedInsertions * Math.log(rate) / (Math.log(2) * Math.log(2)));
+        // The whole filter is mapped in a single buffer
+        return Math.max(64, Math.min(bits, 8L * (Integer.MAX_VALUE - HEADER_BYTES)));
+    }
+
+    private static int optimalNumHashes(long expectedInsertions, long numBits) {
+        return Math.max(1, (int) Math.round((double) numBits / expectedInsertions * Math.log(2)));
+    }
+
+    private static double parseRate(String value) {
+        if (value == null) {
+            return DEFAULT_FALSE_POSITIVE_RATE;
+        }
+
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            LOG.warn(format("Invalid value '%s' for property '%s', using %s", value, FALSE_POSITIVE_RATE_PROPERTY,
+                DEFAULT_FALSE_POSITIVE_RATE));
+            return DEFAULT_FALSE_POSITIVE_RATE;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import jetbrains.buildServer.controllers.admin.AdminPage;
+import jetbrains.buildServer.serverSide.auth.Permission;
+import jetbrains.buildServer.web.openapi.PagePlaces;
+import jetbrains.buildServer.web.openapi.PluginDescriptor;
+import jetbrains.buildServer.web.openapi.PositionConstraint;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Nonnull;
+import javax.servlet.http.HttpServletRequest;
+import java.util.Map;
+
+/**
+ * Administration page showing the live state of the webhook pipeline.
+ * All the values come from {@link PluginMetrics}, so rendering it does not touch the send path.
+ */
+@Component
+public class DiagnosticsPage extends AdminPage {
+
+    private static final String PLUGIN_NAME = "datadog-ci-integration";
+    private static final String TAB_TITLE = "Datadog CI";
+
+    private final PluginMetrics metrics;
+    private final DeadLetterStore deadLetterStore;
+    private final DeadLetterReplayer deadLetterReplayer;
+    private final HistoricalExporter historicalExporter;
+
+    public DiagnosticsPage(PagePlaces pagePlaces,
+                           PluginDescriptor pluginDescriptor,
+                           PluginMetrics metrics,
+                           DeadLetterStore deadLetterStore,
+                           DeadLetterReplayer deadLetterReplayer,
+                           HistoricalExporter historicalExporter) {
+        super(pagePlaces);
+        this.metrics = metrics;
+        this.deadLetterStore = deadLetterStore;
+        this.deadLetterReplayer = deadLetterReplayer;
+        this.historicalExporter = historicalExporter;
+
+        setPluginName(PLUGIN_NAME);
+        setIncludeUrl(pluginDescriptor.getPluginResourcesPath("diagnostics.jsp"));
+        setTabTitle(TAB_TITLE);
+        setPosition(PositionConstraint.last());
+        register();
+    }
+
+    @Override
+    public boolean isAvailable(@Nonnull HttpServletRequest request) {
+        return super.isAvailable(request) && checkHasGlobalPermission(request, Permission.VIEW_SERVER_SETTINGS);
+    }
+
+    @Nonnull
+    @Override
+    public String getGroup() {
+        return SERVER_RELATED_GROUP;
+    }
+
+    @Override
+    public void fillModel(@Nonnull Map<String, Object> model, @Nonnull HttpServletRequest request) {
+        model.put("metrics", metrics.snapshot());
+        model.put("deadLetters", deadLetterStore.size());
+        model.put("replayRunning", deadLetterReplayer.isRunning());
+        model.put("replayed", deadLetterReplayer.replayed());
+        model.put("failedAgain", deadLetterReplayer.failedAgain());
+        model.put("exportRunning", historicalExporter.isRunning());
+        model.put("exportResumable", historicalExporter.canResume());
+        model.put("export", historicalExporter.progress());
+        model.put("actionUrl", AdminActionController.CONTROLLER_PATH);
+    }
+}
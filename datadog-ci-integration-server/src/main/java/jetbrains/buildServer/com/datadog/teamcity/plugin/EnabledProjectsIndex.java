@@ -0,0 +1,150 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.ProjectManager;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.users.SUser;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static java.lang.String.format;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.ProjectHandler.DATADOG_ENABLED_PARAM;
+
+/**
+ * The IDs of the projects where the plugin is enabled, so that checking a build is a single set lookup
+ * instead of resolving the parameter through the project hierarchy.
+ * <p>
+ * The index is built with one walk of the project tree, and then updated from the project events. As the
+ * parameter is inherited, a change to a project (new parameters, new parent) is applied to its whole subtree.
+ * The set is copied on each update, which are rare, so that the lookups never lock.
+ */
+@Component
+public class EnabledProjectsIndex extends BuildServerAdapter {
+
+    private static final Logger LOG = Logger.getInstance(EnabledProjectsIndex.class.getName());
+
+    private final ProjectManager projectManager;
+
+    private volatile Set<String> enabledProjectIds;
+
+    public EnabledProjectsIndex(EventDispatcher<BuildServerListener> eventListener, ProjectManager projectManager) {
+        this.projectManager = projectManager;
+
+        eventListener.addListener(this);
+    }
+
+    public boolean isEnabled(String projectId) {
+        return enabledProjectIds().contains(projectId);
+    }
+
+    /**
+     * @return the IDs of the projects where the plugin is enabled, as an immutable snapshot
+     */
+    public Set<String> enabledProjectIds() {
+        Set<String> enabled = enabledProjectIds;
+        if (enabled == null) {
+            // Builds may finish before the server startup event
+            rebuild();
+            enabled = enabledProjectIds;
+        }
+        return enabled;
+    }
+
+    @Override
+    public void serverStartup() {
+        rebuild();
+    }
+
+    @Override
+    public void serverConfigurationReloaded() {
+        rebuild();
+    }
+
+    @Override
+    public void projectCreated(String projectId, SUser user) {
+        refresh(projectId);
+    }
+
+    @Override
+    public void projectRestored(String projectId) {
+        refresh(projectId);
+    }
+
+    @Override
+    public void projectPersisted(String projectId) {
+        // Called when the settings of the project are saved, including its parameters
+        refresh(projectId);
+    }
+
+    @Override
+    public void projectMoved(SProject project, SProject originalParentProject) {
+        refresh(project.getProjectId());
+    }
+
+    @Override
+    public synchronized void projectRemoved(String projectId) {
+        if (enabledProjectIds == null) {
+            return;
+        }
+
+        // The subprojects are removed as well, and can no longer be walked from the removed project
+        Set<String> enabled = new HashSet<>(enabledProjectIds);
+        enabled.remove(projectId);
+        enabled.removeIf(id -> projectManager.findProjectById(id) == null);
+        enabledProjectIds = Collections.unmodifiableSet(enabled);
+    }
+
+    private synchronized void rebuild() {
+        Set<String> enabled = new HashSet<>();
+        addEnabled(projectManager.getRootProject(), enabled);
+        enabledProjectIds = Collections.unmodifiableSet(enabled);
+        LOG.info(format("Datadog CI integration is enabled in %d projects", enabled.size()));
+    }
+
+    private synchronized void refresh(String projectId) {
+        if (enabledProjectIds == null) {
+            rebuild();
+            return;
+        }
+
+        SProject project = projectManager.findProjectById(projectId);
+        if (project == null) {
+            return;
+        }
+
+        Set<String> enabled = new HashSet<>(enabledProjectIds);
+        removeSubtree(project, enabled);
+        addEnabled(project, enabled);
+        enabledProjectIds = Collections.unmodifiableSet(enabled);
+    }
+
+    private static void addEnabled(SProject project, Set<String> enabled) {
+        // The parameter value is resolved by TeamCity, including the values inherited from the parent projects
+        if (Boolean.parseBoolean(project.getParameterValue(DATADOG_ENABLED_PARAM))) {
+            enabled.add(project.getProjectId());
+        }
+        for (SProject subproject : project.getOwnProjects()) {
+            addEnabled(subproject, enabled);
+        }
+    }
+
+    private static void removeSubtree(SProject project, Set<String> enabled) {
+        enabled.remove(project.getProjectId());
+        for (SProject subproject : project.getOwnProjects()) {
+            removeSubtree(subproject, enabled);
+        }
+    }
+}
@@ -0,0 +1,428 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.Webhook;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+import static java.lang.String.format;
+
+/**
+ * Sink writing the webhooks to local files instead of sending them, for networks that cannot reach the intake.
+ * The files can be shipped later by a separate forwarder.
+ * <p>
+ * Each line of a file is a JSON object with the webhook ID, the Datadog site and the webhook itself.
+ * A single writer thread takes all the queued webhooks at once, writes them and then syncs the file
+ * (group commit), so the cost of syncing is shared by all the webhooks queued in the meantime.
+ * Files are rolled when they reach a maximum size or age. They are written with a {@code .part} suffix,
+ * removed once the file is complete, so a forwarder only needs to pick up the files without it.
+ * <p>
+ * If a write fails, the file is cut back to the groups already synced and completed, so they are not lost
+ * with the group that failed. Compressed files hold each group as a separate gzip member, so they are still
+ * valid once cut back. The {@code .part} files left by a crash are recovered the same way on startup: they are
+ * cut back to their last complete line or gzip member, as the rest may not have been synced, and completed.
+ */
+public class FileWebhookSink implements WebhookSink, Closeable {
+
+    private static final Logger LOG = Logger.getInstance(FileWebhookSink.class.getName());
+
+    protected static final String FILE_SINK_SITE = "file";
+    protected static final String PART_SUFFIX = ".part";
+    private static final int QUEUE_CAPACITY = 100_000;
+    private static final int MAX_GROUP_SIZE = 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] NEW_LINE = {'\n'};
+    private static final int MAX_FILE_SEQUENCE = 10_000;
+    // The header written by GZIPOutputStream: magic number, deflate method, no flags, no time, no extra flags, unknown OS
+    private static final int GZIP_HEADER_SIZE = 10;
+    private static final int GZIP_TRAILER_SIZE = 8;
+
+    public enum Compression {
+        NONE(".ndjson"),
+        GZIP(".ndjson.gz");
+
+        private final String extension;
+
+        Compression(String extension) {
+            this.extension = extension;
+        }
+    }
+
+    private final File directory;
+    private final Compression compression;
+    private final long maxFileBytes;
+    private final long maxFileAgeMs;
+    private final ObjectMapper objectMapper;
+    private final PluginMetrics metrics;
+    private final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread writerThread;
+    private volatile boolean closed;
+
+    // Only accessed by the writer thread
+    private File currentFile;
+    private FileChannel channel;
+    private OutputStream out;
+    private long openedAtMs;
+    private long committedBytes;
+    private int fileSequence;
+
+    public FileWebhookSink(File directory, Compression compression, long maxFileBytes, long maxFileAgeMs,
+                           ObjectMapper objectMapper, PluginMetrics metrics) {
+        this.directory = directory;
+        this.compression = compression;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFileAgeMs = maxFileAgeMs;
+        this.objectMapper = objectMapper;
+        this.metrics = metrics;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            LOG.warn(format("Could not create the webhooks directory '%s'", directory));
+        }
+
+        this.writerThread = new Thread(this::writeLoop, "datadog-file-sink");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    @Override
+    public void sendWebhooksAsync(List<Webhook> webhooks, String apiKey, String ddSite) {
+        for (Webhook webhook : webhooks) {
+            byte[] line;
+            try {
+                line = serialize(webhook, ddSite);
+            } catch (IOException e) {
+                LOG.error(format("Could not serialize webhook with id '%s'", webhook.id()), e);
+                continue;
+            }
+
+            if (closed || !queue.offer(line)) {
+                LOG.warn(format("Webhooks file queue is full, dropping webhook with id '%s'", webhook.id()));
+                metrics.onWebhookFailed(FILE_SINK_SITE);
+                continue;
+            }
+            metrics.onWebhookQueued();
+        }
+    }
+
+    /**
+     * Writes the queued webhooks and completes the current file.
+     */
+    @Override
+    public void close() throws IOException {
+        // The writer is not interrupted, as it would close the file channel in the middle of a write
+        closed = true;
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private byte[] serialize(Webhook webhook, String ddSite) throws IOException {
+        // The webhook is written straight into the line, without an intermediate tree
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(line)) {
+            generator.writeStartObject();
+            generator.writeStringField("id", webhook.id());
+            generator.writeStringField("site", ddSite);
+            generator.writeFieldName("webhook");
+            objectMapper.writeValue(generator, webhook);
+            generator.writeEndObject();
+        }
+        return line.toByteArray();
+    }
+
+    private void writeLoop() {
+        recoverPartFiles();
+
+        List<byte[]> group = new ArrayList<>(MAX_GROUP_SIZE);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                byte[] first = queue.poll(1, TimeUnit.SECONDS);
+                if (first != null) {
+                    group.add(first);
+                    queue.drainTo(group, MAX_GROUP_SIZE - 1);
+                    group.forEach(line -> metrics.onWebhookDequeued());
+                    writeGroup(group);
+                    group.clear();
+                }
+
+                rollIfNecessary(false);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException e) {
+                LOG.error(format("Could not write %d webhooks to '%s', they are lost", group.size(), currentFile), e);
+                group.forEach(line -> metrics.onWebhookFailed(FILE_SINK_SITE));
+                group.clear();
+                completeCommittedPart();
+            }
+        }
+
+        try {
+            rollIfNecessary(true);
+        } catch (IOException e) {
+            LOG.warn(format("Could not complete webhooks file '%s'", currentFile), e);
+        }
+    }
+
+    private void writeGroup(List<byte[]> group) throws IOException {
+        if (out == null) {
+            open();
+        }
+
+        if (compression == Compression.GZIP) {
+            GZIPOutputStream member = new GZIPOutputStream(new MemberOutputStream(out), BUFFER_SIZE);
+            writeLines(member, group);
+            // Writes the trailer of the member and releases its deflater, without closing the file
+            member.close();
+        } else {
+            writeLines(out, group);
+        }
+
+        // Group commit: a single sync for all the webhooks of the group
+        out.flush();
+        channel.force(false);
+        committedBytes = channel.size();
+
+        group.forEach(line -> metrics.onWebhookSent(FILE_SINK_SITE));
+    }
+
+    private static void writeLines(OutputStream stream, List<byte[]> group) throws IOException {
+        for (byte[] line : group) {
+            stream.write(line);
+            stream.write(NEW_LINE);
+        }
+    }
+
+    private void rollIfNecessary(boolean force) throws IOException {
+        if (out == null) {
+            return;
+        }
+
+        boolean tooLarge = channel.size() >= maxFileBytes;
+        boolean tooOld = System.currentTimeMillis() - openedAtMs >= maxFileAgeMs;
+        if (force || tooLarge || tooOld) {
+            out.close();
+            out = null;
+            channel = null;
+            complete();
+        }
+    }
+
+    private void complete() throws IOException {
+        complete(currentFile);
+    }
+
+    private void complete(File partFile) throws IOException {
+        Files.move(partFile.toPath(), completedFile(partFile).toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private File completedFile(File partFile) {
+        String completeName = partFile.getName().substring(0, partFile.getName().length() - PART_SUFFIX.length());
+        return new File(directory, completeName);
+    }
+
+    /**
+     * Completes the current file with the groups synced before a failed write, dropping what the failed write
+     * left after them. The next group is written to a new file.
+     */
+    private void completeCommittedPart() {
+        closeQuietly();
+        if (currentFile == null || !currentFile.exists()) {
+            return;
+        }
+
+        try {
+            if (committedBytes == 0) {
+                Files.delete(currentFile.toPath());
+                return;
+            }
+            try (FileChannel partChannel = FileChannel.open(currentFile.toPath(), StandardOpenOption.WRITE)) {
+                partChannel.truncate(committedBytes);
+                partChannel.force(false);
+            }
+            complete();
+        } catch (IOException e) {
+            LOG.warn(format("Could not complete the webhooks written to '%s' before the failure", currentFile), e);
+        }
+    }
+
+    private void open() throws IOException {
+        String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        // Skips the names used by a previous run in the same second, as the sequence restarts with the server
+        int attempts = 0;
+        do {
+            currentFile = new File(directory, format("webhooks-%s-%04d%s%s", timestamp, fileSequence++ % MAX_FILE_SEQUENCE,
+                compression.extension, PART_SUFFIX));
+        } while ((currentFile.exists() || completedFile(currentFile).exists()) && ++attempts < MAX_FILE_SEQUENCE);
+        channel = FileChannel.open(currentFile.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+
+        out = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+        openedAtMs = System.currentTimeMillis();
+        committedBytes = 0;
+    }
+
+    /**
+     * Completes the files left with a {@code .part} suffix by a crash, with the lines they hold up to the first
+     * incomplete one, so a forwarder ships them.
+     */
+    private void recoverPartFiles() {
+        File[] partFiles = directory.listFiles((dir, name) -> name.startsWith("webhooks-") && name.endsWith(PART_SUFFIX));
+        if (partFiles == null) {
+            return;
+        }
+
+        for (File partFile : partFiles) {
+            try {
+                byte[] content = Files.readAllBytes(partFile.toPath());
+                boolean compressed = partFile.getName().endsWith(Compression.GZIP.extension + PART_SUFFIX);
+                int completeBytes = compressed ? completeGzipBytes(content) : completeLinesBytes(content);
+                if (completeBytes == 0) {
+                    Files.delete(partFile.toPath());
+                    LOG.warn(format("Deleted webhooks file '%s' left incomplete by the previous run, it had no complete webhook", partFile));
+                    continue;
+                }
+
+                try (FileChannel partChannel = FileChannel.open(partFile.toPath(), StandardOpenOption.WRITE)) {
+                    partChannel.truncate(completeBytes);
+                    partChannel.force(false);
+                }
+                complete(partFile);
+                LOG.warn(format("Completed webhooks file '%s' left incomplete by the previous run, dropping its last %d incomplete bytes",
+                    partFile, content.length - completeBytes));
+            } catch (IOException e) {
+                LOG.warn(format("Could not recover webhooks file '%s' left incomplete by the previous run", partFile), e);
+            }
+        }
+    }
+
+    private static int completeLinesBytes(byte[] content) {
+        for (int i = content.length - 1; i >= 0; i--) {
+            if (content[i] == NEW_LINE[0]) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return the size of the gzip members at the start of the content that are complete and valid
+     */
+    private static int completeGzipBytes(byte[] content) {
+        int offset = 0;
+        while (offset < content.length) {
+            int memberEnd = gzipMemberEnd(content, offset);
+            if (memberEnd < 0) {
+                break;
+            }
+            offset = memberEnd;
+        }
+        return offset;
+    }
+
+    /**
+     * @return the end of the gzip member starting at the given offset, or -1 if it is incomplete or invalid
+     */
+    private static int gzipMemberEnd(byte[] content, int start) {
+        int dataStart = start + GZIP_HEADER_SIZE;
+        if (dataStart > content.length || (content[start] & 0xff) != 0x1f || (content[start + 1] & 0xff) != 0x8b
+            || content[start + 2] != 8 || content[start + 3] != 0) {
+            return -1;
+        }
+
+        Inflater inflater = new Inflater(true);
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try {
+            inflater.setInput(content, dataStart, content.length - dataStart);
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(buffer);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    return -1;
+                }
+                crc.update(buffer, 0, inflated);
+            }
+
+            int trailerStart = content.length - inflater.getRemaining();
+            if (trailerStart + GZIP_TRAILER_SIZE > content.length
+                || readIntLE(content, trailerStart) != (int) crc.getValue()
+                || readIntLE(content, trailerStart + 4) != (int) inflater.getBytesWritten()) {
+                return -1;
+            }
+            return trailerStart + GZIP_TRAILER_SIZE;
+        } catch (DataFormatException e) {
+            return -1;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static int readIntLE(byte[] content, int offset) {
+        return (content[offset] & 0xff) | (content[offset + 1] & 0xff) << 8
+            | (content[offset + 2] & 0xff) << 16 | (content[offset + 3] & 0xff) << 24;
+    }
+
+    private void closeQuietly() {
+        try {
+            if (out != null) {
+                out.close();
+            }
+        } catch (IOException e) {
+            LOG.warn(format("Could not close webhooks file '%s'", currentFile), e);
+        } finally {
+            out = null;
+            channel = null;
+        }
+    }
+
+    /**
+     * The file stream as seen by the gzip member of a group: closing the member must not close the file.
+     */
+    private static class MemberOutputStream extends FilterOutputStream {
+        private MemberOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -7,19 +7,37 @@
 
 package jetbrains.buildServer.com.datadog.teamcity.plugin;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.PluginMetrics.CacheStatistics;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.VcsRootMetadataCache.VcsRootMetadata;
 import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.GitInfo;
 import jetbrains.buildServer.serverSide.BuildRevision;
 import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.vcs.SVcsModification;
+import jetbrains.buildServer.vcs.VcsRootInstance;
 import jetbrains.buildServer.vcs.VcsRootInstanceEx;
 import jetbrains.buildServer.vcs.impl.VcsModificationEx;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Pattern;
 
 import static java.lang.String.format;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toCollection;
 import static jetbrains.buildServer.com.datadog.teamcity.plugin.BuildUtils.toRFC3339;
 
 @Component
@@ -32,57 +50,158 @@ public class GitInformationExtractor {
     protected static final String DEFAULT_EMAIL_DOMAIN = "TeamCity";
 
     private static final Logger LOG = Logger.getInstance(GitInformationExtractor.class.getName());
+    private static final Pattern WHITESPACE = Pattern.compile("\\s");
+    // Direct-mapped like the values interner: the same people commit all day, so a small memo is enough
+    private static final int IDENTITIES_CAPACITY = 256;
+    private static final int COMMITS_CAPACITY = 1024;
+
+    protected static final String LOOKUP_THREADS_PROPERTY = "datadog.ci.git.lookupThreads";
+    private static final int DEFAULT_LOOKUP_THREADS = 4;
+
+    private final VcsRootMetadataCache vcsRootMetadataCache;
+    private final ProjectHandler projectHandler;
+    private final AtomicReferenceArray<ParsedIdentity> identities = new AtomicReferenceArray<>(IDENTITIES_CAPACITY);
+    private final CacheStatistics identitiesStatistics;
+    private final Map<String, Commit> commits = new ConcurrentHashMap<>();
+    private final CacheStatistics commitsStatistics;
+    private final ExecutorService lookupExecutor;
+
+    public GitInformationExtractor(VcsRootMetadataCache vcsRootMetadataCache, ProjectHandler projectHandler, PluginMetrics metrics) {
+        this.vcsRootMetadataCache = vcsRootMetadataCache;
+        this.projectHandler = projectHandler;
+        this.identitiesStatistics = metrics.cache("Git identities");
+        this.commitsStatistics = metrics.cache("Git commits");
+        this.lookupExecutor = Executors.newFixedThreadPool(
+            Math.max(1, TeamCityProperties.getInteger(LOOKUP_THREADS_PROPERTY, DEFAULT_LOOKUP_THREADS)),
+            new ThreadFactoryBuilder()
+                .setNameFormat("datadog-vcs-lookup-%d")
+                .setDaemon(true)
+                .build());
+    }
 
+    /**
+     * @return the git information of the primary repository of the build, see {@link #extractAllGitInfo(SBuild)}
+     */
     public Optional<GitInfo> extractGitInfo(SBuild build) {
-        Optional<BuildRevision> revisionOptional = build.getRevisions().stream()
+        return extractAllGitInfo(build).stream().findFirst();
+    }
+
+    /**
+     * Extracts the git information of every git repository checked out by the build. The primary repository,
+     * configured with the {@value ProjectHandler#DATADOG_PRIMARY_REPOSITORY_PARAM} parameter or else the first
+     * one, comes first. The commits are looked up concurrently, as each lookup can read the VCS storage.
+     */
+    public List<GitInfo> extractAllGitInfo(SBuild build) {
+        List<BuildRevision> revisions = build.getRevisions().stream()
             .filter(this::hasGitRoot)
-            .findFirst();
-        if (!revisionOptional.isPresent()) {
+            .collect(toCollection(ArrayList::new));
+        if (revisions.isEmpty()) {
             LOG.warn(format("Could not find revision for build '%s'. Revisions: %s", build, build.getRevisions()));
-            return Optional.empty();
+            return emptyList();
+        }
+
+        movePrimaryFirst(revisions, projectHandler.getPrimaryRepository(build));
+        String branch = getBranch(build);
+        List<GitInfo> gitInfos = new ArrayList<>(revisions.size());
+        for (Optional<Commit> commit : lookUpCommits(revisions)) {
+            commit.ifPresent(c -> gitInfos.add(c.toGitInfo(branch)));
+        }
+        return gitInfos;
+    }
+
+    private void movePrimaryFirst(List<BuildRevision> revisions, String primaryRepository) {
+        if (primaryRepository == null || primaryRepository.isEmpty() || revisions.size() == 1) {
+            return;
+        }
+
+        // The raw URL is compared rather than the root metadata, which cannot be read from roots with invalid
+        // settings: such an additional root must not prevent finding the primary one
+        for (int i = 0; i < revisions.size(); i++) {
+            VcsRootInstance root = revisions.get(i).getRoot();
+            String url = root.getProperty(URL_PROPERTY);
+            if (primaryRepository.equalsIgnoreCase(root.getName()) || (url != null && primaryRepository.equals(url.trim()))) {
+                revisions.add(0, revisions.remove(i));
+                return;
+            }
+        }
+    }
+
+    private List<Optional<Commit>> lookUpCommits(List<BuildRevision> revisions) {
+        if (revisions.size() == 1) {
+            return singletonList(lookUpCommit(revisions.get(0)));
         }
 
-        BuildRevision revision = revisionOptional.get();
+        // The other repositories are looked up in the background while the first one is looked up on this thread
+        List<Future<Optional<Commit>>> futures = new ArrayList<>(revisions.size() - 1);
+        for (BuildRevision revision : revisions.subList(1, revisions.size())) {
+            futures.add(lookupExecutor.submit(() -> lookUpCommit(revision)));
+        }
+
+        List<Optional<Commit>> commits = new ArrayList<>(revisions.size());
+        try {
+            commits.add(lookUpCommit(revisions.get(0)));
+
+            // A failing additional repository, such as a root with invalid settings, only loses its own commit
+            List<String> failedRoots = new ArrayList<>();
+            for (int i = 0; i < futures.size(); i++) {
+                VcsRootInstance root = revisions.get(i + 1).getRoot();
+                try {
+                    commits.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Error) {
+                        throw (Error) e.getCause();
+                    }
+                    LOG.debug(format("Could not look up the commit of additional VCS root '%s'", root), e.getCause());
+                    failedRoots.add(root.getName());
+                    commits.add(Optional.empty());
+                }
+            }
+            if (!failedRoots.isEmpty()) {
+                LOG.info(format("Skipped the git information of additional VCS roots %s, enable debug logs for details", failedRoots));
+            }
+            return commits;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return emptyList();
+        } finally {
+            futures.forEach(future -> future.cancel(true));
+        }
+    }
+
+    private Optional<Commit> lookUpCommit(BuildRevision revision) {
         VcsRootInstanceEx vcsRootInstance = (VcsRootInstanceEx) revision.getRoot();
-        VcsModificationEx gitModification = (VcsModificationEx) vcsRootInstance.findModificationByVersion(revision.getRevision());
+        String key = vcsRootInstance.getId() + ":" + revision.getRevision();
+        Commit commit = commits.get(key);
+        if (commit != null) {
+            commitsStatistics.hit();
+            return Optional.of(commit);
+        }
 
+        commitsStatistics.miss();
+        VcsModificationEx gitModification = (VcsModificationEx) vcsRootInstance.findModificationByVersion(revision.getRevision());
         if (gitModification == null) {
             LOG.warn(format("Could not find modification for revision '%s' from VCS root '%s'", revision, vcsRootInstance));
             return Optional.empty();
         }
 
-        UsernameStyle usernameStyle = getUsernameStyle(vcsRootInstance);
+        VcsRootMetadata vcsRootMetadata = vcsRootMetadataCache.get(vcsRootInstance);
+        UsernameStyle usernameStyle = vcsRootMetadata.getUsernameStyle();
         GitUserInfo committerInfo = extractCommitterInfo(gitModification, usernameStyle);
         GitUserInfo authorInfo = tryExtractAuthorInfo(gitModification, usernameStyle)
             .orElse(committerInfo);
 
-        return Optional.of(new GitInfo()
-            .withRepositoryURL(vcsRootInstance.getProperty(URL_PROPERTY))
-            .withDefaultBranch(vcsRootInstance.getProperty(BRANCH_PROPERTY))
-            .withMessage(gitModification.getDescription().trim())
-            .withSha(gitModification.getVersion())
-            .withCommitTime(toRFC3339(gitModification.getCommitDate()))
-            .withCommitterName(committerInfo.username)
-            .withCommitterEmail(committerInfo.email)
-            .withAuthorTime(toRFC3339(gitModification.getVcsDate()))
-            .withAuthorName(authorInfo.username)
-            .withAuthorEmail(authorInfo.email)
-            .withBranch(getBranch(build)));
+        commit = new Commit(vcsRootMetadata, gitModification, committerInfo, authorInfo);
+        if (commits.size() >= COMMITS_CAPACITY) {
+            commits.clear();
+        }
+        commits.put(key, commit);
+        return Optional.of(commit);
     }
 
     private boolean hasGitRoot(BuildRevision rev) {
         return rev.getRoot().getVcsName().equalsIgnoreCase(GIT_VCS);
     }
 
-    private UsernameStyle getUsernameStyle(VcsRootInstanceEx vcsRootInstance) {
-        String usernameStyle = vcsRootInstance.getProperty(USERNAME_STYLE_PROPERTY);
-        if (usernameStyle == null || usernameStyle.isEmpty()) {
-            throw new IllegalArgumentException("Could not retrieve username style from VCS root properties: " + vcsRootInstance.getProperties());
-        }
-
-        return UsernameStyle.valueOf(usernameStyle);
-    }
-
     private GitUserInfo extractCommitterInfo(VcsModificationEx change, UsernameStyle usernameStyle) {
         String committerUsername = change.getCommiterName();
         return parseUsername(committerUsername, usernameStyle);
@@ -99,6 +218,22 @@ public class GitInformationExtractor {
 
     @Nonnull
     private GitUserInfo parseUsername(String username, UsernameStyle usernameStyle) {
+        int hash = 31 * username.hashCode() + usernameStyle.ordinal();
+        int index = (hash ^ (hash >>> 16)) & (IDENTITIES_CAPACITY - 1);
+        ParsedIdentity parsed = identities.get(index);
+        if (parsed != null && parsed.usernameStyle == usernameStyle && parsed.username.equals(username)) {
+            identitiesStatistics.hit();
+            return parsed.userInfo;
+        }
+
+        identitiesStatistics.miss();
+        GitUserInfo userInfo = parseUsernameStyle(username, usernameStyle);
+        identities.set(index, new ParsedIdentity(username, usernameStyle, userInfo));
+        return userInfo;
+    }
+
+    @Nonnull
+    private GitUserInfo parseUsernameStyle(String username, UsernameStyle usernameStyle) {
         switch (usernameStyle) {
             case FULL:
                 return parseFullStyle(username);
@@ -143,7 +278,7 @@ public class GitInformationExtractor {
     @Nonnull
     private GitUserInfo parseStylesWithoutEmail(String username) {
         // In these cases we generate an email for the user by adding @teamcity
-        String emailUsername = username.replaceAll("\\s", "").toLowerCase();
+        String emailUsername = WHITESPACE.matcher(username).replaceAll("").toLowerCase();
         return new GitUserInfo(username, emailUsername + "@teamcity");
     }
 
@@ -161,6 +296,59 @@ public class GitInformationExtractor {
         }
     }
 
+    /**
+     * The values of a commit, which do not change once it is in the VCS storage.
+     */
+    private static class Commit {
+        private final String repositoryURL;
+        private final String defaultBranch;
+        private final String message;
+        private final String sha;
+        private final String commitTime;
+        private final String authorTime;
+        private final GitUserInfo committerInfo;
+        private final GitUserInfo authorInfo;
+
+        private Commit(VcsRootMetadata vcsRootMetadata, VcsModificationEx gitModification,
+                       GitUserInfo committerInfo, GitUserInfo authorInfo) {
+            this.repositoryURL = vcsRootMetadata.getRepositoryURL();
+            this.defaultBranch = vcsRootMetadata.getDefaultBranch();
+            this.message = gitModification.getDescription().trim();
+            this.sha = gitModification.getVersion();
+            this.commitTime = toRFC3339(gitModification.getCommitDate());
+            this.authorTime = toRFC3339(gitModification.getVcsDate());
+            this.committerInfo = committerInfo;
+            this.authorInfo = authorInfo;
+        }
+
+        private GitInfo toGitInfo(String branch) {
+            return new GitInfo()
+                .withRepositoryURL(repositoryURL)
+                .withDefaultBranch(defaultBranch)
+                .withMessage(message)
+                .withSha(sha)
+                .withCommitTime(commitTime)
+                .withCommitterName(committerInfo.username)
+                .withCommitterEmail(committerInfo.email)
+                .withAuthorTime(authorTime)
+                .withAuthorName(authorInfo.username)
+                .withAuthorEmail(authorInfo.email)
+                .withBranch(branch);
+        }
+    }
+
+    private static class ParsedIdentity {
+        private final String username;
+        private final UsernameStyle usernameStyle;
+        private final GitUserInfo userInfo;
+
+        private ParsedIdentity(String username, UsernameStyle usernameStyle, GitUserInfo userInfo) {
+            this.username = username;
+            this.usernameStyle = usernameStyle;
+            this.userInfo = userInfo;
+        }
+    }
+
     protected enum UsernameStyle {
         /**
          * Name (John Doe)
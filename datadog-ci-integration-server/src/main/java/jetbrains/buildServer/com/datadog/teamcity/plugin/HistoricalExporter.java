@@ -0,0 +1,425 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.ProjectHandler.ProjectParameters;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.Webhook;
+import jetbrains.buildServer.serverSide.BuildQueryOptions;
+import jetbrains.buildServer.serverSide.BuildsManager;
+import jetbrains.buildServer.serverSide.ProjectManager;
+import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.ServerPaths;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.springframework.stereotype.Component;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.LongStream;
+
+import static java.lang.String.format;
+import static java.util.stream.Collectors.toList;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.BuildUtils.isLastCompositeBuild;
+
+/**
+ * Exports the chains that finished in a date range, optionally restricted to a project, to seed
+ * Datadog with the history of newly onboarded projects.
+ * <p>
+ * Only the IDs of the matching chains are collected upfront. They are then exported in pages from the oldest:
+ * the webhooks of a page are created on a fork-join pool and sent compressed, limited to a number of webhooks
+ * per second. After each page, the last exported build ID is saved as a checkpoint, so an export interrupted
+ * by a restart or cancelled can be resumed. Chains already reported are skipped by the {@link DeliveryIndex}.
+ * <p>
+ * The export does not take part in the live processing: it does not claim the jobs of the chains, and their
+ * webhooks are created outside the live processing budget (see {@link ProcessingBudget#startExport()}).
+ */
+@Component
+public class HistoricalExporter {
+
+    private static final Logger LOG = Logger.getInstance(HistoricalExporter.class.getName());
+
+    protected static final String PARALLELISM_PROPERTY = "datadog.ci.export.parallelism";
+    protected static final String RATE_PROPERTY = "datadog.ci.export.webhooksPerSecond";
+    protected static final String PAGE_SIZE_PROPERTY = "datadog.ci.export.pageSize";
+    private static final int DEFAULT_PARALLELISM = 4;
+    private static final int DEFAULT_RATE = 50;
+    private static final int DEFAULT_PAGE_SIZE = 100;
+
+    protected static final String CHECKPOINT_FILE = "export-checkpoint.bin";
+    protected static final String ALL_PROJECTS = "";
+
+    private final BuildsManager buildsManager;
+    private final ProjectManager projectManager;
+    private final BuildChainProcessor buildChainProcessor;
+    private final ProjectHandler projectHandler;
+    private final DatadogClient datadogClient;
+    private final File checkpointFile;
+    private final ExecutorService exportExecutor;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicBoolean cancelled = new AtomicBoolean();
+    private final AtomicLong totalChains = new AtomicLong();
+    private final AtomicLong exportedChains = new AtomicLong();
+    private final AtomicLong sentWebhooks = new AtomicLong();
+    private final AtomicLong failedWebhooks = new AtomicLong();
+    private volatile long startedAtMs;
+    private volatile long finishedAtMs;
+
+    public HistoricalExporter(BuildsManager buildsManager,
+                              ProjectManager projectManager,
+                              BuildChainProcessor buildChainProcessor,
+                              ProjectHandler projectHandler,
+                              DatadogClient datadogClient,
+                              ServerPaths serverPaths) {
+        this(buildsManager, projectManager, buildChainProcessor, projectHandler, datadogClient,
+            DatadogConfiguration.pluginDataDirectory(serverPaths));
+    }
+
+    protected HistoricalExporter(BuildsManager buildsManager,
+                                 ProjectManager projectManager,
+                                 BuildChainProcessor buildChainProcessor,
+                                 ProjectHandler projectHandler,
+                                 DatadogClient datadogClient,
+                                 File directory) {
+        this.buildsManager = buildsManager;
+        this.projectManager = projectManager;
+        this.buildChainProcessor = buildChainProcessor;
+        this.projectHandler = projectHandler;
+        this.datadogClient = datadogClient;
+        this.checkpointFile = new File(directory, CHECKPOINT_FILE);
+        this.exportExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("datadog-export")
+            .setDaemon(true)
+            .build());
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            LOG.warn(format("Could not create the export directory '%s'", directory));
+        }
+    }
+
+    /**
+     * Starts exporting the chains finished between the two dates, replacing any previous checkpoint.
+     *
+     * @param projectExternalId the project to export, including its subprojects, or null for all projects
+     * @return false if an export is already in progress
+     */
+    public boolean exportAsync(String projectExternalId, long fromMs, long toMs) {
+        return start(new Checkpoint(projectExternalId == null ? ALL_PROJECTS : projectExternalId, fromMs, toMs, 0));
+    }
+
+    /**
+     * Resumes the last export from its checkpoint.
+     *
+     * @return false if an export is already in progress or there is no export to resume
+     */
+    public boolean resumeAsync() {
+        Checkpoint checkpoint = readCheckpoint();
+        return checkpoint != null && start(checkpoint);
+    }
+
+    public void cancel() {
+        cancelled.set(true);
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    public boolean canResume() {
+        return !running.get() && checkpointFile.exists();
+    }
+
+    public Progress progress() {
+        return new Progress(totalChains.get(), exportedChains.get(), sentWebhooks.get(), failedWebhooks.get(),
+            (running.get() ? System.currentTimeMillis() : finishedAtMs) - startedAtMs);
+    }
+
+    private boolean start(Checkpoint checkpoint) {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+
+        cancelled.set(false);
+        totalChains.set(0);
+        exportedChains.set(0);
+        sentWebhooks.set(0);
+        failedWebhooks.set(0);
+        startedAtMs = System.currentTimeMillis();
+        finishedAtMs = startedAtMs;
+
+        exportExecutor.submit(() -> {
+            try {
+                export(checkpoint);
+            } catch (RuntimeException e) {
+                LOG.error("Unexpected error while exporting historical chains", e);
+            } finally {
+                finishedAtMs = System.currentTimeMillis();
+                running.set(false);
+            }
+        });
+        return true;
+    }
+
+    private void export(Checkpoint checkpoint) {
+        writeCheckpoint(checkpoint);
+
+        long[] chainIds = findChains(checkpoint);
+        totalChains.set(chainIds.length);
+        LOG.info(format("Exporting %d chains finished between %tF and %tF%s", chainIds.length,
+            checkpoint.fromMs, checkpoint.toMs,
+            checkpoint.projectExternalId.isEmpty() ? "" : " in project " + checkpoint.projectExternalId));
+
+        int parallelism = Math.max(1, TeamCityProperties.getInteger(PARALLELISM_PROPERTY, DEFAULT_PARALLELISM));
+        int pageSize = Math.max(1, TeamCityProperties.getInteger(PAGE_SIZE_PROPERTY, DEFAULT_PAGE_SIZE));
+        RateLimiter rateLimiter = RateLimiter.create(Math.max(1, TeamCityProperties.getInteger(RATE_PROPERTY, DEFAULT_RATE)));
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            for (int start = 0; start < chainIds.length; start += pageSize) {
+                if (cancelled.get()) {
+                    LOG.info(format("Export cancelled after %d chains, it can be resumed", exportedChains.get()));
+                    return;
+                }
+
+                long[] page = Arrays.copyOfRange(chainIds, start, Math.min(start + pageSize, chainIds.length));
+                exportPage(page, pool, rateLimiter);
+                writeCheckpoint(checkpoint.withLastBuildId(page[page.length - 1]));
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        Progress progress = progress();
+        LOG.info(format("Finished exporting %d chains: %d webhooks sent, %d failed, %.1f chains/s",
+            progress.getExportedChains(), progress.getSentWebhooks(), progress.getFailedWebhooks(),
+            progress.getChainsPerSecond()));
+        deleteCheckpoint();
+    }
+
+    /**
+     * @return the IDs of the chains to export, sorted, without the ones already exported before the checkpoint
+     */
+    private long[] findChains(Checkpoint checkpoint) {
+        BuildQueryOptions options = new BuildQueryOptions();
+        options.setSinceBuildId(checkpoint.lastBuildId);
+        options.setIncludePersonal(false);
+        options.setIncludeCanceled(true);
+        options.setIncludeRunning(false);
+        options.setMatchAllBranches(true);
+
+        if (!checkpoint.projectExternalId.isEmpty()) {
+            SProject project = projectManager.findProjectByExternalId(checkpoint.projectExternalId);
+            if (project == null) {
+                LOG.warn(format("Project '%s' not found, nothing to export", checkpoint.projectExternalId));
+                return new long[0];
+            }
+            options.setProjectId(project.getProjectId());
+        }
+
+        LongStream.Builder chainIds = LongStream.builder();
+        buildsManager.processFinishedBuilds(options, build -> {
+            if (build.getFinishDate() == null) {
+                return true;
+            }
+            if (build.getFinishDate().getTime() < checkpoint.fromMs) {
+                // The history is processed from the most recently finished build, so the rest is older
+                return false;
+            }
+            if (build.getBuildId() > checkpoint.lastBuildId &&
+                build.getFinishDate().getTime() < checkpoint.toMs &&
+                isLastCompositeBuild(build) &&
+                projectHandler.isPluginEnabled(build)) {
+                chainIds.add(build.getBuildId());
+            }
+            return true;
+        });
+
+        return chainIds.build().sorted().toArray();
+    }
+
+    private void exportPage(long[] page, ForkJoinPool pool, RateLimiter rateLimiter) {
+        List<ChainWebhooks> chains;
+        try {
+            chains = pool.submit(() -> Arrays.stream(page)
+                .parallel()
+                .mapToObj(this::createChainWebhooks)
+                .filter(Objects::nonNull)
+                .collect(toList())).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Could not create the webhooks of the exported chains", e.getCause());
+        }
+
+        List<CompletableFuture<Boolean>> results = new ArrayList<>();
+        for (ChainWebhooks chain : chains) {
+            for (Webhook webhook : chain.webhooks) {
+                rateLimiter.acquire();
+                if (chain.params.additionalDestinations().isEmpty()) {
+                    results.add(datadogClient.sendCompressedAsync(webhook, chain.params.apiKey(), chain.params.ddSite()));
+                } else {
+                    results.addAll(datadogClient.sendCompressedAsync(webhook, chain.params.destinations()));
+                }
+            }
+        }
+
+        for (CompletableFuture<Boolean> result : results) {
+            if (result.exceptionally(ex -> false).join()) {
+                sentWebhooks.incrementAndGet();
+            } else {
+                failedWebhooks.incrementAndGet();
+            }
+        }
+        exportedChains.addAndGet(page.length);
+    }
+
+    private ChainWebhooks createChainWebhooks(long buildId) {
+        SBuild pipelineBuild = buildsManager.findBuildInstanceById(buildId);
+        if (pipelineBuild == null) {
+            // The build was removed by a cleanup since the chains were collected
+            return null;
+        }
+
+        try {
+            return new ChainWebhooks(projectHandler.getProjectParameters(pipelineBuild),
+                buildChainProcessor.createExportWebhooks(pipelineBuild));
+        } catch (RuntimeException e) {
+            LOG.warn(format("Could not create the webhooks of chain with id '%s', skipping it", buildId), e);
+            return null;
+        }
+    }
+
+    private Checkpoint readCheckpoint() {
+        if (!checkpointFile.exists()) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new FileInputStream(checkpointFile))) {
+            return new Checkpoint(in.readUTF(), in.readLong(), in.readLong(), in.readLong());
+        } catch (IOException e) {
+            LOG.warn(format("Could not read the export checkpoint from '%s'", checkpointFile), e);
+            return null;
+        }
+    }
+
+    private void writeCheckpoint(Checkpoint checkpoint) {
+        File tempFile = new File(checkpointFile.getParentFile(), CHECKPOINT_FILE + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tempFile))) {
+                out.writeUTF(checkpoint.projectExternalId);
+                out.writeLong(checkpoint.fromMs);
+                out.writeLong(checkpoint.toMs);
+                out.writeLong(checkpoint.lastBuildId);
+            }
+            Files.move(tempFile.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.warn(format("Could not save the export checkpoint to '%s'", checkpointFile), e);
+        }
+    }
+
+    private void deleteCheckpoint() {
+        try {
+            Files.deleteIfExists(checkpointFile.toPath());
+        } catch (IOException e) {
+            LOG.warn(format("Could not delete the export checkpoint '%s'", checkpointFile), e);
+        }
+    }
+
+    private static class ChainWebhooks {
+        private final ProjectParameters params;
+        private final List<Webhook> webhooks;
+
+        private ChainWebhooks(ProjectParameters params, List<Webhook> webhooks) {
+            this.params = params;
+            this.webhooks = webhooks;
+        }
+    }
+
+    private static class Checkpoint {
+        private final String projectExternalId;
+        private final long fromMs;
+        private final long toMs;
+        private final long lastBuildId;
+
+        private Checkpoint(String projectExternalId, long fromMs, long toMs, long lastBuildId) {
+            this.projectExternalId = projectExternalId;
+            this.fromMs = fromMs;
+            this.toMs = toMs;
+            this.lastBuildId = lastBuildId;
+        }
+
+        private Checkpoint withLastBuildId(long buildId) {
+            return new Checkpoint(projectExternalId, fromMs, toMs, buildId);
+        }
+    }
+
+    public static class Progress {
+        private final long totalChains;
+        private final long exportedChains;
+        private final long sentWebhooks;
+        private final long failedWebhooks;
+        private final long elapsedMs;
+
+        private Progress(long totalChains, long exportedChains, long sentWebhooks, long failedWebhooks, long elapsedMs) {
+            this.totalChains = totalChains;
+            this.exportedChains = exportedChains;
+            this.sentWebhooks = sentWebhooks;
+            this.failedWebhooks = failedWebhooks;
+            this.elapsedMs = elapsedMs;
+        }
+
+        public long getTotalChains() {
+            return totalChains;
+        }
+
+        public long getExportedChains() {
+            return exportedChains;
+        }
+
+        public long getSentWebhooks() {
+            return sentWebhooks;
+        }
+
+        public long getFailedWebhooks() {
+            return failedWebhooks;
+        }
+
+        public double getCompletedRatio() {
+            return totalChains == 0 ? 0 : (double) exportedChains / totalChains;
+        }
+
+        public double getChainsPerSecond() {
+            return elapsedMs == 0 ? 0 : exportedChains * 1000.0 / elapsedMs;
+        }
+
+        public double getWebhooksPerSecond() {
+            return elapsedMs == 0 ? 0 : (sentWebhooks + failedWebhooks) * 1000.0 / elapsedMs;
+        }
+    }
+}
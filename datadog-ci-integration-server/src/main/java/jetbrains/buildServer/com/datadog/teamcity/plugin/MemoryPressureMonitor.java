@@ -0,0 +1,146 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.springframework.stereotype.Component;
+
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static java.lang.String.format;
+
+/**
+ * Detects when the server heap is close to its limit, so the plugin can stop adding to the memory pressure:
+ * webhooks are then spilled to disk instead of being queued, and optional fields are not computed.
+ * <p>
+ * The usage of the old generation is checked right after the garbage collections, as the usage at any other
+ * time includes garbage. The young pools are left out: their survivors are moved to the next pool at each
+ * collection, so a full survivor space does not mean the heap is short. The JVM notifies when the usage after
+ * a collection exceeds the threshold, and the pressure is considered cleared once it goes below a lower
+ * threshold, so the mode does not flip at every collection.
+ */
+@Component
+public class MemoryPressureMonitor {
+
+    private static final Logger LOG = Logger.getInstance(MemoryPressureMonitor.class.getName());
+
+    protected static final String ENABLED_PROPERTY = "datadog.ci.memoryPressure.enabled";
+    protected static final String THRESHOLD_PROPERTY = "datadog.ci.memoryPressure.thresholdPercent";
+    protected static final String CLEAR_THRESHOLD_PROPERTY = "datadog.ci.memoryPressure.clearPercent";
+    private static final int DEFAULT_THRESHOLD_PERCENT = 85;
+    private static final int DEFAULT_CLEAR_THRESHOLD_PERCENT = 75;
+
+    private final double threshold;
+    private final double clearThreshold;
+    private final List<MemoryPoolMXBean> tenuredPools = new ArrayList<>();
+    private final List<Runnable> clearedListeners = new CopyOnWriteArrayList<>();
+    private volatile boolean underPressure;
+
+    public MemoryPressureMonitor() {
+        this(TeamCityProperties.getInteger(THRESHOLD_PROPERTY, DEFAULT_THRESHOLD_PERCENT) / 100.0,
+            TeamCityProperties.getInteger(CLEAR_THRESHOLD_PROPERTY, DEFAULT_CLEAR_THRESHOLD_PERCENT) / 100.0);
+
+        if (TeamCityProperties.getBooleanOrTrue(ENABLED_PROPERTY)) {
+            register();
+        }
+    }
+
+    protected MemoryPressureMonitor(double threshold, double clearThreshold) {
+        this.threshold = threshold;
+        this.clearThreshold = Math.min(threshold, clearThreshold);
+    }
+
+    public boolean isUnderPressure() {
+        return underPressure;
+    }
+
+    /**
+     * Registers an action to run, on a JVM notification thread, when the memory pressure clears.
+     */
+    public void onPressureCleared(Runnable listener) {
+        clearedListeners.add(listener);
+    }
+
+    /**
+     * Updates the mode from the heap usage measured after a collection, as a ratio of the maximum heap.
+     */
+    protected synchronized void update(double usageRatio) {
+        if (!underPressure && usageRatio >= threshold) {
+            underPressure = true;
+            LOG.warn(format("Heap usage after collection is %.0f%%, webhooks are spilled to disk and optional fields skipped " +
+                "until it goes below %.0f%%", usageRatio * 100, clearThreshold * 100));
+        } else if (underPressure && usageRatio < clearThreshold) {
+            underPressure = false;
+            LOG.info(format("Heap usage after collection is back to %.0f%%, resuming normal processing", usageRatio * 100));
+            for (Runnable listener : clearedListeners) {
+                try {
+                    listener.run();
+                } catch (RuntimeException e) {
+                    LOG.warn("Error while resuming after memory pressure", e);
+                }
+            }
+        }
+    }
+
+    private void register() {
+        for (MemoryPoolMXBean pool : tenuredPools(ManagementFactory.getMemoryPoolMXBeans())) {
+            pool.setCollectionUsageThreshold((long) (pool.getUsage().getMax() * threshold));
+            tenuredPools.add(pool);
+        }
+
+        NotificationListener listener = (notification, handback) -> {
+            // Threshold notifications start the degraded mode, and every collection checks whether it can stop
+            if (MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(notification.getType()) || underPressure) {
+                update(collectionUsageRatio(tenuredPools));
+            }
+        };
+        ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(listener, null, null);
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (collector instanceof NotificationEmitter) {
+                ((NotificationEmitter) collector).addNotificationListener(listener, null, null);
+            }
+        }
+    }
+
+    /**
+     * @return the heap pools of the old generation. The young pools are the ones without a usage threshold,
+     * as their usage only means something after a collection (see {@link MemoryPoolMXBean#isUsageThresholdSupported()}).
+     */
+    protected static List<MemoryPoolMXBean> tenuredPools(List<MemoryPoolMXBean> pools) {
+        List<MemoryPoolMXBean> tenuredPools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : pools) {
+            if (pool.getType() == MemoryType.HEAP && pool.isUsageThresholdSupported() &&
+                pool.isCollectionUsageThresholdSupported() && pool.getUsage().getMax() > 0) {
+                tenuredPools.add(pool);
+            }
+        }
+        return tenuredPools;
+    }
+
+    protected static double collectionUsageRatio(List<MemoryPoolMXBean> pools) {
+        double ratio = 0;
+        for (MemoryPoolMXBean pool : pools) {
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (usage != null && usage.getMax() > 0) {
+                ratio = Math.max(ratio, (double) usage.getUsed() / usage.getMax());
+            }
+        }
+        return ratio;
+    }
+}
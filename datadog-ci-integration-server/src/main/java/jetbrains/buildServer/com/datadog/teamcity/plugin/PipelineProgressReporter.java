@@ -0,0 +1,182 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.serverSide.dependency.BuildDependency;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.String.format;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.BuildUtils.buildName;
+
+/**
+ * Reports the pipelines while they run, so that they are visible before their final composite build finishes.
+ * <p>
+ * Each start or finish of a build of a chain schedules a running update for the pipelines it belongs to. The
+ * updates are debounced per pipeline: while one is pending, the activity of the other builds of the chain is
+ * coalesced into it, so a chain sends at most one update per window however many jobs it has. The pending
+ * update is cancelled when the pipeline finishes, as the final webhook is sent instead, and an update already
+ * running is either queued before the final webhook or not sent at all.
+ */
+@Component
+public class PipelineProgressReporter {
+
+    private static final Logger LOG = Logger.getInstance(PipelineProgressReporter.class.getName());
+
+    protected static final String ENABLED_PROPERTY = "datadog.ci.runningUpdates.enabled";
+    protected static final String DEBOUNCE_PROPERTY = "datadog.ci.runningUpdates.debounceSeconds";
+    private static final int DEFAULT_DEBOUNCE_SECONDS = 30;
+
+    private final BuildChainProcessor buildChainProcessor;
+    private final ProjectHandler projectHandler;
+    private final boolean enabled;
+    private final long debounceMillis;
+    private final ScheduledExecutorService scheduler;
+    // The pending update of each pipeline, by promotion ID of its final composite build
+    private final Map<Long, ScheduledFuture<?>> pendingUpdates = new ConcurrentHashMap<>();
+    // The pipelines finished while an update may still be running, guarded by itself
+    private final Set<Long> finishedPipelines = new HashSet<>();
+
+    public PipelineProgressReporter(BuildChainProcessor buildChainProcessor, ProjectHandler projectHandler) {
+        this(buildChainProcessor, projectHandler, TeamCityProperties.getBooleanOrTrue(ENABLED_PROPERTY),
+            TimeUnit.SECONDS.toMillis(Math.max(1, TeamCityProperties.getInteger(DEBOUNCE_PROPERTY, DEFAULT_DEBOUNCE_SECONDS))));
+    }
+
+    protected PipelineProgressReporter(BuildChainProcessor buildChainProcessor, ProjectHandler projectHandler,
+                                       boolean enabled, long debounceMillis) {
+        this.buildChainProcessor = buildChainProcessor;
+        this.projectHandler = projectHandler;
+        this.enabled = enabled;
+        this.debounceMillis = debounceMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("datadog-running-updates")
+            .setDaemon(true)
+            .build());
+    }
+
+    /**
+     * Called when a build starts, or when a build that is not the last of its chain finishes.
+     */
+    public void onChainActivity(SBuild build) {
+        if (!enabled || build.isPersonal()) {
+            return;
+        }
+
+        BuildPromotion promotion = build.getBuildPromotion();
+        if (promotion.getNumberOfDependedOnMe() == 0 && !promotion.isCompositeBuild()) {
+            // Standalone builds are not part of any pipeline
+            return;
+        }
+
+        if (!projectHandler.isPluginEnabled(build)) {
+            // Checked before walking the dependents, so that the chains of the other projects cost a lookup only
+            return;
+        }
+
+        for (BuildPromotion pipeline : findPipelines(promotion)) {
+            pendingUpdates.computeIfAbsent(pipeline.getId(),
+                id -> scheduler.schedule(() -> sendUpdate(pipeline), debounceMillis, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    /**
+     * Called when the final composite build of a pipeline finishes, before its final webhook is sent.
+     */
+    public void onPipelineFinished(SBuild pipelineBuild) {
+        long pipelineId = pipelineBuild.getBuildPromotion().getId();
+        ScheduledFuture<?> pendingUpdate = pendingUpdates.remove(pipelineId);
+        if (pendingUpdate != null) {
+            pendingUpdate.cancel(false);
+        }
+
+        // Waits for an update already running, and prevents one about to run from being sent
+        synchronized (finishedPipelines) {
+            finishedPipelines.add(pipelineId);
+        }
+        // The updates run one at a time on the scheduler, so no update of the pipeline is running after this task
+        scheduler.execute(() -> {
+            synchronized (finishedPipelines) {
+                finishedPipelines.remove(pipelineId);
+            }
+        });
+    }
+
+    private void sendUpdate(BuildPromotion pipeline) {
+        // Removed first, so that the activity from now on schedules the next update
+        pendingUpdates.remove(pipeline.getId());
+
+        SBuild pipelineBuild = pipeline.getAssociatedBuild();
+        if (pipelineBuild == null || pipelineBuild.isFinished() || pipelineBuild.getStartDate() == null) {
+            // Not started yet, or already reported by its final webhook
+            return;
+        }
+
+        synchronized (finishedPipelines) {
+            if (!finishedPipelines.contains(pipeline.getId())) {
+                send(pipelineBuild);
+            }
+        }
+    }
+
+    private void send(SBuild pipelineBuild) {
+        try {
+            if (projectHandler.isPluginEnabled(pipelineBuild)) {
+                buildChainProcessor.sendRunningUpdate(pipelineBuild);
+            }
+        } catch (RuntimeException e) {
+            LOG.warn(format("Could not send the running update of pipeline with id '%s' and name '%s'",
+                pipelineBuild.getBuildId(), buildName(pipelineBuild)), e);
+        }
+    }
+
+    /**
+     * @return the final composite builds depending on the given one, or itself if it is one
+     */
+    private static List<BuildPromotion> findPipelines(BuildPromotion member) {
+        List<BuildPromotion> pipelines = new ArrayList<>();
+        Set<Long> visited = new HashSet<>();
+        Deque<BuildPromotion> toVisit = new ArrayDeque<>();
+        toVisit.push(member);
+
+        while (!toVisit.isEmpty()) {
+            BuildPromotion promotion = toVisit.pop();
+            if (!visited.add(promotion.getId())) {
+                continue;
+            }
+
+            if (promotion.getNumberOfDependedOnMe() == 0) {
+                if (promotion.isCompositeBuild()) {
+                    pipelines.add(promotion);
+                }
+                continue;
+            }
+
+            for (BuildDependency dependency : promotion.getDependedOnMe()) {
+                toVisit.push(dependency.getDependent());
+            }
+        }
+        return pipelines;
+    }
+}
@@ -0,0 +1,349 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Runtime counters of the webhook pipeline, shown in the diagnostics admin page.
+ * Every update is lock-free (adders, CAS or a single array write), so the send and processing
+ * paths never wait on a reader: all the aggregation work is done when a {@link Snapshot} is taken.
+ */
+@Component
+public class PluginMetrics {
+
+    private static final int RECENT_CHAINS_CAPACITY = 256;
+    private static final int SLOWEST_CHAINS_SHOWN = 10;
+
+    private final LongAdder queueDepth = new LongAdder();
+    private final LongAdder retryBacklog = new LongAdder();
+    private final ThroughputMeter sentWebhooks = new ThroughputMeter();
+    private final LongAdder alreadyDeliveredWebhooks = new LongAdder();
+    private final ThroughputMeter processedChains = new ThroughputMeter();
+    private final ConcurrentMap<String, SiteStatistics> sites = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, CacheStatistics> caches = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> skippedEnrichments = new ConcurrentHashMap<>();
+    private final LongAdder runningEnrichments = new LongAdder();
+    private final LongAdder abandonedEnrichments = new LongAdder();
+
+    private final AtomicReferenceArray<ChainTiming> recentChains = new AtomicReferenceArray<>(RECENT_CHAINS_CAPACITY);
+    private final AtomicLong recentChainsCursor = new AtomicLong();
+
+    public void onWebhookQueued() {
+        queueDepth.increment();
+    }
+
+    public void onWebhookDequeued() {
+        queueDepth.decrement();
+    }
+
+    public void onRetryStarted() {
+        retryBacklog.increment();
+    }
+
+    public void onRetryFinished() {
+        retryBacklog.decrement();
+    }
+
+    public void onWebhookSent(String ddSite) {
+        sentWebhooks.mark();
+        site(ddSite).successes.increment();
+    }
+
+    public void onWebhookFailed(String ddSite) {
+        site(ddSite).failures.increment();
+    }
+
+    /**
+     * Records that a webhook was not sent because the intake had already acknowledged it.
+     */
+    public void onWebhookAlreadyDelivered() {
+        alreadyDeliveredWebhooks.increment();
+    }
+
+    public void onChainProcessed(long buildId, String name, int webhooks, long durationNanos) {
+        processedChains.mark();
+        ChainTiming timing = new ChainTiming(buildId, name, webhooks,
+            TimeUnit.NANOSECONDS.toMillis(durationNanos), System.currentTimeMillis());
+
+        int slot = (int) (recentChainsCursor.getAndIncrement() % RECENT_CHAINS_CAPACITY);
+        recentChains.set(slot, timing);
+    }
+
+    /**
+     * Records that an optional field of a webhook was not added because its processing budget was exhausted.
+     */
+    public void onEnrichmentSkipped(String enrichment) {
+        skippedEnrichments.computeIfAbsent(enrichment, ignored -> new LongAdder()).increment();
+    }
+
+    public void onEnrichmentStarted() {
+        runningEnrichments.increment();
+    }
+
+    public void onEnrichmentFinished() {
+        runningEnrichments.decrement();
+    }
+
+    /**
+     * Records that an optional field computed on a separate thread was given up on while its thread still runs.
+     */
+    public void onEnrichmentAbandoned() {
+        abandonedEnrichments.increment();
+    }
+
+    /**
+     * Records that the thread of an abandoned optional field finally returned.
+     */
+    public void onAbandonedEnrichmentFinished() {
+        abandonedEnrichments.decrement();
+    }
+
+    /**
+     * Returns the hit/miss counters for the cache with the given name, registering it on first use.
+     */
+    public CacheStatistics cache(String name) {
+        return caches.computeIfAbsent(name, ignored -> new CacheStatistics());
+    }
+
+    public Snapshot snapshot() {
+        List<ChainTiming> chains = new ArrayList<>(RECENT_CHAINS_CAPACITY);
+        for (int i = 0; i < recentChains.length(); i++) {
+            ChainTiming timing = recentChains.get(i);
+            if (timing != null) {
+                chains.add(timing);
+            }
+        }
+
+        List<ChainTiming> slowestChains = chains.stream()
+            .sorted(Comparator.comparingLong(ChainTiming::getDurationMs).reversed())
+            .limit(SLOWEST_CHAINS_SHOWN)
+            .collect(toList());
+
+        Map<String, Long> skipped = new TreeMap<>();
+        skippedEnrichments.forEach((enrichment, count) -> skipped.put(enrichment, count.sum()));
+
+        return new Snapshot(this, new TreeMap<>(sites), new TreeMap<>(caches), skipped, slowestChains);
+    }
+
+    private SiteStatistics site(String ddSite) {
+        SiteStatistics statistics = sites.get(ddSite);
+        return statistics != null ? statistics : sites.computeIfAbsent(ddSite, ignored -> new SiteStatistics());
+    }
+
+    public static class SiteStatistics {
+        private final LongAdder successes = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+
+        public long getSuccesses() {
+            return successes.sum();
+        }
+
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        public double getSuccessRatio() {
+            return ratio(getSuccesses(), getFailures());
+        }
+
+        public double getFailureRatio() {
+            return ratio(getFailures(), getSuccesses());
+        }
+    }
+
+    public static class CacheStatistics {
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+
+        public void hit() {
+            hits.increment();
+        }
+
+        public void miss() {
+            misses.increment();
+        }
+
+        public long getHits() {
+            return hits.sum();
+        }
+
+        public long getMisses() {
+            return misses.sum();
+        }
+
+        public double getHitRatio() {
+            return ratio(getHits(), getMisses());
+        }
+    }
+
+    public static class ChainTiming {
+        private final long buildId;
+        private final String name;
+        private final int webhooks;
+        private final long durationMs;
+        private final long timestampMs;
+
+        private ChainTiming(long buildId, String name, int webhooks, long durationMs, long timestampMs) {
+            this.buildId = buildId;
+            this.name = name;
+            this.webhooks = webhooks;
+            this.durationMs = durationMs;
+            this.timestampMs = timestampMs;
+        }
+
+        public long getBuildId() {
+            return buildId;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getWebhooks() {
+            return webhooks;
+        }
+
+        public long getDurationMs() {
+            return durationMs;
+        }
+
+        public long getTimestampMs() {
+            return timestampMs;
+        }
+    }
+
+    /**
+     * Point-in-time view of the metrics, exposed through getters so it can be rendered from JSP.
+     */
+    public static class Snapshot {
+        private final long queueDepth;
+        private final long retryBacklog;
+        private final long sentWebhooks;
+        private final long alreadyDeliveredWebhooks;
+        private final double sentOneMinuteRate;
+        private final double sentFiveMinuteRate;
+        private final double sentFifteenMinuteRate;
+        private final long processedChains;
+        private final double chainsOneMinuteRate;
+        private final Map<String, SiteStatistics> sites;
+        private final Map<String, CacheStatistics> caches;
+        private final Map<String, Long> skippedEnrichments;
+        private final long runningEnrichments;
+        private final long abandonedEnrichments;
+        private final List<ChainTiming> slowestChains;
+
+        private Snapshot(PluginMetrics metrics,
+                         Map<String, SiteStatistics> sites,
+                         Map<String, CacheStatistics> caches,
+                         Map<String, Long> skippedEnrichments,
+                         List<ChainTiming> slowestChains) {
+            this.queueDepth = metrics.queueDepth.sum();
+            this.retryBacklog = metrics.retryBacklog.sum();
+            this.sentWebhooks = metrics.sentWebhooks.count();
+            this.alreadyDeliveredWebhooks = metrics.alreadyDeliveredWebhooks.sum();
+            this.sentOneMinuteRate = metrics.sentWebhooks.oneMinuteRate();
+            this.sentFiveMinuteRate = metrics.sentWebhooks.fiveMinuteRate();
+            this.sentFifteenMinuteRate = metrics.sentWebhooks.fifteenMinuteRate();
+            this.processedChains = metrics.processedChains.count();
+            this.chainsOneMinuteRate = metrics.processedChains.oneMinuteRate();
+            this.sites = Collections.unmodifiableMap(sites);
+            this.caches = Collections.unmodifiableMap(caches);
+            this.skippedEnrichments = Collections.unmodifiableMap(skippedEnrichments);
+            this.runningEnrichments = metrics.runningEnrichments.sum();
+            this.abandonedEnrichments = metrics.abandonedEnrichments.sum();
+            this.slowestChains = Collections.unmodifiableList(slowestChains);
+        }
+
+        public long getQueueDepth() {
+            return queueDepth;
+        }
+
+        public long getRetryBacklog() {
+            return retryBacklog;
+        }
+
+        public long getSentWebhooks() {
+            return sentWebhooks;
+        }
+
+        public long getAlreadyDeliveredWebhooks() {
+            return alreadyDeliveredWebhooks;
+        }
+
+        public double getSentOneMinuteRate() {
+            return sentOneMinuteRate;
+        }
+
+        public double getSentFiveMinuteRate() {
+            return sentFiveMinuteRate;
+        }
+
+        public double getSentFifteenMinuteRate() {
+            return sentFifteenMinuteRate;
+        }
+
+        public long getProcessedChains() {
+            return processedChains;
+        }
+
+        public double getChainsOneMinuteRate() {
+            return chainsOneMinuteRate;
+        }
+
+        public Map<String, SiteStatistics> getSites() {
+            return sites;
+        }
+
+        public Map<String, CacheStatistics> getCaches() {
+            return caches;
+        }
+
+        public Map<String, Long> getSkippedEnrichments() {
+            return skippedEnrichments;
+        }
+
+        /**
+         * @return the optional fields being computed on the enrichment threads
+         */
+        public long getRunningEnrichments() {
+            return runningEnrichments;
+        }
+
+        /**
+         * @return the optional fields given up on whose thread is still stuck computing them
+         */
+        public long getAbandonedEnrichments() {
+            return abandonedEnrichments;
+        }
+
+        public List<ChainTiming> getSlowestChains() {
+            return slowestChains;
+        }
+    }
+
+    private static double ratio(long part, long rest) {
+        long total = part + rest;
+        return total == 0 ? 0 : (double) part / total;
+    }
+}
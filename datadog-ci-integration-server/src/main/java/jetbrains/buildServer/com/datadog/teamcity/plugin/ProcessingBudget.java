@@ -0,0 +1,293 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import static java.lang.String.format;
+
+/**
+ * Time budgets for the optional fields of the webhooks (git information, workspaces, errors and dependencies),
+ * which read the VCS roots or the build history and can be slow when TeamCity is under load.
+ * <p>
+ * Each chain has a deadline, and each optional field has a budget for the total time spent on it in the chain.
+ * Once the deadline passes or the budget of a field is spent, the field is no longer added to the webhooks of
+ * the chain, so they are sent without it rather than late. The git information is read once per chain and can
+ * block on VCS calls, so it is read on a separate thread and abandoned when it exceeds its budget.
+ * <p>
+ * When the server heap is under pressure, the chains start with an exhausted budget and no optional field is added.
+ * <p>
+ * Exported chains are not reported live, so they are not limited: their fields are all computed on the calling
+ * thread, which keeps the threads of the timed enrichments for the live chains.
+ */
+@Component
+public class ProcessingBudget {
+
+    private static final Logger LOG = Logger.getInstance(ProcessingBudget.class.getName());
+
+    protected static final String CHAIN_BUDGET_PROPERTY = "datadog.ci.chain.budgetMs";
+    protected static final String ENRICHMENT_BUDGET_PROPERTY = "datadog.ci.chain.budget.%s.ms";
+    private static final int DEFAULT_CHAIN_BUDGET_MS = 10_000;
+    // Threads are added on demand up to the maximum, so that lookups stuck in calls which ignore the
+    // interruption do not hold up the others; past it, the fields are skipped right away
+    private static final int TIMED_ENRICHMENT_CORE_THREADS = 2;
+    private static final int TIMED_ENRICHMENT_MAX_THREADS = 16;
+    private static final long TIMED_ENRICHMENT_KEEP_ALIVE_SECONDS = 60;
+    // States of a timed enrichment
+    private static final int NOT_STARTED = 0;
+    private static final int RUNNING = 1;
+    private static final int FINISHED = 2;
+    private static final int ABANDONED = 3;
+
+    public enum Enrichment {
+        GIT_INFO("git", 3000),
+        HOST_WORKSPACE("workspace", 2000),
+        ERROR_INFO("error", 2000),
+        DEPENDENCIES("dependencies", 2000),
+        STEPS("steps", 2000);
+
+        private final String key;
+        private final int defaultBudgetMs;
+
+        Enrichment(String key, int defaultBudgetMs) {
+            this.key = key;
+            this.defaultBudgetMs = defaultBudgetMs;
+        }
+
+        public String getKey() {
+            return key;
+        }
+    }
+
+    private final long chainBudgetNanos;
+    private final long[] enrichmentBudgetNanos;
+    private final LongSupplier nanoClock;
+    private final PluginMetrics metrics;
+    private final MemoryPressureMonitor memoryPressure;
+    private final ThreadPoolExecutor timedEnrichmentExecutor;
+
+    public ProcessingBudget(PluginMetrics metrics, MemoryPressureMonitor memoryPressure) {
+        this(TimeUnit.MILLISECONDS.toNanos(TeamCityProperties.getInteger(CHAIN_BUDGET_PROPERTY, DEFAULT_CHAIN_BUDGET_MS)),
+            configuredEnrichmentBudgets(),
+            System::nanoTime,
+            metrics,
+            memoryPressure);
+    }
+
+    protected ProcessingBudget(long chainBudgetNanos, long[] enrichmentBudgetNanos, LongSupplier nanoClock, PluginMetrics metrics,
+                               MemoryPressureMonitor memoryPressure) {
+        this.chainBudgetNanos = chainBudgetNanos;
+        this.enrichmentBudgetNanos = enrichmentBudgetNanos.clone();
+        this.nanoClock = nanoClock;
+        this.metrics = metrics;
+        this.memoryPressure = memoryPressure;
+        this.timedEnrichmentExecutor = new ThreadPoolExecutor(TIMED_ENRICHMENT_CORE_THREADS, TIMED_ENRICHMENT_MAX_THREADS,
+            TIMED_ENRICHMENT_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<>(), new ThreadFactoryBuilder()
+            .setNameFormat("datadog-enrichment-%d")
+            .setDaemon(true)
+            .build());
+    }
+
+    /**
+     * Starts the budget of a chain. It is shared by all the webhooks of the chain, possibly from several threads.
+     */
+    public ChainBudget startChain() {
+        long now = nanoClock.getAsLong();
+        return new ChainBudget(memoryPressure.isUnderPressure() ? now : now + chainBudgetNanos, true);
+    }
+
+    /**
+     * Starts the budget of an exported chain, which computes all the optional fields.
+     */
+    public ChainBudget startExport() {
+        return new ChainBudget(Long.MAX_VALUE, false);
+    }
+
+    private static long[] configuredEnrichmentBudgets() {
+        Enrichment[] enrichments = Enrichment.values();
+        long[] budgets = new long[enrichments.length];
+        for (Enrichment enrichment : enrichments) {
+            int budgetMs = TeamCityProperties.getInteger(format(ENRICHMENT_BUDGET_PROPERTY, enrichment.key), enrichment.defaultBudgetMs);
+            budgets[enrichment.ordinal()] = TimeUnit.MILLISECONDS.toNanos(budgetMs);
+        }
+        return budgets;
+    }
+
+    public class ChainBudget {
+        private final long deadlineNanos;
+        private final boolean limited;
+        private final AtomicLongArray spentNanos = new AtomicLongArray(Enrichment.values().length);
+
+        private ChainBudget(long deadlineNanos, boolean limited) {
+            this.deadlineNanos = deadlineNanos;
+            this.limited = limited;
+        }
+
+        /**
+         * Computes an optional field on the calling thread, unless the budget of the field or chain is exhausted.
+         * A computation already started is not interrupted: its time is deducted from the budget of the field.
+         */
+        public <T> Optional<T> enrich(Enrichment enrichment, Supplier<Optional<T>> supplier) {
+            if (!limited) {
+                return supplier.get();
+            }
+            if (remainingNanos(enrichment) <= 0) {
+                skipped(enrichment);
+                return Optional.empty();
+            }
+
+            long startNanos = nanoClock.getAsLong();
+            try {
+                return supplier.get();
+            } finally {
+                spentNanos.addAndGet(enrichment.ordinal(), nanoClock.getAsLong() - startNanos);
+            }
+        }
+
+        /**
+         * Computes an optional field on a separate thread, and waits for it at most for the remaining budget.
+         * If the budget runs out first, the computation is cancelled and the field is skipped.
+         */
+        public <T> Optional<T> enrichWithTimeout(Enrichment enrichment, Supplier<Optional<T>> supplier) {
+            return startEnrichment(enrichment, supplier).get();
+        }
+
+        /**
+         * Starts computing an optional field on a separate thread, so that it runs while the chain does other work.
+         * Its budget starts now: once it runs out, {@link PendingEnrichment#get()} no longer waits for the field.
+         */
+        public <T> PendingEnrichment<T> startEnrichment(Enrichment enrichment, Supplier<Optional<T>> supplier) {
+            if (!limited) {
+                return new PendingEnrichment<>(enrichment, CompletableFuture.completedFuture(supplier.get()), nanoClock.getAsLong());
+            }
+            if (remainingNanos(enrichment) <= 0) {
+                skipped(enrichment);
+                return new PendingEnrichment<>(enrichment, CompletableFuture.completedFuture(Optional.empty()), nanoClock.getAsLong());
+            }
+
+            long startNanos = nanoClock.getAsLong();
+            AtomicInteger state = new AtomicInteger(NOT_STARTED);
+            try {
+                Future<Optional<T>> future = timedEnrichmentExecutor.submit(() -> {
+                    if (!state.compareAndSet(NOT_STARTED, RUNNING)) {
+                        return Optional.empty();
+                    }
+                    metrics.onEnrichmentStarted();
+                    try {
+                        return supplier.get();
+                    } finally {
+                        metrics.onEnrichmentFinished();
+                        if (!state.compareAndSet(RUNNING, FINISHED)) {
+                            metrics.onAbandonedEnrichmentFinished();
+                        }
+                    }
+                });
+                return new PendingEnrichment<>(enrichment, future, startNanos, state);
+            } catch (RejectedExecutionException e) {
+                // All the threads are busy, possibly stuck in earlier lookups: waiting for one would only spend the budget
+                skipped(enrichment);
+                return new PendingEnrichment<>(enrichment, CompletableFuture.completedFuture(Optional.empty()), startNanos);
+            }
+        }
+
+        public class PendingEnrichment<T> {
+            private final Enrichment enrichment;
+            private final Future<Optional<T>> future;
+            private final long startNanos;
+            // Moved by the computation when it starts and finishes, or by the wait when it gives up on it
+            private final AtomicInteger state;
+
+            private PendingEnrichment(Enrichment enrichment, Future<Optional<T>> future, long startNanos) {
+                this(enrichment, future, startNanos, new AtomicInteger(FINISHED));
+            }
+
+            private PendingEnrichment(Enrichment enrichment, Future<Optional<T>> future, long startNanos, AtomicInteger state) {
+                this.enrichment = enrichment;
+                this.future = future;
+                this.startNanos = startNanos;
+                this.state = state;
+            }
+
+            /**
+             * Waits for the field at most for what remains of its budget and of the chain. A field already
+             * computed is returned even if the budget is spent; otherwise the computation is cancelled.
+             */
+            public Optional<T> get() {
+                long now = nanoClock.getAsLong();
+                long waitNanos = Math.min(deadlineNanos - now,
+                    enrichmentBudgetNanos[enrichment.ordinal()] - spentNanos.get(enrichment.ordinal()) - (now - startNanos));
+                try {
+                    return future.get(Math.max(0, waitNanos), TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    abandon();
+                    LOG.warn(format("Skipping %s information, it took more than %d ms", enrichment.key,
+                        TimeUnit.NANOSECONDS.toMillis(nanoClock.getAsLong() - startNanos)));
+                    skipped(enrichment);
+                    return Optional.empty();
+                } catch (InterruptedException e) {
+                    abandon();
+                    Thread.currentThread().interrupt();
+                    skipped(enrichment);
+                    return Optional.empty();
+                } catch (ExecutionException e) {
+                    // Failures are reported as if the field was computed on the calling thread
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    } else if (e.getCause() instanceof Error) {
+                        throw (Error) e.getCause();
+                    }
+                    throw new IllegalStateException(e.getCause());
+                } finally {
+                    spentNanos.addAndGet(enrichment.ordinal(), nanoClock.getAsLong() - startNanos);
+                }
+            }
+
+            /**
+             * Cancels the computation. If it is still running, it is reported until it returns, as the calls
+             * which ignore the interruption keep their thread busy.
+             */
+            private void abandon() {
+                future.cancel(true);
+                if (state.compareAndSet(RUNNING, ABANDONED)) {
+                    metrics.onEnrichmentAbandoned();
+                } else {
+                    // Not started yet: it never will
+                    state.compareAndSet(NOT_STARTED, ABANDONED);
+                }
+            }
+        }
+
+        private long remainingNanos(Enrichment enrichment) {
+            long now = nanoClock.getAsLong();
+            long chainRemaining = deadlineNanos - now;
+            long enrichmentRemaining = enrichmentBudgetNanos[enrichment.ordinal()] - spentNanos.get(enrichment.ordinal());
+            return Math.min(chainRemaining, enrichmentRemaining);
+        }
+
+        private void skipped(Enrichment enrichment) {
+            metrics.onEnrichmentSkipped(enrichment.key);
+        }
+    }
+}
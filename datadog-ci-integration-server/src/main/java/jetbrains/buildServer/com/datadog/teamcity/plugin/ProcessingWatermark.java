@@ -0,0 +1,117 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.serverSide.SBuild;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import static java.lang.String.format;
+
+/**
+ * Persisted high-water mark of the chains processed by the plugin: the finish time of the most recently
+ * finished chain that was processed, and its build ID. Chains finished after the mark were not reported yet.
+ */
+public class ProcessingWatermark {
+
+    private static final Logger LOG = Logger.getInstance(ProcessingWatermark.class.getName());
+
+    protected static final String WATERMARK_FILE = "processing-watermark.bin";
+    protected static final long NO_BUILD = -1;
+
+    private final File watermarkFile;
+    private long buildId = NO_BUILD;
+    private long finishTimeMs;
+
+    public ProcessingWatermark(File directory) {
+        this(directory, WATERMARK_FILE);
+    }
+
+    public ProcessingWatermark(File directory, String fileName) {
+        this.watermarkFile = new File(directory, fileName);
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            LOG.warn(format("Could not create the watermark directory '%s'", directory));
+        }
+
+        if (watermarkFile.exists()) {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(watermarkFile))) {
+                buildId = in.readLong();
+                finishTimeMs = in.readLong();
+            } catch (IOException e) {
+                LOG.warn(format("Could not read the processing watermark from '%s'", watermarkFile), e);
+                buildId = NO_BUILD;
+            }
+        }
+    }
+
+    /**
+     * Moves the mark forward if the chain finished after it.
+     */
+    public synchronized void advance(SBuild pipelineBuild) {
+        long finishedAt = pipelineBuild.getFinishDate() != null ?
+            pipelineBuild.getFinishDate().getTime() : System.currentTimeMillis();
+        if (buildId != NO_BUILD && finishedAt < finishTimeMs) {
+            return;
+        }
+
+        buildId = pipelineBuild.getBuildId();
+        finishTimeMs = finishedAt;
+        persist();
+    }
+
+    /**
+     * Moves the mark to the given position, even if it is before the current one.
+     */
+    public synchronized void set(long buildId, long finishTimeMs) {
+        this.buildId = buildId;
+        this.finishTimeMs = finishTimeMs;
+        persist();
+    }
+
+    public synchronized void clear() {
+        buildId = NO_BUILD;
+        finishTimeMs = 0;
+        if (watermarkFile.exists() && !watermarkFile.delete()) {
+            LOG.warn(format("Could not delete the processing watermark '%s'", watermarkFile));
+        }
+    }
+
+    public synchronized boolean isSet() {
+        return buildId != NO_BUILD;
+    }
+
+    public synchronized long buildId() {
+        return buildId;
+    }
+
+    public synchronized long finishTimeMs() {
+        return finishTimeMs;
+    }
+
+    private void persist() {
+        File tempFile = new File(watermarkFile.getParentFile(), watermarkFile.getName() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tempFile))) {
+                out.writeLong(buildId);
+                out.writeLong(finishTimeMs);
+            }
+            Files.move(tempFile.toPath(), watermarkFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.warn(format("Could not persist the processing watermark to '%s'", watermarkFile), e);
+        }
+    }
+}
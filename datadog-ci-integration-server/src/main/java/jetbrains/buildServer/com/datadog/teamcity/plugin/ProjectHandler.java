@@ -8,15 +8,26 @@
 package jetbrains.buildServer.com.datadog.teamcity.plugin;
 
 import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.WebhookSink.Destination;
 import jetbrains.buildServer.parameters.ProcessingResult;
 import jetbrains.buildServer.parameters.ValueResolver;
 import jetbrains.buildServer.serverSide.ProjectManager;
 import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.serverSide.impl.ProjectEx;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
 
 import static java.lang.String.format;
 
@@ -28,16 +39,34 @@ public class ProjectHandler {
     protected static final String DATADOG_API_KEY_PARAM = "datadog.ci.api.key";
     protected static final String DATADOG_SITE_PARAM = "datadog.ci.site";
     protected static final String DATADOG_ENABLED_PARAM = "datadog.ci.enabled";
+    protected static final String DATADOG_DESTINATIONS_PARAM = "datadog.ci.destinations";
+    protected static final String DATADOG_DESTINATION_API_KEY_PARAM = "datadog.ci.destination.%s.api.key";
+    protected static final String DATADOG_DESTINATION_SITE_PARAM = "datadog.ci.destination.%s.site";
+    protected static final String DATADOG_PRIMARY_REPOSITORY_PARAM = "datadog.ci.git.primaryRepository";
+    protected static final String ALLOWED_DESTINATION_URLS_PROPERTY = "datadog.ci.destination.allowedUrls";
+
+    // The Datadog sites, such as datadoghq.com, us5.datadoghq.com or datadoghq.eu
+    private static final Pattern DATADOG_SITE = Pattern.compile("([a-z0-9-]+\\.)*(datadoghq\\.com|datadoghq\\.eu|ddog-gov\\.com|datad0g\\.com)");
 
     private final ProjectManager projectManager;
+    private final EnabledProjectsIndex enabledProjectsIndex;
+    private final Set<String> allowedDestinationUrls;
+
+    public ProjectHandler(ProjectManager projectManager, EnabledProjectsIndex enabledProjectsIndex) {
+        this(projectManager, enabledProjectsIndex,
+            parseAllowedDestinationUrls(TeamCityProperties.getProperty(ALLOWED_DESTINATION_URLS_PROPERTY, "")));
+    }
 
-    public ProjectHandler(ProjectManager projectManager) {
+    protected ProjectHandler(ProjectManager projectManager, EnabledProjectsIndex enabledProjectsIndex,
+                             Set<String> allowedDestinationUrls) {
         this.projectManager = projectManager;
+        this.enabledProjectsIndex = enabledProjectsIndex;
+        this.allowedDestinationUrls = allowedDestinationUrls;
     }
 
     public ProjectParameters getProjectParameters(SBuild build) {
         ProjectEx project = getProject(build);
-        String apiKey = getApiKey(project);
+        String apiKey = getApiKey(project, DATADOG_API_KEY_PARAM);
         String ddSite = project.getParameterValue(DATADOG_SITE_PARAM);
 
         if (ddSite == null) {
@@ -46,15 +75,127 @@ public class ProjectHandler {
                             DATADOG_SITE_PARAM, project.getName(), project.getParameters()));
         }
 
-        return new ProjectParameters(apiKey, ddSite);
+        return new ProjectParameters(apiKey, checkSite(ddSite, DATADOG_SITE_PARAM), getAdditionalDestinations(project));
+    }
+
+    /**
+     * Reads the destinations the webhooks are mirrored to, on top of the main one. They are listed by name
+     * in {@value DATADOG_DESTINATIONS_PARAM}, each with its own API key and site parameters.
+     */
+    private List<Destination> getAdditionalDestinations(ProjectEx project) {
+        String names = project.getParameterValue(DATADOG_DESTINATIONS_PARAM);
+        if (names == null || names.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<Destination> destinations = new ArrayList<>();
+        for (String name : names.split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+
+            String ddSite = project.getParameterValue(format(DATADOG_DESTINATION_SITE_PARAM, name));
+            if (ddSite == null) {
+                LOG.warn(format("Ignoring destination '%s' of project '%s' as it has no '%s' parameter",
+                    name, project.getName(), format(DATADOG_DESTINATION_SITE_PARAM, name)));
+                continue;
+            }
+
+            try {
+                ddSite = checkSite(ddSite, format(DATADOG_DESTINATION_SITE_PARAM, name));
+                destinations.add(new Destination(name, getApiKey(project, format(DATADOG_DESTINATION_API_KEY_PARAM, name)), ddSite));
+            } catch (IllegalArgumentException e) {
+                LOG.warn(format("Ignoring destination '%s' of project '%s': %s", name, project.getName(), e.getMessage()));
+            }
+        }
+        return destinations;
+    }
+
+    /**
+     * Returns the sites of all the destinations of the projects where the plugin is enabled.
+     * Only the enabled projects are read, as found by the {@link EnabledProjectsIndex}.
+     */
+    public Set<String> getEnabledSites() {
+        Set<String> sites = new TreeSet<>();
+        for (String projectId : enabledProjectsIndex.enabledProjectIds()) {
+            SProject project = projectManager.findProjectById(projectId);
+            if (project == null || project.isArchived()) {
+                continue;
+            }
+
+            addSite(sites, project, DATADOG_SITE_PARAM);
+            String names = project.getParameterValue(DATADOG_DESTINATIONS_PARAM);
+            if (names != null) {
+                for (String name : names.split(",")) {
+                    addSite(sites, project, format(DATADOG_DESTINATION_SITE_PARAM, name.trim()));
+                }
+            }
+        }
+        return sites;
+    }
+
+    private void addSite(Set<String> sites, SProject project, String siteParam) {
+        String ddSite = project.getParameterValue(siteParam);
+        if (ddSite == null || ddSite.trim().isEmpty()) {
+            return;
+        }
+
+        try {
+            sites.add(checkSite(ddSite, siteParam));
+        } catch (IllegalArgumentException e) {
+            LOG.warn(format("Ignoring a site of project '%s': %s", project.getName(), e.getMessage()));
+        }
+    }
+
+    /**
+     * The sites are project parameters, which a subproject can override while inheriting the API keys of its
+     * parents. So only the Datadog sites are accepted, and the full URLs of other destinations, such as an internal
+     * collector, must be allowed on the server with the {@value ALLOWED_DESTINATION_URLS_PROPERTY} property.
+     *
+     * @return the trimmed site
+     */
+    private String checkSite(String ddSite, String siteParam) {
+        String site = ddSite.trim();
+        if (DATADOG_SITE.matcher(site.toLowerCase(Locale.ROOT)).matches() || allowedDestinationUrls.contains(site)) {
+            return site;
+        }
+        throw new IllegalArgumentException(format("'%s' of parameter '%s' is neither a Datadog site nor a URL allowed by the '%s' server property",
+            site, siteParam, ALLOWED_DESTINATION_URLS_PROPERTY));
+    }
+
+    protected static Set<String> parseAllowedDestinationUrls(String urls) {
+        Set<String> allowed = new HashSet<>();
+        for (String url : urls.split(",")) {
+            url = url.trim();
+            if (url.isEmpty()) {
+                continue;
+            }
+            if (!url.startsWith("https://")) {
+                // The API key is sent with the webhooks, it must not go over a cleartext connection
+                LOG.warn(format("Ignoring the destination URL '%s' allowed by '%s', only https URLs are allowed",
+                    url, ALLOWED_DESTINATION_URLS_PROPERTY));
+                continue;
+            }
+            allowed.add(url);
+        }
+        return Collections.unmodifiableSet(allowed);
+    }
+
+    /**
+     * @return the name or URL of the VCS root of the repository reported for builds checking out several ones,
+     * or null to report the first one
+     */
+    public String getPrimaryRepository(SBuild build) {
+        String primaryRepository = getProject(build).getParameterValue(DATADOG_PRIMARY_REPOSITORY_PARAM);
+        return primaryRepository == null ? null : primaryRepository.trim();
     }
 
     public boolean isPluginEnabled(SBuild build) {
-        ProjectEx project = getProject(build);
-        String enabled = project.getParameterValue(DATADOG_ENABLED_PARAM);
-        boolean isPluginEnabled = Boolean.parseBoolean(enabled);
-        if (!isPluginEnabled) {
-            LOG.debug(format("Plugin not enabled in project '%s'", project.getFullName()));
+        String projectId = build.getProjectId() != null ? build.getProjectId() : projectManager.getRootProject().getProjectId();
+        boolean isPluginEnabled = enabledProjectsIndex.isEnabled(projectId);
+        if (!isPluginEnabled && LOG.isDebugEnabled()) {
+            LOG.debug(format("Plugin not enabled in project with id '%s'", projectId));
         }
 
         return isPluginEnabled;
@@ -67,14 +208,14 @@ public class ProjectHandler {
             .orElse(projectManager.getRootProject());
     }
 
-    private String getApiKey(ProjectEx project) {
-        String apiKeyReference = String.format("%%%s%%", DATADOG_API_KEY_PARAM);
+    private String getApiKey(ProjectEx project, String apiKeyParam) {
+        String apiKeyReference = String.format("%%%s%%", apiKeyParam);
         ValueResolver resolver = project.getValueResolver();
         ProcessingResult resolved = resolver.resolve(apiKeyReference);
         if (!resolved.isFullyResolved()) {
             throw new IllegalArgumentException(
                     format("Could not find required property '%s' for project '%s'. Project parameters: %s",
-                            DATADOG_API_KEY_PARAM, project.getName(), project.getParameters()));
+                            apiKeyParam, project.getName(), project.getParameters()));
         }
 
         return resolved.getResult();
@@ -83,10 +224,16 @@ public class ProjectHandler {
     public static class ProjectParameters {
         private final String apiKey;
         private final String ddSite;
+        private final List<Destination> additionalDestinations;
 
         public ProjectParameters(String apiKey, String ddSite) {
+            this(apiKey, ddSite, Collections.emptyList());
+        }
+
+        public ProjectParameters(String apiKey, String ddSite, List<Destination> additionalDestinations) {
             this.apiKey = apiKey;
             this.ddSite = ddSite;
+            this.additionalDestinations = additionalDestinations;
         }
 
         public String apiKey() {
@@ -96,5 +243,19 @@ public class ProjectHandler {
         public String ddSite() {
             return ddSite;
         }
+
+        public List<Destination> additionalDestinations() {
+            return additionalDestinations;
+        }
+
+        /**
+         * All the destinations of the project, starting with the main one.
+         */
+        public List<Destination> destinations() {
+            List<Destination> destinations = new ArrayList<>(additionalDestinations.size() + 1);
+            destinations.add(new Destination(Destination.MAIN_DESTINATION, apiKey, ddSite));
+            destinations.addAll(additionalDestinations);
+            return destinations;
+        }
     }
 }
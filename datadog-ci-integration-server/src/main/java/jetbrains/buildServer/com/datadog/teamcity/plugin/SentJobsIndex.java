@@ -0,0 +1,201 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import jetbrains.buildServer.com.datadog.teamcity.plugin.PluginMetrics.CacheStatistics;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Remembers which pipeline each job build was already reported with, so a job shared by several
+ * composite heads of the same build graph (diamond-shaped dependencies) is only sent once.
+ * <p>
+ * Entries are kept in two generations of primitive open-addressing maps. The current generation is
+ * rotated out every half window (or when full), so an entry lives between half and one full window,
+ * and entries read from the old generation are promoted to the current one (LRU-like aging).
+ */
+@Component
+public class SentJobsIndex {
+
+    protected static final String ENABLED_PROPERTY = "datadog.ci.jobDeduplication.enabled";
+    protected static final String WINDOW_MINUTES_PROPERTY = "datadog.ci.jobDeduplication.windowMinutes";
+    protected static final String CAPACITY_PROPERTY = "datadog.ci.jobDeduplication.capacity";
+    private static final int DEFAULT_WINDOW_MINUTES = 360;
+    private static final int DEFAULT_CAPACITY = 100_000;
+
+    private final boolean enabled;
+    private final long halfWindowNanos;
+    private final int generationCapacity;
+    private final LongSupplier nanoClock;
+    private final CacheStatistics statistics;
+
+    private LongLongMap current;
+    private LongLongMap previous;
+    private long generationStartNanos;
+
+    public SentJobsIndex(PluginMetrics metrics) {
+        this(TeamCityProperties.getBooleanOrTrue(ENABLED_PROPERTY),
+            TimeUnit.MINUTES.toNanos(TeamCityProperties.getInteger(WINDOW_MINUTES_PROPERTY, DEFAULT_WINDOW_MINUTES)),
+            TeamCityProperties.getInteger(CAPACITY_PROPERTY, DEFAULT_CAPACITY),
+            System::nanoTime,
+            metrics);
+    }
+
+    protected SentJobsIndex(boolean enabled, long windowNanos, int capacity, LongSupplier nanoClock, PluginMetrics metrics) {
+        this.enabled = enabled;
+        this.halfWindowNanos = Math.max(1, windowNanos / 2);
+        this.generationCapacity = Math.max(1, capacity / 2);
+        this.nanoClock = nanoClock;
+        this.statistics = metrics.cache("Shared jobs index");
+        this.current = new LongLongMap();
+        this.previous = new LongLongMap();
+        this.generationStartNanos = nanoClock.getAsLong();
+    }
+
+    /**
+     * Claims a job build for a pipeline.
+     *
+     * @return true if the job should be reported with this pipeline: either it was not reported yet,
+     * or it was reported with this same pipeline (so the pipeline's view of its jobs stays complete)
+     */
+    public synchronized boolean claim(long jobBuildId, long pipelineBuildId) {
+        if (!enabled) {
+            return true;
+        }
+
+        rotateIfNecessary();
+
+        long owner = current.get(jobBuildId);
+        if (owner == LongLongMap.NO_VALUE) {
+            owner = previous.get(jobBuildId);
+            if (owner == LongLongMap.NO_VALUE) {
+                owner = pipelineBuildId;
+            }
+
+            current.put(jobBuildId, owner);
+        }
+
+        if (owner != pipelineBuildId) {
+            statistics.hit();
+            return false;
+        }
+
+        statistics.miss();
+        return true;
+    }
+
+    /**
+     * Gives up the claim of a pipeline on a job build, for example when its webhooks could not be handed to the
+     * sink, so that the job can be reported with another pipeline. Jobs claimed by other pipelines are left as is.
+     */
+    public synchronized void release(long jobBuildId, long pipelineBuildId) {
+        if (!enabled) {
+            return;
+        }
+
+        // An entry without owner is the same as no entry, and both generations are cleared as entries get promoted
+        current.replace(jobBuildId, pipelineBuildId, LongLongMap.NO_VALUE);
+        previous.replace(jobBuildId, pipelineBuildId, LongLongMap.NO_VALUE);
+    }
+
+    public synchronized int size() {
+        return current.size() + previous.size();
+    }
+
+    private void rotateIfNecessary() {
+        long now = nanoClock.getAsLong();
+        if (now - generationStartNanos >= halfWindowNanos || current.size() >= generationCapacity) {
+            previous = now - generationStartNanos >= 2 * halfWindowNanos ? new LongLongMap() : current;
+            current = new LongLongMap();
+            generationStartNanos = now;
+        }
+    }
+
+    /**
+     * Minimal open-addressing map of positive long keys to long values, with linear probing.
+     * Entries are never removed: whole generations are dropped instead.
+     */
+    private static class LongLongMap {
+        private static final long NO_VALUE = -1;
+        private static final long EMPTY_KEY = 0; // Build IDs are always positive
+        private static final int INITIAL_TABLE_SIZE = 256;
+
+        private long[] keys = new long[INITIAL_TABLE_SIZE];
+        private long[] values = new long[INITIAL_TABLE_SIZE];
+        private int size;
+
+        private long get(long key) {
+            int mask = keys.length - 1;
+            for (int i = index(key, mask); ; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return values[i];
+                } else if (keys[i] == EMPTY_KEY) {
+                    return NO_VALUE;
+                }
+            }
+        }
+
+        private void replace(long key, long expectedValue, long value) {
+            int mask = keys.length - 1;
+            for (int i = index(key, mask); keys[i] != EMPTY_KEY; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    if (values[i] == expectedValue) {
+                        values[i] = value;
+                    }
+                    return;
+                }
+            }
+        }
+
+        private void put(long key, long value) {
+            if (2 * (size + 1) > keys.length) {
+                resize(keys.length * 2);
+            }
+
+            int mask = keys.length - 1;
+            int i = index(key, mask);
+            while (keys[i] != EMPTY_KEY && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+
+            if (keys[i] == EMPTY_KEY) {
+                size++;
+            }
+
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        private int size() {
+            return size;
+        }
+
+        private void resize(int tableSize) {
+            long[] oldKeys = keys;
+            long[] oldValues = values;
+            keys = new long[tableSize];
+            values = new long[tableSize];
+            size = 0;
+
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY_KEY) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private static int index(long key, int mask) {
+            // Build IDs are sequential, so they are mixed to avoid long probing runs
+            long hash = key * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ (hash >>> 32)) & mask;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.GitInfo;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.JobWebhook;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.JobWebhook.ErrorInfo;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.JobWebhook.HostInfo;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.JobWebhook.JobStatus;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.PipelineWebhook;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.PipelineWebhook.PipelineStatus;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.Webhook;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.String.format;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.JobWebhook.ErrorInfo.ErrorDomain.USER;
+
+/**
+ * Prepares the webhook pipeline in the background when the server starts, so the first chain after a restart
+ * is not slower than the others: the serializers and compression are initialized and compiled with synthetic
+ * webhooks, and a connection is opened to the intake of each site used by the enabled projects.
+ */
+@Component
+public class StartupWarmup extends BuildServerAdapter {
+
+    private static final Logger LOG = Logger.getInstance(StartupWarmup.class.getName());
+
+    protected static final String ENABLED_PROPERTY = "datadog.ci.warmup.enabled";
+    protected static final String SERIALIZATION_PASSES_PROPERTY = "datadog.ci.warmup.serializationPasses";
+    private static final int DEFAULT_SERIALIZATION_PASSES = 200;
+
+    private final DatadogClient datadogClient;
+    private final ProjectHandler projectHandler;
+    private final boolean enabled;
+    private final int serializationPasses;
+    private final ExecutorService warmupExecutor;
+
+    public StartupWarmup(EventDispatcher<BuildServerListener> eventListener,
+                         DatadogClient datadogClient,
+                         ProjectHandler projectHandler) {
+        this(eventListener, datadogClient, projectHandler,
+            TeamCityProperties.getBooleanOrTrue(ENABLED_PROPERTY),
+            Math.max(1, TeamCityProperties.getInteger(SERIALIZATION_PASSES_PROPERTY, DEFAULT_SERIALIZATION_PASSES)),
+            Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("datadog-warmup")
+                .setDaemon(true)
+                .build()));
+    }
+
+    protected StartupWarmup(EventDispatcher<BuildServerListener> eventListener,
+                            DatadogClient datadogClient,
+                            ProjectHandler projectHandler,
+                            boolean enabled,
+                            int serializationPasses,
+                            ExecutorService warmupExecutor) {
+        this.datadogClient = datadogClient;
+        this.projectHandler = projectHandler;
+        this.enabled = enabled;
+        this.serializationPasses = serializationPasses;
+        this.warmupExecutor = warmupExecutor;
+
+        eventListener.addListener(this);
+    }
+
+    @Override
+    public void serverStartup() {
+        if (!enabled) {
+            warmupExecutor.shutdown();
+            return;
+        }
+
+        warmupExecutor.submit(() -> {
+            try {
+                warmUp();
+            } catch (RuntimeException e) {
+                LOG.warn("Could not warm up the webhooks pipeline", e);
+            } finally {
+                warmupExecutor.shutdown();
+            }
+        });
+    }
+
+    private void warmUp() {
+        long startNanos = System.nanoTime();
+        datadogClient.warmUpSerialization(sampleWebhooks(), serializationPasses);
+
+        Set<String> sites = projectHandler.getEnabledSites();
+        for (String site : sites) {
+            try {
+                datadogClient.preconnect(site);
+            } catch (RuntimeException e) {
+                // The other sites are still pre-connected, this one only connects with its first webhook
+                LOG.warn(format("Could not pre-connect to site '%s'", site), e);
+            }
+        }
+
+        LOG.info(format("Warmed up the webhooks pipeline in %d ms (%d serialization passes, %d sites)",
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos), serializationPasses, sites.size()));
+    }
+
+    /**
+     * Webhooks of both types with all their optional fields set, so every serializer is used.
+     */
+    protected static List<Webhook> sampleWebhooks() {
+        GitInfo gitInfo = new GitInfo()
+            .withRepositoryURL("https://github.com/DataDog/ci-teamcity-plugin.git")
+            .withSha("0000000000000000000000000000000000000000")
+            .withMessage("Warm-up commit")
+            .withCommitTime("2023-01-01T00:00:00Z")
+            .withAuthorTime("2023-01-01T00:00:00Z")
+            .withCommitterName("Warm-up")
+            .withCommitterEmail("warmup@example.com")
+            .withAuthorName("Warm-up")
+            .withAuthorEmail("warmup@example.com")
+            .withDefaultBranch("main")
+            .withBranch("main");
+
+        PipelineWebhook pipeline = new PipelineWebhook("Warm-up pipeline", "http://localhost/build/2",
+            "2023-01-01T00:00:00Z", "2023-01-01T00:01:00Z", "warmup-2", "2", false, PipelineStatus.SUCCESS);
+        pipeline.setGitInfo(gitInfo);
+        pipeline.setTags(Arrays.asList("warmup:true", "team:ci"));
+
+        JobWebhook job = new JobWebhook("Warm-up job", "http://localhost/build/1", "2023-01-01T00:00:00Z",
+            "2023-01-01T00:01:00Z", "warmup-2", "Warm-up pipeline", "warmup-1", JobStatus.ERROR, 1000);
+        job.setGitInfo(gitInfo);
+        job.setTags(Arrays.asList("warmup:true", "team:ci"));
+        job.setDependenciesIds(Arrays.asList("warmup-0"));
+        job.setHostInfo(new HostInfo().withName("agent").withHostname("127.0.0.1").withWorkspace("/opt/buildAgent/work"));
+        job.setErrorInfo(new ErrorInfo("Tests failed", "Tests Failed", USER));
+
+        return Arrays.asList(pipeline, job);
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import static java.lang.String.format;
+
+/**
+ * Logs the repeated warnings of a hot path as periodic summaries instead of one line per occurrence.
+ * <p>
+ * The first occurrence for a key (usually a site) is logged right away. The following ones in the same
+ * interval are only counted, and a single line with their number and the details of the last one is logged
+ * when the interval ends: at the next occurrence after it, or when {@link #flush()} is called. The details
+ * are only created when a line is logged.
+ */
+public class SummaryLog {
+
+    protected static final String INTERVAL_PROPERTY = "datadog.ci.log.summaryIntervalSeconds";
+    private static final int DEFAULT_INTERVAL_SECONDS = 60;
+
+    private final Logger log;
+    private final String event;
+    private final long intervalNanos;
+    private final LongSupplier nanoClock;
+    private final Map<String, Window> windows = new ConcurrentHashMap<>();
+
+    /**
+     * @param event what happened, preceded by the number of occurrences and formatted with the key,
+     *              e.g. "webhook(s) could not be sent to '%s'"
+     */
+    public SummaryLog(Logger log, String event) {
+        this(log, event, TimeUnit.SECONDS.toNanos(Math.max(1, TeamCityProperties.getInteger(INTERVAL_PROPERTY, DEFAULT_INTERVAL_SECONDS))),
+            System::nanoTime);
+    }
+
+    protected SummaryLog(Logger log, String event, long intervalNanos, LongSupplier nanoClock) {
+        this.log = log;
+        this.event = event;
+        this.intervalNanos = intervalNanos;
+        this.nanoClock = nanoClock;
+    }
+
+    public void warn(String key, int occurrences, Supplier<String> details) {
+        Window window = windows.computeIfAbsent(key, k -> new Window());
+        synchronized (window) {
+            long now = nanoClock.getAsLong();
+            if (window.active && now - window.startNanos < intervalNanos) {
+                window.add(occurrences, details);
+                return;
+            }
+
+            if (window.active && window.occurrences > 0) {
+                window.add(occurrences, details);
+                logSummary(key, window, now);
+            } else {
+                log.warn(format("%d %s: %s", occurrences, format(event, key), details.get()));
+            }
+            window.start(now);
+        }
+    }
+
+    /**
+     * Logs the summaries of the current intervals, for example before shutdown.
+     */
+    public void flush() {
+        long now = nanoClock.getAsLong();
+        windows.forEach((key, window) -> {
+            synchronized (window) {
+                if (window.active && window.occurrences > 0) {
+                    logSummary(key, window, now);
+                }
+                window.active = false;
+            }
+        });
+    }
+
+    private void logSummary(String key, Window window, long now) {
+        log.warn(format("%d %s in the last %d s, last one: %s", window.occurrences, format(event, key),
+            TimeUnit.NANOSECONDS.toSeconds(now - window.startNanos), window.lastDetails.get()));
+    }
+
+    private static class Window {
+        private boolean active;
+        private long startNanos;
+        private long occurrences;
+        private Supplier<String> lastDetails;
+
+        private void start(long now) {
+            active = true;
+            startNanos = now;
+            occurrences = 0;
+            lastDetails = null;
+        }
+
+        private void add(int count, Supplier<String> details) {
+            occurrences += count;
+            lastDetails = details;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Lock-free meter exposing exponentially-weighted moving average rates over 1, 5 and 15 minutes
+ * (the same decay model used by UNIX load averages). Marking an event only touches a {@link LongAdder};
+ * the averages are folded in lazily, at most once per tick, by whichever thread observes the tick first.
+ */
+public class ThroughputMeter {
+
+    private static final long TICK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final LongSupplier nanoClock;
+    private final AtomicLong lastTick;
+    private final LongAdder count = new LongAdder();
+    private final MovingAverage oneMinute = new MovingAverage(1);
+    private final MovingAverage fiveMinutes = new MovingAverage(5);
+    private final MovingAverage fifteenMinutes = new MovingAverage(15);
+
+    public ThroughputMeter() {
+        this(System::nanoTime);
+    }
+
+    protected ThroughputMeter(LongSupplier nanoClock) {
+        this.nanoClock = nanoClock;
+        this.lastTick = new AtomicLong(nanoClock.getAsLong());
+    }
+
+    public void mark() {
+        tickIfNecessary();
+        count.increment();
+        oneMinute.update();
+        fiveMinutes.update();
+        fifteenMinutes.update();
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    /**
+     * @return events per second averaged over the last minute
+     */
+    public double oneMinuteRate() {
+        tickIfNecessary();
+        return oneMinute.ratePerSecond();
+    }
+
+    /**
+     * @return events per second averaged over the last 5 minutes
+     */
+    public double fiveMinuteRate() {
+        tickIfNecessary();
+        return fiveMinutes.ratePerSecond();
+    }
+
+    /**
+     * @return events per second averaged over the last 15 minutes
+     */
+    public double fifteenMinuteRate() {
+        tickIfNecessary();
+        return fifteenMinutes.ratePerSecond();
+    }
+
+    private void tickIfNecessary() {
+        long oldTick = lastTick.get();
+        long newTick = nanoClock.getAsLong();
+        long age = newTick - oldTick;
+        if (age < TICK_INTERVAL_NANOS) {
+            return;
+        }
+
+        // Only the thread winning the CAS folds the pending ticks, the rest keep going
+        long newIntervalStartTick = newTick - age % TICK_INTERVAL_NANOS;
+        if (lastTick.compareAndSet(oldTick, newIntervalStartTick)) {
+            long requiredTicks = age / TICK_INTERVAL_NANOS;
+            for (long i = 0; i < requiredTicks; i++) {
+                oneMinute.tick();
+                fiveMinutes.tick();
+                fifteenMinutes.tick();
+            }
+        }
+    }
+
+    private static class MovingAverage {
+        private static final double TICK_INTERVAL_SECONDS = TimeUnit.NANOSECONDS.toSeconds(TICK_INTERVAL_NANOS);
+
+        private final double alpha;
+        private final LongAdder uncounted = new LongAdder();
+        private volatile boolean initialized;
+        private volatile double rate;
+
+        private MovingAverage(int minutes) {
+            this.alpha = 1 - Math.exp(-TICK_INTERVAL_SECONDS / TimeUnit.MINUTES.toSeconds(minutes));
+        }
+
+        private void update() {
+            uncounted.increment();
+        }
+
+        private void tick() {
+            double instantRate = uncounted.sumThenReset() / TICK_INTERVAL_SECONDS;
+            if (initialized) {
+                rate += alpha * (instantRate - rate);
+            } else {
+                rate = instantRate;
+                initialized = true;
+            }
+        }
+
+        private double ratePerSecond() {
+            return rate;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import jetbrains.buildServer.com.datadog.teamcity.plugin.PluginMetrics.CacheStatistics;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded intern pool for the values repeated across webhooks (agent names, workspaces, tag lists...),
+ * so the webhooks of different chains share a single instance of them instead of a copy each.
+ * <p>
+ * The pool is direct-mapped: each value has a single slot given by its hash, and replaces the value
+ * previously stored there. Its memory is therefore fixed, and frequent values stay in the pool.
+ * Interned values must be immutable.
+ */
+@Component
+public class ValueInterner {
+
+    protected static final String CAPACITY_PROPERTY = "datadog.ci.interner.capacity";
+    private static final int DEFAULT_CAPACITY = 4096;
+
+    private final AtomicReferenceArray<Object> slots;
+    private final int mask;
+    private final CacheStatistics statistics;
+
+    public ValueInterner(PluginMetrics metrics) {
+        this(TeamCityProperties.getInteger(CAPACITY_PROPERTY, DEFAULT_CAPACITY), metrics);
+    }
+
+    protected ValueInterner(int capacity, PluginMetrics metrics) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.statistics = metrics.cache("Webhook values interner");
+    }
+
+    /**
+     * Values are returned as the type they are interned as, so that type must only be equal to its own instances:
+     * a class comparing the classes in its equals, such as {@link String}, or an interface whose equals contract
+     * only matches its own implementations, such as {@link java.util.List}, but not a particular list class.
+     *
+     * @return an equal value already in the pool, or the given value which is added to the pool
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T intern(T value) {
+        if (value == null) {
+            return null;
+        }
+
+        int hash = value.hashCode();
+        int index = (hash ^ (hash >>> 16)) & mask;
+        Object existing = slots.get(index);
+        // An equal value is an instance of the type the value is interned as, given the requirement above
+        if (value.equals(existing)) {
+            statistics.hit();
+            return (T) existing;
+        }
+
+        statistics.miss();
+        slots.set(index, value);
+        return value;
+    }
+
+    protected int capacity() {
+        return slots.length();
+    }
+}
@@ -0,0 +1,121 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import jetbrains.buildServer.com.datadog.teamcity.plugin.GitInformationExtractor.UsernameStyle;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.PluginMetrics.CacheStatistics;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.vcs.SVcsRoot;
+import jetbrains.buildServer.vcs.VcsRootInstance;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.GitInformationExtractor.BRANCH_PROPERTY;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.GitInformationExtractor.URL_PROPERTY;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.GitInformationExtractor.USERNAME_STYLE_PROPERTY;
+
+/**
+ * The properties of the VCS root instances used in the git information, read and parsed once per instance.
+ * <p>
+ * The entries of a VCS root are removed when it is updated or removed. The cache is cleared when it is full,
+ * as the instances used by the running chains are quickly added back.
+ */
+@Component
+public class VcsRootMetadataCache extends BuildServerAdapter {
+
+    protected static final String CAPACITY_PROPERTY = "datadog.ci.vcsRootCache.capacity";
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private final int capacity;
+    private final CacheStatistics statistics;
+    private final Map<Long, VcsRootMetadata> metadataByInstanceId = new ConcurrentHashMap<>();
+
+    public VcsRootMetadataCache(EventDispatcher<BuildServerListener> eventListener, PluginMetrics metrics) {
+        this.capacity = Math.max(1, TeamCityProperties.getInteger(CAPACITY_PROPERTY, DEFAULT_CAPACITY));
+        this.statistics = metrics.cache("VCS root metadata");
+
+        eventListener.addListener(this);
+    }
+
+    public VcsRootMetadata get(VcsRootInstance vcsRootInstance) {
+        VcsRootMetadata metadata = metadataByInstanceId.get(vcsRootInstance.getId());
+        if (metadata != null) {
+            statistics.hit();
+            return metadata;
+        }
+
+        statistics.miss();
+        metadata = VcsRootMetadata.read(vcsRootInstance);
+        if (metadataByInstanceId.size() >= capacity) {
+            metadataByInstanceId.clear();
+        }
+        metadataByInstanceId.put(vcsRootInstance.getId(), metadata);
+        return metadata;
+    }
+
+    @Override
+    public void vcsRootUpdated(SVcsRoot oldVcsRoot, SVcsRoot newVcsRoot) {
+        invalidate(oldVcsRoot);
+    }
+
+    @Override
+    public void vcsRootRemoved(SVcsRoot root) {
+        invalidate(root);
+    }
+
+    @Override
+    public void serverConfigurationReloaded() {
+        metadataByInstanceId.clear();
+    }
+
+    private void invalidate(SVcsRoot root) {
+        metadataByInstanceId.values().removeIf(metadata -> metadata.parentId == root.getId());
+    }
+
+    public static class VcsRootMetadata {
+        private final long parentId;
+        private final UsernameStyle usernameStyle;
+        private final String repositoryURL;
+        private final String defaultBranch;
+
+        private VcsRootMetadata(long parentId, UsernameStyle usernameStyle, String repositoryURL, String defaultBranch) {
+            this.parentId = parentId;
+            this.usernameStyle = usernameStyle;
+            this.repositoryURL = repositoryURL;
+            this.defaultBranch = defaultBranch;
+        }
+
+        private static VcsRootMetadata read(VcsRootInstance vcsRootInstance) {
+            String usernameStyle = vcsRootInstance.getProperty(USERNAME_STYLE_PROPERTY);
+            if (usernameStyle == null || usernameStyle.isEmpty()) {
+                throw new IllegalArgumentException("Could not retrieve username style from VCS root properties: " + vcsRootInstance.getProperties());
+            }
+
+            String url = vcsRootInstance.getProperty(URL_PROPERTY);
+            return new VcsRootMetadata(vcsRootInstance.getParentId(), UsernameStyle.valueOf(usernameStyle),
+                url == null ? null : url.trim(), vcsRootInstance.getProperty(BRANCH_PROPERTY));
+        }
+
+        public UsernameStyle getUsernameStyle() {
+            return usernameStyle;
+        }
+
+        public String getRepositoryURL() {
+            return repositoryURL;
+        }
+
+        public String getDefaultBranch() {
+            return defaultBranch;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.Webhook;
+
+import java.util.List;
+
+/**
+ * Destination of the webhooks created for the processed chains.
+ * The default sink is the {@link DatadogClient}, sending them to the webhook intake.
+ */
+public interface WebhookSink {
+
+    /**
+     * Delivers the webhooks asynchronously, this method should not block the caller.
+     */
+    void sendWebhooksAsync(List<Webhook> webhooks, String apiKey, String ddSite);
+
+    /**
+     * Delivers the webhooks to every destination. By default, they are delivered to each destination separately.
+     */
+    default void sendWebhooksAsync(List<Webhook> webhooks, List<Destination> destinations) {
+        destinations.forEach(destination -> sendWebhooksAsync(webhooks, destination.apiKey(), destination.ddSite()));
+    }
+
+    /**
+     * A Datadog org (or any other intake) the webhooks of a project are sent to.
+     */
+    class Destination {
+        protected static final String MAIN_DESTINATION = "";
+
+        private final String name;
+        private final String apiKey;
+        private final String ddSite;
+
+        public Destination(String name, String apiKey, String ddSite) {
+            this.name = name;
+            this.apiKey = apiKey;
+            this.ddSite = ddSite;
+        }
+
+        /**
+         * The name of the destination in the project parameters, empty for the main destination.
+         */
+        public String name() {
+            return name;
+        }
+
+        public String apiKey() {
+            return apiKey;
+        }
+
+        public String ddSite() {
+            return ddSite;
+        }
+
+        public boolean isMain() {
+            return MAIN_DESTINATION.equals(name);
+        }
+    }
+}
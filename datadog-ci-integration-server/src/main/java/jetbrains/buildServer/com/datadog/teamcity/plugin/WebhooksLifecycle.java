@@ -0,0 +1,96 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.serverSide.BuildServerAdapter;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.springframework.stereotype.Component;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.String.format;
+
+/**
+ * Keeps the webhooks across server restarts: on shutdown, the queued and in-flight webhooks are given some time
+ * to be sent and the remaining ones are stored on disk. On the next startup, they are sent before anything else.
+ * <p>
+ * The webhooks spilled to the same store under memory pressure are sent when the pressure clears.
+ */
+@Component
+public class WebhooksLifecycle extends BuildServerAdapter {
+
+    private static final Logger LOG = Logger.getInstance(WebhooksLifecycle.class.getName());
+
+    protected static final String DRAIN_TIMEOUT_PROPERTY = "datadog.ci.shutdown.drainTimeoutSeconds";
+    private static final int DEFAULT_DRAIN_TIMEOUT_SECONDS = 20;
+
+    private final WebhookSink webhookSink;
+    private final DatadogClient datadogClient;
+    private final DeadLetterReplayer deadLetterReplayer;
+
+    public WebhooksLifecycle(EventDispatcher<BuildServerListener> eventListener,
+                             WebhookSink webhookSink,
+                             DatadogClient datadogClient,
+                             DeadLetterReplayer deadLetterReplayer,
+                             MemoryPressureMonitor memoryPressure) {
+        this.webhookSink = webhookSink;
+        this.datadogClient = datadogClient;
+        this.deadLetterReplayer = deadLetterReplayer;
+
+        memoryPressure.onPressureCleared(this::replaySpilledWebhooks);
+        eventListener.addListener(this);
+    }
+
+    @Override
+    public void serverStartup() {
+        DeadLetterStore unsentWebhooks = datadogClient.unsentWebhooks();
+        if (unsentWebhooks.size() == 0) {
+            return;
+        }
+
+        LOG.info(format("Sending %d webhooks left unsent by the previous shutdown", unsentWebhooks.size()));
+        replay(unsentWebhooks);
+    }
+
+    private void replaySpilledWebhooks() {
+        DeadLetterStore unsentWebhooks = datadogClient.unsentWebhooks();
+        if (unsentWebhooks.size() > 0) {
+            LOG.info(format("Sending %d webhooks spilled to disk under memory pressure", unsentWebhooks.size()));
+            replay(unsentWebhooks);
+        }
+    }
+
+    private void replay(DeadLetterStore unsentWebhooks) {
+        if (!deadLetterReplayer.replayAsync(unsentWebhooks)) {
+            LOG.info(format("The webhooks from '%s' are already being replayed, the new ones are sent once it is done", unsentWebhooks));
+        }
+    }
+
+    @Override
+    public void serverShutdown() {
+        long timeoutMs = TimeUnit.SECONDS.toMillis(Math.max(0, TeamCityProperties.getInteger(DRAIN_TIMEOUT_PROPERTY, DEFAULT_DRAIN_TIMEOUT_SECONDS)));
+        LOG.info(format("Sending the pending webhooks before shutdown, waiting at most %d ms", timeoutMs));
+
+        if (webhookSink instanceof Closeable) {
+            // The file sink writes its queue before completing its file
+            try {
+                ((Closeable) webhookSink).close();
+            } catch (IOException e) {
+                LOG.warn("Could not close the webhooks sink", e);
+            }
+        }
+
+        // The client is also used directly by the exports and replays, so it is drained even with another sink
+        datadogClient.shutdown(timeoutMs);
+    }
+}
@@ -8,9 +8,13 @@
 package jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonGenerator;
 
+import java.io.IOException;
 import java.util.Objects;
 
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.Webhook.writeField;
+
 public class GitInfo {
 
     @JsonProperty("repository_url") private String repositoryURL;
@@ -81,6 +85,30 @@ public class GitInfo {
         return this;
     }
 
+    /**
+     * @return the repository URL and the commit SHA, separated by '#'
+     */
+    public String commitReference() {
+        return repositoryURL + '#' + sha;
+    }
+
+    void writeJson(JsonGenerator gen) throws IOException {
+        gen.writeStartObject();
+        writeField(gen, "repository_url", repositoryURL);
+        writeField(gen, "sha", sha);
+        writeField(gen, "message", message);
+        writeField(gen, "commit_time", commitTime);
+        writeField(gen, "author_time", authorTime);
+        writeField(gen, "committer_name", committerName);
+        writeField(gen, "committer_email", committerEmail);
+        writeField(gen, "author_name", authorName);
+        writeField(gen, "author_email", authorEmail);
+        writeField(gen, "default_branch", defaultBranch);
+        writeField(gen, "branch", branch);
+        writeField(gen, "tag", tag);
+        gen.writeEndObject();
+    }
+
     @Override
     public String toString() {
         return "GitInfo{" +
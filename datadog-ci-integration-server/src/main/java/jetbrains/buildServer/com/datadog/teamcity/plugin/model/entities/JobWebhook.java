@@ -9,9 +9,11 @@ package jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonValue;
+import com.fasterxml.jackson.core.JsonGenerator;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.io.IOException;
 import java.util.List;
 import java.util.Objects;
 
@@ -89,6 +91,27 @@ public class JobWebhook extends Webhook {
         return id;
     }
 
+    @Override
+    void writeJson(JsonGenerator gen) throws IOException {
+        gen.writeStartObject();
+        writeBaseFields(gen);
+        writeField(gen, "pipeline_unique_id", pipelineID);
+        writeField(gen, "pipeline_name", pipelineName);
+        writeField(gen, "id", id);
+        writeField(gen, "status", status);
+        gen.writeNumberField("queue_time", queueTimeMs);
+        writeField(gen, "dependencies", dependenciesIds);
+        if (hostInfo != null) {
+            gen.writeFieldName("node");
+            hostInfo.writeJson(gen);
+        }
+        if (errorInfo != null) {
+            gen.writeFieldName("error");
+            errorInfo.writeJson(gen);
+        }
+        gen.writeEndObject();
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -154,6 +177,14 @@ public class JobWebhook extends Webhook {
             return this;
         }
 
+        void writeJson(JsonGenerator gen) throws IOException {
+            gen.writeStartObject();
+            Webhook.writeField(gen, "hostname", hostname);
+            Webhook.writeField(gen, "name", name);
+            Webhook.writeField(gen, "workspace", workspace);
+            gen.writeEndObject();
+        }
+
         @Override
         public String toString() {
             return "HostInfo{" +
@@ -188,6 +219,14 @@ public class JobWebhook extends Webhook {
             this.domain = domain;
         }
 
+        void writeJson(JsonGenerator gen) throws IOException {
+            gen.writeStartObject();
+            Webhook.writeField(gen, "message", message);
+            Webhook.writeField(gen, "type", type);
+            Webhook.writeField(gen, "domain", domain);
+            gen.writeEndObject();
+        }
+
         @Override
         public String toString() {
             return "ErrorInfo{" +
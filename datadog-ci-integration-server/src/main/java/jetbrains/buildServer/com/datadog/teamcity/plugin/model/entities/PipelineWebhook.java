@@ -8,8 +8,10 @@
 package jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonGenerator;
 
 import javax.annotation.Nonnull;
+import java.io.IOException;
 import java.util.Objects;
 
 import static jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.Webhook.CILevel.PIPELINE;
@@ -31,6 +33,10 @@ public class PipelineWebhook extends Webhook {
     @Nonnull
     private final PipelineStatus status;
 
+    // Not sent: the ID used to deduplicate the deliveries, which differs from the unique ID for the running updates
+    @Nonnull
+    private final String deliveryId;
+
     public PipelineWebhook(@Nonnull String name,
                            @Nonnull String url,
                            @Nonnull String start,
@@ -39,11 +45,39 @@ public class PipelineWebhook extends Webhook {
                            @Nonnull String pipelineId,
                            boolean partialRetry,
                            @Nonnull PipelineStatus status) {
+        this(name, url, start, end, uniqueId, pipelineId, partialRetry, status, uniqueId);
+    }
+
+    private PipelineWebhook(@Nonnull String name,
+                            @Nonnull String url,
+                            @Nonnull String start,
+                            @Nonnull String end,
+                            @Nonnull String uniqueId,
+                            @Nonnull String pipelineId,
+                            boolean partialRetry,
+                            @Nonnull PipelineStatus status,
+                            @Nonnull String deliveryId) {
         super(PIPELINE, name, url, start, end);
         this.uniqueId = uniqueId;
         this.pipelineId = pipelineId;
         this.partialRetry = partialRetry;
         this.status = status;
+        this.deliveryId = deliveryId;
+    }
+
+    /**
+     * Creates an update for a pipeline that is still running, ending at the time of the update. Each update
+     * is delivered under its own ID, so that neither the next updates nor the final webhook are deduplicated.
+     */
+    public static PipelineWebhook running(@Nonnull String name,
+                                          @Nonnull String url,
+                                          @Nonnull String start,
+                                          @Nonnull String now,
+                                          @Nonnull String uniqueId,
+                                          @Nonnull String pipelineId,
+                                          long updateSequence) {
+        return new PipelineWebhook(name, url, start, now, uniqueId, pipelineId, false, PipelineStatus.RUNNING,
+            uniqueId + "@running-" + updateSequence);
     }
 
     @Override
@@ -72,7 +106,18 @@ public class PipelineWebhook extends Webhook {
 
     @Override
     public String id() {
-        return uniqueId;
+        return deliveryId;
+    }
+
+    @Override
+    void writeJson(JsonGenerator gen) throws IOException {
+        gen.writeStartObject();
+        writeBaseFields(gen);
+        writeField(gen, "unique_id", uniqueId);
+        writeField(gen, "pipeline_id", pipelineId);
+        gen.writeBooleanField("partial_retry", partialRetry);
+        writeField(gen, "status", status);
+        gen.writeEndObject();
     }
 
     @Override
@@ -81,18 +126,19 @@ public class PipelineWebhook extends Webhook {
         if (o == null || getClass() != o.getClass()) return false;
         if (!super.equals(o)) return false;
         PipelineWebhook that = (PipelineWebhook) o;
-        return partialRetry == that.partialRetry && uniqueId.equals(that.uniqueId) && pipelineId.equals(that.pipelineId) && status == that.status;
+        return partialRetry == that.partialRetry && uniqueId.equals(that.uniqueId) && deliveryId.equals(that.deliveryId) && pipelineId.equals(that.pipelineId) && status == that.status;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(super.hashCode(), uniqueId, pipelineId, partialRetry, status);
+        return Objects.hash(super.hashCode(), uniqueId, deliveryId, pipelineId, partialRetry, status);
     }
 
     public enum PipelineStatus {
         @JsonProperty("success") SUCCESS,
         @JsonProperty("error") ERROR,
-        @JsonProperty("canceled") CANCELED
+        @JsonProperty("canceled") CANCELED,
+        @JsonProperty("running") RUNNING
     }
 
 }
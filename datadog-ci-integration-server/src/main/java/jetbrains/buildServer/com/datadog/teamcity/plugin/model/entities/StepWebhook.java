@@ -0,0 +1,124 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.Objects;
+
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.Webhook.CILevel.STEP;
+
+public class StepWebhook extends Webhook {
+
+    @JsonProperty("pipeline_unique_id")
+    @Nonnull
+    private final String pipelineID;
+
+    @JsonProperty("pipeline_name")
+    @Nonnull
+    private final String pipelineName;
+
+    @JsonProperty("job_id")
+    @Nonnull
+    private final String jobID;
+
+    @JsonProperty("job_name")
+    @Nonnull
+    private final String jobName;
+
+    @JsonProperty("id")
+    @Nonnull
+    private final String id;
+
+    @JsonProperty("status")
+    @Nonnull
+    private final StepStatus status;
+
+    public StepWebhook(@Nonnull String name,
+                       @Nonnull String url,
+                       @Nonnull String start,
+                       @Nonnull String end,
+                       @Nonnull String pipelineID,
+                       @Nonnull String pipelineName,
+                       @Nonnull String jobID,
+                       @Nonnull String jobName,
+                       @Nonnull String id,
+                       @Nonnull StepStatus status) {
+        super(STEP, name, url, start, end);
+        this.pipelineID = pipelineID;
+        this.pipelineName = pipelineName;
+        this.jobID = jobID;
+        this.jobName = jobName;
+        this.id = id;
+        this.status = status;
+    }
+
+    @Nonnull
+    public StepStatus status() {
+        return status;
+    }
+
+    @Override
+    public String id() {
+        return id;
+    }
+
+    @Override
+    void writeJson(JsonGenerator gen) throws IOException {
+        gen.writeStartObject();
+        writeBaseFields(gen);
+        writeField(gen, "pipeline_unique_id", pipelineID);
+        writeField(gen, "pipeline_name", pipelineName);
+        writeField(gen, "job_id", jobID);
+        writeField(gen, "job_name", jobName);
+        writeField(gen, "id", id);
+        writeField(gen, "status", status);
+        gen.writeEndObject();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        if (!super.equals(o)) return false;
+        StepWebhook that = (StepWebhook) o;
+        return pipelineID.equals(that.pipelineID) && pipelineName.equals(that.pipelineName) && jobID.equals(that.jobID) && jobName.equals(that.jobName) && id.equals(that.id) && status == that.status;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(super.hashCode(), pipelineID, pipelineName, jobID, jobName, id, status);
+    }
+
+    @Override
+    public String toString() {
+        return "StepWebhook{" +
+            "pipelineID='" + pipelineID + '\'' +
+            ", pipelineName='" + pipelineName + '\'' +
+            ", jobID='" + jobID + '\'' +
+            ", jobName='" + jobName + '\'' +
+            ", id='" + id + '\'' +
+            ", status=" + status +
+            ", level=" + level +
+            ", name='" + name + '\'' +
+            ", url='" + url + '\'' +
+            ", start='" + start + '\'' +
+            ", end='" + end + '\'' +
+            ", gitInfo=" + gitInfo +
+            "} " + super.toString();
+    }
+
+    public enum StepStatus {
+        @JsonProperty("success") SUCCESS,
+        @JsonProperty("error") ERROR,
+        @JsonProperty("canceled") CANCELED
+    }
+}
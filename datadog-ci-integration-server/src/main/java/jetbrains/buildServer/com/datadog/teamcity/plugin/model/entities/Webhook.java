@@ -8,10 +8,14 @@
 package jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonGenerator;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
 
 public abstract class Webhook {
@@ -60,8 +64,68 @@ public abstract class Webhook {
         this.tags = tags;
     }
 
+    /**
+     * Adds tags after the ones already set.
+     */
+    public void addTags(@Nonnull List<String> additionalTags) {
+        if (tags == null) {
+            tags = additionalTags;
+        } else {
+            List<String> allTags = new ArrayList<>(tags.size() + additionalTags.size());
+            allTags.addAll(tags);
+            allTags.addAll(additionalTags);
+            tags = allTags;
+        }
+    }
+
     public abstract String id();
 
+    /**
+     * Writes the webhook as a JSON object, see {@link WebhookJsonModule}.
+     */
+    abstract void writeJson(JsonGenerator gen) throws IOException;
+
+    /**
+     * Writes the fields common to all webhooks, in their declaration order.
+     */
+    void writeBaseFields(JsonGenerator gen) throws IOException {
+        writeField(gen, "level", level);
+        writeField(gen, "name", name);
+        writeField(gen, "url", url);
+        writeField(gen, "start", start);
+        writeField(gen, "end", end);
+        if (gitInfo != null) {
+            gen.writeFieldName("git");
+            gitInfo.writeJson(gen);
+        }
+        writeField(gen, "tags", tags);
+    }
+
+    // Null values are skipped, as the object mapper only includes non-null values
+
+    static void writeField(JsonGenerator gen, String name, String value) throws IOException {
+        if (value != null) {
+            gen.writeStringField(name, value);
+        }
+    }
+
+    static void writeField(JsonGenerator gen, String name, Enum<?> value) throws IOException {
+        if (value != null) {
+            // All the enum constants are serialized with their lower case name
+            gen.writeStringField(name, value.name().toLowerCase(Locale.ROOT));
+        }
+    }
+
+    static void writeField(JsonGenerator gen, String name, List<String> values) throws IOException {
+        if (values != null) {
+            gen.writeArrayFieldStart(name);
+            for (String value : values) {
+                gen.writeString(value);
+            }
+            gen.writeEndArray();
+        }
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -77,6 +141,7 @@ public abstract class Webhook {
 
     public enum CILevel {
         @JsonProperty("job") JOB,
-        @JsonProperty("pipeline") PIPELINE
+        @JsonProperty("pipeline") PIPELINE,
+        @JsonProperty("step") STEP
     }
 }
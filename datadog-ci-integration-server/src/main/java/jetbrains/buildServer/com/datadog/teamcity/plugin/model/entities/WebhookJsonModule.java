@@ -0,0 +1,42 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+import java.io.IOException;
+
+/**
+ * Serializes the webhooks by writing their fields directly, instead of introspecting them through reflection.
+ * <p>
+ * The output is the same as the reflective serialization with non-null inclusion: the fields are written
+ * in their declaration order (the base {@link Webhook} fields first) and null values are skipped.
+ * New fields must be added to the {@code writeJson} method of their class.
+ */
+public class WebhookJsonModule extends SimpleModule {
+
+    public WebhookJsonModule() {
+        super("WebhookJsonModule");
+        addSerializer(Webhook.class, new WebhookSerializer());
+    }
+
+    private static class WebhookSerializer extends StdSerializer<Webhook> {
+
+        private WebhookSerializer() {
+            super(Webhook.class);
+        }
+
+        @Override
+        public void serialize(Webhook webhook, JsonGenerator gen, SerializerProvider provider) throws IOException {
+            webhook.writeJson(gen);
+        }
+    }
+}
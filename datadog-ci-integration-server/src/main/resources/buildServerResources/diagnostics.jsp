@@ -0,0 +1,194 @@
+<%@ include file="/include-internal.jsp" %>
+<%@ taglib prefix="fmt" uri="http://java.sun.com/jsp/jstl/fmt" %>
+<%--
+  Unless explicitly stated otherwise all files in this repository are licensed
+  under the Apache License Version 2.0.
+  This product includes software developed at Datadog (https://www.datadoghq.com/)
+  Copyright 2022-present Datadog, Inc.
+--%>
+<jsp:useBean id="metrics" scope="request" type="jetbrains.buildServer.com.datadog.teamcity.plugin.PluginMetrics.Snapshot"/>
+
+<div class="section noMargin">
+  <h2 class="noBorder">Webhook pipeline</h2>
+  <table class="runnerFormTable">
+    <tr>
+      <th>Queued webhooks</th>
+      <td><c:out value="${metrics.queueDepth}"/></td>
+    </tr>
+    <tr>
+      <th>Webhooks waiting for a retry</th>
+      <td><c:out value="${metrics.retryBacklog}"/></td>
+    </tr>
+    <tr>
+      <th>Webhooks sent</th>
+      <td><c:out value="${metrics.sentWebhooks}"/></td>
+    </tr>
+    <tr>
+      <th>Webhooks skipped as already delivered</th>
+      <td><c:out value="${metrics.alreadyDeliveredWebhooks}"/></td>
+    </tr>
+    <tr>
+      <th>Throughput (webhooks/s, 1m / 5m / 15m)</th>
+      <td>
+        <fmt:formatNumber value="${metrics.sentOneMinuteRate}" maxFractionDigits="2"/> /
+        <fmt:formatNumber value="${metrics.sentFiveMinuteRate}" maxFractionDigits="2"/> /
+        <fmt:formatNumber value="${metrics.sentFifteenMinuteRate}" maxFractionDigits="2"/>
+      </td>
+    </tr>
+    <tr>
+      <th>Chains processed</th>
+      <td>
+        <c:out value="${metrics.processedChains}"/>
+        (<fmt:formatNumber value="${metrics.chainsOneMinuteRate}" maxFractionDigits="2"/>/s over 1m)
+      </td>
+    </tr>
+  </table>
+
+  <h2 class="noBorder">Dead letters</h2>
+  <p>
+    <c:out value="${deadLetters}"/> webhooks could not be delivered and are stored for replay.
+    <c:if test="${replayRunning}">A replay is in progress.</c:if>
+    <c:if test="${replayed > 0 or failedAgain > 0}">
+      Last replay: <c:out value="${replayed}"/> sent, <c:out value="${failedAgain}"/> failed again.
+    </c:if>
+  </p>
+  <c:if test="${deadLetters > 0 and not replayRunning}">
+    <input type="button" class="btn" value="Replay dead letters"
+           onclick="BS.ajaxRequest('<c:url value="${actionUrl}"/>', {parameters: 'action=replayDeadLetters', onComplete: function() { window.location.reload(); }});"/>
+  </c:if>
+
+  <h2 class="noBorder">Historical export</h2>
+  <c:if test="${export.totalChains > 0}">
+    <p>
+      <c:out value="${export.exportedChains}"/> of <c:out value="${export.totalChains}"/> chains exported
+      (<fmt:formatNumber value="${export.completedRatio}" type="percent" maxFractionDigits="1"/>),
+      <c:out value="${export.sentWebhooks}"/> webhooks sent, <c:out value="${export.failedWebhooks}"/> failed.
+      Throughput: <fmt:formatNumber value="${export.chainsPerSecond}" maxFractionDigits="2"/> chains/s,
+      <fmt:formatNumber value="${export.webhooksPerSecond}" maxFractionDigits="2"/> webhooks/s.
+    </p>
+  </c:if>
+  <c:choose>
+    <c:when test="${exportRunning}">
+      <input type="button" class="btn" value="Cancel export"
+             onclick="BS.ajaxRequest('<c:url value="${actionUrl}"/>', {parameters: 'action=cancelExport', onComplete: function() { window.location.reload(); }});"/>
+    </c:when>
+    <c:otherwise>
+      <p>
+        Export the chains finished in the last
+        <input type="text" id="datadogExportDays" class="textField" size="4" value="30"/> days
+        for project <input type="text" id="datadogExportProject" class="textField" size="20" placeholder="all projects"/>
+        <input type="button" class="btn" value="Start export"
+               onclick="BS.ajaxRequest('<c:url value="${actionUrl}"/>', {parameters: {action: 'startExport', days: $('datadogExportDays').value, project: $('datadogExportProject').value}, onComplete: function() { window.location.reload(); }});"/>
+        <c:if test="${exportResumable}">
+          <input type="button" class="btn" value="Resume last export"
+                 onclick="BS.ajaxRequest('<c:url value="${actionUrl}"/>', {parameters: 'action=resumeExport', onComplete: function() { window.location.reload(); }});"/>
+        </c:if>
+      </p>
+    </c:otherwise>
+  </c:choose>
+
+  <h2 class="noBorder">Sites</h2>
+  <c:choose>
+    <c:when test="${empty metrics.sites}">
+      <p>No webhooks have been sent yet.</p>
+    </c:when>
+    <c:otherwise>
+      <table class="highlightable parametersTable">
+        <tr>
+          <th>Site</th>
+          <th>Sent</th>
+          <th>Failed</th>
+          <th>Success rate</th>
+          <th>Failure rate</th>
+        </tr>
+        <c:forEach items="${metrics.sites}" var="site">
+          <tr>
+            <td><c:out value="${site.key}"/></td>
+            <td><c:out value="${site.value.successes}"/></td>
+            <td><c:out value="${site.value.failures}"/></td>
+            <td><fmt:formatNumber value="${site.value.successRatio}" type="percent" maxFractionDigits="1"/></td>
+            <td><fmt:formatNumber value="${site.value.failureRatio}" type="percent" maxFractionDigits="1"/></td>
+          </tr>
+        </c:forEach>
+      </table>
+    </c:otherwise>
+  </c:choose>
+
+  <h2 class="noBorder">Caches</h2>
+  <c:choose>
+    <c:when test="${empty metrics.caches}">
+      <p>No cache has been used yet.</p>
+    </c:when>
+    <c:otherwise>
+      <table class="highlightable parametersTable">
+        <tr>
+          <th>Cache</th>
+          <th>Hits</th>
+          <th>Misses</th>
+          <th>Hit ratio</th>
+        </tr>
+        <c:forEach items="${metrics.caches}" var="cache">
+          <tr>
+            <td><c:out value="${cache.key}"/></td>
+            <td><c:out value="${cache.value.hits}"/></td>
+            <td><c:out value="${cache.value.misses}"/></td>
+            <td><fmt:formatNumber value="${cache.value.hitRatio}" type="percent" maxFractionDigits="1"/></td>
+          </tr>
+        </c:forEach>
+      </table>
+    </c:otherwise>
+  </c:choose>
+
+  <h2 class="noBorder">Skipped enrichments</h2>
+  <p>
+    <c:out value="${metrics.runningEnrichments}"/> optional fields are being computed on the enrichment threads.
+    <c:if test="${metrics.abandonedEnrichments > 0}">
+      <c:out value="${metrics.abandonedEnrichments}"/> of them were given up on and are still blocking their thread,
+      such as VCS calls that do not respond.
+    </c:if>
+  </p>
+  <c:choose>
+    <c:when test="${empty metrics.skippedEnrichments}">
+      <p>No optional field has been skipped.</p>
+    </c:when>
+    <c:otherwise>
+      <table class="highlightable parametersTable">
+        <tr>
+          <th>Field</th>
+          <th>Skipped (processing budget exhausted)</th>
+        </tr>
+        <c:forEach items="${metrics.skippedEnrichments}" var="enrichment">
+          <tr>
+            <td><c:out value="${enrichment.key}"/></td>
+            <td><c:out value="${enrichment.value}"/></td>
+          </tr>
+        </c:forEach>
+      </table>
+    </c:otherwise>
+  </c:choose>
+
+  <h2 class="noBorder">Slowest recent chains</h2>
+  <c:choose>
+    <c:when test="${empty metrics.slowestChains}">
+      <p>No chain has been processed yet.</p>
+    </c:when>
+    <c:otherwise>
+      <table class="highlightable parametersTable">
+        <tr>
+          <th>Build ID</th>
+          <th>Name</th>
+          <th>Webhooks</th>
+          <th>Processing time (ms)</th>
+        </tr>
+        <c:forEach items="${metrics.slowestChains}" var="chain">
+          <tr>
+            <td><c:out value="${chain.buildId}"/></td>
+            <td><c:out value="${chain.name}"/></td>
+            <td><c:out value="${chain.webhooks}"/></td>
+            <td><c:out value="${chain.durationMs}"/></td>
+          </tr>
+        </c:forEach>
+      </table>
+    </c:otherwise>
+  </c:choose>
+</div>
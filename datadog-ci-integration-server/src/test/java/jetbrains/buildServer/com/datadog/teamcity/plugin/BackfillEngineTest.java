@@ -0,0 +1,218 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.BuildQueryOptions;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.BuildsManager;
+import jetbrains.buildServer.serverSide.SFinishedBuild;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.ItemProcessor;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BackfillEngineTest {
+
+    private static final int TEST_TIMEOUT_MS = 30_000;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Mock
+    private EventDispatcher<BuildServerListener> eventListener;
+    @Mock
+    private BuildsManager buildsManagerMock;
+    @Mock
+    private BuildChainProcessor chainProcessorMock;
+    @Mock
+    private ProjectHandler projectHandlerMock;
+
+    private ProcessingWatermark watermark;
+    private ProcessingWatermark progress;
+    private BackfillEngine backfillEngine;
+
+    @Before
+    public void setUp() {
+        when(projectHandlerMock.isPluginEnabled(any())).thenReturn(true);
+
+        watermark = new ProcessingWatermark(tempFolder.getRoot());
+        progress = new ProcessingWatermark(tempFolder.getRoot(), BackfillEngine.PROGRESS_FILE);
+        backfillEngine = new BackfillEngine(eventListener, buildsManagerMock, chainProcessorMock, projectHandlerMock, watermark, progress, 100);
+    }
+
+    @Test
+    public void shouldProcessChainsFinishedAfterWatermark() {
+        // Setup
+        long markTime = System.currentTimeMillis() - 60_000;
+        watermark.advance(finishedBuild(10, true, markTime));
+
+        SFinishedBuild alreadyProcessedChain = finishedBuild(9, true, markTime - 1000);
+        SFinishedBuild jobBuild = finishedBuild(11, false, markTime + 1000);
+        SFinishedBuild firstMissedChain = finishedBuild(12, true, markTime + 1000);
+        SFinishedBuild secondMissedChain = finishedBuild(13, true, markTime + 2000);
+        finishedBuilds(secondMissedChain, firstMissedChain, jobBuild, alreadyProcessedChain);
+
+        // When
+        backfillEngine.serverStartup();
+
+        // Then
+        verify(chainProcessorMock, timeout(TEST_TIMEOUT_MS)).process(firstMissedChain);
+        verify(chainProcessorMock, timeout(TEST_TIMEOUT_MS)).process(secondMissedChain);
+        verify(chainProcessorMock, never()).process(jobBuild);
+        verify(chainProcessorMock, never()).process(alreadyProcessedChain);
+
+        awaitBackfill();
+        assertThat(watermark.buildId()).isEqualTo(13L);
+        assertThat(progress.isSet()).isFalse();
+    }
+
+    @Test
+    public void shouldResumeInterruptedBackfill() {
+        // Setup: the backfill stopped after chain 12, while live chains moved the watermark to chain 20
+        long markTime = System.currentTimeMillis() - 60_000;
+        progress.set(12, markTime);
+        watermark.advance(finishedBuild(20, true, markTime + 10_000));
+
+        SFinishedBuild backfilledChain = finishedBuild(11, true, markTime - 1000);
+        SFinishedBuild missedChain = finishedBuild(13, true, markTime + 1000);
+        finishedBuilds(missedChain, backfilledChain);
+
+        // When
+        backfillEngine.serverStartup();
+
+        // Then
+        verify(chainProcessorMock, timeout(TEST_TIMEOUT_MS)).process(missedChain);
+        verify(chainProcessorMock, never()).process(backfilledChain);
+
+        awaitBackfill();
+        assertThat(watermark.buildId()).isEqualTo(20L);
+        assertThat(progress.isSet()).isFalse();
+    }
+
+    @Test
+    public void shouldKeepBackfillProgressSeparateFromLiveWatermark() throws InterruptedException {
+        // Setup
+        long markTime = System.currentTimeMillis() - 60_000;
+        watermark.advance(finishedBuild(10, true, markTime));
+        SFinishedBuild missedChain = finishedBuild(12, true, markTime + 1000);
+        finishedBuilds(missedChain);
+
+        CountDownLatch processing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            processing.countDown();
+            release.await(TEST_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            return null;
+        }).when(chainProcessorMock).process(missedChain);
+
+        // When: a live chain finishes while the missed one is backfilled
+        backfillEngine.serverStartup();
+        assertThat(processing.await(TEST_TIMEOUT_MS, TimeUnit.MILLISECONDS)).isTrue();
+        watermark.advance(finishedBuild(30, true, System.currentTimeMillis()));
+
+        // Then: a restart at this point would backfill from the original mark
+        ProcessingWatermark reloadedProgress = new ProcessingWatermark(tempFolder.getRoot(), BackfillEngine.PROGRESS_FILE);
+        assertThat(reloadedProgress.buildId()).isEqualTo(10L);
+
+        release.countDown();
+        awaitBackfill();
+        assertThat(watermark.buildId()).isEqualTo(30L);
+        assertThat(progress.isSet()).isFalse();
+    }
+
+    @Test
+    public void shouldBackfillOldestChainsFirstWhenTooMany() {
+        // Setup: 3 missed chains, listed from the most recently finished, with room for 2 per backfill
+        long markTime = System.currentTimeMillis() - 60_000;
+        watermark.advance(finishedBuild(10, true, markTime));
+        SFinishedBuild firstMissedChain = finishedBuild(11, true, markTime + 1000);
+        SFinishedBuild secondMissedChain = finishedBuild(12, true, markTime + 2000);
+        SFinishedBuild thirdMissedChain = finishedBuild(13, true, markTime + 3000);
+        finishedBuilds(thirdMissedChain, secondMissedChain, firstMissedChain);
+        BackfillEngine limitedEngine = new BackfillEngine(eventListener, buildsManagerMock, chainProcessorMock,
+            projectHandlerMock, watermark, progress, 2);
+
+        // When
+        limitedEngine.serverStartup();
+
+        // Then: the oldest chains are backfilled, and the progress is kept for the next run
+        verify(chainProcessorMock, timeout(TEST_TIMEOUT_MS)).process(firstMissedChain);
+        verify(chainProcessorMock, timeout(TEST_TIMEOUT_MS)).process(secondMissedChain);
+        awaitBackfill(limitedEngine);
+        verify(chainProcessorMock, never()).process(thirdMissedChain);
+        assertThat(progress.buildId()).isEqualTo(12L);
+
+        // When: the next run
+        limitedEngine.backfillAsync();
+
+        // Then
+        verify(chainProcessorMock, timeout(TEST_TIMEOUT_MS)).process(thirdMissedChain);
+        awaitBackfill(limitedEngine);
+        verify(chainProcessorMock, times(1)).process(firstMissedChain);
+        assertThat(progress.isSet()).isFalse();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void finishedBuilds(SFinishedBuild... builds) {
+        List<SFinishedBuild> history = Arrays.asList(builds);
+        doAnswer(invocation -> {
+            ItemProcessor<SFinishedBuild> processor = (ItemProcessor<SFinishedBuild>) invocation.getArguments()[1];
+            for (SFinishedBuild build : history) {
+                if (!processor.processItem(build)) {
+                    break;
+                }
+            }
+            return null;
+        }).when(buildsManagerMock).processFinishedBuilds(any(BuildQueryOptions.class), any());
+    }
+
+    private void awaitBackfill() {
+        awaitBackfill(backfillEngine);
+    }
+
+    private static void awaitBackfill(BackfillEngine engine) {
+        long deadline = System.currentTimeMillis() + TEST_TIMEOUT_MS;
+        while (engine.isRunning() && System.currentTimeMillis() < deadline) {
+            Thread.yield();
+        }
+    }
+
+    private static SFinishedBuild finishedBuild(long id, boolean isChainTail, long finishTimeMs) {
+        SFinishedBuild build = mock(SFinishedBuild.class);
+        BuildPromotion promotion = mock(BuildPromotion.class);
+        when(build.getBuildId()).thenReturn(id);
+        when(build.isCompositeBuild()).thenReturn(isChainTail);
+        when(build.getFinishDate()).thenReturn(new Date(finishTimeMs));
+        when(build.getBuildPromotion()).thenReturn(promotion);
+        return build;
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import com.google.common.io.ByteStreams;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.BufferPool.ReusableBuffer;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BufferPoolTest {
+
+    private final BufferPool pool = new BufferPool(64, 1024);
+
+    @Test
+    public void shouldReuseBufferOfCurrentThread() {
+        ReusableBuffer first = pool.acquire();
+        first.write(1);
+        pool.release(first);
+
+        ReusableBuffer second = pool.acquire();
+        assertThat(second).isSameAs(first);
+        assertThat(second.size()).isEqualTo(0);
+        pool.release(second);
+    }
+
+    @Test
+    public void shouldNotShareBufferInUse() {
+        ReusableBuffer first = pool.acquire();
+        ReusableBuffer second = pool.acquire();
+
+        assertThat(second).isNotSameAs(first);
+        pool.release(second);
+        pool.release(first);
+    }
+
+    @Test
+    public void shouldDropBufferWhichGrewTooLarge() {
+        ReusableBuffer buffer = pool.acquire();
+        buffer.write(new byte[4096], 0, 4096);
+        assertThat(buffer.toByteArray()).hasSize(4096);
+        pool.release(buffer);
+
+        ReusableBuffer next = pool.acquire();
+        assertThat(next).isNotSameAs(buffer);
+        assertThat(next.capacity()).isLessThanOrEqualTo(1024);
+        pool.release(next);
+    }
+
+    @Test
+    public void shouldCompressInGzipFormat() throws IOException {
+        byte[] json = "{\"level\":\"pipeline\",\"name\":\"Full Name\"}".getBytes(StandardCharsets.UTF_8);
+        byte[] random = new byte[100_000];
+        new Random(42).nextBytes(random);
+
+        for (byte[] data : new byte[][]{json, random, new byte[0]}) {
+            // Twice, to check the deflater is reset between payloads
+            for (int i = 0; i < 2; i++) {
+                try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(pool.gzip(data)))) {
+                    assertThat(ByteStreams.toByteArray(in)).isEqualTo(data);
+                }
+            }
+        }
+    }
+}
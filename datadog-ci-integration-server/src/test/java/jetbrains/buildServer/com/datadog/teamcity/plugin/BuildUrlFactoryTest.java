@@ -0,0 +1,43 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.serverSide.SBuildServer;
+import jetbrains.buildServer.serverSide.ServerSettings;
+import org.junit.Test;
+
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.MockBuild.BuildType.JOB;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class BuildUrlFactoryTest {
+
+    private final SBuildServer buildServer = mock(SBuildServer.class);
+    private final ServerSettings serverSettings = mock(ServerSettings.class);
+    private final BuildUrlFactory factory = new BuildUrlFactory(buildServer, serverSettings);
+
+    @Test
+    public void shouldFollowServerSettingsChanges() {
+        SBuild build = new MockBuild.Builder(42, JOB).build();
+
+        when(buildServer.getRootUrl()).thenReturn("http://teamcity/ignored/path");
+        when(serverSettings.getServerUUID()).thenReturn("server-a");
+        assertThat(factory.buildURL(build)).isEqualTo("http://teamcity/build/42");
+        assertThat(factory.buildID(build)).isEqualTo("server-a-42");
+
+        when(buildServer.getRootUrl()).thenReturn("teamcity.example.com");
+        when(serverSettings.getServerUUID()).thenReturn("server-b");
+        assertThat(factory.buildURL(build)).isEqualTo("http://teamcity.example.com/build/42");
+        assertThat(factory.buildID(build)).isEqualTo("server-b-42");
+
+        when(buildServer.getRootUrl()).thenReturn("invalid-protocol://hostname");
+        assertThat(factory.buildURL(build)).isEmpty();
+    }
+}
@@ -7,8 +7,14 @@
 
 package jetbrains.buildServer.com.datadog.teamcity.plugin;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Uninterruptibles;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.DatadogClient.DestinationLimits;
 import jetbrains.buildServer.com.datadog.teamcity.plugin.DatadogClient.RetryInformation;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.DeadLetterStore.DeadLetter;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.WebhookSink.Destination;
 import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.JobWebhook;
 import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.JobWebhook.JobStatus;
 import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.PipelineWebhook;
@@ -22,23 +28,31 @@ import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 
 import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
 import static jetbrains.buildServer.com.datadog.teamcity.plugin.BuildUtils.toRFC3339;
 import static jetbrains.buildServer.com.datadog.teamcity.plugin.DatadogClient.DD_API_KEY_HEADER;
 import static jetbrains.buildServer.com.datadog.teamcity.plugin.DatadogClient.DD_CI_PROVIDER_HEADER;
@@ -61,11 +75,15 @@ import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
+import static org.springframework.http.HttpMethod.HEAD;
 import static org.springframework.http.HttpMethod.POST;
+import static org.springframework.http.HttpStatus.FORBIDDEN;
 import static org.springframework.http.HttpStatus.INTERNAL_SERVER_ERROR;
 
 
@@ -75,13 +93,33 @@ public class DatadogClientTest {
     private static final RetryInformation RETRY_INFO = new RetryInformation(2, 0);
     private static final int TEST_TIMEOUT_MS = 30_000;
     private static final String TEST_WEBHOOK_INTAKE = "https://webhook-intake.datad0g.com/api/v2/webhook";
+    private static final String TEST_COLLECTOR_URL = "https://collector.internal/webhook";
 
     @Captor
     private ArgumentCaptor<HttpEntity<String>> requestCaptor;
 
+    @Captor
+    private ArgumentCaptor<HttpEntity<byte[]>> compressedRequestCaptor;
+
+    @Captor
+    private ArgumentCaptor<DeadLetter> deadLetterCaptor;
+
     @Mock
     private RestTemplate restTemplateMock;
 
+    @Mock
+    private DeadLetterStore deadLetterStoreMock;
+
+    @Mock
+    private DeadLetterStore unsentStoreMock;
+
+    @Mock
+    private DeliveryIndex deliveryIndexMock;
+
+    private final MemoryPressureMonitor memoryPressure = new MemoryPressureMonitor(0.85, 0.75);
+
+    private final PluginMetrics metrics = new PluginMetrics();
+
     private DatadogClient datadogClient;
 
     @Before
@@ -89,7 +127,8 @@ public class DatadogClientTest {
         ObjectMapper mapper = new DatadogConfiguration().objectMapper();
         ExecutorService executorService = Executors.newFixedThreadPool(1);
 
-        datadogClient = new DatadogClient(restTemplateMock, mapper, RETRY_INFO, executorService);
+        datadogClient = new DatadogClient(restTemplateMock, mapper, RETRY_INFO, executorService, metrics,
+            deadLetterStoreMock, unsentStoreMock, deliveryIndexMock, new DestinationLimits(1, 100, 0), memoryPressure);
     }
 
     @Test
@@ -232,6 +271,15 @@ public class DatadogClientTest {
         verify(restTemplateMock, times(1))
             .exchange(eq(TEST_WEBHOOK_INTAKE), eq(POST), requestCaptor.capture(), eq(String.class));
         assertThat(successful).isFalse();
+
+        verify(deadLetterStoreMock, times(1)).append(deadLetterCaptor.capture());
+        DeadLetter deadLetter = deadLetterCaptor.getValue();
+        assertThat(deadLetter.webhookId()).isEqualTo(DEFAULT_ID);
+        assertThat(deadLetter.apiKey()).isEqualTo(mockApiKey);
+        assertThat(deadLetter.ddSite()).isEqualTo("datad0g.com");
+        assertThat(deadLetter.lastStatus()).isEqualTo(400);
+        assertThat(deadLetter.attempts()).isEqualTo(1);
+        assertThat(removeWhitespaces(deadLetter.payload())).isEqualTo(removeWhitespaces(loadJson("default-pipeline.json")));
     }
 
     @Test
@@ -249,6 +297,266 @@ public class DatadogClientTest {
         verify(restTemplateMock, times(3)) // 1 normal and 2 retries
             .exchange(eq(TEST_WEBHOOK_INTAKE), eq(POST), requestCaptor.capture(), eq(String.class));
         assertThat(successful).isFalse();
+
+        verify(deadLetterStoreMock, times(1)).append(deadLetterCaptor.capture());
+        assertThat(deadLetterCaptor.getValue().lastStatus()).isEqualTo(500);
+        assertThat(deadLetterCaptor.getValue().attempts()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldResendDeadLetter() {
+        // Setup
+        when(restTemplateMock.exchange(anyString(), eq(POST), any(), Matchers.<Class<String>>any()))
+            .thenReturn(ResponseEntity.ok("Successful Request"));
+        String payload = loadJson("default-pipeline.json");
+        DeadLetter deadLetter = new DeadLetter(DEFAULT_ID, TEST_DD_SITE, TEST_API_KEY, payload, 500, 4, 0);
+
+        // When
+        boolean successful = datadogClient.resendAsync(deadLetter).join();
+
+        // Then
+        verify(restTemplateMock, times(1))
+            .exchange(eq(TEST_WEBHOOK_INTAKE), eq(POST), requestCaptor.capture(), eq(String.class));
+        assertThat(successful).isTrue();
+        assertThat(requestCaptor.getValue().getBody()).isEqualTo(payload);
+        assertThat(requestCaptor.getValue().getHeaders().toSingleValueMap())
+            .containsEntry(DD_API_KEY_HEADER, TEST_API_KEY);
+        verifyZeroInteractions(deadLetterStoreMock);
+    }
+
+    @Test
+    public void shouldSendCompressedWebhook() throws IOException {
+        // Setup
+        when(restTemplateMock.exchange(anyString(), eq(POST), any(), Matchers.<Class<String>>any()))
+            .thenReturn(ResponseEntity.ok("Successful Request"));
+
+        // When
+        boolean successful = datadogClient.sendCompressedAsync(defaultPipeline(), TEST_API_KEY, TEST_DD_SITE).join();
+
+        // Then
+        verify(restTemplateMock, times(1))
+            .exchange(eq(TEST_WEBHOOK_INTAKE), eq(POST), compressedRequestCaptor.capture(), eq(String.class));
+        assertThat(successful).isTrue();
+
+        HttpEntity<byte[]> request = compressedRequestCaptor.getValue();
+        assertThat(request.getHeaders().toSingleValueMap()).containsEntry(HttpHeaders.CONTENT_ENCODING, "gzip");
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(request.getBody()))) {
+            String body = new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8);
+            assertThat(removeWhitespaces(body)).isEqualTo(removeWhitespaces(loadJson("default-pipeline.json")));
+        }
+    }
+
+    @Test
+    public void shouldSendWebhookToAllDestinations() {
+        // Setup
+        when(restTemplateMock.exchange(anyString(), eq(POST), any(), Matchers.<Class<String>>any()))
+            .thenReturn(ResponseEntity.ok("Successful Request"));
+        List<Destination> destinations = Arrays.asList(
+            new Destination("", TEST_API_KEY, TEST_DD_SITE),
+            new Destination("collector", "collector-api-key", TEST_COLLECTOR_URL));
+
+        // When
+        datadogClient.sendWebhooksAsync(singletonList(defaultPipeline()), destinations);
+
+        // Then
+        verify(restTemplateMock, timeout(TEST_TIMEOUT_MS).times(1))
+            .exchange(eq(TEST_WEBHOOK_INTAKE), eq(POST), compressedRequestCaptor.capture(), eq(String.class));
+        verify(restTemplateMock, timeout(TEST_TIMEOUT_MS).times(1))
+            .exchange(eq(TEST_COLLECTOR_URL), eq(POST), compressedRequestCaptor.capture(), eq(String.class));
+        verify(deliveryIndexMock, timeout(TEST_TIMEOUT_MS).times(1)).markDelivered(DEFAULT_ID);
+        verify(deliveryIndexMock, timeout(TEST_TIMEOUT_MS).times(1)).markDelivered(DEFAULT_ID + "@collector");
+
+        // The webhook is serialized and compressed once for all the destinations
+        List<HttpEntity<byte[]>> requests = compressedRequestCaptor.getAllValues();
+        assertThat(requests.get(0).getBody()).isSameAs(requests.get(1).getBody());
+        assertThat(requests.stream().map(request -> request.getHeaders().toSingleValueMap().get(DD_API_KEY_HEADER)).collect(toList()))
+            .containsExactlyInAnyOrder(TEST_API_KEY, "collector-api-key");
+    }
+
+    @Test
+    public void shouldBatchQueuedWebhooks() throws Exception {
+        // Setup
+        DatadogClient batchingClient = new DatadogClient(restTemplateMock, new DatadogConfiguration().objectMapper(),
+            RETRY_INFO, Executors.newFixedThreadPool(1), new PluginMetrics(), deadLetterStoreMock, unsentStoreMock,
+            deliveryIndexMock, new DestinationLimits(1, 100, 0, 10, Integer.MAX_VALUE, 50), memoryPressure);
+
+        CountDownLatch firstRequestStarted = new CountDownLatch(1);
+        CountDownLatch firstRequestReleased = new CountDownLatch(1);
+        when(restTemplateMock.exchange(anyString(), eq(POST), any(), Matchers.<Class<String>>any()))
+            .thenAnswer(invocation -> {
+                firstRequestStarted.countDown();
+                firstRequestReleased.await();
+                return ResponseEntity.ok("Successful Request");
+            });
+
+        // When: the webhooks queued while the first one is being sent are sent together
+        batchingClient.sendWebhooksAsync(singletonList(defaultPipeline()), TEST_API_KEY, TEST_DD_SITE);
+        firstRequestStarted.await();
+        batchingClient.sendWebhooksAsync(Arrays.asList(jobWithId("10"), jobWithId("11"), jobWithId("12")), TEST_API_KEY, TEST_DD_SITE);
+        firstRequestReleased.countDown();
+
+        // Then
+        verify(restTemplateMock, timeout(TEST_TIMEOUT_MS).times(2))
+            .exchange(eq(TEST_WEBHOOK_INTAKE), eq(POST), compressedRequestCaptor.capture(), eq(String.class));
+        verify(deliveryIndexMock, timeout(TEST_TIMEOUT_MS).times(1)).markDelivered("12");
+
+        HttpEntity<byte[]> batch = compressedRequestCaptor.getValue();
+        assertThat(batch.getHeaders().toSingleValueMap()).containsEntry(HttpHeaders.CONTENT_ENCODING, "gzip");
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(batch.getBody()))) {
+            JsonNode webhooks = new ObjectMapper().readTree(ByteStreams.toByteArray(in));
+            assertThat(webhooks.isArray()).isTrue();
+            assertThat(webhooks.size()).isEqualTo(3);
+            assertThat(webhooks.get(0).get("id").asText()).isEqualTo("10");
+        }
+    }
+
+    @Test
+    public void shouldStoreBatchFailingWithUnexpectedError() {
+        // Setup
+        when(restTemplateMock.exchange(anyString(), eq(POST), any(), Matchers.<Class<String>>any()))
+            .thenThrow(new IllegalStateException("Connection pool shut down"));
+
+        // When
+        datadogClient.sendWebhooksAsync(singletonList(defaultPipeline()), TEST_API_KEY, TEST_DD_SITE);
+
+        // Then
+        verify(deadLetterStoreMock, timeout(TEST_TIMEOUT_MS).times(1)).append(deadLetterCaptor.capture());
+        assertThat(deadLetterCaptor.getValue().webhookId()).isEqualTo(DEFAULT_ID);
+        assertThat(deadLetterCaptor.getValue().apiKey()).isEqualTo(TEST_API_KEY);
+        assertThat(deadLetterCaptor.getValue().ddSite()).isEqualTo(TEST_DD_SITE);
+    }
+
+    @Test
+    public void shouldStopThreadsOfIdleDestination() throws Exception {
+        // Setup
+        String idleSite = "idle.datad0g.com";
+        DatadogClient idleClient = new DatadogClient(restTemplateMock, new DatadogConfiguration().objectMapper(),
+            RETRY_INFO, Executors.newFixedThreadPool(1), new PluginMetrics(), deadLetterStoreMock, unsentStoreMock,
+            deliveryIndexMock, new DestinationLimits(2, 100, 0, 1, Integer.MAX_VALUE, 0, 50), memoryPressure);
+        when(restTemplateMock.exchange(anyString(), eq(POST), any(), Matchers.<Class<String>>any()))
+            .thenReturn(ResponseEntity.ok("Successful Request"));
+
+        // When
+        idleClient.sendWebhooksAsync(singletonList(jobWithId("10")), TEST_API_KEY, idleSite);
+        verify(deliveryIndexMock, timeout(TEST_TIMEOUT_MS)).markDelivered("10");
+
+        // Then: the threads stop once idle, and the destination starts again with its next webhook
+        long deadline = System.currentTimeMillis() + TEST_TIMEOUT_MS;
+        while (senderThreads(idleSite) > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(senderThreads(idleSite)).isZero();
+
+        idleClient.sendWebhooksAsync(singletonList(jobWithId("11")), TEST_API_KEY, idleSite);
+        verify(deliveryIndexMock, timeout(TEST_TIMEOUT_MS)).markDelivered("11");
+        verifyZeroInteractions(deadLetterStoreMock);
+    }
+
+    @Test
+    public void shouldStoreUnsentWebhooksOnShutdown() throws Exception {
+        // Setup: the first webhook is still being sent at shutdown, the others are queued behind it
+        CountDownLatch requestStarted = new CountDownLatch(1);
+        CountDownLatch requestReleased = new CountDownLatch(1);
+        when(restTemplateMock.exchange(anyString(), eq(POST), any(), Matchers.<Class<String>>any()))
+            .thenAnswer(invocation -> {
+                requestStarted.countDown();
+                requestReleased.await();
+                return ResponseEntity.ok("Successful Request");
+            });
+
+        datadogClient.sendWebhooksAsync(Arrays.asList(jobWithId("10"), jobWithId("11"), jobWithId("12")), TEST_API_KEY, TEST_DD_SITE);
+        requestStarted.await();
+
+        // When
+        datadogClient.shutdown(100);
+        datadogClient.sendWebhooksAsync(singletonList(jobWithId("13")), TEST_API_KEY, TEST_DD_SITE);
+        boolean resent = datadogClient.sendCompressedAsync(jobWithId("14"), TEST_API_KEY, TEST_DD_SITE).join();
+        requestReleased.countDown();
+
+        // Then
+        verify(unsentStoreMock, times(5)).append(deadLetterCaptor.capture());
+        assertThat(deadLetterCaptor.getAllValues().stream().map(DeadLetter::webhookId).collect(toList()))
+            .containsExactlyInAnyOrder("10", "11", "12", "13", "14");
+        assertThat(deadLetterCaptor.getValue().apiKey()).isEqualTo(TEST_API_KEY);
+        assertThat(deadLetterCaptor.getValue().ddSite()).isEqualTo(TEST_DD_SITE);
+        assertThat(resent).isFalse();
+        verify(deadLetterStoreMock, never()).append(any());
+    }
+
+    @Test(timeout = TEST_TIMEOUT_MS)
+    public void shouldSpillQueuedWebhooksUnderMemoryPressure() throws Exception {
+        // Setup: the first webhook is still being sent, the others are queued behind it
+        CountDownLatch requestStarted = new CountDownLatch(1);
+        CountDownLatch requestReleased = new CountDownLatch(1);
+        when(restTemplateMock.exchange(anyString(), eq(POST), any(), Matchers.<Class<String>>any()))
+            .thenAnswer(invocation -> {
+                requestStarted.countDown();
+                requestReleased.await();
+                return ResponseEntity.ok("Successful Request");
+            });
+
+        datadogClient.sendWebhooksAsync(singletonList(jobWithId("0")), TEST_API_KEY, TEST_DD_SITE);
+        requestStarted.await();
+
+        // When
+        memoryPressure.update(0.9);
+        List<Webhook> webhooks = new ArrayList<>();
+        for (int i = 1; i <= 105; i++) {
+            webhooks.add(jobWithId(String.valueOf(i)));
+        }
+        datadogClient.sendWebhooksAsync(webhooks, TEST_API_KEY, TEST_DD_SITE);
+        requestReleased.countDown();
+
+        // Then
+        verify(unsentStoreMock, times(5)).append(deadLetterCaptor.capture());
+        assertThat(deadLetterCaptor.getAllValues().stream().map(DeadLetter::webhookId).collect(toList()))
+            .containsExactly("101", "102", "103", "104", "105");
+        verify(deadLetterStoreMock, never()).append(any());
+    }
+
+    @Test
+    public void shouldPreconnectWithoutApiKey() {
+        // Setup
+        when(restTemplateMock.exchange(anyString(), eq(HEAD), any(), Matchers.<Class<Void>>any()))
+            .thenThrow(new HttpClientErrorException(FORBIDDEN));
+
+        // When
+        datadogClient.warmUpSerialization(StartupWarmup.sampleWebhooks(), 2);
+        datadogClient.preconnect(TEST_DD_SITE);
+
+        // Then
+        ArgumentCaptor<HttpEntity> preconnectCaptor = ArgumentCaptor.forClass(HttpEntity.class);
+        verify(restTemplateMock, times(1)).exchange(eq(TEST_WEBHOOK_INTAKE), eq(HEAD), preconnectCaptor.capture(), eq(Void.class));
+        assertThat(preconnectCaptor.getValue().getHeaders().containsKey(DD_API_KEY_HEADER)).isFalse();
+        verifyZeroInteractions(deadLetterStoreMock, deliveryIndexMock);
+    }
+
+    @Test
+    public void shouldRecordDeliveredWebhook() {
+        // Setup
+        when(restTemplateMock.exchange(anyString(), eq(POST), any(), Matchers.<Class<String>>any()))
+            .thenReturn(ResponseEntity.ok("Successful Request"));
+
+        // When
+        boolean successful = datadogClient.sendWebhookWithRetries(defaultPipeline(), TEST_API_KEY, TEST_DD_SITE);
+
+        // Then
+        assertThat(successful).isTrue();
+        verify(deliveryIndexMock, times(1)).markDelivered(DEFAULT_ID);
+    }
+
+    @Test
+    public void shouldNotSendAlreadyDeliveredWebhook() {
+        // Setup
+        when(deliveryIndexMock.isDelivered(DEFAULT_ID)).thenReturn(true);
+
+        // When
+        boolean successful = datadogClient.sendWebhookWithRetries(defaultPipeline(), TEST_API_KEY, TEST_DD_SITE);
+
+        // Then
+        assertThat(successful).isTrue();
+        verifyZeroInteractions(restTemplateMock);
+        assertThat(metrics.snapshot().getAlreadyDeliveredWebhooks()).isEqualTo(1L);
     }
 
     @Test
@@ -324,6 +632,17 @@ public class DatadogClientTest {
         return pipelineWebhook;
     }
 
+    private static JobWebhook jobWithId(String id) {
+        return new JobWebhook(DEFAULT_NAME, DEFAULT_BUILD_URL, toRFC3339(DEFAULT_START_DATE), toRFC3339(DEFAULT_END_DATE),
+            DEFAULT_PIPELINE_ID, DEFAULT_PIPELINE_NAME, id, JobStatus.SUCCESS, DEFAULT_QUEUE_TIME);
+    }
+
+    private static long senderThreads(String ddSite) {
+        return Thread.getAllStackTraces().keySet().stream()
+            .filter(thread -> thread.getName().startsWith("datadog-client-" + ddSite + "-"))
+            .count();
+    }
+
     private static JobWebhook completeJob() {
         JobWebhook jobWebhook = new JobWebhook(
             DEFAULT_NAME,
@@ -7,14 +7,18 @@
 
 package jetbrains.buildServer.com.datadog.teamcity.plugin;
 
+import jetbrains.buildServer.com.datadog.teamcity.plugin.BuildStepsArtifact.Step;
 import jetbrains.buildServer.com.datadog.teamcity.plugin.ProjectHandler.ProjectParameters;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.GitInfo;
 import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.JobWebhook;
 import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.JobWebhook.JobStatus;
 import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.PipelineWebhook;
 import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.PipelineWebhook.PipelineStatus;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.StepWebhook;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.StepWebhook.StepStatus;
 import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.Webhook;
 import jetbrains.buildServer.serverSide.BuildServerListener;
-import jetbrains.buildServer.serverSide.BuildsManager;
+import jetbrains.buildServer.serverSide.SBuild;
 import jetbrains.buildServer.serverSide.SBuildServer;
 import jetbrains.buildServer.serverSide.SRunningBuild;
 import jetbrains.buildServer.serverSide.ServerSettings;
@@ -30,9 +34,12 @@ import org.mockito.runners.MockitoJUnitRunner;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
-import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.LongStream;
 
+import static java.util.Collections.emptyList;
 import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
 import static jetbrains.buildServer.BuildProblemTypes.TC_FAILED_TESTS_TYPE;
 import static jetbrains.buildServer.com.datadog.teamcity.plugin.BuildUtils.toRFC3339;
 import static jetbrains.buildServer.com.datadog.teamcity.plugin.MockBuild.BuildType.JOB;
@@ -54,8 +61,11 @@ import static jetbrains.buildServer.com.datadog.teamcity.plugin.TestUtils.defaul
 import static jetbrains.buildServer.com.datadog.teamcity.plugin.TestUtils.defaultUrl;
 import static jetbrains.buildServer.com.datadog.teamcity.plugin.TestUtils.nonDefaultUrl;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
@@ -74,28 +84,40 @@ public class DatadogServerAdapterProcessingTest {
     @Mock
     private SBuildServer buildServerMock;
     @Mock
-    private BuildsManager buildsManagerMock;
-    @Mock
     private EventDispatcher<BuildServerListener> eventListener;
     @Mock
     private GitInformationExtractor gitInfoExtractorMock;
     @Mock
     private ServerSettings serverSettings;
+    @Mock
+    private ProcessingWatermark watermarkMock;
+    @Mock
+    private PipelineProgressReporter progressReporterMock;
+    @Mock
+    private BuildStepsReader buildStepsReaderMock;
 
+    private BuildChainProcessor chainProcessor;
     private DatadogServerAdapter datadogServerAdapter;
 
     @Before
     public void setUp() {
         when(buildServerMock.getRootUrl()).thenReturn(LOCALHOST);
-        when(gitInfoExtractorMock.extractGitInfo(any())).thenReturn(Optional.empty());
+        when(gitInfoExtractorMock.extractAllGitInfo(any())).thenReturn(emptyList());
         when(serverSettings.getServerUUID()).thenReturn(DEFAULT_SERVER_ID);
 
         when(projectHandlerMock.getProjectParameters(any()))
             .thenReturn(new ProjectParameters(TEST_API_KEY, TEST_DD_SITE));
         when(projectHandlerMock.isPluginEnabled(any())).thenReturn(true);
 
-        BuildChainProcessor chainProcessor = new BuildChainProcessor(buildServerMock, datadogClientMock, projectHandlerMock, gitInfoExtractorMock, serverSettings);
-        datadogServerAdapter = new DatadogServerAdapter(eventListener, buildsManagerMock, chainProcessor, projectHandlerMock);
+        chainProcessor = newChainProcessor();
+        datadogServerAdapter = new DatadogServerAdapter(eventListener, chainProcessor, projectHandlerMock, watermarkMock, progressReporterMock);
+    }
+
+    private BuildChainProcessor newChainProcessor() {
+        PluginMetrics metrics = new PluginMetrics();
+        SentJobsIndex sentJobsIndex = new SentJobsIndex(true, TimeUnit.HOURS.toNanos(1), 1000, System::nanoTime, metrics);
+        return new BuildChainProcessor(new BuildUrlFactory(buildServerMock, serverSettings), datadogClientMock, projectHandlerMock, gitInfoExtractorMock, metrics, sentJobsIndex,
+            new ValueInterner(64, metrics), new ProcessingBudget(metrics, new MemoryPressureMonitor(0.85, 0.75)), buildStepsReaderMock);
     }
 
     @Test
@@ -104,7 +126,28 @@ public class DatadogServerAdapterProcessingTest {
 
         datadogServerAdapter.buildFinished(jobBuild);
 
-        verifyZeroInteractions(datadogClientMock, buildsManagerMock);
+        verifyZeroInteractions(datadogClientMock);
+    }
+
+    @Test
+    public void shouldReportActivityOfRunningChains() {
+        SRunningBuild jobBuild = new MockBuild.Builder(1, JOB).withNumOfDependents(1).build();
+
+        datadogServerAdapter.buildStarted(jobBuild);
+        datadogServerAdapter.buildFinished(jobBuild);
+
+        verify(progressReporterMock, times(2)).onChainActivity(jobBuild);
+        verifyZeroInteractions(datadogClientMock);
+    }
+
+    @Test
+    public void shouldCancelRunningUpdateOfFinishedPipeline() {
+        SRunningBuild pipelineBuild = new MockBuild.Builder(1, PIPELINE).build();
+
+        datadogServerAdapter.buildFinished(pipelineBuild);
+
+        verify(progressReporterMock).onPipelineFinished(pipelineBuild);
+        verify(progressReporterMock, never()).onChainActivity(any());
     }
 
     @Test
@@ -114,7 +157,7 @@ public class DatadogServerAdapterProcessingTest {
 
         datadogServerAdapter.buildFinished(validBuild);
 
-        verifyZeroInteractions(datadogClientMock, buildsManagerMock);
+        verifyZeroInteractions(datadogClientMock);
     }
 
     @Test
@@ -123,7 +166,7 @@ public class DatadogServerAdapterProcessingTest {
 
         datadogServerAdapter.buildFinished(personalBuild);
 
-        verifyZeroInteractions(datadogClientMock, buildsManagerMock);
+        verifyZeroInteractions(datadogClientMock);
     }
 
     @Test
@@ -134,17 +177,18 @@ public class DatadogServerAdapterProcessingTest {
 
         datadogServerAdapter.buildFinished(compositeBuildWithDependents);
 
-        verifyZeroInteractions(datadogClientMock, buildsManagerMock);
+        verifyZeroInteractions(datadogClientMock);
     }
 
     @Test
-    public void shouldIgnoreBuildIfNotPresentInTeamcityServer() {
-        int pipelineID = 1;
-        SRunningBuild pipelineBuild = new MockBuild.Builder(pipelineID, PIPELINE).build();
-        when(buildsManagerMock.findBuildInstanceById(pipelineID)).thenReturn(null);
+    public void shouldNotLookUpProjectOfIgnoredBuilds() {
+        SRunningBuild jobBuild = new MockBuild.Builder(1, JOB).build();
+        SRunningBuild personalBuild = new MockBuild.Builder(2, PIPELINE).isPersonal().build();
 
-        datadogServerAdapter.buildFinished(pipelineBuild);
+        datadogServerAdapter.buildFinished(jobBuild);
+        datadogServerAdapter.buildFinished(personalBuild);
 
+        verify(projectHandlerMock, never()).isPluginEnabled(any());
         verifyZeroInteractions(datadogClientMock);
     }
 
@@ -152,7 +196,6 @@ public class DatadogServerAdapterProcessingTest {
     public void shouldProcessPipelineBuildWithoutDependencies() {
         // Setup
         SRunningBuild pipelineBuild = new MockBuild.Builder(1, PIPELINE).build();
-        when(buildsManagerMock.findBuildInstanceById(1)).thenReturn(pipelineBuild);
 
         // When
         datadogServerAdapter.buildFinished(pipelineBuild);
@@ -179,7 +222,6 @@ public class DatadogServerAdapterProcessingTest {
     public void shouldDetectAutomaticRetries() {
         // Setup
         SRunningBuild pipelineBuild = new MockBuild.Builder(1, PIPELINE).isTriggeredByRetry().build();
-        when(buildsManagerMock.findBuildInstanceById(1)).thenReturn(pipelineBuild);
 
         // When
         datadogServerAdapter.buildFinished(pipelineBuild);
@@ -210,8 +252,6 @@ public class DatadogServerAdapterProcessingTest {
             .withAllDependencies(singletonList(jobBuild))
             .build();
 
-        when(buildsManagerMock.findBuildInstanceById(2)).thenReturn(pipelineBuild);
-
         // When
         datadogServerAdapter.buildFinished(pipelineBuild);
 
@@ -255,8 +295,6 @@ public class DatadogServerAdapterProcessingTest {
             .withAllDependencies(Arrays.asList(firstJobBuild, secondJobBuild))
             .build();
 
-        when(buildsManagerMock.findBuildInstanceById(3)).thenReturn(pipelineBuild);
-
         // When
         datadogServerAdapter.buildFinished(pipelineBuild);
 
@@ -319,8 +357,6 @@ public class DatadogServerAdapterProcessingTest {
             .withAllDependencies(Arrays.asList(firstJobBuild, secondJobBuild))
             .build();
 
-        when(buildsManagerMock.findBuildInstanceById(3)).thenReturn(pipelineBuild);
-
         // When
         datadogServerAdapter.buildFinished(pipelineBuild);
 
@@ -369,8 +405,6 @@ public class DatadogServerAdapterProcessingTest {
             .withAllDependencies(Arrays.asList(firstJobBuild, secondJobBuild))
             .build();
 
-        when(buildsManagerMock.findBuildInstanceById(3)).thenReturn(pipelineBuild);
-
         // When
         datadogServerAdapter.buildFinished(pipelineBuild);
 
@@ -416,8 +450,6 @@ public class DatadogServerAdapterProcessingTest {
             .withAllDependencies(Arrays.asList(firstJobBuild, secondJobBuild))
             .build();
 
-        when(buildsManagerMock.findBuildInstanceById(3)).thenReturn(pipelineBuild);
-
         // When
         datadogServerAdapter.buildFinished(pipelineBuild);
 
@@ -464,8 +496,6 @@ public class DatadogServerAdapterProcessingTest {
             .withAllDependencies(singletonList(jobBuild))
             .build();
 
-        when(buildsManagerMock.findBuildInstanceById(2)).thenReturn(pipelineBuild);
-
         // When
         datadogServerAdapter.buildFinished(pipelineBuild);
 
@@ -509,8 +539,6 @@ public class DatadogServerAdapterProcessingTest {
             .withAllDependencies(singletonList(jobBuild))
             .build();
 
-        when(buildsManagerMock.findBuildInstanceById(2)).thenReturn(pipelineBuild);
-
         // When
         datadogServerAdapter.buildFinished(pipelineBuild);
 
@@ -557,8 +585,7 @@ public class DatadogServerAdapterProcessingTest {
             .withAllDependencies(singletonList(jobBuild))
             .build();
 
-        when(buildsManagerMock.findBuildInstanceById(2)).thenReturn(pipelineBuild);
-        when(gitInfoExtractorMock.extractGitInfo(pipelineBuild)).thenReturn(Optional.of(defaultGitInfo()));
+        when(gitInfoExtractorMock.extractAllGitInfo(pipelineBuild)).thenReturn(singletonList(defaultGitInfo()));
 
         // When
         datadogServerAdapter.buildFinished(pipelineBuild);
@@ -594,12 +621,175 @@ public class DatadogServerAdapterProcessingTest {
         assertThat(webhooksSent).containsExactlyInAnyOrder(expectedPipelineWebhook, expectedJobWebhook);
     }
 
+    @Test
+    public void shouldTagPipelineWithAdditionalRepositories() {
+        // Setup
+        SRunningBuild pipelineBuild = new MockBuild.Builder(1, PIPELINE).build();
+        GitInfo additionalGitInfo = defaultGitInfo()
+            .withRepositoryURL("https://github.com/DataDog/other-repository.git")
+            .withSha("b1a2c3");
+        when(gitInfoExtractorMock.extractAllGitInfo(pipelineBuild)).thenReturn(Arrays.asList(defaultGitInfo(), additionalGitInfo));
+
+        // When
+        datadogServerAdapter.buildFinished(pipelineBuild);
+
+        // Then
+        verify(datadogClientMock, times(1))
+            .sendWebhooksAsync(webhooksCaptor.capture(), eq(TEST_API_KEY), eq(TEST_DD_SITE));
+
+        PipelineWebhook expectedWebhook = new PipelineWebhook(
+            DEFAULT_NAME,
+            defaultUrl(pipelineBuild),
+            toRFC3339(DEFAULT_START_DATE),
+            toRFC3339(DEFAULT_END_DATE),
+            "serverID-1",
+            "1",
+            NO_PARTIAL_RETRY,
+            PipelineStatus.SUCCESS);
+        expectedWebhook.setGitInfo(defaultGitInfo());
+        expectedWebhook.setTags(singletonList("git.additional_repository:https://github.com/DataDog/other-repository.git#b1a2c3"));
+
+        assertThat(webhooksCaptor.getValue()).containsExactly(expectedWebhook);
+    }
+
+    @Test
+    public void shouldSendStepWebhooksAfterTheirJob() {
+        // Setup: [job -> pipeline], the job having run two steps
+        SRunningBuild jobBuild = new MockBuild.Builder(1, JOB).build();
+        SRunningBuild pipelineBuild = new MockBuild.Builder(2, PIPELINE)
+            .withAllDependencies(singletonList(jobBuild))
+            .build();
+
+        long stepsStart = DEFAULT_START_DATE.getTime();
+        when(buildStepsReaderMock.read(jobBuild)).thenReturn(Arrays.asList(
+            new Step("RUNNER_1", "Compile", stepsStart, stepsStart + 1000, BuildStepsArtifact.StepStatus.SUCCESS),
+            new Step("RUNNER_2", "Tests", stepsStart + 1000, stepsStart + 5000, BuildStepsArtifact.StepStatus.ERROR)));
+
+        // When
+        datadogServerAdapter.buildFinished(pipelineBuild);
+
+        // Then
+        verify(datadogClientMock, times(1))
+            .sendWebhooksAsync(webhooksCaptor.capture(), eq(TEST_API_KEY), eq(TEST_DD_SITE));
+
+        StepWebhook expectedCompileStep = new StepWebhook(
+            "Compile",
+            defaultUrl(jobBuild),
+            toRFC3339(new Date(stepsStart)),
+            toRFC3339(new Date(stepsStart + 1000)),
+            "serverID-2",
+            DEFAULT_NAME,
+            "serverID-1",
+            DEFAULT_NAME,
+            "serverID-1-RUNNER_1",
+            StepStatus.SUCCESS);
+        StepWebhook expectedTestsStep = new StepWebhook(
+            "Tests",
+            defaultUrl(jobBuild),
+            toRFC3339(new Date(stepsStart + 1000)),
+            toRFC3339(new Date(stepsStart + 5000)),
+            "serverID-2",
+            DEFAULT_NAME,
+            "serverID-1",
+            DEFAULT_NAME,
+            "serverID-1-RUNNER_2",
+            StepStatus.ERROR);
+
+        List<Webhook> webhooksSent = webhooksCaptor.getValue();
+        assertThat(webhooksSent).hasSize(4);
+        assertThat(webhooksSent.get(1)).isInstanceOf(JobWebhook.class);
+        assertThat(webhooksSent.subList(2, 4)).containsExactly(expectedCompileStep, expectedTestsStep);
+    }
+
+    @Test
+    public void shouldSendSharedJobOnlyWithFirstPipeline() {
+        // Setup: [job -> firstPipeline] and [job -> secondPipeline]
+        SRunningBuild jobBuild = new MockBuild.Builder(1, JOB).build();
+        SRunningBuild firstPipelineBuild = new MockBuild.Builder(2, PIPELINE)
+            .withAllDependencies(singletonList(jobBuild))
+            .build();
+        SRunningBuild secondPipelineBuild = new MockBuild.Builder(3, PIPELINE)
+            .withAllDependencies(singletonList(jobBuild))
+            .build();
+
+        // When
+        datadogServerAdapter.buildFinished(firstPipelineBuild);
+        datadogServerAdapter.buildFinished(secondPipelineBuild);
+        datadogServerAdapter.buildFinished(firstPipelineBuild);
+
+        // Then
+        verify(datadogClientMock, times(3))
+            .sendWebhooksAsync(webhooksCaptor.capture(), eq(TEST_API_KEY), eq(TEST_DD_SITE));
+
+        List<List<Webhook>> webhooksSent = webhooksCaptor.getAllValues();
+        assertThat(webhooksSent.get(0)).hasSize(2);
+        assertThat(webhooksSent.get(1)).hasSize(1).allMatch(webhook -> webhook instanceof PipelineWebhook);
+        // The job keeps being reported with the pipeline that claimed it
+        assertThat(webhooksSent.get(2)).hasSize(2);
+    }
+
+    @Test
+    public void shouldReleaseSharedJobWhenPipelineCannotBeSent() {
+        // Setup: [job -> firstPipeline] and [job -> secondPipeline]
+        SRunningBuild jobBuild = new MockBuild.Builder(1, JOB).build();
+        SRunningBuild firstPipelineBuild = new MockBuild.Builder(2, PIPELINE)
+            .withAllDependencies(singletonList(jobBuild))
+            .build();
+        SRunningBuild secondPipelineBuild = new MockBuild.Builder(3, PIPELINE)
+            .withAllDependencies(singletonList(jobBuild))
+            .build();
+        doThrow(new IllegalStateException("Sink not available")).doNothing()
+            .when(datadogClientMock).sendWebhooksAsync(any(), eq(TEST_API_KEY), eq(TEST_DD_SITE));
+
+        // When
+        assertThatThrownBy(() -> datadogServerAdapter.buildFinished(firstPipelineBuild)).isInstanceOf(IllegalStateException.class);
+        datadogServerAdapter.buildFinished(secondPipelineBuild);
+
+        // Then: the job is reported with the second pipeline
+        verify(datadogClientMock, times(2))
+            .sendWebhooksAsync(webhooksCaptor.capture(), eq(TEST_API_KEY), eq(TEST_DD_SITE));
+        assertThat(webhooksCaptor.getAllValues().get(1)).hasSize(2);
+    }
+
+    @Test
+    public void shouldNotClaimJobsOfExportedChain() {
+        // Setup: [job -> exportedPipeline] and [job -> livePipeline]
+        SRunningBuild jobBuild = new MockBuild.Builder(1, JOB).build();
+        SRunningBuild exportedPipelineBuild = new MockBuild.Builder(2, PIPELINE)
+            .withAllDependencies(singletonList(jobBuild))
+            .build();
+        SRunningBuild livePipelineBuild = new MockBuild.Builder(3, PIPELINE)
+            .withAllDependencies(singletonList(jobBuild))
+            .build();
+
+        // When
+        List<Webhook> exportedWebhooks = chainProcessor.createExportWebhooks(exportedPipelineBuild);
+        datadogServerAdapter.buildFinished(livePipelineBuild);
+
+        // Then: the job is in both
+        assertThat(exportedWebhooks).hasSize(2);
+        verify(datadogClientMock, times(1))
+            .sendWebhooksAsync(webhooksCaptor.capture(), eq(TEST_API_KEY), eq(TEST_DD_SITE));
+        assertThat(webhooksCaptor.getValue()).hasSize(2);
+    }
+
+    @Test
+    public void shouldAdvanceWatermarkAfterProcessingChain() {
+        // Setup
+        SRunningBuild pipelineBuild = new MockBuild.Builder(1, PIPELINE).build();
+
+        // When
+        datadogServerAdapter.buildFinished(pipelineBuild);
+
+        // Then
+        verify(watermarkMock, times(1)).advance(pipelineBuild);
+    }
+
     @Test
     public void shouldSendWebhookWithTags() {
         // Setup
         List<String> tags = Arrays.asList("mytag1:myvalue1", "mytag2:myvalue2");
         SRunningBuild pipelineBuild = new MockBuild.Builder(1, PIPELINE).withTags(tags).build();
-        when(buildsManagerMock.findBuildInstanceById(1)).thenReturn(pipelineBuild);
 
         // When
         datadogServerAdapter.buildFinished(pipelineBuild);
@@ -632,7 +822,6 @@ public class DatadogServerAdapterProcessingTest {
             .withCanceledInfo("canceled")
             .withAllDependencies(singletonList(jobBuild))
             .build();
-        when(buildsManagerMock.findBuildInstanceById(2)).thenReturn(pipelineBuild);
 
         // When
         datadogServerAdapter.buildInterrupted(pipelineBuild);
@@ -667,11 +856,9 @@ public class DatadogServerAdapterProcessingTest {
                 .withAllDependencies(singletonList(jobBuild))
                 .build();
 
-        when(buildsManagerMock.findBuildInstanceById(2)).thenReturn(pipelineBuild);
-
         // When
-        BuildChainProcessor chainProcessor = new BuildChainProcessor(buildServerMock, datadogClientMock, projectHandlerMock, gitInfoExtractorMock, serverSettings);
-        datadogServerAdapter = new DatadogServerAdapter(eventListener, buildsManagerMock, chainProcessor, projectHandlerMock);
+        BuildChainProcessor chainProcessor = newChainProcessor();
+        datadogServerAdapter = new DatadogServerAdapter(eventListener, chainProcessor, projectHandlerMock, watermarkMock, progressReporterMock);
         datadogServerAdapter.buildFinished(pipelineBuild);
         String emptyUrl = "";
 
@@ -712,11 +899,9 @@ public class DatadogServerAdapterProcessingTest {
                 .withAllDependencies(singletonList(jobBuild))
                 .build();
 
-        when(buildsManagerMock.findBuildInstanceById(2)).thenReturn(pipelineBuild);
-
         // When
-        BuildChainProcessor chainProcessor = new BuildChainProcessor(buildServerMock, datadogClientMock, projectHandlerMock, gitInfoExtractorMock, serverSettings);
-        datadogServerAdapter = new DatadogServerAdapter(eventListener, buildsManagerMock, chainProcessor, projectHandlerMock);
+        BuildChainProcessor chainProcessor = newChainProcessor();
+        datadogServerAdapter = new DatadogServerAdapter(eventListener, chainProcessor, projectHandlerMock, watermarkMock, progressReporterMock);
         // Setup: non default server root URL with final slash
         when(buildServerMock.getRootUrl()).thenReturn(NON_DEFAULT_URL + "/");
         datadogServerAdapter.buildFinished(pipelineBuild);
@@ -749,4 +934,29 @@ public class DatadogServerAdapterProcessingTest {
         List<Webhook> webhooksSent = webhooksCaptor.getValue();
         assertThat(webhooksSent).hasSize(2).hasSameElementsAs(expectedWebhooks);
     }
+
+    @Test
+    public void shouldKeepJobsOrderInLargeChains() {
+        // Setup: chain large enough to create the job webhooks in parallel
+        List<SBuild> jobBuilds = LongStream.rangeClosed(1, 1000)
+            .mapToObj(id -> (SBuild) new MockBuild.Builder(id, JOB).build())
+            .collect(toList());
+        SRunningBuild pipelineBuild = new MockBuild.Builder(1001, PIPELINE)
+            .withAllDependencies(jobBuilds)
+            .build();
+
+        // When
+        List<Webhook> webhooks = newChainProcessor().createExportWebhooks(pipelineBuild);
+
+        // Then
+        List<String> expectedJobIds = LongStream.rangeClosed(1, 1000)
+            .mapToObj(id -> DEFAULT_SERVER_ID + "-" + id)
+            .collect(toList());
+        List<String> jobIds = webhooks.stream()
+            .skip(1)
+            .map(Webhook::id)
+            .collect(toList());
+        assertThat(webhooks.get(0)).isInstanceOf(PipelineWebhook.class);
+        assertThat(jobIds).isEqualTo(expectedJobIds);
+    }
 }
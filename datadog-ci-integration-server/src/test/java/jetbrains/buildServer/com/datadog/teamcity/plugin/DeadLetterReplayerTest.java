@@ -0,0 +1,84 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import jetbrains.buildServer.com.datadog.teamcity.plugin.DeadLetterStore.DeadLetter;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.TestUtils.TEST_API_KEY;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.TestUtils.TEST_DD_SITE;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class DeadLetterReplayerTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Mock
+    private DatadogClient datadogClientMock;
+
+    @Test
+    public void shouldReplayStoresRequestedWhileBusy() throws Exception {
+        // Setup: the replay of the dead letters is blocked on its first webhook
+        DeadLetterStore deadLetters = new DeadLetterStore(tempFolder.getRoot(), "dead-letters");
+        DeadLetterStore unsentWebhooks = new DeadLetterStore(tempFolder.getRoot(), "unsent-webhooks");
+        deadLetters.append(deadLetter("dead-1"));
+        unsentWebhooks.append(deadLetter("unsent-1"));
+
+        List<String> resent = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch replayStarted = new CountDownLatch(1);
+        CompletableFuture<Boolean> firstResult = new CompletableFuture<>();
+        when(datadogClientMock.resendAsync(any(DeadLetter.class))).thenAnswer(invocation -> {
+            DeadLetter deadLetter = (DeadLetter) invocation.getArguments()[0];
+            resent.add(deadLetter.webhookId());
+            if (deadLetter.webhookId().equals("dead-1")) {
+                replayStarted.countDown();
+                return firstResult;
+            }
+            return CompletableFuture.completedFuture(true);
+        });
+
+        DeadLetterReplayer replayer = new DeadLetterReplayer(datadogClientMock, deadLetters);
+        assertThat(replayer.replayAsync()).isTrue();
+        assertThat(replayStarted.await(10, TimeUnit.SECONDS)).isTrue();
+
+        // When: the unsent webhooks are requested twice while the dead letters are replaying
+        assertThat(replayer.replayAsync(unsentWebhooks)).isTrue();
+        unsentWebhooks.append(deadLetter("unsent-2"));
+        assertThat(replayer.replayAsync(unsentWebhooks)).isFalse();
+        firstResult.complete(true);
+
+        // Then: both stores are replayed, including the webhook spilled after the first request
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (replayer.isRunning() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(replayer.isRunning()).isFalse();
+        assertThat(resent).containsExactly("dead-1", "unsent-1", "unsent-2");
+        assertThat(unsentWebhooks.size()).isEqualTo(0L);
+    }
+
+    private static DeadLetter deadLetter(String id) {
+        return new DeadLetter(id, TEST_DD_SITE, TEST_API_KEY, "{\"id\":\"" + id + "\"}", 503, 4, 1000);
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import jetbrains.buildServer.com.datadog.teamcity.plugin.DeadLetterStore.DeadLetter;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.DeadLetterStore.DEAD_LETTERS_FILE;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.DeadLetterStore.REPLAYING_FILE;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.TestUtils.TEST_API_KEY;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.TestUtils.TEST_DD_SITE;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DeadLetterStoreTest {
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldDrainStoredDeadLetters() throws IOException {
+        DeadLetterStore store = new DeadLetterStore(tempFolder.getRoot());
+        store.append(deadLetter("1"));
+        store.append(deadLetter("2"));
+        assertThat(store.size()).isEqualTo(2L);
+
+        List<DeadLetter> drained = new ArrayList<>();
+        store.drain(drained::add);
+
+        assertThat(drained).hasSize(2);
+        assertThat(drained.get(0).webhookId()).isEqualTo("1");
+        assertThat(drained.get(0).apiKey()).isEqualTo(TEST_API_KEY);
+        assertThat(drained.get(0).ddSite()).isEqualTo(TEST_DD_SITE);
+        assertThat(drained.get(0).payload()).isEqualTo("{\"id\":\"1\"}");
+        assertThat(drained.get(0).lastStatus()).isEqualTo(503);
+        assertThat(drained.get(0).attempts()).isEqualTo(4);
+        assertThat(drained.get(1).webhookId()).isEqualTo("2");
+        assertThat(store.size()).isEqualTo(0L);
+
+        List<DeadLetter> drainedAgain = new ArrayList<>();
+        store.drain(drainedAgain::add);
+        assertThat(drainedAgain).isEmpty();
+    }
+
+    @Test
+    public void shouldKeepDeadLettersAppendedWhileDraining() throws IOException {
+        DeadLetterStore store = new DeadLetterStore(tempFolder.getRoot());
+        store.append(deadLetter("1"));
+
+        // Failing again while replaying puts the letter back in the store
+        store.drain(store::append);
+
+        List<DeadLetter> drained = new ArrayList<>();
+        store.drain(drained::add);
+        assertThat(drained).hasSize(1);
+        assertThat(drained.get(0).webhookId()).isEqualTo("1");
+    }
+
+    @Test
+    public void shouldReloadDeadLettersAndSkipTruncatedRecord() throws IOException {
+        DeadLetterStore store = new DeadLetterStore(tempFolder.getRoot());
+        store.append(deadLetter("1"));
+        store.append(deadLetter("2"));
+
+        // Simulate a crash in the middle of the last write
+        File file = new File(tempFolder.getRoot(), DEAD_LETTERS_FILE);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+
+        DeadLetterStore reloadedStore = new DeadLetterStore(tempFolder.getRoot());
+        assertThat(reloadedStore.size()).isEqualTo(1L);
+
+        List<DeadLetter> drained = new ArrayList<>();
+        reloadedStore.drain(drained::add);
+        assertThat(drained).hasSize(1);
+        assertThat(drained.get(0).webhookId()).isEqualTo("1");
+    }
+
+    @Test
+    public void shouldSkipRecordWithCorruptedLength() throws IOException {
+        for (int corruptedLength : new int[]{-1, Integer.MAX_VALUE, 1000}) {
+            DeadLetterStore store = new DeadLetterStore(tempFolder.getRoot());
+            store.append(deadLetter("1"));
+            store.append(deadLetter("2"));
+            store.close();
+            overwriteLastPayloadLength(corruptedLength);
+
+            DeadLetterStore reloadedStore = new DeadLetterStore(tempFolder.getRoot());
+            assertThat(reloadedStore.size()).isEqualTo(1L);
+
+            List<DeadLetter> drained = new ArrayList<>();
+            reloadedStore.drain(drained::add);
+            assertThat(drained).extracting(DeadLetter::webhookId).containsExactly("1");
+            assertThat(new File(tempFolder.getRoot(), REPLAYING_FILE)).doesNotExist();
+
+            // The later drains are not blocked by the corrupted record
+            reloadedStore.append(deadLetter("3"));
+            List<DeadLetter> drainedAgain = new ArrayList<>();
+            reloadedStore.drain(drainedAgain::add);
+            assertThat(drainedAgain).extracting(DeadLetter::webhookId).containsExactly("3");
+        }
+    }
+
+    @Test
+    public void shouldAppendAfterClose() throws IOException {
+        DeadLetterStore store = new DeadLetterStore(tempFolder.getRoot());
+        store.append(deadLetter("1"));
+        store.close();
+        store.append(deadLetter("2"));
+
+        List<DeadLetter> drained = new ArrayList<>();
+        new DeadLetterStore(tempFolder.getRoot()).drain(drained::add);
+        assertThat(drained).extracting(DeadLetter::webhookId).containsExactly("1", "2");
+    }
+
+    private void overwriteLastPayloadLength(int length) throws IOException {
+        int lastPayloadBytes = "{\"id\":\"2\"}".length();
+        File file = new File(tempFolder.getRoot(), DEAD_LETTERS_FILE);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length() - lastPayloadBytes - Integer.BYTES);
+            raf.writeInt(length);
+        }
+    }
+
+    private static DeadLetter deadLetter(String id) {
+        return new DeadLetter(id, TEST_DD_SITE, TEST_API_KEY, "{\"id\":\"" + id + "\"}", 503, 4, 1000);
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.DeliveryIndex.LOG_FILE;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DeliveryIndexTest {
+
+    private static final double FALSE_POSITIVE_RATE = 0.0001;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldDetectDeliveredWebhooks() throws IOException {
+        try (DeliveryIndex index = newIndex(1000, 100)) {
+            assertThat(index.isDelivered("serverID-1")).isFalse();
+
+            index.markDelivered("serverID-1");
+
+            assertThat(index.isDelivered("serverID-1")).isTrue();
+            assertThat(index.isDelivered("serverID-2")).isFalse();
+        }
+    }
+
+    @Test
+    public void shouldRememberDeliveriesAfterRestart() throws IOException {
+        try (DeliveryIndex index = newIndex(1000, 10)) {
+            for (int i = 0; i < 100; i++) {
+                index.markDelivered("serverID-" + i);
+            }
+        }
+
+        // Older deliveries are only in the filter, the last 10 are also in the recent log
+        try (DeliveryIndex reloadedIndex = newIndex(1000, 10)) {
+            assertThat(reloadedIndex.size()).isEqualTo(100L);
+            for (int i = 0; i < 100; i++) {
+                assertThat(reloadedIndex.isDelivered("serverID-" + i)).isTrue();
+            }
+            assertThat(reloadedIndex.isDelivered("serverID-100")).isFalse();
+        }
+    }
+
+    @Test
+    public void shouldKeepRecentDeliveriesWhenFilterIsFull() throws IOException {
+        try (DeliveryIndex index = newIndex(20, 5)) {
+            for (int i = 0; i < 21; i++) {
+                index.markDelivered("serverID-" + i);
+            }
+
+            // The filter was cleared and only contains the recent window plus the last delivery
+            assertThat(index.size()).isEqualTo(6L);
+            for (int i = 15; i < 21; i++) {
+                assertThat(index.isDelivered("serverID-" + i)).isTrue();
+            }
+        }
+    }
+
+    @Test
+    public void shouldIgnoreTruncatedLogEntry() throws IOException {
+        try (DeliveryIndex index = newIndex(1000, 10)) {
+            index.markDelivered("serverID-1");
+            index.markDelivered("serverID-2");
+        }
+
+        // Simulate a crash in the middle of the last write
+        File logFile = new File(tempFolder.getRoot(), LOG_FILE);
+        try (RandomAccessFile raf = new RandomAccessFile(logFile, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+
+        try (DeliveryIndex reloadedIndex = newIndex(1000, 10)) {
+            assertThat(reloadedIndex.isDelivered("serverID-1")).isTrue();
+
+            reloadedIndex.markDelivered("serverID-3");
+        }
+
+        try (DeliveryIndex reloadedIndex = newIndex(1000, 10)) {
+            assertThat(reloadedIndex.isDelivered("serverID-3")).isTrue();
+        }
+    }
+
+    @Test
+    public void shouldRecreateFilterWhenSettingsChange() throws IOException {
+        try (DeliveryIndex index = newIndex(1000, 10)) {
+            index.markDelivered("serverID-1");
+        }
+
+        try (DeliveryIndex reloadedIndex = newIndex(5000, 10)) {
+            assertThat(reloadedIndex.size()).isZero();
+            // Still detected thanks to the recent log
+            assertThat(reloadedIndex.isDelivered("serverID-1")).isTrue();
+        }
+    }
+
+    @Test
+    public void shouldDetectDeliveriesWhileOthersAreRecorded() throws Exception {
+        try (DeliveryIndex index = newIndex(10_000, 100)) {
+            for (int i = 0; i < 1000; i++) {
+                index.markDelivered("serverID-" + i);
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                futures.add(executor.submit(() -> {
+                    for (int i = 1000; i < 5000; i++) {
+                        index.markDelivered("serverID-" + i);
+                    }
+                }));
+                for (int thread = 0; thread < 3; thread++) {
+                    futures.add(executor.submit(() -> {
+                        // Most of them are out of the recent window, so they are read from the filter
+                        for (int i = 0; i < 1000; i++) {
+                            assertThat(index.isDelivered("serverID-" + i)).isTrue();
+                        }
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    future.get(10, TimeUnit.SECONDS);
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private DeliveryIndex newIndex(long expectedDeliveries, int recentWindow) {
+        return new DeliveryIndex(tempFolder.getRoot(), true, expectedDeliveries, FALSE_POSITIVE_RATE,
+            recentWindow, new PluginMetrics());
+    }
+}
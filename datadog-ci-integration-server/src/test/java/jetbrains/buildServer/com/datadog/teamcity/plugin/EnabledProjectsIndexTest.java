@@ -0,0 +1,176 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.serverSide.ProjectManager;
+import jetbrains.buildServer.serverSide.SProject;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.util.stream.Collectors.toList;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.ProjectHandler.DATADOG_ENABLED_PARAM;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class EnabledProjectsIndexTest {
+
+    private static final String ROOT = "_Root";
+
+    @Mock
+    private ProjectManager projectManagerMock;
+    @Mock
+    private EventDispatcher<BuildServerListener> eventListener;
+
+    // The test project tree: own parameter values and parents, resolved with inheritance like TeamCity does
+    private final Map<String, SProject> projects = new HashMap<>();
+    private final Map<String, String> ownEnabledValues = new HashMap<>();
+    private final Map<String, String> parents = new HashMap<>();
+
+    private EnabledProjectsIndex index;
+
+    @Before
+    public void setUp() {
+        when(projectManagerMock.findProjectById(anyString())).thenAnswer(invocation -> projects.get(invocation.getArguments()[0]));
+
+        addProject(ROOT, null, null);
+        when(projectManagerMock.getRootProject()).thenReturn(projects.get(ROOT));
+
+        // _Root -> Enabled -> EnabledChild -> EnabledGrandChild
+        //       -> Disabled -> DisabledChild
+        //       -> Other
+        addProject("Enabled", ROOT, "true");
+        addProject("EnabledChild", "Enabled", null);
+        addProject("EnabledGrandChild", "EnabledChild", null);
+        addProject("Disabled", ROOT, null);
+        addProject("DisabledChild", "Disabled", null);
+        addProject("Other", ROOT, "false");
+
+        index = new EnabledProjectsIndex(eventListener, projectManagerMock);
+        index.serverStartup();
+    }
+
+    @Test
+    public void shouldIndexInheritedValues() {
+        assertThat(enabledProjects()).containsExactlyInAnyOrder("Enabled", "EnabledChild", "EnabledGrandChild");
+    }
+
+    @Test
+    public void shouldUpdateSubtreeMovedUnderEnabledProject() {
+        parents.put("Disabled", "Enabled");
+
+        index.projectMoved(projects.get("Disabled"), projects.get(ROOT));
+
+        assertThat(enabledProjects()).containsExactlyInAnyOrder("Enabled", "EnabledChild", "EnabledGrandChild",
+            "Disabled", "DisabledChild");
+    }
+
+    @Test
+    public void shouldUpdateSubtreeMovedOutOfEnabledProject() {
+        parents.put("EnabledChild", "Other");
+
+        index.projectMoved(projects.get("EnabledChild"), projects.get("Enabled"));
+
+        assertThat(enabledProjects()).containsExactly("Enabled");
+    }
+
+    @Test
+    public void shouldKeepOwnValueOfMovedProject() {
+        ownEnabledValues.put("EnabledChild", "true");
+        index.projectPersisted("EnabledChild");
+        parents.put("EnabledChild", "Other");
+
+        index.projectMoved(projects.get("EnabledChild"), projects.get("Enabled"));
+
+        assertThat(enabledProjects()).containsExactlyInAnyOrder("Enabled", "EnabledChild", "EnabledGrandChild");
+    }
+
+    @Test
+    public void shouldUpdateSubtreeWhenParameterChanges() {
+        ownEnabledValues.put("Enabled", "false");
+        ownEnabledValues.put("Disabled", "true");
+
+        index.projectPersisted("Enabled");
+        index.projectPersisted("Disabled");
+
+        assertThat(enabledProjects()).containsExactlyInAnyOrder("Disabled", "DisabledChild");
+    }
+
+    @Test
+    public void shouldIndexCreatedProjects() {
+        addProject("NewChild", "EnabledGrandChild", null);
+
+        index.projectCreated("NewChild", null);
+
+        assertThat(index.isEnabled("NewChild")).isTrue();
+    }
+
+    @Test
+    public void shouldRemoveSubtreeOfRemovedProject() {
+        removeProject("EnabledChild");
+
+        index.projectRemoved("EnabledChild");
+
+        assertThat(enabledProjects()).containsExactly("Enabled");
+    }
+
+    @Test
+    public void shouldBuildIndexOnFirstUseBeforeStartup() {
+        EnabledProjectsIndex notStarted = new EnabledProjectsIndex(eventListener, projectManagerMock);
+
+        assertThat(notStarted.isEnabled("EnabledGrandChild")).isTrue();
+        assertThat(notStarted.isEnabled("DisabledChild")).isFalse();
+    }
+
+    private List<String> enabledProjects() {
+        return projects.keySet().stream().filter(index::isEnabled).collect(toList());
+    }
+
+    private void addProject(String id, String parentId, String enabled) {
+        SProject project = mock(SProject.class);
+        when(project.getProjectId()).thenReturn(id);
+        when(project.getParameterValue(DATADOG_ENABLED_PARAM)).thenAnswer(invocation -> resolveEnabled(id));
+        when(project.getOwnProjects()).thenAnswer(invocation -> projects.values().stream()
+            .filter(p -> id.equals(parents.get(p.getProjectId())))
+            .collect(toList()));
+
+        projects.put(id, project);
+        parents.put(id, parentId);
+        if (enabled != null) {
+            ownEnabledValues.put(id, enabled);
+        }
+    }
+
+    private void removeProject(String id) {
+        for (SProject subproject : projects.get(id).getOwnProjects()) {
+            removeProject(subproject.getProjectId());
+        }
+        projects.remove(id);
+        parents.remove(id);
+    }
+
+    private String resolveEnabled(String id) {
+        for (String current = id; current != null; current = parents.get(current)) {
+            if (ownEnabledValues.containsKey(current)) {
+                return ownEnabledValues.get(current);
+            }
+        }
+        return null;
+    }
+}
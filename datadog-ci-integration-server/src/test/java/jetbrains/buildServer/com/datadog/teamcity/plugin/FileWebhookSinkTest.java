@@ -0,0 +1,201 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.FileWebhookSink.Compression;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.PipelineWebhook;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.Webhook;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static java.util.Collections.singletonList;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.BuildUtils.toRFC3339;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.TestUtils.DEFAULT_BUILD_URL;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.TestUtils.DEFAULT_END_DATE;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.TestUtils.DEFAULT_NAME;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.TestUtils.DEFAULT_START_DATE;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.TestUtils.NO_PARTIAL_RETRY;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.TestUtils.TEST_API_KEY;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.TestUtils.TEST_DD_SITE;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.PipelineWebhook.PipelineStatus.SUCCESS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FileWebhookSinkTest {
+
+    private static final long ONE_HOUR_MS = TimeUnit.HOURS.toMillis(1);
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private final ObjectMapper mapper = new DatadogConfiguration().objectMapper();
+
+    @Test
+    public void shouldWriteWebhooksAsJsonLines() throws IOException {
+        FileWebhookSink sink = new FileWebhookSink(tempFolder.getRoot(), Compression.NONE, Long.MAX_VALUE, ONE_HOUR_MS,
+            mapper, new PluginMetrics());
+
+        sink.sendWebhooksAsync(Arrays.asList(pipeline("1"), pipeline("2")), TEST_API_KEY, TEST_DD_SITE);
+        sink.close();
+
+        List<JsonNode> lines = readLines(Compression.NONE);
+        assertThat(lines).hasSize(2);
+        assertThat(lines.get(0).get("id").asText()).isEqualTo("1");
+        assertThat(lines.get(0).get("site").asText()).isEqualTo(TEST_DD_SITE);
+        assertThat(lines.get(0).get("webhook").get("unique_id").asText()).isEqualTo("1");
+        assertThat(lines.get(1).get("id").asText()).isEqualTo("2");
+        // The API key is never written to disk
+        assertThat(lines.get(0).toString()).doesNotContain(TEST_API_KEY);
+    }
+
+    @Test
+    public void shouldRollCompressedFilesWhenFull() throws IOException {
+        PluginMetrics metrics = new PluginMetrics();
+        FileWebhookSink sink = new FileWebhookSink(tempFolder.getRoot(), Compression.GZIP, 1, ONE_HOUR_MS,
+            mapper, metrics);
+
+        sink.sendWebhooksAsync(singletonList(pipeline("1")), TEST_API_KEY, TEST_DD_SITE);
+        awaitWritten(metrics, 1);
+        sink.sendWebhooksAsync(singletonList(pipeline("2")), TEST_API_KEY, TEST_DD_SITE);
+        sink.close();
+
+        assertThat(completedFiles(Compression.GZIP)).hasSize(2);
+        assertThat(readLines(Compression.GZIP)).hasSize(2);
+        assertThat(metrics.snapshot().getSites().get(FileWebhookSink.FILE_SINK_SITE).getSuccesses()).isEqualTo(2L);
+    }
+
+    @Test
+    public void shouldWriteCompressedGroupsAsSeparateMembers() throws IOException {
+        PluginMetrics metrics = new PluginMetrics();
+        FileWebhookSink sink = new FileWebhookSink(tempFolder.getRoot(), Compression.GZIP, Long.MAX_VALUE, ONE_HOUR_MS,
+            mapper, metrics);
+
+        sink.sendWebhooksAsync(singletonList(pipeline("1")), TEST_API_KEY, TEST_DD_SITE);
+        awaitWritten(metrics, 1);
+        sink.sendWebhooksAsync(singletonList(pipeline("2")), TEST_API_KEY, TEST_DD_SITE);
+        sink.close();
+
+        // Both groups are in the same file, each one readable on its own
+        assertThat(completedFiles(Compression.GZIP)).hasSize(1);
+        List<JsonNode> lines = readLines(Compression.GZIP);
+        assertThat(lines).hasSize(2);
+        assertThat(lines.get(1).get("id").asText()).isEqualTo("2");
+    }
+
+    @Test
+    public void shouldCompleteCompressedPartLeftByCrash() throws IOException {
+        // Setup: a synced group, followed by a group cut by the crash
+        byte[] lastMember = gzip("{\"id\":\"2\"}\n");
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        content.write(gzip("{\"id\":\"1\"}\n"));
+        content.write(lastMember, 0, lastMember.length - 3);
+        Files.write(new File(tempFolder.getRoot(), "webhooks-20240101-000000-0000.ndjson.gz.part").toPath(), content.toByteArray());
+
+        // When
+        new FileWebhookSink(tempFolder.getRoot(), Compression.GZIP, Long.MAX_VALUE, ONE_HOUR_MS, mapper, new PluginMetrics()).close();
+
+        // Then
+        List<JsonNode> lines = readLines(Compression.GZIP);
+        assertThat(lines).hasSize(1);
+        assertThat(lines.get(0).get("id").asText()).isEqualTo("1");
+        assertThat(tempFolder.getRoot().list()).containsExactly("webhooks-20240101-000000-0000.ndjson.gz");
+    }
+
+    @Test
+    public void shouldCompleteUncompressedPartLeftByCrash() throws IOException {
+        Files.write(new File(tempFolder.getRoot(), "webhooks-20240101-000000-0000.ndjson.part").toPath(),
+            "{\"id\":\"1\"}\n{\"id\":\"2\"}\n{\"id\"".getBytes(StandardCharsets.UTF_8));
+        Files.write(new File(tempFolder.getRoot(), "webhooks-20240101-000000-0001.ndjson.part").toPath(),
+            "{\"id\"".getBytes(StandardCharsets.UTF_8));
+
+        new FileWebhookSink(tempFolder.getRoot(), Compression.NONE, Long.MAX_VALUE, ONE_HOUR_MS, mapper, new PluginMetrics()).close();
+
+        // The part without any complete line is deleted
+        assertThat(readLines(Compression.NONE)).hasSize(2);
+        assertThat(tempFolder.getRoot().list()).containsExactly("webhooks-20240101-000000-0000.ndjson");
+    }
+
+    @Test
+    public void shouldNotReuseFileNamesOfPreviousRun() throws IOException {
+        // Two runs, most likely within the same second
+        for (String id : Arrays.asList("1", "2")) {
+            PluginMetrics metrics = new PluginMetrics();
+            FileWebhookSink sink = new FileWebhookSink(tempFolder.getRoot(), Compression.NONE, Long.MAX_VALUE, ONE_HOUR_MS,
+                mapper, metrics);
+            sink.sendWebhooksAsync(singletonList(pipeline(id)), TEST_API_KEY, TEST_DD_SITE);
+            sink.close();
+            assertThat(metrics.snapshot().getSites().get(FileWebhookSink.FILE_SINK_SITE).getSuccesses()).isEqualTo(1L);
+        }
+
+        assertThat(completedFiles(Compression.NONE)).hasSize(2);
+        assertThat(readLines(Compression.NONE)).hasSize(2);
+    }
+
+    private static byte[] gzip(String lines) throws IOException {
+        ByteArrayOutputStream member = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(member)) {
+            out.write(lines.getBytes(StandardCharsets.UTF_8));
+        }
+        return member.toByteArray();
+    }
+
+    private List<File> completedFiles(Compression compression) {
+        String extension = compression == Compression.GZIP ? ".ndjson.gz" : ".ndjson";
+        File[] files = tempFolder.getRoot().listFiles((dir, name) -> name.endsWith(extension));
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+
+    private List<JsonNode> readLines(Compression compression) throws IOException {
+        List<JsonNode> lines = new ArrayList<>();
+        for (File file : completedFiles(compression)) {
+            InputStream in = new FileInputStream(file);
+            if (compression == Compression.GZIP) {
+                in = new GZIPInputStream(in);
+            }
+
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines.add(mapper.readTree(line));
+                }
+            }
+        }
+        return lines;
+    }
+
+    private static void awaitWritten(PluginMetrics metrics, long count) {
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (metrics.snapshot().getSentWebhooks() < count && System.currentTimeMillis() < deadline) {
+            Thread.yield();
+        }
+    }
+
+    private static Webhook pipeline(String id) {
+        return new PipelineWebhook(DEFAULT_NAME, DEFAULT_BUILD_URL, toRFC3339(DEFAULT_START_DATE), toRFC3339(DEFAULT_END_DATE),
+            id, id, NO_PARTIAL_RETRY, SUCCESS);
+    }
+}
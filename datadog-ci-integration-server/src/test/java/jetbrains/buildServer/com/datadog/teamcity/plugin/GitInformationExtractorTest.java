@@ -8,20 +8,32 @@
 package jetbrains.buildServer.com.datadog.teamcity.plugin;
 
 import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.GitInfo;
+import jetbrains.buildServer.serverSide.BuildServerListener;
 import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.vcs.SVcsModification;
+import jetbrains.buildServer.vcs.SVcsRoot;
+import jetbrains.buildServer.vcs.VcsRootInstance;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 import static java.util.Collections.emptyList;
 import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
 import static jetbrains.buildServer.com.datadog.teamcity.plugin.BuildUtils.toRFC3339;
 import static jetbrains.buildServer.com.datadog.teamcity.plugin.GitInformationExtractor.DEFAULT_EMAIL_DOMAIN;
 import static jetbrains.buildServer.com.datadog.teamcity.plugin.GitInformationExtractor.GIT_VCS;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.GitInformationExtractor.URL_PROPERTY;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.GitInformationExtractor.USERNAME_STYLE_PROPERTY;
 import static jetbrains.buildServer.com.datadog.teamcity.plugin.GitInformationExtractor.UsernameStyle.EMAIL;
 import static jetbrains.buildServer.com.datadog.teamcity.plugin.GitInformationExtractor.UsernameStyle.FULL;
 import static jetbrains.buildServer.com.datadog.teamcity.plugin.GitInformationExtractor.UsernameStyle.NAME;
@@ -34,15 +46,32 @@ import static jetbrains.buildServer.com.datadog.teamcity.plugin.TestUtils.DEFAUL
 import static jetbrains.buildServer.com.datadog.teamcity.plugin.TestUtils.DEFAULT_COMMITTER_USERNAME;
 import static jetbrains.buildServer.com.datadog.teamcity.plugin.TestUtils.DEFAULT_GIT_MESSAGE;
 import static jetbrains.buildServer.com.datadog.teamcity.plugin.TestUtils.DEFAULT_REPO_URL;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.TestUtils.DEFAULT_REVISION;
 import static jetbrains.buildServer.com.datadog.teamcity.plugin.TestUtils.EMPTY_AUTHOR_USERNAME;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @RunWith(MockitoJUnitRunner.class)
 public class GitInformationExtractorTest {
 
-    private final GitInformationExtractor gitInfoExtractor = new GitInformationExtractor();
+    @Mock
+    private EventDispatcher<BuildServerListener> eventListener;
+    @Mock
+    private ProjectHandler projectHandlerMock;
+
+    private VcsRootMetadataCache vcsRootMetadataCache;
+    private GitInformationExtractor gitInfoExtractor;
+
+    @Before
+    public void setUp() {
+        PluginMetrics metrics = new PluginMetrics();
+        vcsRootMetadataCache = new VcsRootMetadataCache(eventListener, metrics);
+        gitInfoExtractor = new GitInformationExtractor(vcsRootMetadataCache, projectHandlerMock, metrics);
+    }
 
     @Test
     public void shouldReturnEmptyIfNoRevisionIsFound() {
@@ -213,6 +242,168 @@ public class GitInformationExtractorTest {
         gitInfoExtractor.extractGitInfo(build);
     }
 
+    @Test
+    public void shouldReadVcsRootPropertiesOnce() {
+        // Setup
+        SBuild build = new MockBuild.Builder(1, PIPELINE)
+            .addRevision(GIT_VCS, NAME.name(), "John Doe", EMPTY_AUTHOR_USERNAME)
+            .build();
+        VcsRootInstance vcsRoot = build.getRevisions().get(0).getRoot();
+
+        // When
+        Optional<GitInfo> first = gitInfoExtractor.extractGitInfo(build);
+        Optional<GitInfo> second = gitInfoExtractor.extractGitInfo(build);
+
+        // Then
+        assertThat(second).isEqualTo(first);
+        verify(vcsRoot, times(1)).getProperty(USERNAME_STYLE_PROPERTY);
+        verify(vcsRoot, times(1)).getProperty(URL_PROPERTY);
+    }
+
+    @Test
+    public void shouldReadVcsRootPropertiesAgainWhenRootIsUpdated() {
+        // Setup
+        SBuild build = new MockBuild.Builder(1, PIPELINE)
+            .addRevision(GIT_VCS, NAME.name(), "John Doe", EMPTY_AUTHOR_USERNAME)
+            .build();
+        VcsRootInstance vcsRoot = build.getRevisions().get(0).getRoot();
+        gitInfoExtractor.extractGitInfo(build);
+
+        // When
+        String updatedUrl = "https://github.com/DataDog/moved-repository.git";
+        when(vcsRoot.getProperty(URL_PROPERTY)).thenReturn(updatedUrl);
+        SVcsRoot parentRoot = mock(SVcsRoot.class);
+        when(parentRoot.getId()).thenReturn(vcsRoot.getParentId());
+        vcsRootMetadataCache.vcsRootUpdated(parentRoot, parentRoot);
+        Optional<GitInfo> gitInfoOptional = gitInfoExtractor.extractGitInfo(build);
+
+        // Then
+        GitInfo expectedGitInfo = defaultGitInfo()
+            .withRepositoryURL(updatedUrl)
+            .withAuthorName("John Doe")
+            .withCommitterName("John Doe")
+            .withAuthorEmail("johndoe@teamcity")
+            .withCommitterEmail("johndoe@teamcity");
+
+        assertThat(gitInfoOptional).contains(expectedGitInfo);
+    }
+
+    @Test
+    public void shouldExtractAllRepositoriesWithPrimaryFirst() {
+        // Setup
+        SBuild build = new MockBuild.Builder(1, PIPELINE)
+            .addRevision(GIT_VCS, NAME.name(), "John Doe", EMPTY_AUTHOR_USERNAME)
+            .addRevision("NOT-GIT", "", DEFAULT_COMMITTER_USERNAME, DEFAULT_AUTHOR_USERNAME)
+            .addRevision(GIT_VCS, NAME.name(), "John Doe", EMPTY_AUTHOR_USERNAME)
+            .addRevision(GIT_VCS, NAME.name(), "John Doe", EMPTY_AUTHOR_USERNAME)
+            .build();
+        List<String> urls = Arrays.asList("first.git", "other.git", "second.git", "primary.git");
+        for (int i = 0; i < urls.size(); i++) {
+            VcsRootInstance vcsRoot = build.getRevisions().get(i).getRoot();
+            when(vcsRoot.getId()).thenReturn((long) i);
+            when(vcsRoot.getProperty(URL_PROPERTY)).thenReturn(urls.get(i));
+        }
+        when(projectHandlerMock.getPrimaryRepository(build)).thenReturn("primary.git");
+
+        // When
+        List<GitInfo> gitInfos = gitInfoExtractor.extractAllGitInfo(build);
+
+        // Then
+        List<GitInfo> expectedGitInfos = Stream.of("primary.git", "first.git", "second.git")
+            .map(url -> defaultGitInfo()
+                .withRepositoryURL(url)
+                .withAuthorName("John Doe")
+                .withCommitterName("John Doe")
+                .withAuthorEmail("johndoe@teamcity")
+                .withCommitterEmail("johndoe@teamcity"))
+            .collect(toList());
+        assertThat(gitInfos).isEqualTo(expectedGitInfos);
+    }
+
+    @Test
+    public void shouldKeepPrimaryRepositoryWhenAdditionalOneFails() {
+        // Setup: the additional root has no username style
+        SBuild build = new MockBuild.Builder(1, PIPELINE)
+            .addRevision(GIT_VCS, NAME.name(), "John Doe", EMPTY_AUTHOR_USERNAME)
+            .addRevision(GIT_VCS, null, "John Doe", EMPTY_AUTHOR_USERNAME)
+            .build();
+        for (int i = 0; i < 2; i++) {
+            when(build.getRevisions().get(i).getRoot().getId()).thenReturn((long) i);
+        }
+
+        // When
+        List<GitInfo> gitInfos = gitInfoExtractor.extractAllGitInfo(build);
+
+        // Then
+        GitInfo expectedGitInfo = defaultGitInfo()
+            .withAuthorName("John Doe")
+            .withCommitterName("John Doe")
+            .withAuthorEmail("johndoe@teamcity")
+            .withCommitterEmail("johndoe@teamcity");
+        assertThat(gitInfos).containsExactly(expectedGitInfo);
+    }
+
+    @Test
+    public void shouldFindPrimaryRepositoryAfterInvalidAdditionalOne() {
+        // Setup: the additional root, before the primary one, has no username style
+        SBuild build = new MockBuild.Builder(1, PIPELINE)
+            .addRevision(GIT_VCS, null, "John Doe", EMPTY_AUTHOR_USERNAME)
+            .addRevision(GIT_VCS, NAME.name(), "John Doe", EMPTY_AUTHOR_USERNAME)
+            .build();
+        List<String> urls = Arrays.asList("invalid.git", "primary.git");
+        for (int i = 0; i < urls.size(); i++) {
+            VcsRootInstance vcsRoot = build.getRevisions().get(i).getRoot();
+            when(vcsRoot.getId()).thenReturn((long) i);
+            when(vcsRoot.getProperty(URL_PROPERTY)).thenReturn(urls.get(i));
+        }
+        when(projectHandlerMock.getPrimaryRepository(build)).thenReturn("primary.git");
+
+        // When
+        List<GitInfo> gitInfos = gitInfoExtractor.extractAllGitInfo(build);
+
+        // Then
+        GitInfo expectedGitInfo = defaultGitInfo()
+            .withRepositoryURL("primary.git")
+            .withAuthorName("John Doe")
+            .withCommitterName("John Doe")
+            .withAuthorEmail("johndoe@teamcity")
+            .withCommitterEmail("johndoe@teamcity");
+        assertThat(gitInfos).containsExactly(expectedGitInfo);
+    }
+
+    @Test(timeout = 5000)
+    public void shouldLookUpRepositoriesConcurrently() {
+        // Setup: each modification lookup takes 300 ms
+        MockBuild.Builder builder = new MockBuild.Builder(1, PIPELINE);
+        for (int i = 0; i < 5; i++) {
+            builder.addRevision(GIT_VCS, NAME.name(), "John Doe", EMPTY_AUTHOR_USERNAME);
+        }
+        SBuild build = builder.build();
+        for (int i = 0; i < 5; i++) {
+            VcsRootInstance vcsRoot = build.getRevisions().get(i).getRoot();
+            SVcsModification modification = vcsRoot.findModificationByVersion(DEFAULT_REVISION);
+            when(vcsRoot.getId()).thenReturn((long) i);
+            when(vcsRoot.findModificationByVersion(DEFAULT_REVISION)).thenAnswer(invocation -> {
+                Thread.sleep(300);
+                return modification;
+            });
+        }
+
+        // When
+        long startNanos = System.nanoTime();
+        List<GitInfo> gitInfos = gitInfoExtractor.extractAllGitInfo(build);
+        long durationMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+
+        // Then
+        assertThat(gitInfos).hasSize(5);
+        assertThat(durationMs).isLessThan(1000);
+
+        // The commits are cached
+        startNanos = System.nanoTime();
+        assertThat(gitInfoExtractor.extractAllGitInfo(build)).isEqualTo(gitInfos);
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)).isLessThan(300);
+    }
+
     private static GitInfo defaultGitInfo() {
         return new GitInfo()
             .withSha(DEFAULT_COMMIT_SHA)
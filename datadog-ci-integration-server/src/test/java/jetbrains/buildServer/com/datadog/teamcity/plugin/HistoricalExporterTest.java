@@ -0,0 +1,207 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import jetbrains.buildServer.com.datadog.teamcity.plugin.HistoricalExporter.Progress;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.ProjectHandler.ProjectParameters;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.Webhook;
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.BuildQueryOptions;
+import jetbrains.buildServer.serverSide.BuildsManager;
+import jetbrains.buildServer.serverSide.ProjectManager;
+import jetbrains.buildServer.serverSide.SFinishedBuild;
+import jetbrains.buildServer.util.ItemProcessor;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.HistoricalExporter.CHECKPOINT_FILE;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.TestUtils.TEST_API_KEY;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.TestUtils.TEST_DD_SITE;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class HistoricalExporterTest {
+
+    private static final int TEST_TIMEOUT_MS = 30_000;
+
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    @Mock
+    private BuildsManager buildsManagerMock;
+    @Mock
+    private ProjectManager projectManagerMock;
+    @Mock
+    private BuildChainProcessor chainProcessorMock;
+    @Mock
+    private ProjectHandler projectHandlerMock;
+    @Mock
+    private DatadogClient datadogClientMock;
+
+    private HistoricalExporter exporter;
+
+    @Before
+    public void setUp() {
+        when(projectHandlerMock.isPluginEnabled(any())).thenReturn(true);
+        when(projectHandlerMock.getProjectParameters(any())).thenReturn(new ProjectParameters(TEST_API_KEY, TEST_DD_SITE));
+        when(datadogClientMock.sendCompressedAsync(any(), anyString(), anyString()))
+            .thenReturn(CompletableFuture.completedFuture(true));
+
+        exporter = new HistoricalExporter(buildsManagerMock, projectManagerMock, chainProcessorMock,
+            projectHandlerMock, datadogClientMock, tempFolder.getRoot());
+    }
+
+    @Test
+    public void shouldExportChainsInDateRangeFromOldest() {
+        // Setup
+        SFinishedBuild tooOldChain = finishedBuild(1, true, 500);
+        SFinishedBuild firstChain = finishedBuild(2, true, 1500);
+        SFinishedBuild jobBuild = finishedBuild(3, false, 1600);
+        SFinishedBuild secondChain = finishedBuild(4, true, 2500);
+        SFinishedBuild tooRecentChain = finishedBuild(5, true, 3500);
+        finishedBuilds(tooRecentChain, secondChain, jobBuild, firstChain, tooOldChain);
+
+        Webhook firstWebhook = mock(Webhook.class);
+        Webhook secondWebhook = mock(Webhook.class);
+        when(chainProcessorMock.createExportWebhooks(firstChain)).thenReturn(singletonWebhooks(firstWebhook));
+        when(chainProcessorMock.createExportWebhooks(secondChain)).thenReturn(singletonWebhooks(secondWebhook));
+
+        // When
+        assertThat(exporter.exportAsync(null, 1000, 3000)).isTrue();
+        awaitExport();
+
+        // Then
+        InOrder inOrder = inOrder(datadogClientMock);
+        inOrder.verify(datadogClientMock).sendCompressedAsync(firstWebhook, TEST_API_KEY, TEST_DD_SITE);
+        inOrder.verify(datadogClientMock).sendCompressedAsync(secondWebhook, TEST_API_KEY, TEST_DD_SITE);
+        verify(chainProcessorMock, never()).createExportWebhooks(tooOldChain);
+        verify(chainProcessorMock, never()).createExportWebhooks(jobBuild);
+        verify(chainProcessorMock, never()).createExportWebhooks(tooRecentChain);
+
+        Progress progress = exporter.progress();
+        assertThat(progress.getTotalChains()).isEqualTo(2L);
+        assertThat(progress.getExportedChains()).isEqualTo(2L);
+        assertThat(progress.getSentWebhooks()).isEqualTo(2L);
+        assertThat(progress.getCompletedRatio()).isEqualTo(1.0);
+
+        // The export completed, so there is nothing to resume
+        assertThat(new File(tempFolder.getRoot(), CHECKPOINT_FILE)).doesNotExist();
+        assertThat(exporter.canResume()).isFalse();
+    }
+
+    @Test
+    public void shouldCountFailedWebhooks() {
+        // Setup
+        SFinishedBuild chain = finishedBuild(1, true, 1500);
+        finishedBuilds(chain);
+        when(chainProcessorMock.createExportWebhooks(chain)).thenReturn(singletonWebhooks(mock(Webhook.class)));
+        when(datadogClientMock.sendCompressedAsync(any(), anyString(), anyString()))
+            .thenReturn(CompletableFuture.completedFuture(false));
+
+        // When
+        exporter.exportAsync(null, 1000, 3000);
+        awaitExport();
+
+        // Then
+        verify(datadogClientMock, times(1)).sendCompressedAsync(any(), eq(TEST_API_KEY), eq(TEST_DD_SITE));
+        assertThat(exporter.progress().getFailedWebhooks()).isEqualTo(1L);
+    }
+
+    @Test
+    public void shouldStopScanningHistoryBeforeDateRange() {
+        // Setup
+        SFinishedBuild chain = finishedBuild(3, true, 1500);
+        SFinishedBuild tooOldChain = finishedBuild(2, true, 500);
+        SFinishedBuild olderChain = finishedBuild(1, true, 200);
+        finishedBuilds(chain, tooOldChain, olderChain);
+        when(chainProcessorMock.createExportWebhooks(chain)).thenReturn(singletonWebhooks(mock(Webhook.class)));
+
+        // When
+        exporter.exportAsync(null, 1000, 3000);
+        awaitExport();
+
+        // Then
+        assertThat(exporter.progress().getTotalChains()).isEqualTo(1L);
+        verify(olderChain, never()).getFinishDate();
+    }
+
+    @Test
+    public void shouldNotExportUnknownProject() {
+        // Setup
+        finishedBuilds(finishedBuild(1, true, 1500));
+
+        // When
+        exporter.exportAsync("Unknown", 1000, 3000);
+        awaitExport();
+
+        // Then
+        verify(buildsManagerMock, never()).processFinishedBuilds(any(), any());
+        assertThat(exporter.progress().getTotalChains()).isZero();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void finishedBuilds(SFinishedBuild... builds) {
+        List<SFinishedBuild> history = Arrays.asList(builds);
+        for (SFinishedBuild build : builds) {
+            when(buildsManagerMock.findBuildInstanceById(build.getBuildId())).thenReturn(build);
+        }
+
+        doAnswer(invocation -> {
+            ItemProcessor<SFinishedBuild> processor = (ItemProcessor<SFinishedBuild>) invocation.getArguments()[1];
+            for (SFinishedBuild build : history) {
+                if (!processor.processItem(build)) {
+                    break;
+                }
+            }
+            return null;
+        }).when(buildsManagerMock).processFinishedBuilds(any(BuildQueryOptions.class), any());
+    }
+
+    private void awaitExport() {
+        long deadline = System.currentTimeMillis() + TEST_TIMEOUT_MS;
+        while (exporter.isRunning() && System.currentTimeMillis() < deadline) {
+            Thread.yield();
+        }
+    }
+
+    private static List<Webhook> singletonWebhooks(Webhook webhook) {
+        return Arrays.asList(webhook);
+    }
+
+    private static SFinishedBuild finishedBuild(long id, boolean isChainTail, long finishTimeMs) {
+        SFinishedBuild build = mock(SFinishedBuild.class);
+        BuildPromotion promotion = mock(BuildPromotion.class);
+        when(build.getBuildId()).thenReturn(id);
+        when(build.isCompositeBuild()).thenReturn(isChainTail);
+        when(build.getFinishDate()).thenReturn(new Date(finishTimeMs));
+        when(build.getBuildPromotion()).thenReturn(promotion);
+        return build;
+    }
+}
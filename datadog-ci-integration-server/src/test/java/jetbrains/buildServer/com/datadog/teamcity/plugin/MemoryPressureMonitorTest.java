@@ -0,0 +1,89 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import org.junit.Test;
+
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class MemoryPressureMonitorTest {
+
+    private final MemoryPressureMonitor memoryPressure = new MemoryPressureMonitor(0.85, 0.75);
+
+    @Test
+    public void shouldEnterPressureModeAboveThreshold() {
+        memoryPressure.update(0.84);
+        assertThat(memoryPressure.isUnderPressure()).isFalse();
+
+        memoryPressure.update(0.85);
+        assertThat(memoryPressure.isUnderPressure()).isTrue();
+    }
+
+    @Test
+    public void shouldStayInPressureModeUntilClearThreshold() {
+        AtomicInteger cleared = new AtomicInteger();
+        memoryPressure.onPressureCleared(cleared::incrementAndGet);
+
+        memoryPressure.update(0.9);
+        memoryPressure.update(0.8);
+        assertThat(memoryPressure.isUnderPressure()).isTrue();
+        assertThat(cleared.get()).isEqualTo(0);
+
+        memoryPressure.update(0.7);
+        memoryPressure.update(0.6);
+        assertThat(memoryPressure.isUnderPressure()).isFalse();
+        assertThat(cleared.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldIgnoreFullSurvivorSpace() {
+        MemoryPoolMXBean edenSpace = pool(false, 0, 100);
+        MemoryPoolMXBean survivorSpace = pool(false, 100, 100);
+        MemoryPoolMXBean oldGeneration = pool(true, 100, 1000);
+
+        List<MemoryPoolMXBean> tenuredPools = MemoryPressureMonitor.tenuredPools(Arrays.asList(edenSpace, survivorSpace, oldGeneration));
+        memoryPressure.update(MemoryPressureMonitor.collectionUsageRatio(tenuredPools));
+
+        assertThat(tenuredPools).containsExactly(oldGeneration);
+        assertThat(memoryPressure.isUnderPressure()).isFalse();
+    }
+
+    @Test
+    public void shouldNotifyAllListenersWhenOneFails() {
+        AtomicInteger cleared = new AtomicInteger();
+        memoryPressure.onPressureCleared(() -> {
+            throw new IllegalStateException("Replay failed");
+        });
+        memoryPressure.onPressureCleared(cleared::incrementAndGet);
+
+        memoryPressure.update(0.9);
+        memoryPressure.update(0.5);
+
+        assertThat(cleared.get()).isEqualTo(1);
+    }
+
+    private static MemoryPoolMXBean pool(boolean tenured, long usedAfterCollection, long max) {
+        MemoryPoolMXBean pool = mock(MemoryPoolMXBean.class);
+        when(pool.getType()).thenReturn(MemoryType.HEAP);
+        // Like the young pools of the JVM, only the old generation supports usage thresholds
+        when(pool.isUsageThresholdSupported()).thenReturn(tenured);
+        when(pool.isCollectionUsageThresholdSupported()).thenReturn(true);
+        when(pool.getUsage()).thenReturn(new MemoryUsage(0, max, max, max));
+        when(pool.getCollectionUsage()).thenReturn(new MemoryUsage(0, usedAfterCollection, max, max));
+        return pool;
+    }
+}
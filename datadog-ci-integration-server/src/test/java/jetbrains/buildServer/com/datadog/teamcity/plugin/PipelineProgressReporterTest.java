@@ -0,0 +1,175 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import jetbrains.buildServer.serverSide.BuildPromotion;
+import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.serverSide.dependency.BuildDependency;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class PipelineProgressReporterTest {
+
+    private static final long DEBOUNCE_MILLIS = 100;
+
+    @Mock
+    private BuildChainProcessor chainProcessorMock;
+    @Mock
+    private ProjectHandler projectHandlerMock;
+
+    private SBuild pipelineBuild;
+    private List<SBuild> jobBuilds;
+
+    @Before
+    public void setUp() {
+        when(projectHandlerMock.isPluginEnabled(any())).thenReturn(true);
+
+        // A pipeline depending on 50 jobs
+        pipelineBuild = build(100, true, null);
+        jobBuilds = LongStream.range(0, 50)
+            .mapToObj(id -> build(id, false, pipelineBuild))
+            .collect(Collectors.toList());
+    }
+
+    @Test
+    public void shouldCoalesceActivityOfChainIntoOneUpdate() throws InterruptedException {
+        PipelineProgressReporter reporter = new PipelineProgressReporter(chainProcessorMock, projectHandlerMock, true, DEBOUNCE_MILLIS);
+
+        jobBuilds.forEach(reporter::onChainActivity);
+        jobBuilds.forEach(reporter::onChainActivity);
+
+        verify(chainProcessorMock, timeout(5000)).sendRunningUpdate(pipelineBuild);
+        Thread.sleep(3 * DEBOUNCE_MILLIS);
+        verify(chainProcessorMock, times(1)).sendRunningUpdate(any());
+    }
+
+    @Test
+    public void shouldScheduleNextUpdateAfterDebounceWindow() throws InterruptedException {
+        PipelineProgressReporter reporter = new PipelineProgressReporter(chainProcessorMock, projectHandlerMock, true, DEBOUNCE_MILLIS);
+
+        reporter.onChainActivity(jobBuilds.get(0));
+        verify(chainProcessorMock, timeout(5000)).sendRunningUpdate(pipelineBuild);
+
+        reporter.onChainActivity(jobBuilds.get(1));
+        verify(chainProcessorMock, timeout(5000).times(2)).sendRunningUpdate(pipelineBuild);
+    }
+
+    @Test
+    public void shouldNotSendUpdateOfFinishedPipeline() throws InterruptedException {
+        PipelineProgressReporter reporter = new PipelineProgressReporter(chainProcessorMock, projectHandlerMock, true, DEBOUNCE_MILLIS);
+
+        reporter.onChainActivity(jobBuilds.get(0));
+        reporter.onPipelineFinished(pipelineBuild);
+
+        Thread.sleep(3 * DEBOUNCE_MILLIS);
+        verify(chainProcessorMock, never()).sendRunningUpdate(any());
+    }
+
+    @Test
+    public void shouldWaitForRunningUpdateWhenPipelineFinishes() throws Exception {
+        // Setup: the update is blocked while being sent
+        CountDownLatch updateStarted = new CountDownLatch(1);
+        CountDownLatch releaseUpdate = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            updateStarted.countDown();
+            releaseUpdate.await();
+            return null;
+        }).when(chainProcessorMock).sendRunningUpdate(pipelineBuild);
+        PipelineProgressReporter reporter = new PipelineProgressReporter(chainProcessorMock, projectHandlerMock, true, DEBOUNCE_MILLIS);
+
+        reporter.onChainActivity(jobBuilds.get(0));
+        assertThat(updateStarted.await(5, TimeUnit.SECONDS)).isTrue();
+
+        // When
+        CompletableFuture<Void> finished = CompletableFuture.runAsync(() -> reporter.onPipelineFinished(pipelineBuild));
+
+        // Then: the final webhook is only created once the running update is queued
+        Thread.sleep(3 * DEBOUNCE_MILLIS);
+        assertThat(finished.isDone()).isFalse();
+        releaseUpdate.countDown();
+        finished.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void shouldNotSendUpdateForProjectNotEnabled() throws InterruptedException {
+        when(projectHandlerMock.isPluginEnabled(any())).thenReturn(false);
+        PipelineProgressReporter reporter = new PipelineProgressReporter(chainProcessorMock, projectHandlerMock, true, DEBOUNCE_MILLIS);
+
+        jobBuilds.forEach(reporter::onChainActivity);
+
+        Thread.sleep(3 * DEBOUNCE_MILLIS);
+        verify(chainProcessorMock, never()).sendRunningUpdate(any());
+        // Nothing is scheduled, so the pipeline is never looked up
+        verify(projectHandlerMock, never()).isPluginEnabled(pipelineBuild);
+        verify(pipelineBuild.getBuildPromotion(), never()).getAssociatedBuild();
+        verify(jobBuilds.get(0).getBuildPromotion(), never()).getDependedOnMe();
+    }
+
+    @Test
+    public void shouldIgnoreStandaloneBuilds() throws InterruptedException {
+        PipelineProgressReporter reporter = new PipelineProgressReporter(chainProcessorMock, projectHandlerMock, true, DEBOUNCE_MILLIS);
+
+        reporter.onChainActivity(build(200, false, null));
+
+        Thread.sleep(3 * DEBOUNCE_MILLIS);
+        verify(chainProcessorMock, never()).sendRunningUpdate(any());
+    }
+
+    @Test
+    public void shouldNotScheduleUpdatesWhenDisabled() throws InterruptedException {
+        PipelineProgressReporter reporter = new PipelineProgressReporter(chainProcessorMock, projectHandlerMock, false, DEBOUNCE_MILLIS);
+
+        jobBuilds.forEach(reporter::onChainActivity);
+
+        Thread.sleep(3 * DEBOUNCE_MILLIS);
+        verify(chainProcessorMock, never()).sendRunningUpdate(any());
+    }
+
+    private static SBuild build(long id, boolean composite, SBuild dependent) {
+        SBuild build = mock(SBuild.class);
+        BuildPromotion promotion = mock(BuildPromotion.class);
+        when(build.getBuildPromotion()).thenReturn(promotion);
+        when(build.getBuildId()).thenReturn(id);
+        when(build.getStartDate()).thenReturn(new Date());
+        when(promotion.getId()).thenReturn(id);
+        when(promotion.isCompositeBuild()).thenReturn(composite);
+        when(promotion.getAssociatedBuild()).thenReturn(build);
+
+        if (dependent != null) {
+            BuildDependency dependency = mock(BuildDependency.class);
+            when(dependency.getDependent()).thenReturn(dependent.getBuildPromotion());
+            when(promotion.getNumberOfDependedOnMe()).thenReturn(1);
+            doReturn(Collections.singletonList(dependency)).when(promotion).getDependedOnMe();
+        }
+        return build;
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import jetbrains.buildServer.com.datadog.teamcity.plugin.PluginMetrics.ChainTiming;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.PluginMetrics.Snapshot;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.offset;
+
+public class PluginMetricsTest {
+
+    @Test
+    public void shouldTrackQueueAndRetryBacklog() {
+        PluginMetrics metrics = new PluginMetrics();
+
+        metrics.onWebhookQueued();
+        metrics.onWebhookQueued();
+        metrics.onWebhookDequeued();
+        metrics.onRetryStarted();
+
+        Snapshot snapshot = metrics.snapshot();
+        assertThat(snapshot.getQueueDepth()).isEqualTo(1L);
+        assertThat(snapshot.getRetryBacklog()).isEqualTo(1L);
+    }
+
+    @Test
+    public void shouldTrackOutcomesPerSite() {
+        PluginMetrics metrics = new PluginMetrics();
+
+        metrics.onWebhookSent("datadoghq.com");
+        metrics.onWebhookSent("datadoghq.com");
+        metrics.onWebhookSent("datadoghq.com");
+        metrics.onWebhookFailed("datadoghq.com");
+        metrics.onWebhookFailed("datadoghq.eu");
+
+        Snapshot snapshot = metrics.snapshot();
+        assertThat(snapshot.getSentWebhooks()).isEqualTo(3L);
+        assertThat(snapshot.getSites()).containsKeys("datadoghq.com", "datadoghq.eu");
+        assertThat(snapshot.getSites().get("datadoghq.com").getSuccessRatio()).isEqualTo(0.75);
+        assertThat(snapshot.getSites().get("datadoghq.eu").getFailureRatio()).isEqualTo(1.0);
+    }
+
+    @Test
+    public void shouldCountAlreadyDeliveredWebhooks() {
+        PluginMetrics metrics = new PluginMetrics();
+
+        metrics.onWebhookAlreadyDelivered();
+        metrics.onWebhookAlreadyDelivered();
+
+        assertThat(metrics.snapshot().getAlreadyDeliveredWebhooks()).isEqualTo(2L);
+    }
+
+    @Test
+    public void shouldTrackCacheHitRatio() {
+        PluginMetrics metrics = new PluginMetrics();
+
+        metrics.cache("test").hit();
+        metrics.cache("test").hit();
+        metrics.cache("test").miss();
+
+        assertThat(metrics.snapshot().getCaches().get("test").getHitRatio()).isCloseTo(2.0 / 3, offset(0.001));
+    }
+
+    @Test
+    public void shouldKeepSlowestRecentChains() {
+        PluginMetrics metrics = new PluginMetrics();
+
+        for (int i = 1; i <= 1000; i++) {
+            metrics.onChainProcessed(i, "chain-" + i, 1, TimeUnit.MILLISECONDS.toNanos(i % 500));
+        }
+
+        Snapshot snapshot = metrics.snapshot();
+        assertThat(snapshot.getProcessedChains()).isEqualTo(1000L);
+        assertThat(snapshot.getSlowestChains().stream().map(ChainTiming::getDurationMs).collect(toList()))
+            .containsExactly(499L, 498L, 497L, 496L, 495L, 494L, 493L, 492L, 491L, 490L);
+    }
+
+    @Test
+    public void shouldComputeMovingAverageRates() {
+        AtomicLong clock = new AtomicLong();
+        ThroughputMeter meter = new ThroughputMeter(clock::get);
+
+        // 10 events per second during one minute
+        for (int second = 0; second < 60; second++) {
+            for (int i = 0; i < 10; i++) {
+                meter.mark();
+            }
+            clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        }
+
+        assertThat(meter.count()).isEqualTo(600L);
+        assertThat(meter.oneMinuteRate()).isCloseTo(10.0, offset(0.5));
+        assertThat(meter.fiveMinuteRate()).isCloseTo(10.0, offset(0.5));
+
+        // No events during 15 minutes makes the short average decay faster than the long one
+        clock.addAndGet(TimeUnit.MINUTES.toNanos(15));
+        assertThat(meter.oneMinuteRate()).isLessThan(0.01);
+        assertThat(meter.fifteenMinuteRate()).isGreaterThan(meter.oneMinuteRate());
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.Uninterruptibles;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.ProcessingBudget.ChainBudget;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.ProcessingBudget.ChainBudget.PendingEnrichment;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.ProcessingBudget.Enrichment.DEPENDENCIES;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.ProcessingBudget.Enrichment.ERROR_INFO;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.ProcessingBudget.Enrichment.GIT_INFO;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ProcessingBudgetTest {
+
+    private final AtomicLong clock = new AtomicLong();
+    private final PluginMetrics metrics = new PluginMetrics();
+    private final MemoryPressureMonitor memoryPressure = new MemoryPressureMonitor(0.85, 0.75);
+
+    @Test
+    public void shouldSkipEnrichmentOnceItsBudgetIsSpent() {
+        ProcessingBudget processingBudget = new ProcessingBudget(millis(10_000), budgets(100), clock::get, metrics, memoryPressure);
+        ChainBudget budget = processingBudget.startChain();
+
+        Optional<String> slow = budget.enrich(ERROR_INFO, () -> {
+            clock.addAndGet(millis(150));
+            return Optional.of("error");
+        });
+        Optional<String> skipped = budget.enrich(ERROR_INFO, () -> Optional.of("error"));
+        Optional<String> other = budget.enrich(DEPENDENCIES, () -> Optional.of("dependencies"));
+
+        assertThat(slow).contains("error");
+        assertThat(skipped).isEmpty();
+        assertThat(other).contains("dependencies");
+        assertThat(metrics.snapshot().getSkippedEnrichments()).isEqualTo(ImmutableMap.of(ERROR_INFO.getKey(), 1L));
+    }
+
+    @Test
+    public void shouldSkipAllEnrichmentsAfterChainDeadline() {
+        ProcessingBudget processingBudget = new ProcessingBudget(millis(1000), budgets(5000), clock::get, metrics, memoryPressure);
+        ChainBudget budget = processingBudget.startChain();
+
+        clock.addAndGet(millis(1000));
+
+        assertThat(budget.enrich(DEPENDENCIES, () -> Optional.of("dependencies"))).isEmpty();
+        assertThat(budget.enrichWithTimeout(GIT_INFO, () -> Optional.of("git"))).isEmpty();
+        assertThat(metrics.snapshot().getSkippedEnrichments()).isEqualTo(ImmutableMap.of(DEPENDENCIES.getKey(), 1L, GIT_INFO.getKey(), 1L));
+
+        // Each chain has its own deadline
+        assertThat(processingBudget.startChain().enrich(DEPENDENCIES, () -> Optional.of("dependencies"))).contains("dependencies");
+    }
+
+    @Test
+    public void shouldAbandonTimedEnrichmentWhenItExceedsItsBudget() throws InterruptedException {
+        ProcessingBudget processingBudget = new ProcessingBudget(millis(10_000), budgets(50), System::nanoTime, metrics, memoryPressure);
+        CountDownLatch blocked = new CountDownLatch(1);
+
+        long startNanos = System.nanoTime();
+        Optional<String> gitInfo = processingBudget.startChain().enrichWithTimeout(GIT_INFO, () -> {
+            try {
+                blocked.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return Optional.of("git");
+        });
+
+        assertThat(gitInfo).isEmpty();
+        assertThat(System.nanoTime() - startNanos).isLessThan(TimeUnit.SECONDS.toNanos(5));
+        assertThat(metrics.snapshot().getSkippedEnrichments()).isEqualTo(ImmutableMap.of(GIT_INFO.getKey(), 1L));
+        blocked.countDown();
+
+        assertThat(processingBudget.startChain().enrichWithTimeout(GIT_INFO, () -> Optional.of("git"))).contains("git");
+    }
+
+    @Test
+    public void shouldKeepEnrichingWhileAbandonedLookupsAreStuck() throws InterruptedException {
+        ProcessingBudget processingBudget = new ProcessingBudget(millis(10_000), budgets(50), System::nanoTime, metrics, memoryPressure);
+        CountDownLatch stuck = new CountDownLatch(1);
+
+        // Two lookups blocked in calls which ignore the interruption, as many as the core threads
+        for (int i = 0; i < 2; i++) {
+            Optional<String> gitInfo = processingBudget.startChain().enrichWithTimeout(GIT_INFO, () -> {
+                Uninterruptibles.awaitUninterruptibly(stuck);
+                return Optional.of("git");
+            });
+            assertThat(gitInfo).isEmpty();
+        }
+        assertThat(metrics.snapshot().getAbandonedEnrichments()).isEqualTo(2);
+
+        // The next chains still get their git information
+        assertThat(processingBudget.startChain().enrichWithTimeout(GIT_INFO, () -> Optional.of("git"))).contains("git");
+
+        stuck.countDown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while ((metrics.snapshot().getRunningEnrichments() > 0 || metrics.snapshot().getAbandonedEnrichments() > 0)
+            && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(metrics.snapshot().getRunningEnrichments()).isZero();
+        assertThat(metrics.snapshot().getAbandonedEnrichments()).isZero();
+    }
+
+    @Test
+    public void shouldKeepStartedEnrichmentComputedBeforeChainDeadline() throws InterruptedException {
+        ProcessingBudget processingBudget = new ProcessingBudget(millis(200), budgets(5000), System::nanoTime, metrics, memoryPressure);
+        ChainBudget budget = processingBudget.startChain();
+
+        PendingEnrichment<String> gitInfo = budget.startEnrichment(GIT_INFO, () -> Optional.of("git"));
+        // The rest of the chain takes longer than its deadline
+        Thread.sleep(500);
+
+        assertThat(gitInfo.get()).contains("git");
+        assertThat(metrics.snapshot().getSkippedEnrichments()).isEmpty();
+    }
+
+    @Test
+    public void shouldSkipAllEnrichmentsUnderMemoryPressure() {
+        ProcessingBudget processingBudget = new ProcessingBudget(millis(10_000), budgets(5000), clock::get, metrics, memoryPressure);
+
+        memoryPressure.update(0.9);
+        ChainBudget budget = processingBudget.startChain();
+
+        assertThat(budget.enrich(ERROR_INFO, () -> Optional.of("error"))).isEmpty();
+        assertThat(budget.enrichWithTimeout(GIT_INFO, () -> Optional.of("git"))).isEmpty();
+        assertThat(metrics.snapshot().getSkippedEnrichments()).isEqualTo(ImmutableMap.of(ERROR_INFO.getKey(), 1L, GIT_INFO.getKey(), 1L));
+
+        memoryPressure.update(0.5);
+        assertThat(processingBudget.startChain().enrich(ERROR_INFO, () -> Optional.of("error"))).contains("error");
+    }
+
+    @Test
+    public void shouldNotLimitExportedChains() {
+        ProcessingBudget processingBudget = new ProcessingBudget(millis(1000), budgets(100), clock::get, metrics, memoryPressure);
+
+        memoryPressure.update(0.9);
+        ChainBudget budget = processingBudget.startExport();
+        clock.addAndGet(millis(5000));
+
+        Thread callingThread = Thread.currentThread();
+        assertThat(budget.enrich(ERROR_INFO, () -> Optional.of("error"))).contains("error");
+        assertThat(budget.enrichWithTimeout(GIT_INFO, () -> Optional.of(Thread.currentThread() == callingThread))).contains(true);
+        assertThat(metrics.snapshot().getSkippedEnrichments()).isEmpty();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldPropagateTimedEnrichmentFailures() {
+        ProcessingBudget processingBudget = new ProcessingBudget(millis(10_000), budgets(1000), System::nanoTime, metrics, memoryPressure);
+
+        processingBudget.startChain().enrichWithTimeout(GIT_INFO, () -> {
+            throw new IllegalArgumentException("Invalid VCS root");
+        });
+    }
+
+    private static long millis(long millis) {
+        return TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    private static long[] budgets(long millis) {
+        long[] budgets = new long[ProcessingBudget.Enrichment.values().length];
+        Arrays.fill(budgets, millis(millis));
+        return budgets;
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import jetbrains.buildServer.com.datadog.teamcity.plugin.ProjectHandler.ProjectParameters;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.WebhookSink.Destination;
+import jetbrains.buildServer.parameters.ProcessingResult;
+import jetbrains.buildServer.parameters.ValueResolver;
+import jetbrains.buildServer.serverSide.ProjectManager;
+import jetbrains.buildServer.serverSide.SBuild;
+import jetbrains.buildServer.serverSide.impl.ProjectEx;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.Collections;
+
+import static java.lang.String.format;
+import static java.util.stream.Collectors.toList;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.ProjectHandler.DATADOG_DESTINATIONS_PARAM;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.ProjectHandler.DATADOG_DESTINATION_SITE_PARAM;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.ProjectHandler.DATADOG_SITE_PARAM;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ProjectHandlerTest {
+
+    private static final String PROJECT_ID = "Project";
+    private static final String COLLECTOR_URL = "https://collector.internal/webhook";
+
+    @Mock
+    private ProjectManager projectManagerMock;
+    @Mock
+    private EnabledProjectsIndex enabledProjectsIndexMock;
+    @Mock
+    private ProjectEx projectMock;
+    @Mock
+    private ValueResolver valueResolverMock;
+    @Mock
+    private ProcessingResult resolvedApiKeyMock;
+    @Mock
+    private SBuild buildMock;
+
+    private ProjectHandler projectHandler;
+
+    @Before
+    public void setUp() {
+        when(buildMock.getProjectId()).thenReturn(PROJECT_ID);
+        when(projectManagerMock.findProjectById(PROJECT_ID)).thenReturn(projectMock);
+        when(projectMock.getValueResolver()).thenReturn(valueResolverMock);
+        when(valueResolverMock.resolve(anyString())).thenReturn(resolvedApiKeyMock);
+        when(resolvedApiKeyMock.isFullyResolved()).thenReturn(true);
+        when(resolvedApiKeyMock.getResult()).thenReturn("api-key");
+        when(enabledProjectsIndexMock.enabledProjectIds()).thenReturn(Collections.singleton(PROJECT_ID));
+
+        projectHandler = new ProjectHandler(projectManagerMock, enabledProjectsIndexMock,
+            ProjectHandler.parseAllowedDestinationUrls(COLLECTOR_URL + ", http://cleartext.internal/webhook"));
+    }
+
+    @Test
+    public void shouldAcceptDatadogSitesAndAllowedUrls() {
+        // Setup
+        when(projectMock.getParameterValue(DATADOG_SITE_PARAM)).thenReturn(" us5.datadoghq.com ");
+        destinations("eu", "datadoghq.eu", "collector", COLLECTOR_URL);
+
+        // When
+        ProjectParameters params = projectHandler.getProjectParameters(buildMock);
+
+        // Then
+        assertThat(params.ddSite()).isEqualTo("us5.datadoghq.com");
+        assertThat(params.additionalDestinations().stream().map(Destination::ddSite).collect(toList()))
+            .containsExactly("datadoghq.eu", COLLECTOR_URL);
+    }
+
+    @Test
+    public void shouldIgnoreDestinationsOutsideOfDatadog() {
+        // Setup: a subproject overriding the sites of inherited destinations
+        when(projectMock.getParameterValue(DATADOG_SITE_PARAM)).thenReturn("datadoghq.com");
+        destinations("url", "https://attacker.example.com/webhook", "cleartext", "http://cleartext.internal/webhook",
+            "host", "attacker.example.com");
+
+        // When
+        ProjectParameters params = projectHandler.getProjectParameters(buildMock);
+
+        // Then
+        assertThat(params.additionalDestinations()).isEmpty();
+    }
+
+    @Test
+    public void shouldRejectMainSiteOutsideOfDatadog() {
+        when(projectMock.getParameterValue(DATADOG_SITE_PARAM)).thenReturn("https://attacker.example.com/webhook");
+
+        assertThatThrownBy(() -> projectHandler.getProjectParameters(buildMock))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void shouldOnlyPreconnectToAcceptedSites() {
+        // Setup
+        when(projectMock.getParameterValue(DATADOG_SITE_PARAM)).thenReturn("datadoghq.com");
+        destinations("url", "https://attacker.example.com/webhook", "collector", COLLECTOR_URL);
+
+        // When / Then
+        assertThat(projectHandler.getEnabledSites()).containsExactly("datadoghq.com", COLLECTOR_URL);
+    }
+
+    private void destinations(String... namesAndSites) {
+        StringBuilder names = new StringBuilder();
+        for (int i = 0; i < namesAndSites.length; i += 2) {
+            names.append(namesAndSites[i]).append(',');
+            when(projectMock.getParameterValue(format(DATADOG_DESTINATION_SITE_PARAM, namesAndSites[i]))).thenReturn(namesAndSites[i + 1]);
+        }
+        when(projectMock.getParameterValue(DATADOG_DESTINATIONS_PARAM)).thenReturn(names.toString());
+    }
+}
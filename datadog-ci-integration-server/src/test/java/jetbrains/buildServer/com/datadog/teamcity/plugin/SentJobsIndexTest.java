@@ -0,0 +1,110 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SentJobsIndexTest {
+
+    private static final long WINDOW_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    private final AtomicLong clock = new AtomicLong();
+
+    @Test
+    public void shouldOnlyLetOwningPipelineReportJob() {
+        SentJobsIndex index = new SentJobsIndex(true, WINDOW_NANOS, 1000, clock::get, new PluginMetrics());
+
+        assertThat(index.claim(1, 10)).isTrue();
+        assertThat(index.claim(1, 20)).isFalse();
+        assertThat(index.claim(1, 10)).isTrue();
+        assertThat(index.claim(2, 20)).isTrue();
+        assertThat(index.size()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldLetOtherPipelineReportReleasedJob() {
+        SentJobsIndex index = new SentJobsIndex(true, WINDOW_NANOS, 1000, clock::get, new PluginMetrics());
+        index.claim(1, 10);
+        index.claim(2, 10);
+
+        // Released in both generations
+        advance(6);
+        index.claim(2, 10);
+        index.release(1, 10);
+        index.release(2, 10);
+
+        assertThat(index.claim(1, 20)).isTrue();
+        assertThat(index.claim(2, 20)).isTrue();
+    }
+
+    @Test
+    public void shouldNotReleaseJobClaimedByOtherPipeline() {
+        SentJobsIndex index = new SentJobsIndex(true, WINDOW_NANOS, 1000, clock::get, new PluginMetrics());
+        index.claim(1, 10);
+
+        index.release(1, 20);
+
+        assertThat(index.claim(1, 20)).isFalse();
+    }
+
+    @Test
+    public void shouldKeepRecentlyUsedJobsAcrossRotations() {
+        SentJobsIndex index = new SentJobsIndex(true, WINDOW_NANOS, 1000, clock::get, new PluginMetrics());
+        assertThat(index.claim(1, 10)).isTrue();
+
+        advance(6);
+        assertThat(index.claim(1, 20)).isFalse();
+        advance(5);
+        assertThat(index.claim(1, 20)).isFalse();
+
+        // No activity for a full window: everything is forgotten
+        advance(11);
+        assertThat(index.claim(1, 20)).isTrue();
+    }
+
+    @Test
+    public void shouldForgetOldestJobsWhenFull() {
+        SentJobsIndex index = new SentJobsIndex(true, WINDOW_NANOS, 4, clock::get, new PluginMetrics());
+
+        for (long jobId = 1; jobId <= 5; jobId++) {
+            assertThat(index.claim(jobId, 10)).isTrue();
+        }
+
+        assertThat(index.claim(5, 20)).isFalse();
+        assertThat(index.claim(1, 20)).isTrue();
+    }
+
+    @Test
+    public void shouldCountSuppressedJobsAsCacheHits() {
+        PluginMetrics metrics = new PluginMetrics();
+        SentJobsIndex index = new SentJobsIndex(true, WINDOW_NANOS, 1000, clock::get, metrics);
+
+        index.claim(1, 10);
+        index.claim(1, 20);
+
+        assertThat(metrics.cache("Shared jobs index").getHitRatio()).isEqualTo(0.5);
+    }
+
+    @Test
+    public void shouldClaimEverythingWhenDisabled() {
+        SentJobsIndex index = new SentJobsIndex(false, WINDOW_NANOS, 1000, clock::get, new PluginMetrics());
+
+        assertThat(index.claim(1, 10)).isTrue();
+        assertThat(index.claim(1, 20)).isTrue();
+        assertThat(index.size()).isZero();
+    }
+
+    private void advance(long minutes) {
+        clock.addAndGet(TimeUnit.MINUTES.toNanos(minutes));
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.Webhook;
+import jetbrains.buildServer.serverSide.BuildServerListener;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.Arrays;
+import java.util.TreeSet;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class StartupWarmupTest {
+
+    @Mock
+    private EventDispatcher<BuildServerListener> eventListener;
+    @Mock
+    private DatadogClient datadogClientMock;
+    @Mock
+    private ProjectHandler projectHandlerMock;
+
+    @Test
+    public void shouldWarmUpSerializationAndSites() {
+        when(projectHandlerMock.getEnabledSites()).thenReturn(new TreeSet<>(Arrays.asList("datadoghq.com", "datadoghq.eu")));
+
+        warmup(true).serverStartup();
+
+        verify(datadogClientMock).warmUpSerialization(anyListOf(Webhook.class), anyInt());
+        verify(datadogClientMock).preconnect("datadoghq.com");
+        verify(datadogClientMock).preconnect("datadoghq.eu");
+    }
+
+    @Test
+    public void shouldSkipWarmupWhenDisabled() {
+        warmup(false).serverStartup();
+
+        verifyZeroInteractions(datadogClientMock, projectHandlerMock);
+    }
+
+    @Test
+    public void shouldNotFailStartupWhenPreconnectFails() {
+        when(projectHandlerMock.getEnabledSites()).thenReturn(new TreeSet<>(Arrays.asList("datadoghq.com", "datadoghq.eu")));
+        doThrow(new IllegalStateException("Connection pool shut down")).when(datadogClientMock).preconnect("datadoghq.com");
+
+        warmup(true).serverStartup();
+
+        // The other sites are still pre-connected
+        verify(datadogClientMock).preconnect("datadoghq.eu");
+    }
+
+    @Test
+    public void shouldNotFailStartupWhenSitesCannotBeRead() {
+        when(projectHandlerMock.getEnabledSites()).thenThrow(new IllegalStateException("Projects not loaded"));
+
+        warmup(true).serverStartup();
+
+        verify(datadogClientMock).warmUpSerialization(anyListOf(Webhook.class), anyInt());
+    }
+
+    private StartupWarmup warmup(boolean enabled) {
+        // Runs the warm-up on the calling thread, so it is done when the startup event returns
+        return new StartupWarmup(eventListener, datadogClientMock, projectHandlerMock, enabled, 1,
+            MoreExecutors.newDirectExecutorService());
+    }
+}
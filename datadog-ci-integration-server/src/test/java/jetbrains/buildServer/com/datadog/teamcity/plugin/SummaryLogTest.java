@@ -0,0 +1,78 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import com.intellij.openapi.diagnostic.Logger;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+public class SummaryLogTest {
+
+    private final AtomicLong clock = new AtomicLong();
+    private final Logger logMock = mock(Logger.class);
+    private final SummaryLog summaryLog = new SummaryLog(logMock, "webhook(s) could not be sent to '%s'",
+        TimeUnit.SECONDS.toNanos(60), clock::get);
+
+    @Test
+    public void shouldLogFirstOccurrenceRightAway() {
+        summaryLog.warn("datadoghq.com", 1, () -> "status code '500'");
+
+        verify(logMock).warn("1 webhook(s) could not be sent to 'datadoghq.com': status code '500'");
+    }
+
+    @Test
+    public void shouldSummarizeOccurrencesOfAnInterval() {
+        AtomicInteger createdDetails = new AtomicInteger();
+        summaryLog.warn("datadoghq.com", 1, () -> "first");
+        for (int i = 0; i < 10; i++) {
+            summaryLog.warn("datadoghq.com", 2, () -> "status code '" + createdDetails.incrementAndGet() + "'");
+        }
+        summaryLog.warn("datadoghq.eu", 1, () -> "other site");
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(61));
+        summaryLog.warn("datadoghq.com", 1, () -> "last");
+
+        verify(logMock).warn("1 webhook(s) could not be sent to 'datadoghq.com': first");
+        verify(logMock).warn("1 webhook(s) could not be sent to 'datadoghq.eu': other site");
+        verify(logMock).warn("21 webhook(s) could not be sent to 'datadoghq.com' in the last 61 s, last one: last");
+        verifyNoMoreInteractions(logMock);
+        assertThat(createdDetails.get()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldLogPendingSummariesOnFlush() {
+        summaryLog.warn("datadoghq.com", 1, () -> "first");
+        summaryLog.warn("datadoghq.com", 3, () -> "batch");
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(5));
+
+        summaryLog.flush();
+        summaryLog.flush();
+
+        verify(logMock).warn("3 webhook(s) could not be sent to 'datadoghq.com' in the last 5 s, last one: batch");
+        verifyNoMoreInteractions(logMock);
+    }
+
+    @Test
+    public void shouldNotSummarizeQuietIntervals() {
+        summaryLog.warn("datadoghq.com", 1, () -> "first");
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(120));
+        summaryLog.warn("datadoghq.com", 1, () -> "second");
+
+        verify(logMock).warn("1 webhook(s) could not be sent to 'datadoghq.com': first");
+        verify(logMock).warn("1 webhook(s) could not be sent to 'datadoghq.com': second");
+        verifyNoMoreInteractions(logMock);
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.JobWebhook.HostInfo;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ValueInternerTest {
+
+    @Test
+    public void shouldShareEqualValues() {
+        ValueInterner interner = new ValueInterner(64, new PluginMetrics());
+
+        String name = interner.intern(new String("agent-1"));
+        List<String> tags = interner.intern(Collections.unmodifiableList(Arrays.asList("team:ci", "env:prod")));
+        HostInfo host = interner.intern(new HostInfo().withName("agent-1").withHostname("10.0.0.1").withWorkspace("/work"));
+
+        assertThat(interner.intern(new String("agent-1"))).isSameAs(name);
+        assertThat(interner.intern(Arrays.asList("team:ci", "env:prod"))).isSameAs(tags);
+        assertThat(interner.intern(new HostInfo().withName("agent-1").withHostname("10.0.0.1").withWorkspace("/work"))).isSameAs(host);
+        assertThat(interner.intern(new HostInfo().withName("agent-2"))).isNotSameAs(host);
+        assertThat(interner.<String>intern(null)).isNull();
+    }
+
+    @Test
+    public void shouldHaveBoundedCapacity() {
+        ValueInterner interner = new ValueInterner(100, new PluginMetrics());
+        assertThat(interner.capacity()).isEqualTo(128);
+
+        for (int i = 0; i < 10_000; i++) {
+            String value = "value-" + i;
+            assertThat(interner.intern(value)).isEqualTo(value);
+        }
+        assertThat(interner.capacity()).isEqualTo(128);
+    }
+
+    @Test
+    public void shouldRecordHitsAndMisses() {
+        PluginMetrics metrics = new PluginMetrics();
+        ValueInterner interner = new ValueInterner(64, metrics);
+
+        interner.intern("agent-1");
+        interner.intern("agent-1");
+        interner.intern("agent-1");
+
+        PluginMetrics.CacheStatistics statistics = metrics.snapshot().getCaches().get("Webhook values interner");
+        assertThat(statistics.getHits()).isEqualTo(2);
+        assertThat(statistics.getMisses()).isEqualTo(1);
+    }
+}
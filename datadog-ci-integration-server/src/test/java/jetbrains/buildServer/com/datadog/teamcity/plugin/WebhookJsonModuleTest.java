@@ -0,0 +1,90 @@
+/**
+ * Unless explicitly stated otherwise all files in this repository are licensed
+ * under the Apache License Version 2.0.
+ * This product includes software developed at Datadog (https://www.datadoghq.com/)
+ * Copyright 2022-present Datadog, Inc.
+ */
+
+package jetbrains.buildServer.com.datadog.teamcity.plugin;
+
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.GitInfo;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.JobWebhook;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.JobWebhook.ErrorInfo;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.JobWebhook.HostInfo;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.JobWebhook.JobStatus;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.PipelineWebhook;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.PipelineWebhook.PipelineStatus;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.StepWebhook;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.StepWebhook.StepStatus;
+import jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.Webhook;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.TestUtils.defaultErrorInfo;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.TestUtils.defaultGitInfo;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.TestUtils.defaultHostInfo;
+import static jetbrains.buildServer.com.datadog.teamcity.plugin.model.entities.JobWebhook.ErrorInfo.ErrorDomain.USER;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WebhookJsonModuleTest {
+
+    private final ObjectMapper reflectiveMapper = new ObjectMapper().setSerializationInclusion(Include.NON_NULL);
+    private final ObjectMapper mapper = new DatadogConfiguration().objectMapper();
+
+    @Test
+    public void shouldWriteSameJsonAsReflectiveSerialization() throws IOException {
+        for (Webhook webhook : webhooks()) {
+            assertThat(mapper.writeValueAsBytes(webhook)).isEqualTo(reflectiveMapper.writeValueAsBytes(webhook));
+        }
+    }
+
+    @Test
+    public void shouldWriteSameJsonForListsOfWebhooks() throws IOException {
+        List<Webhook> webhooks = webhooks();
+        assertThat(mapper.writeValueAsString(webhooks)).isEqualTo(reflectiveMapper.writeValueAsString(webhooks));
+        JsonNode tree = mapper.valueToTree(webhooks);
+        assertThat(tree).isEqualTo(reflectiveMapper.valueToTree(webhooks));
+    }
+
+    private static List<Webhook> webhooks() {
+        PipelineWebhook minimalPipeline = new PipelineWebhook("Pipeline", "http://localhost/build/1",
+            "2023-01-01T00:00:00Z", "2023-01-01T00:01:00Z", "server-1", "1", false, PipelineStatus.SUCCESS);
+
+        PipelineWebhook completePipeline = new PipelineWebhook("Pipeline \"quoted\" \u00e9\u4e2d \ud83d\ude80", "http://localhost/build/2",
+            "2023-01-01T00:00:00Z", "2023-01-01T00:01:00Z", "server-2", "2", true, PipelineStatus.CANCELED);
+        completePipeline.setGitInfo(defaultGitInfo());
+        completePipeline.setTags(Arrays.asList("team:ci", "line\nbreak\ttab"));
+
+        JobWebhook minimalJob = new JobWebhook("Job", "http://localhost/build/3", "2023-01-01T00:00:00Z",
+            "2023-01-01T00:01:00Z", "server-2", "Pipeline", "server-3", JobStatus.CANCELED, 0);
+
+        JobWebhook completeJob = new JobWebhook("Job \\ backslash", "http://localhost/build/4", "2023-01-01T00:00:00Z",
+            "2023-01-01T00:01:00Z", "server-2", "Pipeline", "server-4", JobStatus.ERROR, Long.MAX_VALUE);
+        completeJob.setGitInfo(new GitInfo().withSha("abc").withMessage("Fix </script> \u0000 \u001f"));
+        completeJob.setTags(Collections.emptyList());
+        completeJob.setDependenciesIds(Arrays.asList("server-3", "server-5"));
+        completeJob.setHostInfo(defaultHostInfo());
+        completeJob.setErrorInfo(defaultErrorInfo());
+
+        JobWebhook partialJob = new JobWebhook("Job", "http://localhost/build/6", "2023-01-01T00:00:00Z",
+            "2023-01-01T00:01:00Z", "server-2", "Pipeline", "server-6", JobStatus.SUCCESS, 42);
+        partialJob.setHostInfo(new HostInfo().withName("agent"));
+        partialJob.setErrorInfo(new ErrorInfo(null, "Tests Failed", USER));
+
+        PipelineWebhook runningPipeline = PipelineWebhook.running("Pipeline", "http://localhost/build/7",
+            "2023-01-01T00:00:00Z", "2023-01-01T00:00:30Z", "server-7", "7", 1672531230000L);
+
+        StepWebhook step = new StepWebhook("Step \t tab", "http://localhost/build/4", "2023-01-01T00:00:00Z",
+            "2023-01-01T00:00:10Z", "server-2", "Pipeline", "server-4", "Job", "server-4-RUNNER_1", StepStatus.ERROR);
+        step.setGitInfo(defaultGitInfo());
+
+        return Arrays.asList(minimalPipeline, completePipeline, minimalJob, completeJob, partialJob, runningPipeline, step);
+    }
+}